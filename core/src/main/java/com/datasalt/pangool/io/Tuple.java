@@ -240,15 +240,34 @@ public class Tuple implements ITuple, Serializable, Cloneable {
    *                                     {@link FieldClonator}. Provide always corresponding {@link FieldClonator}s for this type of fields.
    */
   public static Tuple deepCopy(ITuple tuple, Map<String, FieldClonator> customClonators) {
+    return deepCopy(tuple, null, customClonators);
+  }
+
+  /**
+   * Performs a deep copy of the given Tuple into another one, as
+   * {@link #deepCopy(ITuple, java.util.Map)}, for copying many tuples without
+   * creating new objects for each one. The {@link Utf8}s and byte arrays of
+   * the destination are reused when possible.
+   *
+   * @param tuple           a tuple to copy.
+   * @param copy            the tuple to copy it into. A new one is created if
+   *                        it is null or its schema is not the schema of the
+   *                        tuple.
+   * @param customClonators map with custom {@link FieldClonator} for each field, indexed by field name.
+   * @return the copy of the tuple
+   */
+  public static Tuple deepCopy(ITuple tuple, Tuple copy, Map<String, FieldClonator> customClonators) {
     Schema schema = tuple.getSchema();
-    Tuple newTuple = new Tuple(schema);
+    Tuple newTuple = (copy != null && copy.getSchema() == schema) ? copy : new Tuple(schema);
     for (int i = 0; i < schema.getFields().size(); i++) {
       Field field = schema.getField(i);
 
       Object value = tuple.get(i);
       if (value == null) {
+        newTuple.set(i, null);
         continue;
       }
+      Object previous = newTuple.get(i);
 
       if (customClonators != null && customClonators.containsKey(field.getName())) {
         // There is a custom clonator
@@ -261,7 +280,12 @@ public class Tuple implements ITuple, Serializable, Cloneable {
           if (value instanceof ByteBuffer) {
             newTuple.set(i, cloneByteBuffer((ByteBuffer) value));
           } else if (value instanceof byte[]) {
-            newTuple.set(i, Arrays.copyOf((byte[]) value, ((byte[]) value).length));
+            byte[] bytes = (byte[]) value;
+            if (previous instanceof byte[] && previous != value && ((byte[]) previous).length == bytes.length) {
+              System.arraycopy(bytes, 0, previous, 0, bytes.length);
+            } else {
+              newTuple.set(i, Arrays.copyOf(bytes, bytes.length));
+            }
           } else {
             throw new IllegalArgumentException("Field " + field.getName() + " of type " + field.getType()
                 + " cannot contains values of class " + value.getClass().getCanonicalName());
@@ -281,8 +305,12 @@ public class Tuple implements ITuple, Serializable, Cloneable {
         case STRING:
           if (value instanceof String) {
             newTuple.set(i, tuple.get(i));
-          } else if (value instanceof Utf8 || value instanceof Text) {
-            newTuple.set(i, new Utf8(value.toString()));
+          } else if (value instanceof Text) {
+            if (previous instanceof Utf8 && previous != value) {
+              ((Utf8) previous).set((Text) value);
+            } else {
+              newTuple.set(i, new Utf8((Text) value));
+            }
           } else {
             throw new IllegalArgumentException("Field " + field.getName() + " of type " + field.getType()
                 + " cannot contains values of class " + value.getClass().getCanonicalName());
@@ -63,6 +63,21 @@ public class TupleFile {
     @SuppressWarnings("rawtypes")
     private static Class UNUSED = Text.class;
 
+    private static final SequenceFile.ValueBytes EMPTY_VALUE = new SequenceFile.ValueBytes() {
+      @Override
+      public void writeUncompressedBytes(DataOutputStream outStream) throws IOException {
+      }
+
+      @Override
+      public void writeCompressedBytes(DataOutputStream outStream) throws IllegalArgumentException, IOException {
+      }
+
+      @Override
+      public int getSize() {
+        return 0;
+      }
+    };
+
     private SequenceFile.Writer innerWriter;
     private SimpleTupleSerializer ser;
     private DataOutputBuffer outputBuffer;
@@ -230,20 +245,16 @@ public class TupleFile {
         throws IOException {
       outputBuffer.reset();
       ser.serialize(tuple);
-      innerWriter.appendRaw(outputBuffer.getData(), 0, outputBuffer.getLength(), new SequenceFile.ValueBytes() {
-        @Override
-        public void writeUncompressedBytes(DataOutputStream outStream) throws IOException {
-        }
-
-        @Override
-        public void writeCompressedBytes(DataOutputStream outStream) throws IllegalArgumentException, IOException {
-        }
-
-        @Override
-        public int getSize() {
-          return 0;
-        }
-      });
+      appendRaw(outputBuffer.getData(), 0, outputBuffer.getLength());
+    }
+
+    /**
+     * Append an already serialized {@link ITuple}. The bytes must have been serialized with a
+     * {@link SimpleTupleSerializer} for the schema of this file.
+     */
+    public synchronized void appendRaw(byte[] data, int offset, int length)
+        throws IOException {
+      innerWriter.appendRaw(data, offset, length, EMPTY_VALUE);
     }
 
     /**
@@ -360,6 +371,15 @@ public class TupleFile {
       return schema;
     }
 
+    /**
+     * Restricts the fields read by {@link #next(ITuple)} to the given ones. The rest of fields are
+     * skipped without being deserialized, and their values in the given tuple are left untouched.
+     * A null argument removes the projection.
+     */
+    public void setProjection(String... fieldNames) {
+      deser.setProjection(fieldNames);
+    }
+
     /**
      * Read the next {@link ITuple} in the file into <code>tuple</code>.
      * True if another entry exists, and false at end of file.
@@ -0,0 +1,272 @@
+package com.datasalt.pangool.pig;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.pig.Expression;
+import org.apache.pig.LoadFunc;
+import org.apache.pig.LoadMetadata;
+import org.apache.pig.LoadPushDown;
+import org.apache.pig.ResourceSchema;
+import org.apache.pig.ResourceSchema.ResourceFieldSchema;
+import org.apache.pig.ResourceStatistics;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigSplit;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.DataType;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+import org.apache.pig.impl.logicalLayer.FrontendException;
+import org.apache.pig.impl.util.UDFContext;
+
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Schema.Field;
+import com.datasalt.pangool.io.TupleFile;
+import com.datasalt.pangool.tuplemr.mapred.lib.input.TupleFileRecordReader;
+import com.datasalt.pangool.tuplemr.mapred.lib.input.TupleInputFormat;
+
+/**
+ * A Pig's LoadFunc that reads Tuple files (like the ones written by {@link PangoolStoreFunc}) into Pig. The Schema is
+ * read from the metadata of the files, so no schema needs to be declared in the Pig script. The type correspondence
+ * is:
+ * <ul>
+ *   <li>INT - Integer</li>
+ *   <li>LONG - Long</li>
+ *   <li>FLOAT - Float</li>
+ *   <li>DOUBLE - Double</li>
+ *   <li>STRING - String</li>
+ *   <li>BOOLEAN - Boolean</li>
+ *   <li>ENUM - String</li>
+ *   <li>BYTES - DataByteArray</li>
+ * </ul>
+ * OBJECT fields are not supported and an IOException is thrown.
+ * <p>
+ * Projections are pushed down: when the Pig script only uses some of the fields, the rest of them are skipped by the
+ * Pangool deserializer instead of being deserialized and converted to Pig.
+ */
+@SuppressWarnings("rawtypes")
+public class PangoolLoadFunc extends LoadFunc implements LoadMetadata, LoadPushDown {
+
+	private final static String PROJECTION_PROPERTY = "pangool.pig.projection";
+
+	private final TupleFactory tupleFactory = TupleFactory.getInstance();
+
+	private String signature;
+	private Schema pangoolSchema;
+
+	private TupleFileRecordReader reader;
+	// Names of the fields to be returned, in order. Null means all fields.
+	private String[] projection;
+	// Positions in the Pangool tuple of the fields to be returned.
+	private int[] positions;
+
+	@Override
+	public void setUDFContextSignature(String signature) {
+		this.signature = signature;
+	}
+
+	@Override
+	public void setLocation(String location, Job job) throws IOException {
+		FileInputFormat.setInputPaths(job, location);
+	}
+
+	@Override
+	public InputFormat getInputFormat() throws IOException {
+		return new TupleInputFormat();
+	}
+
+	@Override
+	public void prepareToRead(RecordReader reader, PigSplit split) throws IOException {
+		this.reader = (TupleFileRecordReader) reader;
+		this.positions = null;
+		String projectionStr = getUDFProperties().getProperty(PROJECTION_PROPERTY);
+		if(projectionStr != null) {
+			projection = projectionStr.split(",");
+			this.reader.setProjection(projection);
+		}
+	}
+
+	@Override
+	public Tuple getNext() throws IOException {
+		try {
+			if(!reader.nextKeyValue()) {
+				return null;
+			}
+		} catch(InterruptedException e) {
+			throw new IOException(e);
+		}
+		ITuple pangoolTuple = reader.getCurrentKey();
+		if(positions == null) {
+			positions = getPositions(pangoolTuple.getSchema());
+		}
+		Tuple pigTuple = tupleFactory.newTuple(positions.length);
+		for(int i = 0; i < positions.length; i++) {
+			pigTuple.set(i, toPig(pangoolTuple.get(positions[i])));
+		}
+		return pigTuple;
+	}
+
+	private int[] getPositions(Schema schema) throws IOException {
+		if(projection == null) {
+			int[] result = new int[schema.getFields().size()];
+			for(int i = 0; i < result.length; i++) {
+				result[i] = i;
+			}
+			return result;
+		}
+		int[] result = new int[projection.length];
+		for(int i = 0; i < projection.length; i++) {
+			Integer pos = schema.getFieldPos(projection[i]);
+			if(pos == null) {
+				throw new IOException("Field '" + projection[i] + "' not present in schema " + schema);
+			}
+			result[i] = pos;
+		}
+		return result;
+	}
+
+	private static Object toPig(Object obj) {
+		if(obj == null || obj instanceof Number || obj instanceof Boolean) {
+			return obj;
+		} else if(obj instanceof ByteBuffer) {
+			ByteBuffer buffer = (ByteBuffer) obj;
+			int offset = buffer.arrayOffset() + buffer.position();
+			return new DataByteArray(Arrays.copyOfRange(buffer.array(), offset, offset + buffer.remaining()));
+		} else if(obj instanceof byte[]) {
+			return new DataByteArray((byte[]) obj);
+		}
+		// Utf8, String and Enums
+		return obj.toString();
+	}
+
+	@Override
+	public ResourceSchema getSchema(String location, Job job) throws IOException {
+		pangoolSchema = readSchema(location, job);
+		List<ResourceFieldSchema> pigFields = new ArrayList<ResourceFieldSchema>();
+		for(Field field : pangoolSchema.getFields()) {
+			ResourceFieldSchema pigField = new ResourceFieldSchema();
+			pigField.setName(field.getName());
+			pigField.setType(toPigType(field));
+			pigFields.add(pigField);
+		}
+		return new ResourceSchema().setFields(pigFields.toArray(new ResourceFieldSchema[0]));
+	}
+
+	private static byte toPigType(Field field) throws IOException {
+		switch(field.getType()) {
+		case INT:
+			return DataType.INTEGER;
+		case LONG:
+			return DataType.LONG;
+		case FLOAT:
+			return DataType.FLOAT;
+		case DOUBLE:
+			return DataType.DOUBLE;
+		case BOOLEAN:
+			return DataType.BOOLEAN;
+		case STRING:
+		case ENUM:
+			return DataType.CHARARRAY;
+		case BYTES:
+			return DataType.BYTEARRAY;
+		default:
+			throw new IOException("Can't handle type [" + field.getType() + "] of field [" + field.getName()
+			    + "] - only primitive types allowed.");
+		}
+	}
+
+	/**
+	 * Reads the schema from the first Tuple file found in the given location.
+	 */
+	private static Schema readSchema(String location, Job job) throws IOException {
+		for(String pathStr : getPathStrings(location)) {
+			Path path = new Path(pathStr);
+			FileSystem fs = path.getFileSystem(job.getConfiguration());
+			FileStatus[] statuses = fs.globStatus(path);
+			if(statuses == null) {
+				continue;
+			}
+			for(FileStatus status : statuses) {
+				Path file = findFile(fs, status);
+				if(file != null) {
+					TupleFile.Reader reader = new TupleFile.Reader(fs, job.getConfiguration(), file);
+					try {
+						return reader.getSchema();
+					} finally {
+						reader.close();
+					}
+				}
+			}
+		}
+		throw new IOException("No Tuple files found in location [" + location + "]");
+	}
+
+	private static Path findFile(FileSystem fs, FileStatus status) throws IOException {
+		String name = status.getPath().getName();
+		if(name.startsWith("_") || name.startsWith(".")) {
+			return null;
+		}
+		if(!status.isDir()) {
+			return status.getPath();
+		}
+		for(FileStatus child : fs.listStatus(status.getPath())) {
+			Path file = findFile(fs, child);
+			if(file != null) {
+				return file;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public ResourceStatistics getStatistics(String location, Job job) throws IOException {
+		return null;
+	}
+
+	@Override
+	public String[] getPartitionKeys(String location, Job job) throws IOException {
+		return null;
+	}
+
+	@Override
+	public void setPartitionFilter(Expression partitionFilter) throws IOException {
+	}
+
+	@Override
+	public List<OperatorSet> getFeatures() {
+		return Arrays.asList(OperatorSet.PROJECTION);
+	}
+
+	@Override
+	public RequiredFieldResponse pushProjection(RequiredFieldList requiredFieldList) throws FrontendException {
+		if(requiredFieldList == null || requiredFieldList.getFields() == null
+		    || requiredFieldList.getFields().isEmpty() || pangoolSchema == null) {
+			return new RequiredFieldResponse(false);
+		}
+		StringBuilder fieldNames = new StringBuilder();
+		for(RequiredField requiredField : requiredFieldList.getFields()) {
+			if(fieldNames.length() > 0) {
+				fieldNames.append(",");
+			}
+			fieldNames.append(pangoolSchema.getField(requiredField.getIndex()).getName());
+		}
+		// The projection is passed to the backend through the UDFContext
+		getUDFProperties().setProperty(PROJECTION_PROPERTY, fieldNames.toString());
+		return new RequiredFieldResponse(true);
+	}
+
+	private Properties getUDFProperties() {
+		return UDFContext.getUDFContext().getUDFProperties(getClass(), new String[] { signature });
+	}
+}
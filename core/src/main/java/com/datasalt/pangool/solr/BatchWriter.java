@@ -19,6 +19,8 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -26,6 +28,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.TaskID;
 import org.apache.solr.client.solrj.SolrServerException;
@@ -34,9 +37,25 @@ import org.apache.solr.client.solrj.response.UpdateResponse;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.core.SolrCore;
 
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Tuple;
+
 /**
  * Enables adding batches of documents to an EmbeddedSolrServer.
  * <p>
+ * Batches are taken from a bounded pool with {@link #acquireBatch()}, filled by the caller, and handed over to the
+ * writer threads with {@link #queueBatch(Batch)}. Once indexed, batches are cleared and returned to the pool, so their
+ * lists are reused. When all the batches are queued or being indexed, {@link #acquireBatch()} blocks until one is
+ * free: that is the backpressure applied to the caller, which never indexes by itself.
+ * <p>
+ * Batches can contain tuples instead of documents. In that case the conversion to documents is done by the writer
+ * threads, just before indexing, with the given {@link TupleDocumentConverter}, which must then be thread-safe.
+ * <p>
+ * The following counters are updated in the "SolrRecordWriter" group: "QueueWaitTime" (milliseconds the caller waited
+ * for a free batch), "ConversionTime" (milliseconds spent converting tuples in the writer threads) and
+ * "IndexingTime" (milliseconds spent indexing in the writer threads), once the context of the reducer has been
+ * registered with {@link SolrRecordWriter#addReducerContext(org.apache.hadoop.mapreduce.Reducer.Context)}.
+ * <p>
  * <b>This class has been copied from SOLR-1301 patch although it might be slightly different from it.</b>
  * <p>
  */
@@ -45,7 +64,9 @@ public class BatchWriter {
 
 	final EmbeddedSolrServer solr;
 
-	final List<SolrInputDocument> batchToWrite;
+	final int batchSize;
+
+	final TupleDocumentConverter converter;
 
 	volatile Exception batchWriteException = null;
 
@@ -65,6 +86,12 @@ public class BatchWriter {
 
 	ThreadPoolExecutor batchPool;
 
+	/** The batches not in use, ready to be filled */
+	final BlockingQueue<Batch> freeBatches;
+
+	/** The number of batches created so far. Never greater than queueSize + writerThreads */
+	int createdBatches = 0;
+
 	private TaskID taskId = null;
 
 	/**
@@ -73,25 +100,56 @@ public class BatchWriter {
 	AtomicInteger executingBatches = new AtomicInteger(0);
 
 	/**
-	 * Create the batch writer object, set the thread to daemon mode, and start it.
-	 * 
+	 * A reusable batch of documents or tuples to be indexed.
 	 */
-
-	class Batch implements Runnable {
+	public class Batch implements Runnable {
 		List<SolrInputDocument> documents;
+		List<ITuple> tuples;
 
 		UpdateResponse result;
 
-		public Batch(Collection<SolrInputDocument> batch) {
-			documents = new ArrayList<SolrInputDocument>(batch);
+		Batch(int batchSize) {
+			documents = new ArrayList<SolrInputDocument>(batchSize);
+			tuples = new ArrayList<ITuple>(batchSize);
+		}
+
+		/**
+		 * Adds a document to be indexed.
+		 */
+		public void add(SolrInputDocument document) {
+			documents.add(document);
+		}
+
+		/**
+		 * Adds a tuple to be converted and indexed by the writer threads. The tuple is copied, so it can be reused by the
+		 * caller.
+		 */
+		public void add(ITuple tuple) {
+			tuples.add(Tuple.deepCopy(tuple));
+		}
+
+		public int size() {
+			return documents.size() + tuples.size();
 		}
 
 		public void run() {
 			try {
 				executingBatches.getAndIncrement();
+				if(!tuples.isEmpty()) {
+					long start = System.nanoTime();
+					for(ITuple tuple : tuples) {
+						documents.add(converter.convert(tuple, NullWritable.get()));
+					}
+					SolrRecordWriter.incrementCounter(taskId, "SolrRecordWriter", "ConversionTime",
+					    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+				}
 				result = runUpdate(documents);
+			} catch(Exception e) {
+				SolrRecordWriter.incrementCounter(taskId, "SolrRecordWriter", e.getClass().getName(), 1);
+				setBatchWriteException(e);
 			} finally {
 				executingBatches.getAndDecrement();
+				releaseBatch(this);
 			}
 		}
 
@@ -99,42 +157,23 @@ public class BatchWriter {
 			return documents;
 		}
 
-		protected void setDocuments(List<SolrInputDocument> documents) {
-			this.documents = documents;
-		}
-
 		protected UpdateResponse getResult() {
 			return result;
 		}
 
-		protected void setResult(UpdateResponse result) {
-			this.result = result;
-		}
-
-		protected void reset(List<SolrInputDocument> documents) {
-			if(this.documents == null) {
-				this.documents = new ArrayList<SolrInputDocument>(documents);
-			} else {
-				this.documents.clear();
-				this.documents.addAll(documents);
-			}
-			result = null;
-		}
-
-		protected void reset(SolrInputDocument document) {
-			if(this.documents == null) {
-				this.documents = new ArrayList<SolrInputDocument>();
-			} else {
-				this.documents.clear();
-			}
-			this.documents.add(document);
+		protected void clear() {
+			documents.clear();
+			tuples.clear();
 			result = null;
 		}
 	}
 
 	protected UpdateResponse runUpdate(List<SolrInputDocument> batchToWrite) {
 		try {
+			long start = System.nanoTime();
 			UpdateResponse result = solr.add(batchToWrite);
+			SolrRecordWriter.incrementCounter(taskId, "SolrRecordWriter", "IndexingTime",
+			    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
 			SolrRecordWriter.incrementCounter(taskId, "SolrRecordWriter", "BatchesWritten", 1);
 			SolrRecordWriter.incrementCounter(taskId, "SolrRecordWriter", "DocumentsWritten", batchToWrite.size());
 			SolrRecordWriter.incrementCounter(taskId, "SolrRecordWriter", "BatchesWriteTime", result.getElapsedTime());
@@ -151,26 +190,100 @@ public class BatchWriter {
 	}
 
 	public BatchWriter(EmbeddedSolrServer solr, int batchSize, TaskID tid, int writerThreads, int queueSize) {
+		this(solr, batchSize, tid, writerThreads, queueSize, null);
+	}
+
+	/**
+	 * @param converter
+	 *          The converter used for the batches that contain tuples. Can be null if only documents are added.
+	 */
+	public BatchWriter(EmbeddedSolrServer solr, int batchSize, TaskID tid, int writerThreads, int queueSize,
+	    TupleDocumentConverter converter) {
 		this.solr = solr;
+		this.batchSize = batchSize;
 		this.writerThreads = writerThreads;
 		this.queueSize = queueSize;
+		this.converter = converter;
 		taskId = tid;
 
-		// we need to obtain the settings before the constructor
+		// The executor queue doesn't need a bound: the number of batches is already bounded by the pool of free batches
 		batchPool = new ThreadPoolExecutor(writerThreads, writerThreads, 5, TimeUnit.SECONDS,
-		    new LinkedBlockingQueue<Runnable>(queueSize), new ThreadPoolExecutor.CallerRunsPolicy());
-		this.batchToWrite = new ArrayList<SolrInputDocument>(batchSize);
+		    new LinkedBlockingQueue<Runnable>());
+		freeBatches = new ArrayBlockingQueue<Batch>(queueSize + writerThreads);
 	}
 
-	public void queueBatch(Collection<SolrInputDocument> batch) throws IOException, SolrServerException {
+	/**
+	 * Returns an empty batch to be filled and then queued with {@link #queueBatch(Batch)}. Blocks if all the batches are
+	 * queued or being indexed. Must be called always from the same thread.
+	 */
+	public Batch acquireBatch() throws IOException, SolrServerException {
+		throwIf();
+		Batch batch = freeBatches.poll();
+		if(batch != null) {
+			return batch;
+		}
+		if(createdBatches < queueSize + writerThreads) {
+			createdBatches++;
+			return new Batch(batchSize);
+		}
+		long start = System.nanoTime();
+		try {
+			batch = freeBatches.take();
+		} catch(InterruptedException e) {
+			throw new IOException(e);
+		}
+		SolrRecordWriter.incrementCounter(taskId, "SolrRecordWriter", "QueueWaitTime",
+		    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return batch;
+	}
 
+	/**
+	 * Returns a batch that was not queued to the pool of free batches.
+	 */
+	public void releaseBatch(Batch batch) {
+		batch.clear();
+		freeBatches.offer(batch);
+	}
+
+	public void queueBatch(Batch batch) throws IOException, SolrServerException {
 		throwIf();
-		batchPool.execute(new Batch(batch));
+		batchPool.execute(batch);
+	}
+
+	public void queueBatch(Collection<SolrInputDocument> documents) throws IOException, SolrServerException {
+		Batch batch = acquireBatch();
+		batch.documents.addAll(documents);
+		queueBatch(batch);
 	}
 
 	public synchronized void close(TaskAttemptContext context, SolrCore core) throws InterruptedException,
 	    SolrServerException, IOException {
+		close(context, core, true);
+	}
+
+	/**
+	 * Waits for the pending batches and closes the core, optimizing the index before if asked.
+	 */
+	public synchronized void close(TaskAttemptContext context, SolrCore core, boolean optimize)
+	    throws InterruptedException, SolrServerException, IOException {
+
+		waitForBatches(context);
+		if(optimize) {
+			context.setStatus("Optimizing Solr");
+			solr.optimize(true, false, 1);
+		} else {
+			solr.commit(true, false);
+		}
+		context.setStatus("Closing Solr");
+		core.close();
+	}
 
+	/**
+	 * Stops accepting batches and waits for the pending ones to be written. Throws the last exception raised while
+	 * writing batches, if any.
+	 */
+	public synchronized void waitForBatches(TaskAttemptContext context) throws InterruptedException,
+	    SolrServerException, IOException {
 		context.setStatus("Waiting for batches to complete");
 		batchPool.shutdown();
 
@@ -179,10 +292,7 @@ public class BatchWriter {
 			    batchPool.getActiveCount()));
 			batchPool.awaitTermination(5, TimeUnit.SECONDS);
 		}
-		context.setStatus("Optimizing Solr");
-		solr.optimize(true, false, 1);
-		context.setStatus("Closing Solr");
-		core.close();
+		throwIf();
 	}
 
 	/**
@@ -0,0 +1,401 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.solr;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Moves a locally built index to its final location using several threads, so the tail of the tasks writing indexes
+ * is shorter:
+ * <ul>
+ * <li>{@link #copy(Configuration, Path, FileSystem, Path, int)} uploads the files of the index concurrently.</li>
+ * <li>{@link #zip(Configuration, Path, String, OutputStream, int)} deflates the zip entries concurrently and writes
+ * them, in order, as soon as each one is ready. The result is the same as
+ * {@link SolrRecordWriter#zipDirectory(Configuration, java.util.zip.ZipOutputStream, String, String, Path)}.</li>
+ * </ul>
+ */
+public class IndexPackager {
+
+	private static final Log LOG = LogFactory.getLog(IndexPackager.class);
+
+	/** Zip files without ZIP64 extensions can't have entries nor offsets over this */
+	static final long ZIP_MAX_SIZE = 0xFFFFFFFFL;
+	/** Zip files without ZIP64 extensions can't have more entries than this */
+	static final int ZIP_MAX_ENTRIES = 0xFFFF;
+
+	/**
+	 * A file or directory to be added to the package.
+	 */
+	static class Entry {
+		final Path path;
+		final String name;
+		final boolean isDir;
+		final long length;
+		final long modificationTime;
+
+		Entry(FileStatus status, String name) {
+			this.path = status.getPath();
+			this.name = name;
+			this.isDir = status.isDir();
+			this.length = status.getLen();
+			this.modificationTime = status.getModificationTime();
+		}
+	}
+
+	/**
+	 * An entry already deflated into a temporary file.
+	 */
+	static class DeflatedEntry {
+		File file;
+		long crc;
+		long compressedSize;
+		long size;
+	}
+
+	/**
+	 * Lists the entries of the package in the same order and with the same names as
+	 * {@link SolrRecordWriter#zipDirectory(Configuration, java.util.zip.ZipOutputStream, String, String, Path)}.
+	 */
+	static void listEntries(LocalFileSystem localFs, String baseName, String root, Path item, List<Entry> entries)
+	    throws IOException {
+		FileStatus status = localFs.getFileStatus(item);
+		String name = SolrRecordWriter.relativePathForZipEntry(item.toUri().getPath(), baseName, root);
+		if(status.isDir()) {
+			entries.add(new Entry(status, name + Path.SEPARATOR_CHAR));
+			FileStatus[] children = localFs.listStatus(item);
+			if(children != null) {
+				for(FileStatus child : children) {
+					listEntries(localFs, baseName, root, child.getPath(), entries);
+				}
+			}
+		} else if(name.length() > 0) {
+			entries.add(new Entry(status, name));
+		}
+	}
+
+	/**
+	 * Copies the local directory to the given destination, uploading up to <code>threads</code> files at the same time.
+	 */
+	public static void copy(final Configuration conf, Path local, final FileSystem fs, Path dest, int threads)
+	    throws IOException {
+		final LocalFileSystem localFs = FileSystem.getLocal(conf);
+		List<Entry> entries = new ArrayList<Entry>();
+		String root = local.toUri().getPath();
+		listEntries(localFs, "", root, local, entries);
+		// The first entry is the root directory itself
+		entries.remove(0);
+
+		fs.mkdirs(dest);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(final Entry entry : entries) {
+			final Path target = new Path(dest, entry.name);
+			if(entry.isDir) {
+				fs.mkdirs(target);
+				continue;
+			}
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					FileUtil.copy(localFs, entry.path, fs, target, false, conf);
+					return null;
+				}
+			});
+		}
+		LOG.info(String.format("Copying %d files from %s to %s with %d threads", tasks.size(), local, dest, threads));
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		try {
+			for(Future<Void> future : executor.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch(InterruptedException e) {
+			throw new IOException(e);
+		} catch(ExecutionException e) {
+			throw asIOException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Whether the local directory can be zipped by {@link #zip(Configuration, Path, String, OutputStream, int)}, which
+	 * doesn't write ZIP64 extensions.
+	 */
+	public static boolean canZip(Configuration conf, Path local) throws IOException {
+		LocalFileSystem localFs = FileSystem.getLocal(conf);
+		List<Entry> entries = new ArrayList<Entry>();
+		listEntries(localFs, "", local.toUri().getPath(), local, entries);
+		long total = 0;
+		for(Entry entry : entries) {
+			// Deflate may expand incompressible data a bit, plus headers
+			total += entry.length + entry.length / 100 + 1024 + 2 * entry.name.length();
+		}
+		return entries.size() < ZIP_MAX_ENTRIES && total < ZIP_MAX_SIZE;
+	}
+
+	/**
+	 * Zips the local directory into the given stream, deflating up to <code>threads</code> files at the same time. Each
+	 * file is deflated into a temporary file, which is appended to the zip and deleted as soon as the previous entries
+	 * have been written. Returns the number of entries written. The stream is not closed.
+	 */
+	public static int zip(Configuration conf, Path local, String baseName, OutputStream out, int threads)
+	    throws IOException {
+		LocalFileSystem localFs = FileSystem.getLocal(conf);
+		List<Entry> entries = new ArrayList<Entry>();
+		listEntries(localFs, baseName, local.toUri().getPath(), local, entries);
+
+		final File tmpDir = File.createTempFile("pangool-zip", "");
+		tmpDir.delete();
+		tmpDir.mkdirs();
+		LOG.info(String.format("Zipping %d entries from %s with %d threads", entries.size(), local, threads));
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+		List<Future<DeflatedEntry>> deflated = new ArrayList<Future<DeflatedEntry>>();
+		try {
+			for(int i = 0; i < entries.size(); i++) {
+				final Entry entry = entries.get(i);
+				final File tmpFile = new File(tmpDir, i + ".deflated");
+				deflated.add(entry.isDir ? null : executor.submit(new Callable<DeflatedEntry>() {
+					@Override
+					public DeflatedEntry call() throws Exception {
+						return deflate(entry, tmpFile);
+					}
+				}));
+			}
+
+			ZipWriter writer = new ZipWriter(out);
+			for(int i = 0; i < entries.size(); i++) {
+				Entry entry = entries.get(i);
+				if(entry.isDir) {
+					writer.writeDirectory(entry);
+				} else {
+					DeflatedEntry deflatedEntry = deflated.get(i).get();
+					writer.writeDeflated(entry, deflatedEntry);
+					deflatedEntry.file.delete();
+				}
+			}
+			writer.finish();
+			return entries.size();
+		} catch(InterruptedException e) {
+			throw new IOException(e);
+		} catch(ExecutionException e) {
+			throw asIOException(e);
+		} finally {
+			executor.shutdownNow();
+			for(File file : tmpDir.listFiles()) {
+				file.delete();
+			}
+			tmpDir.delete();
+		}
+	}
+
+	static DeflatedEntry deflate(Entry entry, File tmpFile) throws IOException {
+		DeflatedEntry result = new DeflatedEntry();
+		result.file = tmpFile;
+		CRC32 crc = new CRC32();
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		InputStream in = new BufferedInputStream(new FileInputStream(new File(entry.path.toUri().getPath())));
+		DeflaterOutputStream deflaterOut = new DeflaterOutputStream(new BufferedOutputStream(new FileOutputStream(
+		    tmpFile)), deflater, 64 * 1024);
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int read;
+			while((read = in.read(buffer)) > 0) {
+				crc.update(buffer, 0, read);
+				deflaterOut.write(buffer, 0, read);
+			}
+			deflaterOut.finish();
+			result.crc = crc.getValue();
+			result.size = deflater.getBytesRead();
+			result.compressedSize = deflater.getBytesWritten();
+		} finally {
+			in.close();
+			deflaterOut.close();
+			deflater.end();
+		}
+		return result;
+	}
+
+	private static IOException asIOException(ExecutionException e) {
+		if(e.getCause() instanceof IOException) {
+			return (IOException) e.getCause();
+		}
+		return new IOException(e.getCause());
+	}
+
+	/**
+	 * Minimal zip writer for already deflated entries, which {@link java.util.zip.ZipOutputStream} doesn't support.
+	 * Doesn't write ZIP64 extensions: see {@link IndexPackager#canZip(Configuration, Path)}.
+	 */
+	static class ZipWriter {
+
+		static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+		static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+		static final int END_SIGNATURE = 0x06054b50;
+		static final int VERSION = 20;
+		static final int FLAG_UTF8 = 0x0800;
+		static final int STORED = 0;
+		static final int DEFLATED = 8;
+
+		final OutputStream out;
+		final List<byte[]> centralHeaders = new ArrayList<byte[]>();
+		long written = 0;
+		final byte[] header = new byte[46];
+
+		ZipWriter(OutputStream out) {
+			this.out = out;
+		}
+
+		void writeDirectory(Entry entry) throws IOException {
+			writeEntry(entry, STORED, 0, 0, 0, null);
+		}
+
+		void writeDeflated(Entry entry, DeflatedEntry deflated) throws IOException {
+			writeEntry(entry, DEFLATED, deflated.crc, deflated.compressedSize, deflated.size, deflated.file);
+		}
+
+		private void writeEntry(Entry entry, int method, long crc, long compressedSize, long size, File data)
+		    throws IOException {
+			if(written > ZIP_MAX_SIZE || compressedSize > ZIP_MAX_SIZE || size > ZIP_MAX_SIZE) {
+				throw new IOException("Zip too big for entry " + entry.name);
+			}
+			byte[] name = entry.name.getBytes("UTF-8");
+			int dosTime = toDosTime(entry.modificationTime);
+
+			int p = 0;
+			p = putInt(header, p, LOCAL_HEADER_SIGNATURE);
+			p = putShort(header, p, VERSION);
+			p = putShort(header, p, FLAG_UTF8);
+			p = putShort(header, p, method);
+			p = putInt(header, p, dosTime);
+			p = putInt(header, p, (int) crc);
+			p = putInt(header, p, (int) compressedSize);
+			p = putInt(header, p, (int) size);
+			p = putShort(header, p, name.length);
+			p = putShort(header, p, 0);
+			long offset = written;
+			write(header, p);
+			write(name, name.length);
+			if(data != null) {
+				InputStream in = new FileInputStream(data);
+				try {
+					IOUtils.copyBytes(in, out, 64 * 1024, false);
+				} finally {
+					in.close();
+				}
+				written += compressedSize;
+			}
+
+			byte[] central = new byte[46 + name.length];
+			p = 0;
+			p = putInt(central, p, CENTRAL_HEADER_SIGNATURE);
+			p = putShort(central, p, VERSION);
+			p = putShort(central, p, VERSION);
+			p = putShort(central, p, FLAG_UTF8);
+			p = putShort(central, p, method);
+			p = putInt(central, p, dosTime);
+			p = putInt(central, p, (int) crc);
+			p = putInt(central, p, (int) compressedSize);
+			p = putInt(central, p, (int) size);
+			p = putShort(central, p, name.length);
+			p = putShort(central, p, 0); // extra
+			p = putShort(central, p, 0); // comment
+			p = putShort(central, p, 0); // disk
+			p = putShort(central, p, 0); // internal attributes
+			p = putInt(central, p, 0); // external attributes
+			p = putInt(central, p, (int) offset);
+			System.arraycopy(name, 0, central, p, name.length);
+			centralHeaders.add(central);
+		}
+
+		void finish() throws IOException {
+			long centralOffset = written;
+			for(byte[] central : centralHeaders) {
+				write(central, central.length);
+			}
+			long centralSize = written - centralOffset;
+			if(centralHeaders.size() > ZIP_MAX_ENTRIES || written > ZIP_MAX_SIZE) {
+				throw new IOException("Zip too big: " + centralHeaders.size() + " entries, " + written + " bytes");
+			}
+			int p = 0;
+			p = putInt(header, p, END_SIGNATURE);
+			p = putShort(header, p, 0);
+			p = putShort(header, p, 0);
+			p = putShort(header, p, centralHeaders.size());
+			p = putShort(header, p, centralHeaders.size());
+			p = putInt(header, p, (int) centralSize);
+			p = putInt(header, p, (int) centralOffset);
+			p = putShort(header, p, 0);
+			write(header, p);
+			out.flush();
+		}
+
+		private void write(byte[] bytes, int length) throws IOException {
+			out.write(bytes, 0, length);
+			written += length;
+		}
+
+		static int putShort(byte[] b, int p, int value) {
+			b[p] = (byte) value;
+			b[p + 1] = (byte) (value >>> 8);
+			return p + 2;
+		}
+
+		static int putInt(byte[] b, int p, int value) {
+			putShort(b, p, value);
+			putShort(b, p + 2, value >>> 16);
+			return p + 4;
+		}
+
+		static int toDosTime(long time) {
+			Calendar c = Calendar.getInstance();
+			c.setTimeInMillis(time);
+			int year = c.get(Calendar.YEAR);
+			if(year < 1980) {
+				return (1 << 21) | (1 << 16);
+			}
+			return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+			    | c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+		}
+	}
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.solr;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskID;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.TieredMergePolicy;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.solr.client.solrj.SolrServerException;
+import org.apache.solr.client.solrj.response.UpdateResponse;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.core.SolrConfig;
+import org.apache.solr.core.SolrResourceLoader;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.update.DocumentBuilder;
+
+import com.datasalt.pangool.io.ITuple;
+
+/**
+ * RecordWriter of {@link TupleLuceneOutputFormat}. Builds the index locally with a Lucene {@link IndexWriter} fed by a
+ * {@link BatchWriter}, and copies it to the output when closed, like {@link SolrRecordWriter} does.
+ */
+public class LuceneRecordWriter extends RecordWriter<ITuple, NullWritable> {
+
+	static final Log LOG = LogFactory.getLog(LuceneRecordWriter.class);
+
+	private static AtomicLong sequence = new AtomicLong(0);
+
+	private TupleDocumentConverter converter;
+	private FileSystem fs;
+	private Configuration conf;
+	private TaskID taskId;
+
+	private int batchSize;
+	private boolean outputZipFile;
+	private int threadCount;
+	private boolean parallelConversion;
+	/** Nanoseconds spent converting tuples in this thread, not yet reported to the counters */
+	private long conversionNanos = 0;
+
+	/** The path that the final index will be written to */
+	private Path perm;
+	/** The location in a local temporary directory that the index is built in. */
+	private Path local;
+
+	private Directory directory;
+	private IndexWriter indexWriter;
+	private BatchWriter batchWriter;
+	/** The batch being filled. Null until the first write or after being queued. */
+	private BatchWriter.Batch batch = null;
+
+	HeartBeater heartBeater;
+
+	/**
+	 * A {@link BatchWriter} that adds the documents to an {@link IndexWriter} instead of to a Solr server.
+	 */
+	static class LuceneBatchWriter extends BatchWriter {
+
+		final IndexWriter indexWriter;
+		final IndexSchema schema;
+		final TaskID taskId;
+
+		LuceneBatchWriter(IndexWriter indexWriter, IndexSchema schema, int batchSize, TaskID tid, int writerThreads,
+		    int queueSize, TupleDocumentConverter converter) {
+			super(null, batchSize, tid, writerThreads, queueSize, converter);
+			this.indexWriter = indexWriter;
+			this.schema = schema;
+			this.taskId = tid;
+		}
+
+		@Override
+		protected UpdateResponse runUpdate(List<SolrInputDocument> batchToWrite) {
+			try {
+				long start = System.nanoTime();
+				for(SolrInputDocument document : batchToWrite) {
+					indexWriter.addDocument(DocumentBuilder.toDocument(document, schema));
+				}
+				SolrRecordWriter.incrementCounter(taskId, "SolrRecordWriter", "IndexingTime",
+				    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+				SolrRecordWriter.incrementCounter(taskId, "SolrRecordWriter", "BatchesWritten", 1);
+				SolrRecordWriter.incrementCounter(taskId, "SolrRecordWriter", "DocumentsWritten", batchToWrite.size());
+			} catch(Throwable e) {
+				SolrRecordWriter.incrementCounter(taskId, "SolrRecordWriter", e.getClass().getName(), 1);
+				if(e instanceof Exception) {
+					setBatchWriteException((Exception) e);
+				} else {
+					setBatchWriteException(new Exception(e));
+				}
+			}
+			return null;
+		}
+	}
+
+	public LuceneRecordWriter(int batchSize, boolean outputZipFile, int threadCount, int queueSize,
+	    boolean parallelConversion, double ramBufferSizeMB, int mergeFactor, String localSolrHome, String zipName,
+	    TupleDocumentConverter converter, TaskAttemptContext context) {
+		this.batchSize = batchSize;
+		this.outputZipFile = outputZipFile;
+		this.threadCount = threadCount;
+		this.parallelConversion = parallelConversion;
+		this.converter = converter;
+		this.conf = context.getConfiguration();
+		this.taskId = context.getTaskAttemptID().getTaskID();
+
+		heartBeater = new HeartBeater(context);
+		try {
+			heartBeater.needHeartBeat();
+			this.fs = FileSystem.get(conf);
+			perm = new Path(FileOutputFormat.getOutputPath(context), SolrRecordWriter.getOutFileName(context, "part"));
+			Path temp = conf.getLocalPath("mapred.local.dir",
+			    "lucene_" + conf.get("mapred.task.id") + '.' + sequence.incrementAndGet());
+			if(outputZipFile && !perm.getName().endsWith(".zip")) {
+				perm = perm.suffix(".zip");
+			}
+			fs.delete(temp, true); // delete old, if any
+			fs.delete(perm, true); // delete old, if any
+			local = fs.startLocalOutput(perm, temp);
+
+			Path solrHome = SolrRecordWriter.findSolrConfig(conf, localSolrHome, zipName);
+			if(solrHome == null) {
+				throw new IOException("Unable to find solr home setting");
+			}
+			LOG.info("SolrHome: " + solrHome.toUri());
+			File confDir = new File(local.toString(), "conf");
+			confDir.mkdirs();
+			FileUtils.copyDirectory(new File(new File(solrHome.toString()), "conf"), confDir);
+
+			// Only the schema is needed from Solr, no core is created
+			Properties props = new Properties();
+			props.setProperty("solr.home", solrHome.toString());
+			SolrResourceLoader loader = new SolrResourceLoader(solrHome.toString(), null, props);
+			SolrConfig solrConfig = new SolrConfig(loader, SolrConfig.DEFAULT_CONF_FILE, null);
+			IndexSchema schema = new IndexSchema(solrConfig, IndexSchema.DEFAULT_SCHEMA_FILE, null);
+			loader.inform(loader);
+
+			TieredMergePolicy mergePolicy = new TieredMergePolicy();
+			mergePolicy.setSegmentsPerTier(mergeFactor);
+			mergePolicy.setMaxMergeAtOnce(mergeFactor);
+			IndexWriterConfig writerConfig = new IndexWriterConfig(solrConfig.luceneMatchVersion, schema.getAnalyzer())
+			    .setOpenMode(IndexWriterConfig.OpenMode.CREATE).setRAMBufferSizeMB(ramBufferSizeMB)
+			    .setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH).setMaxThreadStates(Math.max(1, threadCount))
+			    .setMergePolicy(mergePolicy);
+			File indexDir = new File(local.toString(), "data/index");
+			indexDir.mkdirs();
+			LOG.info(String.format("Writing index to temporary directory %s, with permdir %s", indexDir, perm));
+			directory = FSDirectory.open(indexDir);
+			indexWriter = new IndexWriter(directory, writerConfig);
+			batchWriter = new LuceneBatchWriter(indexWriter, schema, batchSize, taskId, threadCount, queueSize, converter);
+		} catch(Exception e) {
+			LOG.error(e);
+			throw new IllegalStateException(String.format("Failed to initialize record writer for %s, %s",
+			    context.getJobName(), conf.get("mapred.task.id")), e);
+		} finally {
+			heartBeater.cancelHeartBeat();
+		}
+	}
+
+	@Override
+	public void write(ITuple key, NullWritable value) throws IOException {
+		heartBeater.needHeartBeat();
+		try {
+			if(batch == null) {
+				batch = batchWriter.acquireBatch();
+			}
+			if(parallelConversion) {
+				batch.add(key);
+			} else {
+				long start = System.nanoTime();
+				batch.add(converter.convert(key, value));
+				conversionNanos += System.nanoTime() - start;
+			}
+			if(batch.size() >= batchSize) {
+				queueBatch();
+			}
+		} catch(SolrServerException e) {
+			throw new IOException(e);
+		} finally {
+			heartBeater.cancelHeartBeat();
+		}
+	}
+
+	private void queueBatch() throws IOException, SolrServerException {
+		SolrRecordWriter.incrementCounter(taskId, "SolrRecordWriter", "ConversionTime",
+		    TimeUnit.NANOSECONDS.toMillis(conversionNanos));
+		conversionNanos = 0;
+		BatchWriter.Batch toQueue = batch;
+		batch = null;
+		batchWriter.queueBatch(toQueue);
+	}
+
+	@Override
+	public void close(TaskAttemptContext context) throws IOException, InterruptedException {
+		heartBeater.setProgress(context);
+		try {
+			if(batch != null && batch.size() > 0) {
+				queueBatch();
+			}
+			heartBeater.needHeartBeat();
+			batchWriter.waitForBatches(context);
+			context.setStatus("Optimizing index");
+			indexWriter.forceMerge(1);
+			indexWriter.close();
+			directory.close();
+			SolrRecordWriter.packageIndex(context, conf, fs, local, perm, outputZipFile, threadCount);
+		} catch(Exception e) {
+			if(e instanceof IOException) {
+				throw (IOException) e;
+			}
+			throw new IOException(e);
+		} finally {
+			heartBeater.cancelHeartBeat();
+			File tempFile = new File(local.toString());
+			if(tempFile.exists()) {
+				FileUtils.forceDelete(tempFile);
+			}
+		}
+		context.setStatus("Done");
+	}
+}
@@ -21,13 +21,13 @@ import java.io.InputStream;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
@@ -55,9 +55,13 @@ import org.apache.hadoop.mapreduce.TaskID;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
 import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.embedded.EmbeddedSolrServer;
-import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.core.CoreContainer;
 import org.apache.solr.core.CoreDescriptor;
 import org.apache.solr.core.SolrCore;
@@ -78,6 +82,9 @@ import com.datasalt.pangool.io.ITuple;
 public class SolrRecordWriter extends RecordWriter<ITuple, NullWritable> {
 	static final Log LOG = LogFactory.getLog(SolrRecordWriter.class);
 
+	/** The local directory, inside the temporary index directory, where secondary shards are built */
+	static final String SHARDS_DIR = "shards";
+
 	public final static List<String> allowedConfigDirectories = new ArrayList<String>(Arrays.asList(new String[] {
 	    "conf", "lib" }));
 
@@ -107,11 +114,21 @@ public class SolrRecordWriter extends RecordWriter<ITuple, NullWritable> {
 	}
 
 	private TupleDocumentConverter converter;
-	private EmbeddedSolrServer solr;
-	private SolrCore core;
+	/** One Solr core per shard. The first one is the main core, where the rest of shards are merged at close. */
+	private EmbeddedSolrServer[] solrs;
+	private SolrCore[] cores;
 	private FileSystem fs;
 
 	private int batchSize;
+	/** Threads used for copying or zipping the index at close */
+	private int packagingThreads;
+	/** If true, tuples are converted to documents by the BatchWriter threads */
+	private boolean parallelConversion;
+	/** Nanoseconds spent converting tuples in this thread, not yet reported to the counters */
+	private long conversionNanos = 0;
+	/** Field whose value is hashed for choosing the shard of each tuple. If null, shards are chosen round-robin. */
+	private String routingField;
+	private int nextShard = 0;
 
 	/** The path that the final index will be written to */
 	private Path perm;
@@ -129,7 +146,8 @@ public class SolrRecordWriter extends RecordWriter<ITuple, NullWritable> {
 	private boolean outputZipFile = false;
 	private Configuration conf;
 	HeartBeater heartBeater = null;
-	private BatchWriter batchWriter = null;
+	private BatchWriter[] batchWriters = null;
+	private TaskID taskId;
 
 	private String localSolrHome;
 	private String zipName;
@@ -148,7 +166,7 @@ public class SolrRecordWriter extends RecordWriter<ITuple, NullWritable> {
 	/** If true, writes will throw an exception */
 	volatile boolean closing = false;
 
-	private String getOutFileName(TaskAttemptContext context, String prefix) {
+	static String getOutFileName(TaskAttemptContext context, String prefix) {
 		TaskID taskId = context.getTaskAttemptID().getTaskID();
 		int partition = taskId.getId();
 		NumberFormat nf = NumberFormat.getInstance();
@@ -163,6 +181,33 @@ public class SolrRecordWriter extends RecordWriter<ITuple, NullWritable> {
 
 	public SolrRecordWriter(int batchSize, boolean outputZipFile, int threadCount, int queueSize, String localSolrHome,
 	    String zipName, TupleDocumentConverter converter, TaskAttemptContext context) {
+		this(batchSize, outputZipFile, threadCount, queueSize, false, localSolrHome, zipName, converter, context);
+	}
+
+	public SolrRecordWriter(int batchSize, boolean outputZipFile, int threadCount, int queueSize,
+	    boolean parallelConversion, String localSolrHome, String zipName, TupleDocumentConverter converter,
+	    TaskAttemptContext context) {
+		this(batchSize, outputZipFile, threadCount, queueSize, parallelConversion, 1, null, localSolrHome, zipName,
+		    converter, context);
+	}
+
+	/**
+	 * @param parallelConversion
+	 *          If true, tuples are copied and converted to documents in the indexing threads instead of in the thread
+	 *          calling {@link #write(ITuple, NullWritable)}. The converter must be thread-safe then.
+	 * @param numShards
+	 *          Number of Solr cores the documents are indexed into in parallel, each one with its own
+	 *          {@link BatchWriter} of threadCount threads. They are merged into a single index at close.
+	 * @param routingField
+	 *          Field whose value's hash decides the shard of each tuple. If null, tuples are distributed round-robin.
+	 */
+	public SolrRecordWriter(int batchSize, boolean outputZipFile, int threadCount, int queueSize,
+	    boolean parallelConversion, int numShards, String routingField, String localSolrHome, String zipName,
+	    TupleDocumentConverter converter, TaskAttemptContext context) {
+		this.parallelConversion = parallelConversion;
+		this.routingField = routingField;
+		this.packagingThreads = threadCount;
+		this.taskId = context.getTaskAttemptID().getTaskID();
 		this.localSolrHome = localSolrHome;
 		this.zipName = zipName;
 		conf = context.getConfiguration();
@@ -203,7 +248,7 @@ public class SolrRecordWriter extends RecordWriter<ITuple, NullWritable> {
 			fs.delete(perm, true); // delete old, if any
 			local = fs.startLocalOutput(perm, temp);
 
-			solrHome = findSolrConfig(conf);
+			solrHome = findSolrConfig(conf, localSolrHome, zipName);
 
 			// }
 			// Verify that the solr home has a conf and lib directory
@@ -230,15 +275,28 @@ public class SolrRecordWriter extends RecordWriter<ITuple, NullWritable> {
 			        "Constructed instance information solr.home %s (%s), instance dir %s, conf dir %s, writing index to temporary directory %s, with permdir %s",
 			        solrHome, solrHome.toUri(), loader.getInstanceDir(), loader.getConfigDir(), dataDir, perm));
 			CoreContainer container = new CoreContainer(loader);
-			CoreDescriptor descr = new CoreDescriptor(container, "core1", solrHome.toString());
-			descr.setDataDir(dataDir);
-			descr.setCoreProperties(props);
-			core = container.create(descr);
-			container.register(core, false);
-			solr = new EmbeddedSolrServer(container, "core1");
-			batchWriter = new BatchWriter(solr, batchSize, context.getTaskAttemptID().getTaskID(), threadCount, queueSize);
-
 			this.converter = converter;
+			solrs = new EmbeddedSolrServer[numShards];
+			cores = new SolrCore[numShards];
+			batchWriters = new BatchWriter[numShards];
+			batches = new BatchWriter.Batch[numShards];
+			for(int shard = 0; shard < numShards; shard++) {
+				String coreName = "core" + (shard + 1);
+				if(shard > 0) {
+					// Secondary shards are indexed in the local temporary directory, outside the final index
+					dataDir = new File(local.toString(), SHARDS_DIR + "/" + shard + "/data").getAbsoluteFile().toString();
+					props = new Properties();
+					props.setProperty("solr.data.dir", dataDir);
+					props.setProperty("solr.home", solrHome.toString());
+				}
+				CoreDescriptor descr = new CoreDescriptor(container, coreName, solrHome.toString());
+				descr.setDataDir(dataDir);
+				descr.setCoreProperties(props);
+				cores[shard] = container.create(descr);
+				container.register(cores[shard], false);
+				solrs[shard] = new EmbeddedSolrServer(container, coreName);
+				batchWriters[shard] = new BatchWriter(solrs[shard], batchSize, taskId, threadCount, queueSize, converter);
+			}
 		} catch(Exception e) {
 			e.printStackTrace();
 			LOG.error(e);
@@ -264,7 +322,11 @@ public class SolrRecordWriter extends RecordWriter<ITuple, NullWritable> {
 		}
 	}
 
-	private Path findSolrConfig(Configuration conf) throws IOException {
+	/**
+	 * Finds the local directory where the Solr configuration has been unpacked: the given local Solr home if running
+	 * in local mode, or the corresponding archive in the DistributedCache otherwise.
+	 */
+	static Path findSolrConfig(Configuration conf, String localSolrHome, String zipName) throws IOException {
 		Path solrHome = null;
 
 		// we added these lines to make this patch work on Hadoop 0.20.2
@@ -306,12 +368,13 @@ public class SolrRecordWriter extends RecordWriter<ITuple, NullWritable> {
 		return solrHome;
 	}
 
-	Collection<SolrInputDocument> batch = new ArrayList<SolrInputDocument>();
+	/** The batch being filled for each shard. Null until the first write or after being queued. */
+	BatchWriter.Batch[] batches;
 
 	/**
 	 * Write a record. This method accumulates records in to a batch, and when {@link #batchSize} items are present
-	 * flushes it to the indexer. The writes can take a substantial amount of time, depending on {@link #batchSize}. If
-	 * there is heavy disk contention the writes may take more than the 600 second default timeout.
+	 * queues it to the indexer. If the indexer has too many batches pending, this method blocks until one of them is
+	 * written.
 	 */
 	@Override
 	public void write(ITuple key, NullWritable value) throws IOException {
@@ -321,10 +384,19 @@ public class SolrRecordWriter extends RecordWriter<ITuple, NullWritable> {
 		heartBeater.needHeartBeat();
 		try {
 			try {
-				batch.add(converter.convert(key, value));
-				if(batch.size() > batchSize) {
-					batchWriter.queueBatch(batch);
-					batch.clear();
+				int shard = getShard(key);
+				if(batches[shard] == null) {
+					batches[shard] = batchWriters[shard].acquireBatch();
+				}
+				if(parallelConversion) {
+					batches[shard].add(key);
+				} else {
+					long start = System.nanoTime();
+					batches[shard].add(converter.convert(key, value));
+					conversionNanos += System.nanoTime() - start;
+				}
+				if(batches[shard].size() >= batchSize) {
+					queueBatch(shard);
 				}
 			} catch(SolrServerException e) {
 				throw new IOException(e);
@@ -335,25 +407,56 @@ public class SolrRecordWriter extends RecordWriter<ITuple, NullWritable> {
 
 	}
 
+	private int getShard(ITuple key) {
+		if(batches.length == 1) {
+			return 0;
+		}
+		if(routingField == null) {
+			nextShard = (nextShard + 1) % batches.length;
+			return nextShard;
+		}
+		Object value = key.get(routingField);
+		return value == null ? 0 : (value.hashCode() & Integer.MAX_VALUE) % batches.length;
+	}
+
+	private void queueBatch(int shard) throws IOException, SolrServerException {
+		incrementCounter(taskId, "SolrRecordWriter", "ConversionTime", TimeUnit.NANOSECONDS.toMillis(conversionNanos));
+		conversionNanos = 0;
+		BatchWriter.Batch toQueue = batches[shard];
+		batches[shard] = null;
+		batchWriters[shard].queueBatch(toQueue);
+	}
+
 	@Override
 	public void close(TaskAttemptContext context) throws IOException, InterruptedException {
 		if(context != null) {
 			heartBeater.setProgress(context);
 		}
 		try {
-			if(batch.size() > 0) {
-				batchWriter.queueBatch(batch);
-				batch.clear();
+			for(int shard = 0; shard < batches.length; shard++) {
+				if(batches[shard] != null && batches[shard].size() > 0) {
+					queueBatch(shard);
+				}
 			}
 			heartBeater.needHeartBeat();
-			batchWriter.close(context, core);
-			if(outputZipFile) {
-				context.setStatus("Writing Zip");
-				packZipFile(); // Written to the perm location
+			if(batchWriters.length == 1) {
+				batchWriters[0].close(context, cores[0]);
 			} else {
-				context.setStatus("Copying Index");
-				fs.completeLocalOutput(perm, local); // copy to dfs
+				Version luceneVersion = cores[0].getSolrConfig().luceneMatchVersion;
+				File mainIndexDir = new File(cores[0].getIndexDir());
+				File[] shardIndexDirs = new File[batchWriters.length - 1];
+				for(int shard = 0; shard < batchWriters.length; shard++) {
+					if(shard > 0) {
+						shardIndexDirs[shard - 1] = new File(cores[shard].getIndexDir());
+					}
+					// No need to optimize the shards as they are merged into a single segment after
+					batchWriters[shard].close(context, cores[shard], false);
+				}
+				context.setStatus("Merging " + batchWriters.length + " shards");
+				mergeShards(luceneVersion, mainIndexDir, shardIndexDirs);
+				FileUtils.deleteDirectory(new File(local.toString(), SHARDS_DIR));
 			}
+			packageIndex(context, conf, fs, local, perm, outputZipFile, packagingThreads);
 		} catch(Exception e) {
 			if(e instanceof IOException) {
 				throw (IOException) e;
@@ -370,18 +473,76 @@ public class SolrRecordWriter extends RecordWriter<ITuple, NullWritable> {
 		context.setStatus("Done");
 	}
 
-	private void packZipFile() throws IOException {
+	/**
+	 * Merges the shard indexes into the main index with {@link IndexWriter#addIndexes(Directory...)}, leaving it with a
+	 * single segment, as an optimized Solr index.
+	 */
+	static void mergeShards(Version luceneVersion, File mainIndexDir, File[] shardIndexDirs) throws IOException {
+		LOG.info(String.format("Merging %d shards into %s", shardIndexDirs.length, mainIndexDir));
+		Directory[] shards = new Directory[shardIndexDirs.length];
+		for(int i = 0; i < shardIndexDirs.length; i++) {
+			shards[i] = FSDirectory.open(shardIndexDirs[i]);
+		}
+		Directory main = FSDirectory.open(mainIndexDir);
+		// No analyzer needed: documents are not analyzed again when adding indexes
+		IndexWriter writer = new IndexWriter(main, new IndexWriterConfig(luceneVersion, null)
+		    .setOpenMode(IndexWriterConfig.OpenMode.APPEND));
+		try {
+			writer.addIndexes(shards);
+			writer.forceMerge(1);
+		} finally {
+			writer.close();
+			main.close();
+			for(Directory shard : shards) {
+				shard.close();
+			}
+		}
+	}
+
+	/**
+	 * Moves the index built in the local directory to its final location, zipping it if asked.
+	 */
+	static void packageIndex(TaskAttemptContext context, Configuration conf, FileSystem fs, Path local, Path perm,
+	    boolean outputZipFile, int packagingThreads) throws IOException {
+		if(outputZipFile) {
+			context.setStatus("Writing Zip");
+			packZipFile(conf, fs, local, perm, packagingThreads); // Written to the perm location
+		} else {
+			context.setStatus("Copying Index");
+			if(fs instanceof LocalFileSystem) {
+				fs.completeLocalOutput(perm, local); // just a rename
+			} else {
+				IndexPackager.copy(conf, local, fs, perm, packagingThreads); // copy to dfs
+			}
+		}
+	}
+
+	private static void packZipFile(Configuration conf, FileSystem fs, Path local, Path perm, int packagingThreads)
+	    throws IOException {
 		FSDataOutputStream out = null;
 		ZipOutputStream zos = null;
 		int zipCount = 0;
 		LOG.info("Packing zip file for " + perm);
 		try {
 			out = fs.create(perm, false);
-			zos = new ZipOutputStream(out);
-
 			String name = perm.getName().replaceAll(".zip$", "");
 			LOG.info("adding index directory" + local);
+			if(packagingThreads > 1 && IndexPackager.canZip(conf, local)) {
+				zipCount = IndexPackager.zip(conf, local, name, out, packagingThreads);
+				out.close();
+				out = null;
+				return;
+			}
+			zos = new ZipOutputStream(out);
 			zipCount = zipDirectory(conf, zos, name, local.toString(), local);
+			if(zipCount == 0) { // If no entries were written, only close out, as
+				                  // the zip will throw an error
+				LOG.error("No entries written to zip file " + perm);
+			} else {
+				zos.close();
+				out = null;
+				LOG.info(String.format("Wrote %d items to %s for %s", zipCount, perm, local));
+			}
 		} catch(Throwable ohFoo) {
 			LOG.error("packZipFile exception", ohFoo);
 			if(ohFoo instanceof RuntimeException) {
@@ -393,16 +554,10 @@ public class SolrRecordWriter extends RecordWriter<ITuple, NullWritable> {
 			throw new IOException(ohFoo);
 
 		} finally {
-			if(zos != null) {
-				if(zipCount == 0) { // If no entries were written, only close out, as
-					                  // the zip will throw an error
-					LOG.error("No entries written to zip file " + perm);
-					fs.delete(perm, false);
-					// out.close();
-				} else {
-					LOG.info(String.format("Wrote %d items to %s for %s", zipCount, perm, local));
-					zos.close();
-				}
+			if(out != null) {
+				// Failed or empty: no partial zip is left behind
+				IOUtils.closeStream(out);
+				fs.delete(perm, false);
 			}
 		}
 	}
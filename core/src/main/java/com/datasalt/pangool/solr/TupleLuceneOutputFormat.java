@@ -0,0 +1,84 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.solr;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import com.datasalt.pangool.io.ITuple;
+
+/**
+ * Instantiable OutputFormat that builds Solr-compatible indexes writing directly with a Lucene IndexWriter, bypassing
+ * the Solr update chain (update processors, update log, responses) used by {@link TupleSolrOutputFormat}. Meant for
+ * bulk index builds.
+ * <p>
+ * Tuples are converted to SolrInputDocuments with the given {@link TupleDocumentConverter} and those to Lucene
+ * documents according to the schema.xml found in solrHome, so field types, analyzers and copy fields are the same
+ * than in Solr. The output has the same layout than the one of {@link TupleSolrOutputFormat}: a "conf" folder and
+ * the index in "data/index", so it can be used as a Solr core. Unlike Solr, documents with the same unique key are
+ * not deduplicated.
+ * <p>
+ * Additionally to the parameters of {@link TupleSolrOutputFormat}, the IndexWriter can be tuned:
+ * <ul>
+ * <li>ramBufferSizeMB: RAM used for buffering documents before flushing a segment.</li>
+ * <li>mergeFactor: Segments per tier of the TieredMergePolicy, and number of segments merged at once.</li>
+ * </ul>
+ * The threadCount indexing threads add documents concurrently to the IndexWriter.
+ */
+@SuppressWarnings("serial")
+public class TupleLuceneOutputFormat extends TupleSolrOutputFormat {
+
+	static double defaultRamBufferSizeMB = 64;
+	static int defaultMergeFactor = 10;
+
+	/**
+	 * RAM buffer of the IndexWriter, in MB
+	 */
+	private double ramBufferSizeMB = defaultRamBufferSizeMB;
+	/**
+	 * Merge factor of the IndexWriter's merge policy
+	 */
+	private int mergeFactor = defaultMergeFactor;
+
+	public TupleLuceneOutputFormat(File solrHome, Configuration hadoopConf) throws IOException {
+		super(solrHome, hadoopConf);
+	}
+
+	public TupleLuceneOutputFormat(File solrHome, Configuration hadoopConf, TupleDocumentConverter converter)
+	    throws IOException {
+		super(solrHome, hadoopConf, converter);
+	}
+
+	public TupleLuceneOutputFormat(File solrHome, Configuration hadoopConf, TupleDocumentConverter converter,
+	    boolean outputZipFile, int batchSize, int threadCount, int queueSize, boolean parallelConversion,
+	    double ramBufferSizeMB, int mergeFactor) throws IOException {
+		super(solrHome, hadoopConf, converter, outputZipFile, batchSize, threadCount, queueSize, parallelConversion);
+		this.ramBufferSizeMB = ramBufferSizeMB;
+		this.mergeFactor = mergeFactor;
+	}
+
+	@Override
+	public RecordWriter<ITuple, NullWritable> getRecordWriter(TaskAttemptContext context) throws IOException,
+	    InterruptedException {
+		return new LuceneRecordWriter(batchSize, outputZipFile, threadCount, queueSize, parallelConversion,
+		    ramBufferSizeMB, mergeFactor, localSolrHome, zipName, converter, context);
+	}
+}
@@ -58,7 +58,14 @@ import com.datasalt.pangool.io.ITuple;
  * <li>outputZipFile: If user wants to produce a ZIP with the index.</li>
  * <li>batchSize: Number of documents that will go in each indexing batch.</li>
  * <li>threadCount: Number of threads in a pool that will be used for indexing.</li>
- * <li>queueSize: Maximum number of batches that can be pooled in the batch indexing thread pool.</li>
+ * <li>queueSize: Maximum number of batches that can be pooled in the batch indexing thread pool. When reached, writes
+ * block until a batch is indexed.</li>
+ * <li>parallelConversion: If tuples should be converted to documents in the indexing threads instead of in the
+ * writing thread. The converter must be thread-safe and tuples must not have OBJECT fields, as they are copied.</li>
+ * <li>numShards: Number of Solr cores each task indexes into in parallel. They are merged into a single index when
+ * the task finishes.</li>
+ * <li>routingField: Field whose value's hash is used for choosing the shard of each tuple. If null, round-robin is
+ * used.</li>
  * </ul>
  * For a usage example see test class {@link TupleSolrOutputFormatExample}.
  */
@@ -80,34 +87,46 @@ public class TupleSolrOutputFormat extends FileOutputFormat<ITuple, NullWritable
 	/**
 	 * Size of the batch size used for indexing
 	 */
-	private int batchSize = defaultSolrBatchSize;
+	protected int batchSize = defaultSolrBatchSize;
 	/**
 	 * The number of threads that will be used for indexing
 	 */
-	private int threadCount = defaultSolrWriterThreadCount;
+	protected int threadCount = defaultSolrWriterThreadCount;
 	/**
 	 * The SOLR writer queue size
 	 */
-	private int queueSize = defaultSolrWriterQueueSize;
+	protected int queueSize = defaultSolrWriterQueueSize;
+	/**
+	 * Whether tuples are converted to documents in the indexing threads or not
+	 */
+	protected boolean parallelConversion = false;
+	/**
+	 * The number of Solr cores each task indexes into
+	 */
+	private int numShards = 1;
+	/**
+	 * The field used for choosing the shard of each tuple. Null means round-robin
+	 */
+	private String routingField;
 
 	/**
 	 * Whether the output should be a ZIP of the index or not
 	 */
-	private boolean outputZipFile = false;
+	protected boolean outputZipFile = false;
 
 	/**
 	 * The zip file name used for sending the SOLR configuration in the DistributedCache
 	 */
-	private String zipName;
+	protected String zipName;
 	/**
 	 * The local SOLR home to be used if this is run in Hadoop's local mode (no DC)
 	 */
-	private String localSolrHome;
+	protected String localSolrHome;
 	/**
 	 * The document converter. By default, {@link DefaultTupleDocumentConverter}, but users may implement custom ones for
 	 * boosting, etc.
 	 */
-	private TupleDocumentConverter converter;
+	protected TupleDocumentConverter converter;
 
 	@Override
 	public void checkOutputSpecs(JobContext job) throws IOException {
@@ -117,8 +136,8 @@ public class TupleSolrOutputFormat extends FileOutputFormat<ITuple, NullWritable
 	@Override
 	public RecordWriter<ITuple, NullWritable> getRecordWriter(TaskAttemptContext context) throws IOException,
 	    InterruptedException {
-		return new SolrRecordWriter(batchSize, outputZipFile, threadCount, queueSize, localSolrHome, zipName, converter,
-		    context);
+		return new SolrRecordWriter(batchSize, outputZipFile, threadCount, queueSize, parallelConversion, numShards,
+		    routingField, localSolrHome, zipName, converter, context);
 	}
 
 	public TupleSolrOutputFormat(File solrHome, Configuration hadoopConf) throws IOException {
@@ -141,6 +160,24 @@ public class TupleSolrOutputFormat extends FileOutputFormat<ITuple, NullWritable
 		this.queueSize = queueSize;
 	}
 
+	public TupleSolrOutputFormat(File solrHome, Configuration hadoopConf, TupleDocumentConverter converter,
+	    boolean outputZipFile, int batchSize, int threadCount, int queueSize, boolean parallelConversion)
+	    throws IOException {
+		this(solrHome, hadoopConf, converter, outputZipFile, batchSize, threadCount, queueSize);
+		this.parallelConversion = parallelConversion;
+	}
+
+	public TupleSolrOutputFormat(File solrHome, Configuration hadoopConf, TupleDocumentConverter converter,
+	    boolean outputZipFile, int batchSize, int threadCount, int queueSize, boolean parallelConversion,
+	    int numShards, String routingField) throws IOException {
+		this(solrHome, hadoopConf, converter, outputZipFile, batchSize, threadCount, queueSize, parallelConversion);
+		if(numShards < 1) {
+			throw new IllegalArgumentException("Number of shards must be at least 1: " + numShards);
+		}
+		this.numShards = numShards;
+		this.routingField = routingField;
+	}
+
 	private void setupSolrHomeCache(File solrHome, Configuration conf) throws IOException {
 		if(solrHome == null || !(solrHome.exists() && solrHome.isDirectory())) {
 			throw new IOException("Invalid solr.home: " + solrHome);
@@ -0,0 +1,209 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.apache.hadoop.mapreduce.Counter;
+
+/**
+ * A {@link TupleMapper} for I/O-bound work, like calls to remote services, that processes up to a number of records
+ * concurrently instead of one at a time.
+ * <p>
+ * For each input record {@link #asyncMap(Object, Object, TupleMRContext)} returns the work to do, as a
+ * {@link Callable} that runs in a pool of threads. Keys and values are reused by the input formats, so the Callable
+ * must copy what it needs from them. The results are passed to
+ * {@link #emit(Object, TupleMRContext, Collector)} in the task's thread, where they can be written to the collector,
+ * either in the order of the input or as they complete. Failed calls are retried with exponential backoff.
+ */
+@SuppressWarnings("serial")
+public abstract class AsyncTupleMapper<INPUT_KEY, INPUT_VALUE, RESULT> extends TupleMapper<INPUT_KEY, INPUT_VALUE> {
+
+	public static enum AsyncCounter {
+		CALLS, RETRIES
+	}
+
+	private final int maxInFlight;
+	private final boolean ordered;
+	private int maxRetries = 3;
+	private long backoffMillis = 100;
+
+	private transient ExecutorService executor;
+	private transient CompletionService<RESULT> completion;
+	// Calls not emitted yet, in input order
+	private transient LinkedList<Future<RESULT>> inFlight;
+	private transient Counter calls;
+	private transient Counter retries;
+
+	/**
+	 * @param maxInFlight
+	 *          the maximum number of records processed at the same time
+	 * @param ordered
+	 *          whether the results are emitted in the order of the input or as soon as they are completed
+	 */
+	public AsyncTupleMapper(int maxInFlight, boolean ordered) {
+		if(maxInFlight < 1) {
+			throw new IllegalArgumentException("At least one record in flight is needed: " + maxInFlight);
+		}
+		this.maxInFlight = maxInFlight;
+		this.ordered = ordered;
+	}
+
+	/**
+	 * Retries each failed call up to maxRetries times, waiting backoffMillis before the first retry and twice as long
+	 * before each of the next ones. By default 3 retries with a backoff of 100 ms.
+	 */
+	public void setRetries(int maxRetries, long backoffMillis) {
+		this.maxRetries = maxRetries;
+		this.backoffMillis = backoffMillis;
+	}
+
+	/**
+	 * Returns the work to do for one input record, or null if there is nothing to do. Called in the task's thread.
+	 */
+	public abstract Callable<RESULT> asyncMap(INPUT_KEY key, INPUT_VALUE value, TupleMRContext context)
+	    throws IOException, InterruptedException;
+
+	/**
+	 * Called in the task's thread with the result of each call.
+	 */
+	public abstract void emit(RESULT result, TupleMRContext context, Collector collector) throws IOException,
+	    InterruptedException;
+
+	/**
+	 * Whether a call that failed with the given exception should be retried. True by default.
+	 */
+	protected boolean isRetriable(Exception e) {
+		return true;
+	}
+
+	@Override
+	public final void map(INPUT_KEY key, INPUT_VALUE value, TupleMRContext context, Collector collector)
+	    throws IOException, InterruptedException {
+		if(executor == null) {
+			start(context);
+		}
+		Callable<RESULT> work = asyncMap(key, value, context);
+		if(work == null) {
+			return;
+		}
+		if(inFlight.size() >= maxInFlight) {
+			emitCompleted(true, context, collector);
+		}
+		calls.increment(1);
+		RetryingCall call = new RetryingCall(work);
+		// In order, results are taken from inFlight and not from the CompletionService
+		inFlight.add(ordered ? executor.submit(call) : completion.submit(call));
+		emitCompleted(false, context, collector);
+	}
+
+	/**
+	 * Emits the pending results. Overriding methods must call super.cleanup() first.
+	 */
+	@Override
+	public void cleanup(TupleMRContext context, Collector collector) throws IOException, InterruptedException {
+		if(executor != null) {
+			while(!inFlight.isEmpty()) {
+				emitCompleted(true, context, collector);
+			}
+			executor.shutdown();
+			executor = null;
+		}
+	}
+
+	private void start(TupleMRContext context) {
+		executor = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "async-mapper");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		completion = new ExecutorCompletionService<RESULT>(executor);
+		inFlight = new LinkedList<Future<RESULT>>();
+		calls = context.getHadoopContext().getCounter(AsyncCounter.CALLS);
+		retries = context.getHadoopContext().getCounter(AsyncCounter.RETRIES);
+	}
+
+	/**
+	 * Emits the completed results. If block is true, waits for at least one.
+	 */
+	private void emitCompleted(boolean block, TupleMRContext context, Collector collector) throws IOException,
+	    InterruptedException {
+		if(ordered) {
+			while(!inFlight.isEmpty() && (block || inFlight.getFirst().isDone())) {
+				emit(result(inFlight.removeFirst()), context, collector);
+				block = false;
+			}
+		} else {
+			Future<RESULT> future = block ? completion.take() : completion.poll();
+			while(future != null) {
+				inFlight.remove(future);
+				emit(result(future), context, collector);
+				future = completion.poll();
+			}
+		}
+	}
+
+	private RESULT result(Future<RESULT> future) throws IOException, InterruptedException {
+		try {
+			return future.get();
+		} catch(ExecutionException e) {
+			executor.shutdownNow();
+			executor = null;
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		}
+	}
+
+	private class RetryingCall implements Callable<RESULT> {
+
+		private final Callable<RESULT> work;
+
+		RetryingCall(Callable<RESULT> work) {
+			this.work = work;
+		}
+
+		@Override
+		public RESULT call() throws Exception {
+			long backoff = backoffMillis;
+			for(int retry = 0;; retry++) {
+				try {
+					return work.call();
+				} catch(Exception e) {
+					if(retry >= maxRetries || !isRetriable(e)) {
+						throw e;
+					}
+				}
+				retries.increment(1);
+				Thread.sleep(backoff);
+				backoff *= 2;
+			}
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import com.datasalt.pangool.tuplemr.mapred.ChainedMappers;
+import com.datasalt.pangool.tuplemr.mapred.MapOnlyMapper;
+
+/**
+ * A {@link TupleMapper} that passes its input through a chain of {@link MapOnlyMapper}s before the given
+ * {@link TupleMapper}, as if they were previous map-only jobs, but without writing and reading their output. What the
+ * last of the chained mappers writes is the input of the TupleMapper.
+ * 
+ * @see TupleMRBuilder#addInput(org.apache.hadoop.fs.Path, org.apache.hadoop.mapreduce.InputFormat, List,
+ *      TupleMapper)
+ */
+@SuppressWarnings({ "serial", "rawtypes", "unchecked" })
+public class ChainedTupleMapper extends TupleMapper<Object, Object> {
+
+	private final List<MapOnlyMapper> mappers;
+	private final TupleMapper mapper;
+
+	private transient ChainedMappers chain;
+
+	public ChainedTupleMapper(List<MapOnlyMapper> mappers, TupleMapper mapper) {
+		if(mappers == null || mappers.isEmpty()) {
+			throw new IllegalArgumentException("At least one chained mapper is needed");
+		}
+		this.mappers = new ArrayList<MapOnlyMapper>(mappers);
+		this.mapper = mapper;
+	}
+
+	@Override
+	public void setup(TupleMRContext context, Collector collector) throws IOException, InterruptedException {
+		final Mapper.Context hadoopContext = (Mapper.Context) context.getHadoopContext();
+		chain = new ChainedMappers(mappers, hadoopContext, new RecordWriter() {
+			@Override
+			public void write(Object key, Object value) throws IOException, InterruptedException {
+				mapper.map(key, value, hadoopContext);
+			}
+
+			@Override
+			public void close(TaskAttemptContext context) {
+			}
+		});
+		mapper.setup(hadoopContext);
+		chain.setup();
+	}
+
+	@Override
+	public void map(Object key, Object value, TupleMRContext context, Collector collector) throws IOException,
+	    InterruptedException {
+		chain.write(key, value);
+	}
+
+	@Override
+	public void cleanup(TupleMRContext context, Collector collector) throws IOException, InterruptedException {
+		chain.cleanup();
+		mapper.cleanup((Mapper.Context) context.getHadoopContext());
+	}
+}
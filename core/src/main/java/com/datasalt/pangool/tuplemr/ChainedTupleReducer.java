@@ -0,0 +1,90 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.tuplemr.mapred.ChainedMappers;
+import com.datasalt.pangool.tuplemr.mapred.MapOnlyMapper;
+
+/**
+ * A {@link TupleReducer} whose output goes through a chain of {@link MapOnlyMapper}s before being written, as if they
+ * were the following map-only jobs, but without writing and reading the intermediate output. The key and value
+ * written by the reducer are the input of the first mapper, and the output of the job is what the last mapper
+ * writes.
+ * 
+ * @see TupleMRBuilder#addReduceChainedMapper(MapOnlyMapper)
+ */
+@SuppressWarnings({ "serial", "rawtypes", "unchecked" })
+public class ChainedTupleReducer extends TupleReducer<Object, Object> {
+
+	private final TupleReducer<Object, Object> reducer;
+	private final List<MapOnlyMapper> mappers;
+
+	private transient ChainedMappers chain;
+	private transient Collector chainCollector;
+
+	public ChainedTupleReducer(TupleReducer reducer, List<MapOnlyMapper> mappers) {
+		if(mappers == null || mappers.isEmpty()) {
+			throw new IllegalArgumentException("At least one chained mapper is needed");
+		}
+		this.reducer = reducer;
+		this.mappers = new ArrayList<MapOnlyMapper>(mappers);
+	}
+
+	@Override
+	public void setup(TupleMRContext context, final Collector collector) throws IOException, InterruptedException,
+	    TupleMRException {
+		chain = new ChainedMappers(mappers, context.getHadoopContext(), new RecordWriter() {
+			@Override
+			public void write(Object key, Object value) throws IOException, InterruptedException {
+				collector.write(key, value);
+			}
+
+			@Override
+			public void close(TaskAttemptContext context) {
+			}
+		});
+		chainCollector = reducer.new Collector(context.getHadoopContext()) {
+			@Override
+			public void write(Object key, Object value) throws IOException, InterruptedException {
+				chain.write(key, value);
+			}
+		};
+		chain.setup();
+		reducer.setup(context, chainCollector);
+	}
+
+	@Override
+	public void reduce(ITuple group, Iterable<ITuple> tuples, TupleMRContext context, Collector collector)
+	    throws IOException, InterruptedException, TupleMRException {
+		reducer.reduce(group, tuples, context, chainCollector);
+	}
+
+	@Override
+	public void cleanup(TupleMRContext context, Collector collector) throws IOException, InterruptedException,
+	    TupleMRException {
+		reducer.cleanup(context, chainCollector);
+		chainCollector.close();
+		chain.cleanup();
+	}
+}
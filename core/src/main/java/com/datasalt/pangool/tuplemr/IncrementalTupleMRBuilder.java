@@ -0,0 +1,274 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr;
+
+import static com.datasalt.pangool.tuplemr.TupleMRException.failIfNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.Job;
+
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.tuplemr.mapred.lib.input.TupleInputFormat;
+
+/**
+ * A {@link TupleMRBuilder} for jobs that are run again and again as new input
+ * files arrive, processing only the new files each time.
+ * <p>
+ * The reducer must be an associative merge: its output tuples have one of the
+ * intermediate schemas, the one given in
+ * {@link #setIncrementalOutput(Path, Schema)}, and reducing a group made of
+ * previous results and new tuples gives the same as reducing all the tuples
+ * from scratch. Counts, sums, maximums or sets are like that.
+ * <p>
+ * Each run takes the files of the inputs added with
+ * {@link #addIncrementalInput(Path, InputFormat, TupleMapper)} that are not in
+ * the manifest of processed files of the output, and reduces them together
+ * with the previous output, read with an {@link IdentityTupleMapper}. The
+ * result is written to a temporary folder that replaces the output, with the
+ * updated manifest, in {@link #commit()}. So the cost of a run depends on the
+ * new files and on the size of the merged results, not on the size of all the
+ * files processed before.
+ * <p>
+ * {@link #run()} does all the steps. Otherwise call {@link #createJob()}, run
+ * the job and call {@link #commit()} if it succeeds. As with
+ * {@link TupleMRBuilder}, a builder creates only one job: use a new one for
+ * the next run.
+ */
+@SuppressWarnings("rawtypes")
+public class IncrementalTupleMRBuilder extends TupleMRBuilder {
+
+	/**
+	 * The file in the output folder with the input files processed so far, one
+	 * per line. Hidden for input formats as it starts with "_".
+	 */
+	public final static String MANIFEST = "_processed_inputs";
+
+	private static final class IncrementalInput {
+
+		final Path path;
+		final InputFormat inputFormat;
+		final TupleMapper mapper;
+
+		IncrementalInput(Path path, InputFormat inputFormat, TupleMapper mapper) {
+			this.path = path;
+			this.inputFormat = inputFormat;
+			this.mapper = mapper;
+		}
+	}
+
+	private List<IncrementalInput> incrementalInputs = new ArrayList<IncrementalInput>();
+	private Path incrementalOutput;
+	private Schema incrementalOutputSchema;
+
+	private Set<String> processedFiles;
+	private List<Path> newFiles;
+	// The input of each new file
+	private List<IncrementalInput> newFileInputs;
+
+	public IncrementalTupleMRBuilder(Configuration conf) {
+		super(conf);
+	}
+
+	public IncrementalTupleMRBuilder(Configuration conf, String name) {
+		super(conf, name);
+	}
+
+	/**
+	 * Adds a folder, a file or a glob whose files are processed only once. The
+	 * files of a folder are listed each time, without going into sub-folders and
+	 * skipping hidden files.
+	 */
+	public void addIncrementalInput(Path path, InputFormat inputFormat, TupleMapper inputProcessor) {
+		incrementalInputs.add(new IncrementalInput(path, inputFormat, inputProcessor));
+	}
+
+	/**
+	 * Sets the output, which is also an input of the next run. It is written
+	 * with a {@link com.datasalt.pangool.tuplemr.mapred.lib.output.TupleOutputFormat}
+	 * and its schema must be one of the intermediate schemas.
+	 */
+	public void setIncrementalOutput(Path outputPath, Schema schema) {
+		this.incrementalOutput = outputPath;
+		this.incrementalOutputSchema = schema;
+	}
+
+	/**
+	 * The input files that have not been processed yet.
+	 */
+	public List<Path> getNewInputFiles() throws IOException {
+		if(newFiles == null) {
+			FileSystem fs = incrementalOutput.getFileSystem(getConf());
+			restoreInterruptedCommit(fs);
+			processedFiles = readManifest(fs);
+			newFiles = new ArrayList<Path>();
+			newFileInputs = new ArrayList<IncrementalInput>();
+			for(IncrementalInput input : incrementalInputs) {
+				for(Path file : listFiles(input.path)) {
+					if(!processedFiles.contains(file.toString()) && !newFiles.contains(file)) {
+						newFiles.add(file);
+						newFileInputs.add(input);
+					}
+				}
+			}
+		}
+		return newFiles;
+	}
+
+	@Override
+	public Job createJob() throws IOException, TupleMRException {
+		failIfNull(incrementalOutput, "Need to set the incremental output");
+		if(!buildConf().getIntermediateSchemas().contains(incrementalOutputSchema)) {
+			throw new TupleMRException("The incremental output schema " + incrementalOutputSchema
+			    + " must be an intermediate schema");
+		}
+		if(getNewInputFiles().isEmpty()) {
+			throw new TupleMRException("There are no new files in the incremental inputs");
+		}
+		for(int i = 0; i < newFiles.size(); i++) {
+			IncrementalInput input = newFileInputs.get(i);
+			addInput(newFiles.get(i), input.inputFormat, input.mapper);
+		}
+		FileSystem fs = incrementalOutput.getFileSystem(getConf());
+		if(fs.exists(incrementalOutput)) {
+			addInput(incrementalOutput, new TupleInputFormat(), new IdentityTupleMapper());
+		}
+		Path tmpOutput = getTmpOutput();
+		fs.delete(tmpOutput, true);
+		setTupleOutput(tmpOutput, incrementalOutputSchema);
+		return super.createJob();
+	}
+
+	/**
+	 * Replaces the output with the one of the job that has just run, and adds
+	 * the new files to its manifest. Call it only if the job succeeded.
+	 */
+	public void commit() throws IOException {
+		FileSystem fs = incrementalOutput.getFileSystem(getConf());
+		Set<String> processed = new LinkedHashSet<String>(processedFiles);
+		for(Path file : newFiles) {
+			processed.add(file.toString());
+		}
+		Path tmpOutput = getTmpOutput();
+		Writer writer = new OutputStreamWriter(fs.create(new Path(tmpOutput, MANIFEST)), "UTF-8");
+		try {
+			for(String file : processed) {
+				writer.write(file + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+		// The previous output is kept until the new one is in place
+		Path previous = getPreviousOutput();
+		if(fs.exists(incrementalOutput) && !fs.rename(incrementalOutput, previous)) {
+			throw new IOException("Can't move " + incrementalOutput + " to " + previous);
+		}
+		if(!fs.rename(tmpOutput, incrementalOutput)) {
+			throw new IOException("Can't move " + tmpOutput + " to " + incrementalOutput);
+		}
+		fs.delete(previous, true);
+	}
+
+	/**
+	 * Runs the job over the new files, if any, and commits its output. Returns
+	 * false if the job failed.
+	 */
+	public boolean run() throws IOException, TupleMRException, InterruptedException, ClassNotFoundException {
+		if(getNewInputFiles().isEmpty()) {
+			return true;
+		}
+		Job job = createJob();
+		try {
+			if(!job.waitForCompletion(true)) {
+				return false;
+			}
+			commit();
+			return true;
+		} finally {
+			cleanUpInstanceFiles();
+		}
+	}
+
+	/**
+	 * If a commit was interrupted after moving the output away, the previous
+	 * output is put back.
+	 */
+	private void restoreInterruptedCommit(FileSystem fs) throws IOException {
+		Path previous = getPreviousOutput();
+		if(!fs.exists(incrementalOutput) && fs.exists(previous)) {
+			fs.rename(previous, incrementalOutput);
+		}
+	}
+
+	private Set<String> readManifest(FileSystem fs) throws IOException {
+		Set<String> processed = new LinkedHashSet<String>();
+		Path manifest = new Path(incrementalOutput, MANIFEST);
+		if(fs.exists(manifest)) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(manifest), "UTF-8"));
+			try {
+				String line;
+				while((line = reader.readLine()) != null) {
+					if(!line.isEmpty()) {
+						processed.add(line);
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return processed;
+	}
+
+	private List<Path> listFiles(Path path) throws IOException {
+		FileSystem fs = path.getFileSystem(getConf());
+		List<Path> files = new ArrayList<Path>();
+		FileStatus[] matches = fs.globStatus(path);
+		if(matches == null) {
+			return files;
+		}
+		for(FileStatus match : matches) {
+			FileStatus[] children = match.isDir() ? fs.listStatus(match.getPath()) : new FileStatus[] { match };
+			for(FileStatus child : children) {
+				String name = child.getPath().getName();
+				if(!child.isDir() && !name.startsWith("_") && !name.startsWith(".")) {
+					files.add(child.getPath().makeQualified(fs));
+				}
+			}
+		}
+		return files;
+	}
+
+	private Path getTmpOutput() {
+		return new Path(incrementalOutput.getParent(), "." + incrementalOutput.getName() + ".incremental");
+	}
+
+	private Path getPreviousOutput() {
+		return new Path(incrementalOutput.getParent(), "." + incrementalOutput.getName() + ".previous");
+	}
+}
@@ -0,0 +1,417 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr;
+
+import static com.datasalt.pangool.tuplemr.TupleMRException.failIfEmpty;
+import static com.datasalt.pangool.tuplemr.TupleMRException.failIfNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.Job;
+
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Schema.Field;
+import com.datasalt.pangool.io.Schema.Field.Type;
+import com.datasalt.pangool.tuplemr.mapred.BucketJoinReducer;
+import com.datasalt.pangool.tuplemr.mapred.TupleHashPartitioner;
+import com.datasalt.pangool.tuplemr.mapred.lib.input.TupleInputFormat;
+
+/**
+ * Runs an iterative algorithm as a sequence of Tuple-based jobs, one per
+ * iteration, where part of the data doesn't change between iterations: the
+ * structure of a graph in PageRank-like algorithms, for instance.
+ * <p>
+ * The static tuples, read from the inputs added with
+ * {@link #addStaticInput(Path, InputFormat, TupleMapper)}, are partitioned and
+ * sorted by the group-by fields once, into as many buckets as reducers the
+ * iterations have. Each iteration only shuffles the state tuples: the ones of
+ * the inputs added with {@link #addStateInput(Path, InputFormat, TupleMapper)}
+ * in the first iteration, and the output of the previous iteration afterwards.
+ * Each reduce task merge-joins the groups it receives with the bucket of its
+ * partition (see {@link BucketJoinReducer}), so the {@link TupleReducer} gets
+ * the static tuples of the group followed by the state tuples, and tells them
+ * apart by their schema. The tuples it writes are the state of the next
+ * iteration.
+ * <p>
+ * The iterations stop after {@link #setMaxIterations(int)} or as soon as the
+ * {@link ConvergenceCondition} holds for the counters of an iteration, as in
+ * {@link #counterIsZero(String, String)}.
+ * <p>
+ * The buckets are kept in the working folder and are reused by the next runs
+ * while their fingerprint doesn't change: the number of buckets, the
+ * partitioner, the static schema, the group-by and sort fields, and the path,
+ * length and modification time of the static input files. Changes in the code
+ * of the static mappers are not detected: delete the buckets, or the working
+ * folder, when deploying new code.
+ */
+@SuppressWarnings("rawtypes")
+public class IterativeTupleMRDriver {
+
+	private static final Log LOG = LogFactory.getLog(IterativeTupleMRDriver.class);
+
+	/**
+	 * The file in the buckets folder with their fingerprint.
+	 */
+	public final static String FINGERPRINT_FILE = "_fingerprint";
+	public final static int DEFAULT_MAX_ITERATIONS = 10;
+
+	/**
+	 * Runs a job and returns its counters, or throws an exception if it fails.
+	 */
+	public static interface JobRunner {
+
+		public Counters run(Job job) throws Exception;
+	}
+
+	/**
+	 * Decides, after each iteration, whether the algorithm has converged.
+	 */
+	public static interface ConvergenceCondition {
+
+		public boolean hasConverged(int iteration, Counters counters);
+	}
+
+	/**
+	 * Converges when an iteration doesn't increment the given counter.
+	 */
+	public static ConvergenceCondition counterIsZero(final String group, final String name) {
+		return new ConvergenceCondition() {
+			@Override
+			public boolean hasConverged(int iteration, Counters counters) {
+				Counter counter = counters.findCounter(group, name);
+				return counter == null || counter.getValue() == 0;
+			}
+		};
+	}
+
+	private static final class Source {
+
+		final Path path;
+		final InputFormat inputFormat;
+		final TupleMapper mapper;
+
+		Source(Path path, InputFormat inputFormat, TupleMapper mapper) {
+			this.path = path;
+			this.inputFormat = inputFormat;
+			this.mapper = mapper;
+		}
+	}
+
+	private final Configuration conf;
+	private final String name;
+	private List<Source> staticInputs = new ArrayList<Source>();
+	private List<Source> stateInputs = new ArrayList<Source>();
+	private Schema staticSchema;
+	private Schema stateSchema;
+	private String[] groupByFields;
+	private TupleReducer tupleReducer;
+	private Path workingFolder;
+	private int numBuckets = 1;
+	private int maxIterations = DEFAULT_MAX_ITERATIONS;
+	private ConvergenceCondition convergenceCondition;
+	private JobRunner runner = new JobRunner() {
+		@Override
+		public Counters run(Job job) throws Exception {
+			if(!job.waitForCompletion(true)) {
+				throw new IOException("Job " + job.getJobName() + " failed");
+			}
+			return job.getCounters();
+		}
+	};
+
+	private int iterations;
+	private Path output;
+
+	public IterativeTupleMRDriver(Configuration conf, String name) {
+		this.conf = conf;
+		this.name = name;
+	}
+
+	/**
+	 * Adds an input of loop-invariant data. The mapper writes tuples of the
+	 * static schema.
+	 */
+	public void addStaticInput(Path path, InputFormat inputFormat, TupleMapper inputProcessor) {
+		staticInputs.add(new Source(path, inputFormat, inputProcessor));
+	}
+
+	public void setStaticSchema(Schema staticSchema) {
+		this.staticSchema = staticSchema;
+	}
+
+	/**
+	 * Adds an input of the initial state. The mapper writes tuples of the state
+	 * schema.
+	 */
+	public void addStateInput(Path path, InputFormat inputFormat, TupleMapper inputProcessor) {
+		stateInputs.add(new Source(path, inputFormat, inputProcessor));
+	}
+
+	public void setStateSchema(Schema stateSchema) {
+		this.stateSchema = stateSchema;
+	}
+
+	/**
+	 * The fields both schemas are grouped, partitioned and sorted by. They must
+	 * have the same type in both schemas.
+	 */
+	public void setGroupByFields(String... groupByFields) {
+		this.groupByFields = groupByFields;
+	}
+
+	/**
+	 * The reducer of each iteration. It receives the static tuples of the group,
+	 * if any, and then the state tuples, and writes the next state with
+	 * {@link TupleReducer.Collector#write(Object, Object)} as an {@link com.datasalt.pangool.io.ITuple}
+	 * key and a null value.
+	 */
+	public void setTupleReducer(TupleReducer tupleReducer) {
+		this.tupleReducer = tupleReducer;
+	}
+
+	/**
+	 * The folder for the buckets and the output of the iterations.
+	 */
+	public void setWorkingFolder(Path workingFolder) {
+		this.workingFolder = workingFolder;
+	}
+
+	/**
+	 * The number of buckets of the static tuples, which is also the number of
+	 * reducers of the iterations.
+	 */
+	public void setNumBuckets(int numBuckets) {
+		this.numBuckets = numBuckets;
+	}
+
+	public void setMaxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+	}
+
+	public void setConvergenceCondition(ConvergenceCondition convergenceCondition) {
+		this.convergenceCondition = convergenceCondition;
+	}
+
+	/**
+	 * Sets how jobs are run. By default with {@link Job#waitForCompletion(boolean)}.
+	 */
+	public void setJobRunner(JobRunner runner) {
+		this.runner = runner;
+	}
+
+	/**
+	 * The folder with the output of the last iteration run.
+	 */
+	public Path getOutput() {
+		return output;
+	}
+
+	/**
+	 * The number of iterations run.
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	public Path getBucketsFolder() {
+		return new Path(workingFolder, "buckets");
+	}
+
+	/**
+	 * Runs the iterations, building the buckets first if needed. Returns whether
+	 * the algorithm converged before the maximum number of iterations, or true
+	 * if there is no {@link ConvergenceCondition}.
+	 */
+	public boolean run() throws IOException, TupleMRException {
+		failIfEmpty(staticInputs, "Need to add at least one static input");
+		failIfEmpty(stateInputs, "Need to add at least one state input");
+		failIfNull(staticSchema, "Need to set the static schema");
+		failIfNull(stateSchema, "Need to set the state schema");
+		failIfNull(groupByFields, "Need to set the group by fields");
+		failIfNull(tupleReducer, "Need to set the tuple reducer");
+		failIfNull(workingFolder, "Need to set the working folder");
+		for(String field : groupByFields) {
+			Field staticField = staticSchema.getField(field);
+			Field stateField = stateSchema.getField(field);
+			if(staticField == null || stateField == null || staticField.getType() != stateField.getType()) {
+				throw new TupleMRException("Group by field '" + field
+				    + "' must be in both the static and the state schemas with the same type");
+			}
+			if(stateField.getType() == Type.OBJECT) {
+				throw new TupleMRException("Group by field '" + field + "' can't be of type " + Type.OBJECT);
+			}
+		}
+
+		FileSystem fs = workingFolder.getFileSystem(conf);
+		Path buckets = getBucketsFolder();
+		TupleMRBuilder bucketsBuilder = createBucketsBuilder(buckets);
+		String fingerprint = getFingerprint(bucketsBuilder);
+		if(!fingerprint.equals(readFingerprint(fs, buckets))) {
+			buildBuckets(fs, buckets, bucketsBuilder, fingerprint);
+		} else {
+			LOG.info("Reusing the " + numBuckets + " buckets in " + buckets);
+		}
+
+		iterations = 0;
+		output = null;
+		for(int i = 1; i <= maxIterations; i++) {
+			Path iterationOutput = new Path(workingFolder, "iteration-" + i);
+			fs.delete(iterationOutput, true);
+			TupleMRBuilder builder = new TupleMRBuilder(conf, name + " - iteration " + i);
+			builder.addIntermediateSchema(stateSchema);
+			builder.setGroupByFields(groupByFields);
+			if(output == null) {
+				for(Source input : stateInputs) {
+					builder.addInput(input.path, input.inputFormat, input.mapper);
+				}
+			} else {
+				builder.addInput(output, new TupleInputFormat(), new IdentityTupleMapper());
+			}
+			builder.setTupleReducer(tupleReducer);
+			builder.setTupleOutput(iterationOutput, stateSchema);
+			Counters counters;
+			try {
+				Job job = builder.createJob();
+				job.setReducerClass(BucketJoinReducer.class);
+				job.setNumReduceTasks(numBuckets);
+				job.getConfiguration().set(BucketJoinReducer.CONF_BUCKETS, buckets.toString());
+				counters = runJob(job);
+			} finally {
+				builder.cleanUpInstanceFiles();
+			}
+			if(output != null) {
+				fs.delete(output, true);
+			}
+			output = iterationOutput;
+			iterations = i;
+			if(convergenceCondition != null && convergenceCondition.hasConverged(i, counters)) {
+				LOG.info(name + " converged after " + i + " iterations");
+				return true;
+			}
+		}
+		return convergenceCondition == null;
+	}
+
+	/**
+	 * The builder of the job that partitions and sorts the static tuples as the
+	 * iterations will do with the state tuples.
+	 */
+	private TupleMRBuilder createBucketsBuilder(Path buckets) throws TupleMRException {
+		TupleMRBuilder builder = new TupleMRBuilder(conf, name + " - buckets");
+		builder.addIntermediateSchema(staticSchema);
+		builder.setGroupByFields(groupByFields);
+		for(Source input : staticInputs) {
+			builder.addInput(input.path, input.inputFormat, input.mapper);
+		}
+		builder.setTupleReducer(new IdentityTupleReducer());
+		builder.setTupleOutput(buckets, staticSchema);
+		return builder;
+	}
+
+	private void buildBuckets(FileSystem fs, Path buckets, TupleMRBuilder builder, String fingerprint)
+	    throws IOException, TupleMRException {
+		fs.delete(buckets, true);
+		try {
+			Job job = builder.createJob();
+			job.setNumReduceTasks(numBuckets);
+			runJob(job);
+		} finally {
+			builder.cleanUpInstanceFiles();
+		}
+		Writer writer = new OutputStreamWriter(fs.create(new Path(buckets, FINGERPRINT_FILE)), "UTF-8");
+		try {
+			writer.write(fingerprint);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * Everything the content of the buckets depends on, one item per line.
+	 */
+	private String getFingerprint(TupleMRBuilder bucketsBuilder) throws IOException, TupleMRException {
+		StringBuilder fingerprint = new StringBuilder();
+		fingerprint.append("buckets: ").append(numBuckets).append("\n");
+		fingerprint.append("partitioner: ").append(TupleHashPartitioner.class.getName()).append("\n");
+		// The schema, group-by, sort and partition fields
+		for(String line : bucketsBuilder.buildConf().toString().split("\n")) {
+			fingerprint.append(line.trim());
+		}
+		fingerprint.append("\n");
+		for(Source input : staticInputs) {
+			fingerprint.append("input: ").append(input.path).append(" ")
+			    .append(input.inputFormat.getClass().getName()).append(" ")
+			    .append(input.mapper.getClass().getName()).append("\n");
+			FileSystem fs = input.path.getFileSystem(conf);
+			FileStatus[] matches = fs.globStatus(input.path);
+			if(matches == null) {
+				continue;
+			}
+			for(FileStatus file : JobResultCache.listFiles(fs, matches)) {
+				fingerprint.append(file.getPath().makeQualified(fs)).append(" ").append(file.getLen()).append(" ")
+				    .append(file.getModificationTime()).append("\n");
+			}
+		}
+		return fingerprint.toString();
+	}
+
+	/**
+	 * The fingerprint of the buckets in the folder, or null if they are not
+	 * there.
+	 */
+	private String readFingerprint(FileSystem fs, Path buckets) throws IOException {
+		Path file = new Path(buckets, FINGERPRINT_FILE);
+		if(!fs.exists(file)) {
+			return null;
+		}
+		BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(file), "UTF-8"));
+		try {
+			StringBuilder fingerprint = new StringBuilder();
+			String line;
+			while((line = reader.readLine()) != null) {
+				fingerprint.append(line).append("\n");
+			}
+			return fingerprint.toString();
+		} finally {
+			reader.close();
+		}
+	}
+
+	private Counters runJob(Job job) throws IOException {
+		try {
+			return runner.run(job);
+		} catch(IOException e) {
+			throw e;
+		} catch(Exception e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,547 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import com.datasalt.pangool.tuplemr.mapred.lib.input.PangoolMultipleInputs;
+import com.datasalt.pangool.utils.InstancesDistributor;
+
+/**
+ * Runs a set of jobs that depend on each other, submitting the jobs whose dependencies are done concurrently, up to
+ * a maximum number of jobs at a time.
+ * <p>
+ * A job depends on another one when it reads its output (or a folder inside it, like a named output). Other
+ * dependencies can be declared with {@link JobNode#dependsOn(String...)}. Jobs added from a {@link TupleMRBuilder} or
+ * a {@link MapOnlyJobBuilder} get their instance files cleaned up as soon as they finish. Instance files are shared
+ * by the jobs with the same instances, and {@link InstancesDistributor} counts their references, so a file is only
+ * deleted when no other job of the graph still needs it. The output of the jobs
+ * marked as intermediate with {@link JobNode#setIntermediate(boolean)} is deleted as soon as all the jobs that depend
+ * on them have succeeded.
+ * <p>
+ * If a job fails, the jobs that depend on it are skipped, but the jobs that don't keep running. When the graph is done
+ * the time taken by each job and the critical path, the chain of dependent jobs that took longest, are logged. See
+ * {@link #getCriticalPath()}.
+ * <p>
+ * The jobs are run with {@link Job#waitForCompletion(boolean)} by default. Note that Hadoop's LocalJobRunner can't
+ * run several jobs at the same time in the same JVM: use a parallelism of 1 or another {@link JobRunner} in local
+ * mode.
+ */
+public class JobGraph {
+
+	private static final Log LOG = LogFactory.getLog(JobGraph.class);
+
+	/**
+	 * Runs a job, returning whether it succeeded.
+	 */
+	public static interface JobRunner {
+
+		public boolean run(Job job) throws Exception;
+	}
+
+	public static enum JobState {
+		PENDING, RUNNING, SUCCEEDED, FAILED, SKIPPED
+	}
+
+	private static interface Cleanup {
+
+		public void cleanUp() throws IOException;
+	}
+
+	/**
+	 * A job of the graph.
+	 */
+	public class JobNode {
+
+		private final String name;
+		private final Job job;
+		private final Cleanup cleanup;
+		private final List<String> declaredDependencies = new ArrayList<String>();
+		private boolean intermediate = false;
+
+		private final Set<JobNode> dependencies = new LinkedHashSet<JobNode>();
+		private final Set<JobNode> dependents = new LinkedHashSet<JobNode>();
+		private int pendingDependents;
+		private volatile JobState state = JobState.PENDING;
+		private volatile long startTime, endTime;
+		private volatile Throwable error;
+
+		JobNode(String name, Job job, Cleanup cleanup) {
+			this.name = name;
+			this.job = job;
+			this.cleanup = cleanup;
+		}
+
+		/**
+		 * Declares that this job can't start until the given ones have succeeded, besides the jobs whose output it
+		 * reads.
+		 */
+		public JobNode dependsOn(String... names) {
+			Collections.addAll(declaredDependencies, names);
+			return this;
+		}
+
+		/**
+		 * Whether the output of the job is deleted once all the jobs that depend on it have succeeded.
+		 */
+		public JobNode setIntermediate(boolean intermediate) {
+			this.intermediate = intermediate;
+			return this;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Job getJob() {
+			return job;
+		}
+
+		public JobState getState() {
+			return state;
+		}
+
+		/**
+		 * The exception thrown by the job, if any.
+		 */
+		public Throwable getError() {
+			return error;
+		}
+
+		public long getStartTime() {
+			return startTime;
+		}
+
+		public long getEndTime() {
+			return endTime;
+		}
+
+		/**
+		 * How long the job took to run, or 0 if it didn't run.
+		 */
+		public long getDuration() {
+			return (startTime == 0) ? 0 : endTime - startTime;
+		}
+
+		public Set<JobNode> getDependencies() {
+			return Collections.unmodifiableSet(dependencies);
+		}
+
+		Path getOutput() {
+			return FileOutputFormat.getOutputPath(job);
+		}
+
+		List<Path> getInputs() throws IOException {
+			return getInputPaths(job);
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/**
+	 * The input paths of a job, whether they were added with {@link PangoolMultipleInputs} or with
+	 * {@link FileInputFormat}.
+	 */
+	static List<Path> getInputPaths(Job job) throws IOException {
+		List<Path> inputs = new ArrayList<Path>();
+		String pangoolInputs = job.getConfiguration().get(PangoolMultipleInputs.PANGOOL_INPUT_DIR_FORMATS_CONF);
+		if(pangoolInputs != null) {
+			for(String mapping : pangoolInputs.split(",")) {
+				inputs.add(new Path(mapping.split(";")[0]));
+			}
+		}
+		Collections.addAll(inputs, FileInputFormat.getInputPaths(job));
+		return inputs;
+	}
+
+	private final Configuration conf;
+	private final Map<String, JobNode> nodes = new LinkedHashMap<String, JobNode>();
+	private int parallelism = 1;
+	private JobRunner runner = new JobRunner() {
+		@Override
+		public boolean run(Job job) throws Exception {
+			return job.waitForCompletion(true);
+		}
+	};
+	private long startTime, endTime;
+
+	public JobGraph(Configuration conf) {
+		this.conf = conf;
+	}
+
+	/**
+	 * The maximum number of jobs running at the same time. 1 by default.
+	 */
+	public void setParallelism(int parallelism) {
+		if(parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+
+	public void setJobRunner(JobRunner runner) {
+		this.runner = runner;
+	}
+
+	/**
+	 * Adds a job created with {@link Job}'s API. Its inputs are read from {@link FileInputFormat} and its output from
+	 * {@link FileOutputFormat}.
+	 */
+	public JobNode add(String name, Job job) throws TupleMRException {
+		return add(name, job, null);
+	}
+
+	/**
+	 * Creates the job of the builder and adds it. The instance files of the builder are cleaned up when the job
+	 * finishes.
+	 */
+	public JobNode add(String name, final TupleMRBuilder builder) throws IOException, TupleMRException {
+		return add(name, builder.createJob(), new Cleanup() {
+			@Override
+			public void cleanUp() throws IOException {
+				builder.cleanUpInstanceFiles();
+			}
+		});
+	}
+
+	/**
+	 * Creates the job of the builder and adds it. The instance files of the builder are cleaned up when the job
+	 * finishes.
+	 */
+	public JobNode add(String name, final MapOnlyJobBuilder builder) throws IOException, TupleMRException,
+	    URISyntaxException {
+		return add(name, builder.createJob(), new Cleanup() {
+			@Override
+			public void cleanUp() throws IOException {
+				builder.cleanUpInstanceFiles();
+			}
+		});
+	}
+
+	private JobNode add(String name, Job job, Cleanup cleanup) throws TupleMRException {
+		if(nodes.containsKey(name)) {
+			throw new TupleMRException("There is already a job named " + name);
+		}
+		JobNode node = new JobNode(name, job, cleanup);
+		nodes.put(name, node);
+		return node;
+	}
+
+	public JobNode getJob(String name) {
+		return nodes.get(name);
+	}
+
+	/**
+	 * Runs the jobs of the graph. Returns true if all of them succeeded. The graph can only be run once.
+	 */
+	public boolean run() throws IOException, InterruptedException, TupleMRException {
+		List<JobNode> order;
+		try {
+			order = resolveDependencies();
+		} catch(TupleMRException e) {
+			// None of the jobs will run
+			for(JobNode node : nodes.values()) {
+				if(node.state == JobState.PENDING && node.cleanup != null) {
+					node.cleanup.cleanUp();
+				}
+			}
+			throw e;
+		}
+		startTime = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		CompletionService<JobNode> completion = new ExecutorCompletionService<JobNode>(executor);
+		try {
+			int running = 0;
+			int done = 0;
+			while(done < order.size()) {
+				for(JobNode node : order) {
+					if(node.state == JobState.PENDING && running < parallelism && isReady(node)) {
+						submit(node, completion);
+						running++;
+					}
+				}
+				if(running == 0) {
+					// Only skipped jobs are left
+					break;
+				}
+				JobNode finished = completion.take().get();
+				running--;
+				done++;
+				finished(finished);
+				done += skipDependents(finished);
+			}
+		} catch(ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			executor.shutdownNow();
+			endTime = System.currentTimeMillis();
+		}
+		LOG.info(getReport());
+		for(JobNode node : order) {
+			if(node.state != JobState.SUCCEEDED) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isReady(JobNode node) {
+		for(JobNode dependency : node.dependencies) {
+			if(dependency.state != JobState.SUCCEEDED) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void submit(final JobNode node, CompletionService<JobNode> completion) {
+		node.state = JobState.RUNNING;
+		LOG.info("Starting job " + node.name);
+		completion.submit(new Callable<JobNode>() {
+			@Override
+			public JobNode call() throws Exception {
+				node.startTime = System.currentTimeMillis();
+				boolean success = false;
+				try {
+					success = runner.run(node.job);
+				} catch(Throwable t) {
+					LOG.error("Job " + node.name + " failed", t);
+					node.error = t;
+				}
+				node.endTime = System.currentTimeMillis();
+				node.state = success ? JobState.SUCCEEDED : JobState.FAILED;
+				return node;
+			}
+		});
+	}
+
+	/**
+	 * Cleans up the instance files of the job and the intermediate outputs that are no longer needed.
+	 */
+	private void finished(JobNode node) throws IOException {
+		LOG.info("Job " + node.name + " " + node.state + " in " + node.getDuration() + " ms");
+		if(node.cleanup != null) {
+			node.cleanup.cleanUp();
+		}
+		if(node.state != JobState.SUCCEEDED) {
+			return;
+		}
+		if(node.pendingDependents == 0) {
+			deleteIntermediateOutput(node);
+		}
+		for(JobNode dependency : node.dependencies) {
+			dependency.pendingDependents--;
+			if(dependency.pendingDependents == 0) {
+				deleteIntermediateOutput(dependency);
+			}
+		}
+	}
+
+	private void deleteIntermediateOutput(JobNode node) throws IOException {
+		Path output = node.getOutput();
+		if(node.intermediate && output != null) {
+			LOG.info("Deleting intermediate output " + output + " of job " + node.name);
+			output.getFileSystem(conf).delete(output, true);
+		}
+	}
+
+	/**
+	 * Marks as skipped the jobs that can't run because the given one failed, cleaning up their instance files. Returns
+	 * how many.
+	 */
+	private int skipDependents(JobNode node) throws IOException {
+		int skipped = 0;
+		if(node.state == JobState.SUCCEEDED) {
+			return skipped;
+		}
+		for(JobNode dependent : node.dependents) {
+			if(dependent.state == JobState.PENDING) {
+				LOG.info("Skipping job " + dependent.name + " because " + node.name + " didn't succeed");
+				dependent.state = JobState.SKIPPED;
+				if(dependent.cleanup != null) {
+					dependent.cleanup.cleanUp();
+				}
+				skipped += 1 + skipDependents(dependent);
+			}
+		}
+		return skipped;
+	}
+
+	/**
+	 * Links each job with the ones whose output it reads and the ones it was declared to depend on. Returns the jobs
+	 * in an order where every job comes after its dependencies.
+	 */
+	List<JobNode> resolveDependencies() throws IOException, TupleMRException {
+		Map<String, JobNode> outputs = new LinkedHashMap<String, JobNode>();
+		for(JobNode node : nodes.values()) {
+			if(node.state != JobState.PENDING) {
+				throw new TupleMRException("The graph has already been run");
+			}
+			Path output = node.getOutput();
+			if(output != null) {
+				String qualified = qualify(output);
+				JobNode other = outputs.put(qualified, node);
+				if(other != null) {
+					throw new TupleMRException("Jobs " + other.name + " and " + node.name + " write to the same output "
+					    + qualified);
+				}
+			}
+		}
+		for(JobNode node : nodes.values()) {
+			for(Path input : node.getInputs()) {
+				String qualified = qualify(input);
+				for(Map.Entry<String, JobNode> output : outputs.entrySet()) {
+					if(output.getValue() != node
+					    && (qualified.equals(output.getKey()) || qualified.startsWith(output.getKey() + "/"))) {
+						link(output.getValue(), node);
+					}
+				}
+			}
+			for(String name : node.declaredDependencies) {
+				JobNode dependency = nodes.get(name);
+				if(dependency == null) {
+					throw new TupleMRException("Job " + node.name + " depends on unknown job " + name);
+				}
+				link(dependency, node);
+			}
+		}
+
+		List<JobNode> order = new ArrayList<JobNode>();
+		Set<JobNode> visited = new LinkedHashSet<JobNode>();
+		for(JobNode node : nodes.values()) {
+			visit(node, visited, new LinkedHashSet<JobNode>(), order);
+		}
+		return order;
+	}
+
+	private void link(JobNode dependency, JobNode dependent) {
+		if(dependent.dependencies.add(dependency)) {
+			dependency.dependents.add(dependent);
+			dependency.pendingDependents++;
+		}
+	}
+
+	private void visit(JobNode node, Set<JobNode> visited, Set<JobNode> path, List<JobNode> order)
+	    throws TupleMRException {
+		if(visited.contains(node)) {
+			return;
+		}
+		if(!path.add(node)) {
+			throw new TupleMRException("There is a dependency cycle between jobs " + path);
+		}
+		for(JobNode dependency : node.dependencies) {
+			visit(dependency, visited, path, order);
+		}
+		path.remove(node);
+		visited.add(node);
+		order.add(node);
+	}
+
+	private String qualify(Path path) throws IOException {
+		FileSystem fs = path.getFileSystem(conf);
+		return path.makeQualified(fs).toString();
+	}
+
+	/**
+	 * The chain of dependent jobs with the longest total running time, from first to last. This is the minimum time
+	 * the graph would take with unlimited parallelism, so shortening it is what makes the graph faster. Only the jobs
+	 * that ran are taken into account.
+	 */
+	public List<JobNode> getCriticalPath() {
+		Map<JobNode, Long> pathTime = new LinkedHashMap<JobNode, Long>();
+		Map<JobNode, JobNode> previous = new LinkedHashMap<JobNode, JobNode>();
+		JobNode last = null;
+		// Nodes are in insertion order, so resolve them recursively
+		for(JobNode node : nodes.values()) {
+			if(pathTime(node, pathTime, previous) > 0
+			    && (last == null || pathTime.get(node) > pathTime.get(last))) {
+				last = node;
+			}
+		}
+		List<JobNode> path = new ArrayList<JobNode>();
+		for(JobNode node = last; node != null; node = previous.get(node)) {
+			path.add(0, node);
+		}
+		return path;
+	}
+
+	private long pathTime(JobNode node, Map<JobNode, Long> pathTime, Map<JobNode, JobNode> previous) {
+		Long time = pathTime.get(node);
+		if(time != null) {
+			return time;
+		}
+		long longest = 0;
+		for(JobNode dependency : node.dependencies) {
+			long dependencyTime = pathTime(dependency, pathTime, previous);
+			if(dependencyTime > longest) {
+				longest = dependencyTime;
+				previous.put(node, dependency);
+			}
+		}
+		time = (node.startTime == 0) ? 0 : longest + node.getDuration();
+		pathTime.put(node, time);
+		return time;
+	}
+
+	/**
+	 * A summary of the last run: the state and running time of each job and the critical path.
+	 */
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		report.append("Job graph finished in ").append(endTime - startTime).append(" ms\n");
+		for(JobNode node : nodes.values()) {
+			report.append("  ").append(node.name).append(": ").append(node.state);
+			if(node.startTime != 0) {
+				report.append(", started at +").append(node.startTime - startTime).append(" ms, took ")
+				    .append(node.getDuration()).append(" ms");
+			}
+			report.append("\n");
+		}
+		long criticalTime = 0;
+		List<JobNode> criticalPath = getCriticalPath();
+		for(JobNode node : criticalPath) {
+			criticalTime += node.getDuration();
+		}
+		report.append("Critical path (").append(criticalTime).append(" ms): ").append(criticalPath);
+		return report.toString();
+	}
+}
@@ -0,0 +1,341 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import com.datasalt.pangool.utils.InstancesDistributor;
+
+/**
+ * Skips the jobs whose result is already known: the output of each job run
+ * through the cache is copied to a cache folder, under a key computed from
+ * the job, and the next time a job with the same key is run its output is
+ * copied from there instead.
+ * <p>
+ * The key is an MD5 of the job's Configuration, where the names of the
+ * distributed instances (mappers, reducers, input and output formats, the
+ * {@link TupleMRConfig}...) are replaced by the hash of their content, and of
+ * the path, length and modification time of each input file, or its checksum
+ * if {@link #setUseChecksums(boolean)} is set and the FileSystem provides one.
+ * The output path is not part of the key. Instances are compared by their
+ * serialized state, so a mapper or reducer whose code changes but whose fields
+ * don't gets the same key: clear the cache when deploying new code.
+ * <p>
+ * Entries not used for {@link #setMaxAge(long)} are deleted, as well as the
+ * least recently used ones over {@link #setMaxEntries(int)}, each time an
+ * entry is added or with {@link #evict()}.
+ */
+public class JobResultCache {
+
+	private static final Log LOG = LogFactory.getLog(JobResultCache.class);
+
+	// Written in each entry, with its last use as modification time
+	private final static String LAST_USED = "_last_used";
+	private final static String OUTPUT = "output";
+	// Hadoop properties that don't affect the result of the job
+	private final static String[] IGNORED_PROPERTIES = { "mapred.output.dir" };
+
+	private final Configuration conf;
+	private final Path folder;
+	private int maxEntries = Integer.MAX_VALUE;
+	private long maxAge = Long.MAX_VALUE;
+	private boolean useChecksums = false;
+	private JobGraph.JobRunner runner = new JobGraph.JobRunner() {
+		@Override
+		public boolean run(Job job) throws Exception {
+			return job.waitForCompletion(true);
+		}
+	};
+	private int hits, misses;
+
+	public JobResultCache(Configuration conf, Path folder) {
+		this.conf = conf;
+		this.folder = folder;
+	}
+
+	/**
+	 * The maximum number of entries to keep. Unlimited by default.
+	 */
+	public void setMaxEntries(int maxEntries) {
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * The time, in milliseconds, an entry is kept after its last use. Unlimited
+	 * by default.
+	 */
+	public void setMaxAge(long maxAge) {
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * Whether the input files are fingerprinted by their checksum instead of
+	 * their modification time, when the FileSystem provides one. Checksums
+	 * survive copies of unchanged files, but are costly to compute.
+	 */
+	public void setUseChecksums(boolean useChecksums) {
+		this.useChecksums = useChecksums;
+	}
+
+	/**
+	 * Sets how jobs are run on a miss. By default with
+	 * {@link Job#waitForCompletion(boolean)}.
+	 */
+	public void setJobRunner(JobGraph.JobRunner runner) {
+		this.runner = runner;
+	}
+
+	public int getHits() {
+		return hits;
+	}
+
+	public int getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Runs the job of the builder, or copies its output from the cache, and
+	 * cleans up its instance files. Returns whether it succeeded.
+	 */
+	public boolean run(TupleMRBuilder builder) throws IOException, TupleMRException {
+		try {
+			return run(builder.createJob());
+		} finally {
+			builder.cleanUpInstanceFiles();
+		}
+	}
+
+	/**
+	 * Runs the job of the builder, or copies its output from the cache, and
+	 * cleans up its instance files. Returns whether it succeeded.
+	 */
+	public boolean run(MapOnlyJobBuilder builder) throws IOException, TupleMRException, URISyntaxException {
+		try {
+			return run(builder.createJob());
+		} finally {
+			builder.cleanUpInstanceFiles();
+		}
+	}
+
+	/**
+	 * Runs the job, or copies its output from the cache. Returns whether it
+	 * succeeded.
+	 */
+	public boolean run(Job job) throws IOException {
+		Path output = FileOutputFormat.getOutputPath(job);
+		if(output == null) {
+			throw new IOException("Only jobs with an output path can be cached");
+		}
+		String key = getKey(job);
+		FileSystem fs = folder.getFileSystem(conf);
+		Path entry = new Path(folder, key);
+		FileSystem outFs = output.getFileSystem(job.getConfiguration());
+
+		if(fs.exists(new Path(entry, LAST_USED))) {
+			if(outFs.exists(output)) {
+				throw new IOException("Output directory " + output + " already exists");
+			}
+			LOG.info("Job " + job.getJobName() + " skipped: copying its output from " + entry);
+			FileUtil.copy(fs, new Path(entry, OUTPUT), outFs, output, false, conf);
+			touch(fs, entry);
+			hits++;
+			return true;
+		}
+
+		misses++;
+		boolean success;
+		try {
+			success = runner.run(job);
+		} catch(IOException e) {
+			throw e;
+		} catch(Exception e) {
+			throw new IOException(e);
+		}
+		if(success) {
+			// Written to a temporary folder first, so that incomplete entries are
+			// never used
+			Path tmp = new Path(folder, "." + key + ".tmp");
+			fs.delete(tmp, true);
+			FileUtil.copy(outFs, output, fs, new Path(tmp, OUTPUT), false, conf);
+			touch(fs, tmp);
+			if(!fs.rename(tmp, entry)) {
+				fs.delete(tmp, true);
+			}
+			evict(key);
+		}
+		return success;
+	}
+
+	/**
+	 * The key of the result of the job in the cache.
+	 */
+	public String getKey(Job job) throws IOException {
+		Configuration jobConf = job.getConfiguration();
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch(NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+
+		// The instances are distributed with random names
+		Map<String, String> instanceHashes = InstancesDistributor.getInstanceHashes(jobConf);
+		Map<String, String> properties = new TreeMap<String, String>();
+		for(Map.Entry<String, String> property : jobConf) {
+			properties.put(replaceNames(property.getKey(), instanceHashes),
+			    replaceNames(property.getValue(), instanceHashes));
+		}
+		for(String ignored : IGNORED_PROPERTIES) {
+			properties.remove(ignored);
+		}
+		for(Map.Entry<String, String> property : properties.entrySet()) {
+			update(digest, property.getKey());
+			update(digest, property.getValue());
+		}
+
+		for(Path input : JobGraph.getInputPaths(job)) {
+			FileSystem fs = input.getFileSystem(jobConf);
+			FileStatus[] matches = fs.globStatus(input);
+			if(matches == null) {
+				continue;
+			}
+			for(FileStatus file : listFiles(fs, matches)) {
+				update(digest, file.getPath().makeQualified(fs).toString());
+				update(digest, Long.toString(file.getLen()));
+				FileChecksum checksum = useChecksums ? fs.getFileChecksum(file.getPath()) : null;
+				if(checksum != null) {
+					digest.update(checksum.getBytes());
+				} else {
+					update(digest, Long.toString(file.getModificationTime()));
+				}
+			}
+		}
+		return new String(Hex.encodeHex(digest.digest()));
+	}
+
+	/**
+	 * Deletes the entries not used for longer than the maximum age, and the
+	 * least recently used ones over the maximum number of entries. Returns the
+	 * number of entries deleted.
+	 */
+	public int evict() throws IOException {
+		return evict(null);
+	}
+
+	/**
+	 * As {@link #evict()}, but never deletes the given entry.
+	 */
+	private int evict(String keep) throws IOException {
+		FileSystem fs = folder.getFileSystem(conf);
+		if(!fs.exists(folder)) {
+			return 0;
+		}
+		final Map<Path, Long> lastUsed = new TreeMap<Path, Long>();
+		for(FileStatus entry : fs.listStatus(folder)) {
+			String name = entry.getPath().getName();
+			Path marker = new Path(entry.getPath(), LAST_USED);
+			if(entry.isDir() && !name.startsWith(".") && !name.equals(keep) && fs.exists(marker)) {
+				lastUsed.put(entry.getPath(), fs.getFileStatus(marker).getModificationTime());
+			}
+		}
+		List<Path> entries = new ArrayList<Path>(lastUsed.keySet());
+		// Most recently used first
+		Collections.sort(entries, new Comparator<Path>() {
+			@Override
+			public int compare(Path p1, Path p2) {
+				return lastUsed.get(p2).compareTo(lastUsed.get(p1));
+			}
+		});
+		int maxOthers = (keep == null) ? maxEntries : maxEntries - 1;
+		long limit = System.currentTimeMillis() - maxAge;
+		int deleted = 0;
+		for(int i = 0; i < entries.size(); i++) {
+			Path entry = entries.get(i);
+			if(i >= maxOthers || lastUsed.get(entry) < limit) {
+				LOG.info("Evicting " + entry + " from the job result cache");
+				fs.delete(entry, true);
+				deleted++;
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * The files of the matches, and of the folders in them, recursively,
+	 * skipping hidden files.
+	 */
+	static List<FileStatus> listFiles(FileSystem fs, FileStatus[] matches) throws IOException {
+		List<FileStatus> files = new ArrayList<FileStatus>();
+		for(FileStatus match : matches) {
+			String name = match.getPath().getName();
+			if(name.startsWith("_") || name.startsWith(".")) {
+				continue;
+			}
+			if(match.isDir()) {
+				files.addAll(listFiles(fs, fs.listStatus(match.getPath())));
+			} else {
+				files.add(match);
+			}
+		}
+		Collections.sort(files, new Comparator<FileStatus>() {
+			@Override
+			public int compare(FileStatus f1, FileStatus f2) {
+				return f1.getPath().compareTo(f2.getPath());
+			}
+		});
+		return files;
+	}
+
+	private static String replaceNames(String str, Map<String, String> instanceHashes) {
+		for(Map.Entry<String, String> instance : instanceHashes.entrySet()) {
+			if(str.contains(instance.getKey())) {
+				str = str.replace(instance.getKey(), instance.getValue());
+			}
+		}
+		return str;
+	}
+
+	private static void update(MessageDigest digest, String str) throws IOException {
+		digest.update(str.getBytes("UTF-8"));
+		// Separator, so that ("ab", "c") and ("a", "bc") differ
+		digest.update((byte) 0);
+	}
+
+	private static void touch(FileSystem fs, Path entry) throws IOException {
+		fs.create(new Path(entry, LAST_USED), true).close();
+	}
+}
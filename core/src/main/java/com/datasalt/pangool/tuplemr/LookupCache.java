@@ -0,0 +1,243 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+import com.datasalt.pangool.io.ITuple;
+
+/**
+ * A read-through LRU cache for the lookups of enrichment mappers, like resolving URLs or IPs against an external
+ * service. Values are loaded with a {@link Loader} the first time a key is requested, and kept until they are evicted
+ * because the cache is full or until they expire. Keys without value (the loader returns null) are cached too, so
+ * missing keys are not looked up again and again.
+ * <p>
+ * The cache is thread-safe and concurrent requests of the same key wait for the same load, so it can be shared by
+ * the calls of an {@link AsyncTupleMapper}. Keys can be built from fields of a tuple with
+ * {@link #keyOf(ITuple, String...)}. The hits and misses are published as Hadoop counters with
+ * {@link #setCounters(TaskInputOutputContext)}.
+ */
+public class LookupCache<K, V> {
+
+	public static enum LookupCounter {
+		HITS, NEGATIVE_HITS, MISSES, COALESCED, EVICTIONS
+	}
+
+	/**
+	 * Loads the value of a key. Returns null if the key has no value.
+	 */
+	public static interface Loader<K, V> {
+
+		public V load(K key) throws Exception;
+	}
+
+	private static class Entry<V> {
+
+		FutureTask<V> loading;
+		V value;
+		long expires;
+	}
+
+	private final int maxEntries;
+	private final Loader<K, V> loader;
+	private long ttlMillis = 0;
+	private boolean negativeCaching = true;
+	private long negativeTtlMillis = 0;
+
+	private final LinkedHashMap<K, Entry<V>> entries;
+	private final AtomicLong[] stats = new AtomicLong[LookupCounter.values().length];
+	private volatile Counter[] counters;
+
+	/**
+	 * @param maxEntries
+	 *          the maximum number of keys kept, including the ones without value
+	 * @param loader
+	 *          loads the value of the keys not in the cache
+	 */
+	public LookupCache(final int maxEntries, Loader<K, V> loader) {
+		this.maxEntries = maxEntries;
+		this.loader = loader;
+		for(int i = 0; i < stats.length; i++) {
+			stats[i] = new AtomicLong(0);
+		}
+		this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+				if(size() > LookupCache.this.maxEntries) {
+					count(LookupCounter.EVICTIONS);
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Values expire the given time after being loaded. Zero, the default, means that they don't expire.
+	 */
+	public LookupCache<K, V> setTtl(long ttlMillis) {
+		this.ttlMillis = ttlMillis;
+		return this;
+	}
+
+	/**
+	 * Whether keys without value are cached, and for how long. By default they are cached and don't expire.
+	 */
+	public LookupCache<K, V> setNegativeCaching(boolean enabled, long ttlMillis) {
+		this.negativeCaching = enabled;
+		this.negativeTtlMillis = ttlMillis;
+		return this;
+	}
+
+	/**
+	 * Publishes the statistics of the cache in the counters of the given task, in the {@link LookupCounter} group.
+	 */
+	public synchronized LookupCache<K, V> setCounters(TaskInputOutputContext<?, ?, ?, ?> context) {
+		Counter[] counters = new Counter[stats.length];
+		for(LookupCounter counter : LookupCounter.values()) {
+			counters[counter.ordinal()] = context.getCounter(counter);
+			counters[counter.ordinal()].increment(stats[counter.ordinal()].get());
+		}
+		this.counters = counters;
+		return this;
+	}
+
+	/**
+	 * Returns the value of the key, loading it if it's not in the cache or has expired. Returns null if the key has no
+	 * value.
+	 */
+	public V get(final K key) throws IOException, InterruptedException {
+		Entry<V> entry;
+		FutureTask<V> loading;
+		boolean owner = false;
+		synchronized(entries) {
+			entry = entries.get(key);
+			if(entry != null && entry.loading == null
+			    && (entry.expires == 0 || entry.expires > System.currentTimeMillis())) {
+				count(entry.value == null ? LookupCounter.NEGATIVE_HITS : LookupCounter.HITS);
+				return entry.value;
+			}
+			if(entry != null && entry.loading != null) {
+				count(LookupCounter.COALESCED);
+			} else {
+				count(LookupCounter.MISSES);
+				entry = new Entry<V>();
+				entry.loading = new FutureTask<V>(new Callable<V>() {
+					@Override
+					public V call() throws Exception {
+						return loader.load(key);
+					}
+				});
+				entries.put(key, entry);
+				owner = true;
+			}
+			loading = entry.loading;
+		}
+
+		if(owner) {
+			loading.run();
+		}
+		try {
+			V value = loading.get();
+			if(owner) {
+				synchronized(entries) {
+					long ttl = (value == null) ? negativeTtlMillis : ttlMillis;
+					entry.value = value;
+					entry.expires = (ttl == 0) ? 0 : System.currentTimeMillis() + ttl;
+					entry.loading = null;
+					if(value == null && !negativeCaching && entries.get(key) == entry) {
+						entries.remove(key);
+					}
+				}
+			}
+			return value;
+		} catch(ExecutionException e) {
+			// Failed loads are not cached
+			if(owner) {
+				synchronized(entries) {
+					if(entries.get(key) == entry) {
+						entries.remove(key);
+					}
+				}
+			}
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Error loading " + key, e.getCause());
+		}
+	}
+
+	/**
+	 * The number of keys in the cache.
+	 */
+	public int size() {
+		synchronized(entries) {
+			return entries.size();
+		}
+	}
+
+	public long getCount(LookupCounter counter) {
+		return stats[counter.ordinal()].get();
+	}
+
+	private void count(LookupCounter counter) {
+		stats[counter.ordinal()].incrementAndGet();
+		Counter[] counters = this.counters;
+		if(counters != null) {
+			counters[counter.ordinal()].increment(1);
+		}
+	}
+
+	/**
+	 * A key made of the values of the given fields of a tuple, that can be kept after the tuple is reused. Strings are
+	 * copied as {@link String} and byte arrays as {@link ByteBuffer}. Other values are used as they are, so they
+	 * must not be mutable objects reused by the tuple.
+	 */
+	public static List<Object> keyOf(ITuple tuple, String... fields) {
+		List<Object> key = new ArrayList<Object>(fields.length);
+		for(String field : fields) {
+			Object value = tuple.get(field);
+			if(value instanceof CharSequence || value instanceof Text) {
+				value = value.toString();
+			} else if(value instanceof byte[]) {
+				value = ByteBuffer.wrap(((byte[]) value).clone());
+			} else if(value instanceof ByteBuffer) {
+				ByteBuffer buffer = (ByteBuffer) value;
+				byte[] copy = new byte[buffer.remaining()];
+				buffer.duplicate().get(copy);
+				value = ByteBuffer.wrap(copy);
+			}
+			key.add(value);
+		}
+		return key;
+	}
+}
@@ -36,6 +36,8 @@ import com.datasalt.pangool.io.Schema;
 import com.datasalt.pangool.tuplemr.MultipleInputsInterface.Input;
 import com.datasalt.pangool.tuplemr.NamedOutputsInterface.Output;
 import com.datasalt.pangool.tuplemr.mapred.MapOnlyMapper;
+import com.datasalt.pangool.tuplemr.mapred.lib.input.MultithreadedMapRunner;
+import com.datasalt.pangool.tuplemr.mapred.lib.output.PartitionedOutputFormat;
 import com.datasalt.pangool.tuplemr.mapred.lib.output.ProxyOutputFormat;
 import com.datasalt.pangool.tuplemr.mapred.lib.output.TupleOutputFormat;
 import com.datasalt.pangool.utils.InstancesDistributor;
@@ -61,6 +63,7 @@ public class MapOnlyJobBuilder {
 
   private MapOnlyMapper mapOnlyMapper;
   private String jobName = null;
+  private int mapperThreads = 1;
 
 	private List<String> instanceFilesCreated = new ArrayList<String>();
 	
@@ -111,6 +114,26 @@ public class MapOnlyJobBuilder {
     return this;
   }
 
+  /**
+   * Sets an output where each output tuple is written to a sub-folder named after the values of the partition fields:
+   * "field1=value1/field2=value2". See {@link PartitionedOutputFormat}.
+   *
+   * @param outputFormat the OutputFormat used for writing each partition, that accepts {@link ITuple} keys
+   */
+  public MapOnlyJobBuilder setPartitionedOutput(Path outputPath, OutputFormat outputFormat,
+                                                Class<?> outputValueClass, String... partitionFields) {
+    return setOutput(outputPath, new PartitionedOutputFormat(outputFormat, partitionFields), ITuple.class,
+        outputValueClass);
+  }
+
+  /**
+   * Like {@link #setPartitionedOutput(Path, OutputFormat, Class, String...)} writing each partition with a
+   * {@link TupleOutputFormat}.
+   */
+  public MapOnlyJobBuilder setPartitionedTupleOutput(Path outputPath, Schema schema, String... partitionFields) {
+    return setPartitionedOutput(outputPath, new TupleOutputFormat(schema), NullWritable.class, partitionFields);
+  }
+
   /**
    * Deprecated. Use {@link #addInput(org.apache.hadoop.fs.Path, org.apache.hadoop.mapreduce.InputFormat, com.datasalt.pangool.tuplemr.mapred.MapOnlyMapper)}
    * instead.
@@ -121,6 +144,15 @@ public class MapOnlyJobBuilder {
     return this;
   }
 
+  /**
+   * Runs the mappers of each map task in the given number of threads, for CPU-bound mappers. Each thread has its
+   * own copy of the mapper. See {@link MultithreadedMapRunner}.
+   */
+  public MapOnlyJobBuilder setMapperThreads(int mapperThreads) {
+    this.mapperThreads = mapperThreads;
+    return this;
+  }
+
   public MapOnlyJobBuilder(Configuration conf) {
     this(conf, null);
   }
@@ -191,6 +223,7 @@ public class MapOnlyJobBuilder {
 
     instanceFilesCreated.addAll(multipleInputs.configureJob(job));
     instanceFilesCreated.addAll(namedOutputs.configureJob(job));
+    MultithreadedMapRunner.setThreads(job, mapperThreads);
 
     return job;
   }
@@ -16,28 +16,75 @@
 package com.datasalt.pangool.tuplemr;
 
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.hadoop.mapreduce.MapContext;
 import org.apache.hadoop.mapreduce.RecordWriter;
 import org.apache.hadoop.mapreduce.ReduceContext;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
 
+import com.datasalt.pangool.tuplemr.mapred.lib.input.MultithreadedMapRunner;
 import com.datasalt.pangool.tuplemr.mapred.lib.output.PangoolMultipleOutputs;
 
 @SuppressWarnings({ "rawtypes", "unchecked" })
 public class MultipleOutputsCollector {
 
 	protected PangoolMultipleOutputs multipleOutputs;
+	// True when the outputs are shared by the threads of a MultithreadedMapRunner
+	private boolean shared = false;
+	// True when the writers of the outputs can be closed by an eviction
+	private boolean evictable = false;
+	// The writers returned by getNamedOutput() when shared or evictable
+	private Map<String, RecordWriter> namedOutputWriters = new HashMap<String, RecordWriter>();
 
 	public MultipleOutputsCollector(MapContext context) {
-		multipleOutputs = new PangoolMultipleOutputs(context);
+		if(context instanceof MultithreadedMapRunner.SubMapContext) {
+			multipleOutputs = ((MultithreadedMapRunner.SubMapContext) context).getMultipleOutputs();
+			shared = true;
+		} else {
+			multipleOutputs = new PangoolMultipleOutputs(context);
+		}
+		evictable = PangoolMultipleOutputs.getMaxOpenWriters(context) > 0;
 	}
 
 	public MultipleOutputsCollector(ReduceContext context) {
 		multipleOutputs = new PangoolMultipleOutputs(context);
+		evictable = PangoolMultipleOutputs.getMaxOpenWriters(context) > 0;
+	}
+
+	/**
+	 * Writes to the named outputs of the given collector, so that several
+	 * collectors of the same task don't open the same files. The given collector
+	 * closes them.
+	 */
+	public MultipleOutputsCollector(ReduceContext context, MultipleOutputsCollector outputs) {
+		multipleOutputs = outputs.multipleOutputs;
+		shared = true;
+		evictable = PangoolMultipleOutputs.getMaxOpenWriters(context) > 0;
 	}
 
-	public <K, V> RecordWriter<K, V> getNamedOutput(String namedOutput) 
+	public <K, V> RecordWriter<K, V> getNamedOutput(final String namedOutput) 
 	throws IOException, InterruptedException {
+		if(shared || evictable) {
+			// The writer of the output can't be used by several threads, nor held
+			// while it can be closed to open another output: each write looks it up
+			RecordWriter<K, V> writer = namedOutputWriters.get(namedOutput);
+			if(writer == null) {
+				writer = new RecordWriter<K, V>() {
+					@Override
+					public void write(K key, V value) throws IOException, InterruptedException {
+						multipleOutputs.write(namedOutput, key, value);
+					}
+
+					@Override
+					public void close(TaskAttemptContext context) {
+					}
+				};
+				namedOutputWriters.put(namedOutput, writer);
+			}
+			return writer;
+		}
 		return multipleOutputs.getRecordWriter(namedOutput);
 	}
 
@@ -46,7 +93,14 @@ public class MultipleOutputsCollector {
 		multipleOutputs.write(namedOutput, key, value);
 	}
 
+	public <K, V> void write(String namedOutput, K key, V value, String baseOutputPath) 
+	throws IOException, InterruptedException {
+		multipleOutputs.write(namedOutput, key, value, baseOutputPath);
+	}
+
 	public void close() throws IOException, InterruptedException {
-		multipleOutputs.close();
+		if(!shared) {
+			multipleOutputs.close();
+		}
 	}
 }
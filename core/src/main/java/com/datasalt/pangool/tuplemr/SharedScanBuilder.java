@@ -0,0 +1,266 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr;
+
+import static com.datasalt.pangool.tuplemr.TupleMRException.failIfEmpty;
+import static com.datasalt.pangool.tuplemr.TupleMRException.failIfNull;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import com.datasalt.pangool.io.DatumWrapper;
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.tuplemr.MultipleInputsInterface.Input;
+import com.datasalt.pangool.tuplemr.NamedOutputsInterface.Output;
+import com.datasalt.pangool.tuplemr.mapred.SharedScanGroupComparator;
+import com.datasalt.pangool.tuplemr.mapred.SharedScanPartitioner;
+import com.datasalt.pangool.tuplemr.mapred.SharedScanReducer;
+import com.datasalt.pangool.tuplemr.mapred.SharedScanSortComparator;
+import com.datasalt.pangool.tuplemr.mapred.lib.input.PangoolMultipleInputs;
+import com.datasalt.pangool.tuplemr.mapred.lib.output.ProxyOutputFormat;
+import com.datasalt.pangool.tuplemr.mapred.lib.output.TupleOutputFormat;
+import com.datasalt.pangool.tuplemr.serialization.TupleSerialization;
+import com.datasalt.pangool.utils.InstancesDistributor;
+
+/**
+ * Builds one Hadoop job that runs several logical Tuple-based jobs over the
+ * same input, so that the input is read and parsed only once.
+ * <p>
+ * Each logical job, or query, is added with
+ * {@link #addQuery(TupleMRConfigBuilder, TupleReducer)}: its own intermediate
+ * schemas, group-by fields and order by, as in a {@link TupleMRBuilder}, and
+ * its own {@link TupleReducer}. The {@link TupleMapper}s of the inputs are
+ * shared by all the queries: a tuple written by a mapper goes to the query its
+ * schema belongs to, so the names of the intermediate schemas must be unique
+ * across queries. To feed several queries with the same record the mapper
+ * writes one tuple for each of them.
+ * <p>
+ * Intermediate tuples are tagged with the index of their query. They are
+ * partitioned, sorted and grouped by query first and then as in their own
+ * logical job, and each group is reduced by the {@link TupleReducer} of its
+ * query. The queries usually write to named outputs of their own (see
+ * {@link #addNamedOutput(String, OutputFormat, Class, Class)}), but they can
+ * also write to the main output of the job. The named outputs are shared by
+ * all the queries: what several queries write to the same named output goes
+ * to the same files.
+ * <p>
+ * Rollup and combiners are not supported, and as the mappers write tuples of
+ * several configurations, {@link TupleMapper.TupleMRContext#getTupleMRConfig()}
+ * returns null in them.
+ */
+@SuppressWarnings("rawtypes")
+public class SharedScanBuilder {
+
+	private Configuration conf;
+
+	private List<TupleMRConfigBuilder> queries = new ArrayList<TupleMRConfigBuilder>();
+	private List<TupleReducer> queryReducers = new ArrayList<TupleReducer>();
+	private OutputFormat outputFormat;
+	private Class<?> jarByClass;
+	private Class<?> outputKeyClass;
+	private Class<?> outputValueClass;
+	private String jobName;
+	private Path outputPath;
+
+	private MultipleInputsInterface multipleInputs;
+	private NamedOutputsInterface namedOutputs;
+
+	private Set<String> instanceFilesCreated = new HashSet<String>();
+
+	public SharedScanBuilder(Configuration conf) {
+		this.conf = conf;
+		multipleInputs = new MultipleInputsInterface(this.conf);
+		namedOutputs = new NamedOutputsInterface(this.conf);
+	}
+
+	/**
+	 * @param conf
+	 *          Configuration instance
+	 * @param name
+	 *          Job's name as in {@link Job}
+	 */
+	public SharedScanBuilder(Configuration conf, String name) {
+		this(conf);
+		this.jobName = name;
+	}
+
+	public Configuration getConf() {
+		return conf;
+	}
+
+	/**
+	 * Sets the jar by class , as in {@link Job#setJarByClass(Class)}
+	 */
+	public void setJarByClass(Class<?> jarByClass) {
+		this.jarByClass = jarByClass;
+	}
+
+	/**
+	 * Adds a logical job: the tuples of the intermediate schemas of the given
+	 * configuration are grouped and sorted as it says, and reduced by the given
+	 * reducer.
+	 */
+	public void addQuery(TupleMRConfigBuilder config, TupleReducer reducer) {
+		queries.add(config);
+		queryReducers.add(reducer);
+	}
+
+	/**
+	 * Defines an input as in {@link PangoolMultipleInputs}. The mapper can write
+	 * tuples of the intermediate schemas of any query. It doesn't belong to any
+	 * query, so {@link TupleMapper.TupleMRContext#getTupleMRConfig()} returns
+	 * null in it.
+	 *
+	 * @see PangoolMultipleInputs
+	 */
+	public void addInput(Path path, InputFormat inputFormat, TupleMapper inputProcessor) {
+		multipleInputs.getMultiInputs().add(new Input(path, inputFormat, inputProcessor, new HashMap<String, String>()));
+	}
+
+	public void addInput(Path path, InputFormat inputFormat, TupleMapper inputProcessor, Map<String, String> specificContext) {
+		multipleInputs.getMultiInputs().add(new Input(path, inputFormat, inputProcessor, specificContext));
+	}
+
+	public void addNamedOutput(String namedOutput, OutputFormat outputFormat, Class keyClass,
+	    Class valueClass) throws TupleMRException {
+		addNamedOutput(namedOutput, outputFormat, keyClass, valueClass, null);
+	}
+
+	public void addNamedOutput(String namedOutput, OutputFormat outputFormat, Class keyClass,
+	    Class valueClass, Map<String, String> specificContext) throws TupleMRException {
+		namedOutputs.add(new Output(namedOutput, outputFormat, keyClass, valueClass, specificContext));
+	}
+
+	public void addNamedTupleOutput(String namedOutput, Schema outputSchema) throws TupleMRException {
+		Output output = new Output(namedOutput, new TupleOutputFormat(outputSchema), ITuple.class,
+		    NullWritable.class, null);
+		namedOutputs.add(output);
+	}
+
+	public void setOutput(Path outputPath, OutputFormat outputFormat, Class<?> outputKeyClass,
+	    Class<?> outputValueClass) {
+		this.outputFormat = outputFormat;
+		this.outputKeyClass = outputKeyClass;
+		this.outputValueClass = outputValueClass;
+		this.outputPath = outputPath;
+	}
+
+	public void setTupleOutput(Path outputPath, Schema schema) {
+		setOutput(outputPath, new TupleOutputFormat(schema), ITuple.class, NullWritable.class);
+	}
+
+	/**
+	 * Run this method after running your Job for instance files to be properly cleaned.
+	 * @throws IOException
+	 */
+	public void cleanUpInstanceFiles() throws IOException {
+		for(String instanceFile: instanceFilesCreated) {
+			InstancesDistributor.removeFromCache(conf, instanceFile);
+		}
+	}
+
+	public Job createJob() throws IOException, TupleMRException {
+
+		failIfEmpty(queries, "Need to add at least one query");
+		failIfEmpty(multipleInputs.getMultiInputs(), "Need to add at least one input");
+		failIfNull(outputFormat, "Need to set output format");
+		failIfNull(outputKeyClass, "Need to set outputKeyClass");
+		failIfNull(outputValueClass, "Need to set outputValueClass");
+		failIfNull(outputPath, "Need to set outputPath");
+
+		List<TupleMRConfig> queryConfs = new ArrayList<TupleMRConfig>();
+		Set<String> schemaNames = new HashSet<String>();
+		for(int i = 0; i < queries.size(); i++) {
+			failIfNull(queryReducers.get(i), "Need to set a group handler for query " + i);
+			TupleMRConfig queryConf = queries.get(i).buildConf();
+			if(queryConf.getRollupFrom() != null) {
+				throw new TupleMRException("Rollup is not supported in shared scan jobs");
+			}
+			for(String schemaName : queryConf.getIntermediateSchemaNames()) {
+				if(!schemaNames.add(schemaName)) {
+					throw new TupleMRException("Intermediate schema '" + schemaName
+					    + "' is used by more than one query. Schema names must be unique across queries.");
+				}
+			}
+			queryConfs.add(queryConf);
+		}
+
+		// perform a deep copy of the Configuration
+		this.conf = new Configuration(this.conf);
+
+		// Serialize the configuration of each query in Hadoop Configuration
+		instanceFilesCreated.addAll(TupleMRConfig.setQueries(queryConfs, conf));
+		Job job = (jobName == null) ? new Job(conf) : new Job(conf, jobName);
+		job.setReducerClass(SharedScanReducer.class);
+
+		// Set Tuple Reducers
+		String[] handlerFiles = new String[queryReducers.size()];
+		for(int i = 0; i < handlerFiles.length; i++) {
+			try {
+				handlerFiles[i] = UUID.randomUUID().toString() + '.' + "group-handler.dat";
+				InstancesDistributor.distribute(queryReducers.get(i), handlerFiles[i], job.getConfiguration());
+				instanceFilesCreated.add(handlerFiles[i]);
+			} catch(URISyntaxException e1) {
+				throw new TupleMRException(e1);
+			}
+		}
+		job.getConfiguration().setStrings(SharedScanReducer.CONF_REDUCER_HANDLERS, handlerFiles);
+
+		// Enabling serialization
+		TupleSerialization.enableSerialization(job.getConfiguration());
+
+		job.setJarByClass((jarByClass != null) ? jarByClass : queryReducers.get(0).getClass());
+		job.setMapOutputKeyClass(DatumWrapper.class);
+		job.setMapOutputValueClass(NullWritable.class);
+		job.setPartitionerClass(SharedScanPartitioner.class);
+		job.setGroupingComparatorClass(SharedScanGroupComparator.class);
+		job.setSortComparatorClass(SharedScanSortComparator.class);
+		job.setOutputKeyClass(outputKeyClass);
+		job.setOutputValueClass(outputValueClass);
+		FileOutputFormat.setOutputPath(job, outputPath);
+		instanceFilesCreated.addAll(multipleInputs.configureJob(job));
+		instanceFilesCreated.addAll(namedOutputs.configureJob(job));
+		// Configure a {@link ProxyOutputFormat} for Pangool's Multiple Outputs to
+		// work: {@link PangoolMultipleOutput}
+		String uniqueName = UUID.randomUUID().toString() + '.' + "out-format.dat";
+		try {
+			InstancesDistributor.distribute(outputFormat, uniqueName, job.getConfiguration());
+			instanceFilesCreated.add(uniqueName);
+		} catch(URISyntaxException e1) {
+			throw new TupleMRException(e1);
+		}
+		job.getConfiguration().set(ProxyOutputFormat.PROXIED_OUTPUT_FORMAT_CONF, uniqueName);
+		job.setOutputFormatClass(ProxyOutputFormat.class);
+
+		return job;
+	}
+}
@@ -20,8 +20,11 @@ import static com.datasalt.pangool.tuplemr.TupleMRException.failIfNull;
 
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -40,15 +43,19 @@ import com.datasalt.pangool.io.DatumWrapper;
 import com.datasalt.pangool.io.ITuple;
 import com.datasalt.pangool.io.Schema;
 import com.datasalt.pangool.tuplemr.MultipleInputsInterface.Input;
+import com.datasalt.pangool.tuplemr.Criteria.SortElement;
 import com.datasalt.pangool.tuplemr.NamedOutputsInterface.Output;
 import com.datasalt.pangool.tuplemr.mapred.GroupComparator;
+import com.datasalt.pangool.tuplemr.mapred.MapOnlyMapper;
 import com.datasalt.pangool.tuplemr.mapred.RollupReducer;
 import com.datasalt.pangool.tuplemr.mapred.SimpleCombiner;
 import com.datasalt.pangool.tuplemr.mapred.SimpleReducer;
 import com.datasalt.pangool.tuplemr.mapred.SortComparator;
 import com.datasalt.pangool.tuplemr.mapred.TupleHashPartitioner;
+import com.datasalt.pangool.tuplemr.mapred.lib.input.MultithreadedMapRunner;
 import com.datasalt.pangool.tuplemr.mapred.lib.input.PangoolMultipleInputs;
 import com.datasalt.pangool.tuplemr.mapred.lib.input.TupleInputFormat;
+import com.datasalt.pangool.tuplemr.mapred.lib.output.PartitionedOutputFormat;
 import com.datasalt.pangool.tuplemr.mapred.lib.output.ProxyOutputFormat;
 import com.datasalt.pangool.tuplemr.mapred.lib.output.TupleOutputFormat;
 import com.datasalt.pangool.tuplemr.serialization.TupleSerialization;
@@ -110,6 +117,12 @@ public class TupleMRBuilder extends TupleMRConfigBuilder {
 	private String jobName;
 
 	private Path outputPath;
+	// Set when the output is partitioned and the partitions must arrive sorted to the reducers
+	private String[] sortedOutputPartitionFields;
+
+	private int mapperThreads = 1;
+
+	private List<MapOnlyMapper> reduceChainedMappers = new ArrayList<MapOnlyMapper>();
 
 	private MultipleInputsInterface multipleInputs;
 	private NamedOutputsInterface namedOutputs;
@@ -144,6 +157,14 @@ public class TupleMRBuilder extends TupleMRConfigBuilder {
 		this.jarByClass = jarByClass;
 	}
 
+	/**
+	 * Runs the {@link TupleMapper}s of each map task in the given number of threads, for CPU-bound mappers. Each thread
+	 * has its own copy of the mapper. See {@link MultithreadedMapRunner}.
+	 */
+	public void setMapperThreads(int mapperThreads) {
+		this.mapperThreads = mapperThreads;
+	}
+
 	/**
 	 * Defines an input as in {@link PangoolMultipleInputs} using {@link TupleInputFormat}
 	 * 
@@ -181,6 +202,19 @@ public class TupleMRBuilder extends TupleMRConfigBuilder {
 	public void addInput(Path path, InputFormat inputFormat, TupleMapper inputProcessor, Map<String, String> specificContext) {
 		multipleInputs.getMultiInputs().add(new Input(path, inputFormat, inputProcessor, specificContext));
 	}
+
+	/**
+	 * Defines an input whose records go through the given chain of {@link MapOnlyMapper}s before the
+	 * {@link TupleMapper}. The chained mappers run in the map tasks of this job as if they were previous map-only jobs,
+	 * without writing their output. See {@link ChainedTupleMapper}.
+	 * 
+	 * @throws IllegalArgumentException
+	 *           if the chain is null or empty
+	 */
+	public void addInput(Path path, InputFormat inputFormat, List<MapOnlyMapper> chainedMappers,
+	    TupleMapper inputProcessor) {
+		addInput(path, inputFormat, new ChainedTupleMapper(chainedMappers, inputProcessor));
+	}
 	
 	/**
 	 * 
@@ -195,19 +229,60 @@ public class TupleMRBuilder extends TupleMRConfigBuilder {
 		this.outputKeyClass = outputKeyClass;
 		this.outputValueClass = outputValueClass;
 		this.outputPath = outputPath;
+		this.sortedOutputPartitionFields = null;
 	}
 
 	public void setTupleOutput(Path outputPath, Schema schema) {
-		this.outputPath = outputPath;
-		this.outputFormat = new TupleOutputFormat(schema);
-		this.outputKeyClass = ITuple.class;
-		this.outputValueClass = NullWritable.class;
+		setOutput(outputPath, new TupleOutputFormat(schema), ITuple.class, NullWritable.class);
+	}
+
+	/**
+	 * Sets an output where each output tuple is written to a sub-folder named after the values of the partition fields:
+	 * "field1=value1/field2=value2". See {@link PartitionedOutputFormat}.
+	 * <p>
+	 * If sortPartitions is true the shuffle is arranged so that each partition is written by only one reducer, which
+	 * receives the partitions one after the other and keeps only one writer open. For that, the partition fields must
+	 * be fields of the intermediate schemas with the same values than in the output tuples, and the common order by
+	 * must start with them. Tuples are partitioned among reducers by them (see
+	 * {@link #setCustomPartitionFields(String...)}), so the number of distinct partitions limits the parallelism of
+	 * the reduce phase. Setting different custom partition fields makes {@link #createJob()} fail.
+	 * 
+	 * @param outputFormat
+	 *          the OutputFormat used for writing each partition, that accepts {@link ITuple} keys
+	 */
+	public void setPartitionedOutput(Path outputPath, OutputFormat outputFormat, Class<?> outputValueClass,
+	    boolean sortPartitions, String... partitionFields) {
+		setOutput(outputPath, new PartitionedOutputFormat(outputFormat, sortPartitions ? 1
+		    : PartitionedOutputFormat.DEFAULT_MAX_OPEN_WRITERS, partitionFields), ITuple.class, outputValueClass);
+		if(sortPartitions) {
+			this.sortedOutputPartitionFields = partitionFields;
+		}
+	}
+
+	/**
+	 * Like {@link #setPartitionedOutput(Path, OutputFormat, Class, boolean, String...)} writing each partition with a
+	 * {@link TupleOutputFormat}.
+	 */
+	public void setPartitionedTupleOutput(Path outputPath, Schema schema, boolean sortPartitions,
+	    String... partitionFields) {
+		setPartitionedOutput(outputPath, new TupleOutputFormat(schema), NullWritable.class, sortPartitions,
+		    partitionFields);
 	}
 
 	public void setTupleReducer(TupleReducer tupleReducer) {
 		this.tupleReducer = tupleReducer;
 	}
 
+	/**
+	 * Adds a {@link MapOnlyMapper} to the chain of mappers that process the output of the {@link TupleReducer} in the
+	 * reduce tasks, as if they were following map-only jobs, without writing the intermediate output. The output of the
+	 * job, as set with {@link #setOutput(Path, OutputFormat, Class, Class)}, is what the last chained mapper writes. See
+	 * {@link ChainedTupleReducer}.
+	 */
+	public void addReduceChainedMapper(MapOnlyMapper mapper) {
+		reduceChainedMappers.add(mapper);
+	}
+
 	/**
 	 * Run this method after running your Job for instance files to be properly cleaned. 
 	 * @throws IOException 
@@ -231,6 +306,18 @@ public class TupleMRBuilder extends TupleMRConfigBuilder {
 		this.conf = new Configuration(this.conf);
 		
 		TupleMRConfig tupleMRConf = buildConf();
+		if(sortedOutputPartitionFields != null) {
+			List<String> customPartitionFields = tupleMRConf.getCustomPartitionFields();
+			if(customPartitionFields.isEmpty()) {
+				setCustomPartitionFields(sortedOutputPartitionFields);
+				tupleMRConf = buildConf();
+			} else if(!new HashSet<String>(customPartitionFields).equals(new HashSet<String>(Arrays
+			    .asList(sortedOutputPartitionFields)))) {
+				throw new TupleMRException("Custom partition fields " + customPartitionFields
+				    + " differ from the sorted output partition fields " + Arrays.asList(sortedOutputPartitionFields));
+			}
+			checkOrderStartsWith(tupleMRConf, sortedOutputPartitionFields);
+		}
 		// Serialize PangoolConf in Hadoop Configuration
 		instanceFilesCreated.addAll(TupleMRConfig.set(tupleMRConf, conf));
 		Job job = (jobName == null) ? new Job(conf) : new Job(conf, jobName);
@@ -254,9 +341,16 @@ public class TupleMRBuilder extends TupleMRConfigBuilder {
 		}
 
 		// Set Tuple Reducer
+		TupleReducer reducer = tupleReducer;
+		if(!reduceChainedMappers.isEmpty()) {
+			if(tupleMRConf.getRollupFrom() != null) {
+				throw new TupleMRException("Chained mappers after the reducer can't be used with rollup");
+			}
+			reducer = new ChainedTupleReducer(tupleReducer, reduceChainedMappers);
+		}
 		try {
 			String uniqueName = UUID.randomUUID().toString() + '.' + "group-handler.dat";
-			InstancesDistributor.distribute(tupleReducer, uniqueName, job.getConfiguration());
+			InstancesDistributor.distribute(reducer, uniqueName, job.getConfiguration());
 			instanceFilesCreated.add(uniqueName);
 			job.getConfiguration().set(SimpleReducer.CONF_REDUCER_HANDLER, uniqueName);
 		} catch(URISyntaxException e1) {
@@ -277,11 +371,12 @@ public class TupleMRBuilder extends TupleMRConfigBuilder {
 		FileOutputFormat.setOutputPath(job, outputPath);
 		instanceFilesCreated.addAll(multipleInputs.configureJob(job));
 		instanceFilesCreated.addAll(namedOutputs.configureJob(job));
+		MultithreadedMapRunner.setThreads(job, mapperThreads);
 		// Configure a {@link ProxyOutputFormat} for Pangool's Multiple Outputs to
 		// work: {@link PangoolMultipleOutput}
 		String uniqueName = UUID.randomUUID().toString() + '.' + "out-format.dat";
 		try {
-			InstancesDistributor.distribute(outputFormat, uniqueName, conf);
+			InstancesDistributor.distribute(outputFormat, uniqueName, job.getConfiguration());
 			instanceFilesCreated.add(uniqueName);
 		} catch(URISyntaxException e1) {
 			throw new TupleMRException(e1);
@@ -291,4 +386,17 @@ public class TupleMRBuilder extends TupleMRConfigBuilder {
 
 		return job;
 	}
+
+	private static void checkOrderStartsWith(TupleMRConfig tupleMRConf, String[] fields) throws TupleMRException {
+		List<SortElement> elements = tupleMRConf.getCommonCriteria().getElements();
+		List<String> expected = Arrays.asList(fields);
+		if(elements.size() < fields.length) {
+			throw new TupleMRException("Common order by must start with the output partition fields " + expected);
+		}
+		for(int i = 0; i < fields.length; i++) {
+			if(!expected.contains(elements.get(i).getName())) {
+				throw new TupleMRException("Common order by must start with the output partition fields " + expected);
+			}
+		}
+	}
 }
\ No newline at end of file
@@ -25,6 +25,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -40,6 +41,7 @@ import org.codehaus.jackson.JsonParser;
 import org.codehaus.jackson.map.ObjectMapper;
 
 import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Schema.Field;
 import com.datasalt.pangool.tuplemr.Criteria.Order;
 import com.datasalt.pangool.tuplemr.Criteria.SortElement;
 import com.datasalt.pangool.tuplemr.mapred.GroupComparator;
@@ -74,6 +76,23 @@ public class TupleMRConfig {
 		FACTORY.setCodec(MAPPER);
 	}
 
+	/**
+	 * Parsed configurations shared by the components of a task (serialization,
+	 * comparators, partitioner, mapper and reducers), keyed by the serialized
+	 * configuration. See {@link #get(Configuration)}.
+	 */
+	static final int MAX_SHARED_CONFIGS = 16;
+	private static final Map<String, TupleMRConfig> SHARED_CONFIGS = new LinkedHashMap<String, TupleMRConfig>(
+	    16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, TupleMRConfig> eldest) {
+			return size() > MAX_SHARED_CONFIGS;
+		}
+	};
+
 	private List<String> schemasNames = new ArrayList<String>();
 	private Map<String, Integer> schemaNameToId = new HashMap<String, Integer>();
 	private Map<String,Map<String,String>> schemaFieldAliases = new HashMap<String,Map<String,String>>();
@@ -314,14 +333,50 @@ public class TupleMRConfig {
 		this.specificCriterias = r;
 	}
 
+	/**
+	 * Returns the TupleMRConfig stored in the given configuration, or null if
+	 * there is none.
+	 * <p>
+	 * The parsed instance is shared by all the callers with the same serialized
+	 * configuration, so that it is parsed only once per task, and must not be
+	 * modified. Custom comparators and custom field serializations are
+	 * stateful and configured by each caller, so configurations that use them
+	 * are parsed again on each call, and their comparators are loaded again
+	 * from their instance files.
+	 */
 	public static TupleMRConfig get(Configuration conf) throws TupleMRException {
 		String serialized = conf.get(TupleMRConfig.CONF_PANGOOL_CONF);
 		if(serialized == null || serialized.isEmpty()) {
 			return null;
 		}
+		// Adding the comparator references to the key would not be enough: the
+		// comparators are loaded without setConf(), which each SortComparator
+		// calls with its own configuration, and keep state while comparing, so
+		// sharing one instance between callers is not safe
+		boolean customComparators = conf.get(CONF_COMPARATOR_REFERENCES) != null;
+		if(!customComparators) {
+			synchronized(SHARED_CONFIGS) {
+				TupleMRConfig mrConf = SHARED_CONFIGS.get(serialized);
+				if(mrConf != null) {
+					return mrConf;
+				}
+			}
+		}
 		try {
 			TupleMRConfig mrConf = TupleMRConfig.parse(serialized);
 			deserializeComparators(conf, mrConf);
+			if(!customComparators && !hasCustomSerializations(mrConf)) {
+				// The SerializationInfo is built before sharing the instance. If it
+				// fails, the error is left to the callers, as before.
+				try {
+					mrConf.getSerializationInfo();
+				} catch(RuntimeException e) {
+					return mrConf;
+				}
+				synchronized(SHARED_CONFIGS) {
+					SHARED_CONFIGS.put(serialized, mrConf);
+				}
+			}
 			return mrConf;
 
 		} catch(IOException e) {
@@ -329,6 +384,17 @@ public class TupleMRConfig {
 		}
 	}
 
+	private static boolean hasCustomSerializations(TupleMRConfig mrConf) {
+		for(Schema schema : mrConf.getIntermediateSchemas()) {
+			for(Field field : schema.getFields()) {
+				if(field.getObjectSerialization() != null) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
 	/**
 	 * Returns the instance files generated.
 	 */
@@ -338,6 +404,91 @@ public class TupleMRConfig {
 		return serializeComparators(mrConfig, conf);
 	}
 
+	public static final String CONF_QUERIES = "pangool.shared.scan.queries";
+	private static final String CONF_QUERY_PREFIX = "pangool.shared.scan.query.";
+
+	/**
+	 * Stores the configurations of the logical jobs of a job built with
+	 * {@link SharedScanBuilder}. Each one is stored as {@link #set} would do,
+	 * under keys of its own. Returns the instance files generated.
+	 */
+	public static Set<String> setQueries(List<TupleMRConfig> queries, Configuration conf)
+	    throws TupleMRException {
+		Set<String> instanceFiles = new HashSet<String>();
+		for(int i = 0; i < queries.size(); i++) {
+			Configuration queryConf = new Configuration(conf);
+			instanceFiles.addAll(set(queries.get(i), queryConf));
+			for(Map.Entry<String, String> entry : queryConf) {
+				String key = entry.getKey();
+				if(isQueryKey(key)) {
+					conf.set(CONF_QUERY_PREFIX + i + "." + key, entry.getValue());
+				} else if(!entry.getValue().equals(conf.getRaw(key))) {
+					// Like the instance files of the custom comparators
+					conf.set(key, entry.getValue());
+				}
+			}
+		}
+		conf.setInt(CONF_QUERIES, queries.size());
+		return instanceFiles;
+	}
+
+	private static boolean isQueryKey(String key) {
+		return key.equals(CONF_PANGOOL_CONF) || key.equals(CONF_COMPARATOR_REFERENCES)
+		    || key.equals(CONF_COMPARATOR_INSTANCES);
+	}
+
+	/**
+	 * The number of logical jobs stored with {@link #setQueries}, or 0 if the
+	 * configuration is not the one of a job built with {@link SharedScanBuilder}.
+	 */
+	public static int getNumQueries(Configuration conf) {
+		return conf.getInt(CONF_QUERIES, 0);
+	}
+
+	/**
+	 * Returns a copy of the configuration where the given logical job, stored
+	 * with {@link #setQueries}, is the configuration of the job. It can be used
+	 * to configure the classes of a regular Tuple-based job, like the
+	 * comparators, for that logical job.
+	 */
+	public static Configuration getQueryConf(Configuration conf, int query) {
+		Configuration queryConf = new Configuration(conf);
+		queryConf.setInt(CONF_QUERIES, 0);
+		String prefix = CONF_QUERY_PREFIX + query + ".";
+		for(Map.Entry<String, String> entry : conf) {
+			if(entry.getKey().startsWith(prefix)) {
+				queryConf.set(entry.getKey().substring(prefix.length()), entry.getValue());
+			}
+		}
+		return queryConf;
+	}
+
+	/**
+	 * Returns the configurations of the logical jobs stored with
+	 * {@link #setQueries}.
+	 */
+	public static List<TupleMRConfig> getQueries(Configuration conf) throws TupleMRException {
+		List<TupleMRConfig> queries = new ArrayList<TupleMRConfig>();
+		for(int i = 0; i < getNumQueries(conf); i++) {
+			queries.add(get(getQueryConf(conf, i)));
+		}
+		return queries;
+	}
+
+	/**
+	 * Maps the names of the intermediate schemas of the given logical jobs to
+	 * the index of the logical job they belong to.
+	 */
+	public static Map<String, Integer> getQueriesBySchemaName(List<TupleMRConfig> queries) {
+		Map<String, Integer> queriesBySchema = new HashMap<String, Integer>();
+		for(int i = 0; i < queries.size(); i++) {
+			for(String schemaName : queries.get(i).getIntermediateSchemaNames()) {
+				queriesBySchema.put(schemaName, i);
+			}
+		}
+		return queriesBySchema;
+	}
+
 	// Stores the instances and the references to the instances (common|field or
 	// schemaId|field)
 	public static final String CONF_COMPARATOR_REFERENCES = "pangool.comparator.references";
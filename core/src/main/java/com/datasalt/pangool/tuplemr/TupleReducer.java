@@ -78,6 +78,13 @@ public class TupleReducer<OUTPUT_KEY, OUTPUT_VALUE> implements Serializable {
 			this.context = context;
 		}
 
+		public StaticCollector(
+		    ReduceContext<DatumWrapper<ITuple>, NullWritable, CONTEXT_OUTPUT_KEY, CONTEXT_OUTPUT_VALUE> context,
+		    MultipleOutputsCollector outputs) {
+			super(context, outputs);
+			this.context = context;
+		}
+
 		@SuppressWarnings("unchecked")
 		public void write(OUTPUT_KEY key, OUTPUT_VALUE value) throws IOException,
 		    InterruptedException {
@@ -96,6 +103,15 @@ public class TupleReducer<OUTPUT_KEY, OUTPUT_VALUE> implements Serializable {
 		    ReduceContext<DatumWrapper<ITuple>, NullWritable, Object, Object> context) {
 			super(context);
 		}
+
+		/**
+		 * A collector that writes to the named outputs of the given one.
+		 */
+		public Collector(
+		    ReduceContext<DatumWrapper<ITuple>, NullWritable, Object, Object> context,
+		    MultipleOutputsCollector outputs) {
+			super(context, outputs);
+		}
 	}
 
 	/**
@@ -0,0 +1,200 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.avro;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.apache.avro.io.DatumReader;
+import org.apache.avro.io.Decoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.ResolvingDecoder;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import com.datasalt.pangool.PangoolRuntimeException;
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Schema.Field;
+import com.datasalt.pangool.io.Tuple;
+import com.datasalt.pangool.io.Utf8;
+import com.datasalt.pangool.serialization.HadoopSerialization;
+import com.datasalt.pangool.tuplemr.SerializationInfo;
+import com.datasalt.pangool.utils.AvroUtils;
+
+/**
+ * A {@link DatumReader} that decodes Avro binary data straight into a reused {@link ITuple}, without materializing
+ * an intermediate {@link org.apache.avro.generic.GenericData.Record}.
+ * <p>
+ * The {@link ResolvingDecoder} between the writer's and the reader's schema is built only once, when
+ * {@link #setSchema(org.apache.avro.Schema)} is called. Fields present in the writer's schema but not in the reader's
+ * schema are skipped by the decoder, so using a projected reader schema (see
+ * {@link AvroUtils#projectAvroSchema(org.apache.avro.Schema, String...)}) avoids decoding unneeded fields.
+ * <p>
+ * {@link Utf8} and {@link ByteBuffer} instances already present in the tuple are reused.
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class AvroTupleDatumReader implements DatumReader<ITuple> {
+
+	private final org.apache.avro.Schema readerSchema;
+	private final Schema pangoolSchema;
+	private final Configuration conf;
+
+	// serialization in "io.serializations"
+	private final HadoopSerialization hadoopSer;
+	// custom deserializers for OBJECT fields
+	private final Deserializer[] customDeserializers;
+	// enum constants indexed by the reader's enum symbol position, for ENUM fields
+	private final Enum[][] enumsBySymbol;
+	// reused buffers for the serialized content of OBJECT fields
+	private final ByteBuffer[] objectBuffers;
+
+	private final DataInputBuffer inputBuffer = new DataInputBuffer();
+	private org.apache.avro.util.Utf8 avroUtf8 = new org.apache.avro.util.Utf8();
+	private ResolvingDecoder resolver;
+
+	public AvroTupleDatumReader(org.apache.avro.Schema readerSchema, Configuration conf) {
+		this.readerSchema = readerSchema;
+		this.pangoolSchema = AvroUtils.toPangoolSchema(readerSchema);
+		this.conf = conf;
+		try {
+			this.hadoopSer = new HadoopSerialization(conf);
+		} catch(IOException e) {
+			throw new PangoolRuntimeException(e);
+		}
+		this.customDeserializers = SerializationInfo.getDeserializers(pangoolSchema, conf);
+
+		int numFields = pangoolSchema.getFields().size();
+		this.enumsBySymbol = new Enum[numFields][];
+		this.objectBuffers = new ByteBuffer[numFields];
+		for(int i = 0; i < numFields; i++) {
+			Field field = pangoolSchema.getField(i);
+			if(field.getType() == Field.Type.ENUM) {
+				List<String> symbols = readerSchema.getFields().get(i).schema().getEnumSymbols();
+				enumsBySymbol[i] = new Enum[symbols.size()];
+				for(int s = 0; s < symbols.size(); s++) {
+					enumsBySymbol[i][s] = Enum.valueOf((Class) field.getObjectClass(), symbols.get(s));
+				}
+			}
+		}
+	}
+
+	/**
+	 * The Pangool schema of the tuples returned by this reader. It is derived from the reader's Avro schema.
+	 */
+	public Schema getPangoolSchema() {
+		return pangoolSchema;
+	}
+
+	@Override
+	public void setSchema(org.apache.avro.Schema writerSchema) {
+		try {
+			resolver = DecoderFactory.get().resolvingDecoder(writerSchema, readerSchema, null);
+		} catch(IOException e) {
+			throw new PangoolRuntimeException(e);
+		}
+	}
+
+	@Override
+	public ITuple read(ITuple reuse, Decoder in) throws IOException {
+		if(resolver == null) {
+			// No writer's schema given, so it is assumed to be the same than the reader's one
+			setSchema(readerSchema);
+		}
+		ITuple tuple = reuse;
+		if(tuple == null) {
+			tuple = new Tuple(pangoolSchema);
+		}
+
+		resolver.configure(in);
+		for(org.apache.avro.Schema.Field avroField : resolver.readFieldOrder()) {
+			int pos = avroField.pos();
+			Field pangoolField = pangoolSchema.getField(pos);
+			switch(pangoolField.getType()) {
+			case INT:
+				tuple.set(pos, resolver.readInt());
+				break;
+			case LONG:
+				tuple.set(pos, resolver.readLong());
+				break;
+			case FLOAT:
+				tuple.set(pos, resolver.readFloat());
+				break;
+			case DOUBLE:
+				tuple.set(pos, resolver.readDouble());
+				break;
+			case BOOLEAN:
+				tuple.set(pos, resolver.readBoolean());
+				break;
+			case STRING:
+				readString(tuple, pos);
+				break;
+			case ENUM:
+				tuple.set(pos, enumsBySymbol[pos][resolver.readEnum()]);
+				break;
+			case BYTES: {
+				Object current = tuple.get(pos);
+				tuple.set(pos, resolver.readBytes((current instanceof ByteBuffer) ? (ByteBuffer) current : null));
+				break;
+			}
+			case OBJECT:
+				readCustomObject(tuple, pangoolField, pos);
+				break;
+			default:
+				throw new IOException("Not supported avro type : " + avroField.schema().getType());
+			}
+		}
+		resolver.drain();
+		return tuple;
+	}
+
+	private void readString(ITuple tuple, int pos) throws IOException {
+		avroUtf8 = resolver.readString(avroUtf8);
+		Object current = tuple.get(pos);
+		Utf8 utf8;
+		if(current instanceof Utf8) {
+			utf8 = (Utf8) current;
+		} else {
+			utf8 = new Utf8();
+			tuple.set(pos, utf8);
+		}
+		utf8.set(avroUtf8.getBytes(), 0, avroUtf8.getByteLength());
+	}
+
+	private void readCustomObject(ITuple tuple, Field pangoolField, int pos) throws IOException {
+		ByteBuffer buffer = resolver.readBytes(objectBuffers[pos]);
+		objectBuffers[pos] = buffer;
+		int offset = buffer.arrayOffset() + buffer.position();
+		inputBuffer.reset(buffer.array(), offset, buffer.limit() - buffer.position());
+
+		Deserializer customDeser = customDeserializers[pos];
+		if(customDeser != null) {
+			customDeser.open(inputBuffer);
+			tuple.set(pos, customDeser.deserialize(tuple.get(pos)));
+			customDeser.close();
+		} else {
+			// no custom deser , then use Hadoop serializers registered in "io.serializations"
+			Class clazz = pangoolField.getObjectClass();
+			if(tuple.get(pos) == null || tuple.get(pos).getClass() != clazz) {
+				tuple.set(pos, ReflectionUtils.newInstance(clazz, conf));
+			}
+			tuple.set(pos, hadoopSer.deser(tuple.get(pos), inputBuffer));
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.avro;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.Encoder;
+import org.apache.avro.util.Utf8;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.serializer.Serializer;
+
+import com.datasalt.pangool.PangoolRuntimeException;
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Schema.Field;
+import com.datasalt.pangool.serialization.HadoopSerialization;
+import com.datasalt.pangool.tuplemr.SerializationInfo;
+import com.datasalt.pangool.tuplemr.serialization.TupleSerialization;
+import com.datasalt.pangool.utils.AvroUtils;
+
+/**
+ * A {@link DatumWriter} that encodes {@link ITuple}s as Avro binary records of the schema given by
+ * {@link AvroUtils#toAvroSchema(Schema)}, without building intermediate
+ * {@link org.apache.avro.generic.GenericData.Record}s. Used with a {@link org.apache.avro.file.DataFileWriter} the
+ * tuples are encoded directly into the writer's block buffer and the result is a standard Avro container file.
+ * <p>
+ * The way each field is written is resolved only once, when the writer is created. Strings already held as
+ * {@link Text} (and so {@link com.datasalt.pangool.io.Utf8}) are written from their backing bytes, with no conversion.
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class AvroTupleDatumWriter implements DatumWriter<ITuple> {
+
+	/**
+	 * Writes one field value to the encoder.
+	 */
+	private static interface FieldWriter {
+		public void write(Object value, Encoder out) throws IOException;
+	}
+
+	private final Schema pangoolSchema;
+	private final FieldWriter[] plan;
+	private final boolean schemaValidation;
+
+	// serialization in "io.serializations"
+	private final HadoopSerialization hadoopSer;
+
+	public AvroTupleDatumWriter(Schema pangoolSchema, Configuration conf) {
+		this.pangoolSchema = pangoolSchema;
+		try {
+			this.hadoopSer = new HadoopSerialization(conf);
+		} catch(IOException e) {
+			throw new PangoolRuntimeException(e);
+		}
+		this.schemaValidation = TupleSerialization.getSchemaValidation(conf);
+		Serializer[] customSerializers = SerializationInfo.getSerializers(pangoolSchema, conf);
+		this.plan = new FieldWriter[pangoolSchema.getFields().size()];
+		for(int i = 0; i < plan.length; i++) {
+			plan[i] = createFieldWriter(pangoolSchema.getField(i), customSerializers[i]);
+		}
+	}
+
+	/**
+	 * The Avro schema of the written records
+	 */
+	public org.apache.avro.Schema getAvroSchema() {
+		return AvroUtils.toAvroSchema(pangoolSchema);
+	}
+
+	@Override
+	public void setSchema(org.apache.avro.Schema schema) {
+		// The plan is compiled from the Pangool schema
+	}
+
+	@Override
+	public void write(ITuple tuple, Encoder out) throws IOException {
+		if(schemaValidation && !tuple.getSchema().equals(pangoolSchema)) {
+			throw new IOException("Tuple '" + tuple + "' " + "contains schema not expected." + "Expected schema '"
+			    + pangoolSchema + " and actual: " + tuple.getSchema());
+		}
+		for(int i = 0; i < plan.length; i++) {
+			Object obj = tuple.get(i);
+			if(obj == null) {
+				throw new IOException("Field '" + pangoolSchema.getField(i).getName() + "' can't be null in tuple:" + tuple);
+			}
+			try {
+				plan[i].write(obj, out);
+			} catch(ClassCastException e) {
+				Field field = pangoolSchema.getField(i);
+				throw new IOException("Field '" + field.getName() + "' with type: '" + field.getType() + "' can't contain '"
+				    + obj + "' which is " + obj.getClass().getName(), e);
+			}
+		}
+	}
+
+	private FieldWriter createFieldWriter(final Field field, final Serializer customSer) {
+		switch(field.getType()) {
+		case INT:
+			return new FieldWriter() {
+				public void write(Object value, Encoder out) throws IOException {
+					out.writeInt((Integer) value);
+				}
+			};
+		case LONG:
+			return new FieldWriter() {
+				public void write(Object value, Encoder out) throws IOException {
+					out.writeLong((Long) value);
+				}
+			};
+		case FLOAT:
+			return new FieldWriter() {
+				public void write(Object value, Encoder out) throws IOException {
+					out.writeFloat((Float) value);
+				}
+			};
+		case DOUBLE:
+			return new FieldWriter() {
+				public void write(Object value, Encoder out) throws IOException {
+					out.writeDouble((Double) value);
+				}
+			};
+		case BOOLEAN:
+			return new FieldWriter() {
+				public void write(Object value, Encoder out) throws IOException {
+					out.writeBoolean((Boolean) value);
+				}
+			};
+		case STRING:
+			return new FieldWriter() {
+				public void write(Object value, Encoder out) throws IOException {
+					if(value instanceof Text) {
+						// Avro strings are encoded the same way than bytes
+						Text text = (Text) value;
+						out.writeBytes(text.getBytes(), 0, text.getLength());
+					} else if(value instanceof Utf8) {
+						out.writeString((Utf8) value);
+					} else {
+						out.writeString(value.toString());
+					}
+				}
+			};
+		case ENUM:
+			return new FieldWriter() {
+				public void write(Object value, Encoder out) throws IOException {
+					Enum<?> e = (Enum<?>) value;
+					if(e.getClass() != field.getObjectClass()) {
+						throw new IOException("Field '" + field.getName() + "' contains '" + value + "' which is "
+						    + value.getClass().getName() + ".The expected type is " + field.getObjectClass().getName());
+					}
+					out.writeEnum(e.ordinal());
+				}
+			};
+		case BYTES:
+			return new FieldWriter() {
+				public void write(Object value, Encoder out) throws IOException {
+					if(value instanceof byte[]) {
+						out.writeBytes((byte[]) value);
+					} else if(value instanceof ByteBuffer) {
+						out.writeBytes((ByteBuffer) value);
+					} else {
+						throw new IOException("Not allowed " + value.getClass() + " for type " + Field.Type.BYTES);
+					}
+				}
+			};
+		case OBJECT:
+			return new FieldWriter() {
+				final DataOutputBuffer buffer = new DataOutputBuffer();
+
+				public void write(Object value, Encoder out) throws IOException {
+					buffer.reset();
+					if(customSer != null) {
+						customSer.open(buffer);
+						customSer.serialize(value);
+						customSer.close();
+					} else {
+						hadoopSer.ser(value, buffer);
+					}
+					out.writeBytes(buffer.getData(), 0, buffer.getLength());
+				}
+			};
+		default:
+			throw new PangoolRuntimeException("Not correspondence to Avro type from Pangool type " + field.getType());
+		}
+	}
+}
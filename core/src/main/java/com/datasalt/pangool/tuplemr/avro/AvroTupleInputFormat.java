@@ -0,0 +1,98 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.avro;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.avro.Schema;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.utils.AvroUtils;
+
+/**
+ * An input format that reads Avro data files directly into {@link ITuple} instances, without going through
+ * {@link org.apache.avro.generic.GenericData.Record}s. See {@link AvroTupleDatumReader}.
+ * <p>
+ * A list of fields can be given for reading only a projection of the Avro schema. The rest of the fields are skipped
+ * at the decoder level. The Pangool schema of the produced tuples is derived from the (projected) Avro schema and can
+ * be obtained through {@link #getPangoolSchema()}.
+ * <p>
+ * Like {@link AvroInputFormat}, its state is defined via instantiation using Java-serialization.
+ */
+@SuppressWarnings("serial")
+public class AvroTupleInputFormat extends FileInputFormat<ITuple, NullWritable> implements Serializable {
+
+	private transient Schema schema;
+	private String schemaStr;
+
+	/**
+	 * Reads all the fields of the given Avro schema.
+	 */
+	public AvroTupleInputFormat(Schema schema) {
+		this.schema = schema;
+		this.schemaStr = schema.toString();
+	}
+
+	/**
+	 * Reads only the given fields of the Avro schema, in the given order.
+	 */
+	public AvroTupleInputFormat(Schema schema, String... projectedFields) {
+		this(AvroUtils.projectAvroSchema(schema, projectedFields));
+	}
+
+	/**
+	 * The Avro schema used for reading, already projected if a projection was given.
+	 */
+	public Schema getSchema() {
+		if(schema == null) {
+			schema = new Schema.Parser().parse(schemaStr);
+		}
+		return schema;
+	}
+
+	public com.datasalt.pangool.io.Schema getPangoolSchema() {
+		return AvroUtils.toPangoolSchema(getSchema());
+	}
+
+	@Override
+	public RecordReader<ITuple, NullWritable> createRecordReader(InputSplit inputSplit, TaskAttemptContext context)
+	    throws IOException, InterruptedException {
+		context.setStatus(inputSplit.toString());
+		return new AvroTupleRecordReader(getSchema());
+	}
+
+	@Override
+	protected List<FileStatus> listStatus(JobContext job) throws IOException {
+		List<FileStatus> result = new ArrayList<FileStatus>();
+		for(FileStatus file : super.listStatus(job)) {
+			String fileName = file.getPath().getName();
+			if(fileName.endsWith(AvroOutputFormat.EXT)) {
+				result.add(file);
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.avro;
+
+import static org.apache.avro.file.DataFileConstants.DEFLATE_CODEC;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import org.apache.avro.file.DataFileWriter;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Schema;
+
+/**
+ * An output format that writes {@link ITuple}s as standard Avro data files, encoding them directly with an
+ * {@link AvroTupleDatumWriter} instead of converting them to {@link org.apache.avro.generic.GenericData.Record}s. The
+ * Avro schema of the files is the one given by {@link com.datasalt.pangool.utils.AvroUtils#toAvroSchema(Schema)}.
+ * <p>
+ * Compression and sync interval are configured the same way than in {@link AvroOutputFormat}.
+ */
+@SuppressWarnings("serial")
+public class AvroTupleOutputFormat extends FileOutputFormat<ITuple, NullWritable> implements Serializable {
+
+	private Schema schema;
+	private int deflateLevel = AvroOutputFormat.DEFAULT_DEFLATE_LEVEL;
+	private String codecName = DEFLATE_CODEC;
+
+	public AvroTupleOutputFormat(Schema schema) {
+		this.schema = schema;
+	}
+
+	public AvroTupleOutputFormat(Schema schema, String codecName) {
+		this(schema);
+		this.codecName = codecName;
+	}
+
+	public AvroTupleOutputFormat(Schema schema, String codecName, int deflateLevel) {
+		this(schema, codecName);
+		this.deflateLevel = deflateLevel;
+	}
+
+	public Schema getSchema() {
+		return schema;
+	}
+
+	@Override
+	public RecordWriter<ITuple, NullWritable> getRecordWriter(TaskAttemptContext job) throws IOException,
+	    InterruptedException {
+
+		AvroTupleDatumWriter datumWriter = new AvroTupleDatumWriter(schema, job.getConfiguration());
+		final DataFileWriter<ITuple> writer = new DataFileWriter<ITuple>(datumWriter);
+
+		AvroOutputFormat.configureDataFileWriter(writer, job, codecName, deflateLevel);
+		Path path = getDefaultWorkFile(job, AvroOutputFormat.EXT);
+		writer.create(datumWriter.getAvroSchema(), path.getFileSystem(job.getConfiguration()).create(path));
+
+		return new RecordWriter<ITuple, NullWritable>() {
+			@Override
+			public void write(ITuple tuple, NullWritable ignore) throws IOException {
+				writer.append(tuple);
+			}
+
+			@Override
+			public void close(TaskAttemptContext context) throws IOException {
+				writer.close();
+			}
+		};
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.avro;
+
+import java.io.IOException;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.FileReader;
+import org.apache.avro.mapred.FsInput;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import com.datasalt.pangool.io.ITuple;
+
+/**
+ * The {@link RecordReader} used by {@link AvroTupleInputFormat}. The same {@link ITuple} instance is returned for
+ * every record.
+ */
+public class AvroTupleRecordReader extends RecordReader<ITuple, NullWritable> {
+
+	private final Schema schema;
+	private FileReader<ITuple> reader;
+	private ITuple tuple;
+	private long start;
+	private long end;
+
+	public AvroTupleRecordReader(Schema schema) {
+		this.schema = schema;
+	}
+
+	@Override
+	public void initialize(InputSplit inputSplit, TaskAttemptContext context) throws IOException,
+	    InterruptedException {
+		FileSplit split = (FileSplit) inputSplit;
+		AvroTupleDatumReader datumReader = new AvroTupleDatumReader(schema, context.getConfiguration());
+		reader = DataFileReader.openReader(new FsInput(split.getPath(), context.getConfiguration()), datumReader);
+		reader.sync(split.getStart()); // sync to start
+		start = reader.tell();
+		end = split.getStart() + split.getLength();
+	}
+
+	@Override
+	public boolean nextKeyValue() throws IOException, InterruptedException {
+		if(!reader.hasNext() || reader.pastSync(end)) {
+			return false;
+		}
+		tuple = reader.next(tuple);
+		return true;
+	}
+
+	@Override
+	public ITuple getCurrentKey() throws IOException, InterruptedException {
+		return tuple;
+	}
+
+	@Override
+	public NullWritable getCurrentValue() throws IOException, InterruptedException {
+		return NullWritable.get();
+	}
+
+	@Override
+	public float getProgress() throws IOException {
+		if(end == start) {
+			return 0.0f;
+		} else {
+			return Math.min(1.0f, (reader.tell() - start) / (float) (end - start));
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+}
@@ -0,0 +1,518 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.local;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskID;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import com.datasalt.pangool.tuplemr.MapOnlyJobBuilder;
+import com.datasalt.pangool.tuplemr.TupleMRBuilder;
+
+/**
+ * Runs a {@link Job} created by {@link TupleMRBuilder} or
+ * {@link MapOnlyJobBuilder} in-process, without Hadoop's LocalJobRunner, for
+ * tests and small jobs.
+ * <p>
+ * The job runs with the same classes as in Hadoop: the input and output
+ * formats, the mapper, partitioner, combiner and reducer, the sort and group
+ * comparators and the output committer. Map tasks run in parallel in a pool
+ * of threads. Their output is partitioned and sorted in memory, and spilled to
+ * local files when it doesn't fit in {@link #CONF_SORT_BUFFER_SIZE}. Then the
+ * reduce tasks, as many as the job has, run in parallel merging the sorted
+ * output of the maps. As in Hadoop, the order of records with the same key is
+ * not defined.
+ * <p>
+ * Tasks are run with the task context API of Hadoop 1.
+ */
+public class LocalTupleMREngine {
+
+	private static final Log LOG = LogFactory.getLog(LocalTupleMREngine.class);
+
+	/**
+	 * Size in bytes of the buffer where each map task sorts its output.
+	 */
+	public final static String CONF_SORT_BUFFER_SIZE = "pangool.local.sort.buffer.size";
+	public final static int DEFAULT_SORT_BUFFER_SIZE = 32 * 1024 * 1024;
+	/**
+	 * Bytes of sorted map output kept in memory for the reducers. The rest is
+	 * read from local files.
+	 */
+	public final static String CONF_MEMORY_SIZE = "pangool.local.memory.size";
+	public final static long DEFAULT_MEMORY_SIZE = 256 * 1024 * 1024;
+	/**
+	 * Local folder for the spill files. Defaults to java.io.tmpdir.
+	 */
+	public final static String CONF_LOCAL_DIR = "pangool.local.dir";
+
+	/**
+	 * Group of the counters of the tasks, named as in Hadoop:
+	 * MAP_INPUT_RECORDS, MAP_OUTPUT_RECORDS, REDUCE_INPUT_GROUPS...
+	 */
+	public final static String TASK_COUNTERS = "org.apache.hadoop.mapred.Task$Counter";
+
+	private static final AtomicInteger JOB_SEQUENCE = new AtomicInteger(0);
+
+	private final int threads;
+
+	/**
+	 * Uses as many threads as processors.
+	 */
+	public LocalTupleMREngine() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public LocalTupleMREngine(int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("At least one thread is needed: " + threads);
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Runs the job and returns its counters. Throws an IOException if any task
+	 * fails.
+	 */
+	public Counters run(Job job) throws IOException, InterruptedException {
+		JobRun jobRun;
+		try {
+			jobRun = new JobRun(job);
+		} catch(ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			return jobRun.run(executor);
+		} finally {
+			executor.shutdownNow();
+			FileUtils.deleteDirectory(jobRun.localDir);
+		}
+	}
+
+	/**
+	 * The state of one execution of a job, shared by its tasks.
+	 */
+	@SuppressWarnings("rawtypes")
+	static class JobRun {
+
+		final Configuration conf;
+		final JobID jobId;
+		final JobContext jobContext;
+		final int numReduces;
+		final Class<? extends InputFormat> inputFormatClass;
+		final Class<? extends OutputFormat> outputFormatClass;
+		final Class<? extends Mapper> mapperClass;
+		final Class<? extends Reducer> reducerClass;
+		final Class<? extends Reducer> combinerClass;
+		final Class<? extends Partitioner> partitionerClass;
+		final Class<?> mapOutputKeyClass;
+		final Class<?> mapOutputValueClass;
+		final int sortBufferSize;
+		final File localDir;
+
+		private final long memorySize;
+		private final AtomicLong memoryUsed = new AtomicLong(0);
+		private final AtomicInteger spills = new AtomicInteger(0);
+		private final List<List<SortedRun>> runs = new ArrayList<List<SortedRun>>();
+		private final Counters counters = new Counters();
+
+		JobRun(Job job) throws ClassNotFoundException {
+			conf = new Configuration(job.getConfiguration());
+			jobId = new JobID("local", JOB_SEQUENCE.incrementAndGet());
+			conf.set("mapred.job.id", jobId.toString());
+			jobContext = new JobContext(conf, jobId);
+			numReduces = jobContext.getNumReduceTasks();
+			inputFormatClass = jobContext.getInputFormatClass();
+			outputFormatClass = jobContext.getOutputFormatClass();
+			mapperClass = jobContext.getMapperClass();
+			reducerClass = jobContext.getReducerClass();
+			combinerClass = jobContext.getCombinerClass();
+			partitionerClass = jobContext.getPartitionerClass();
+			mapOutputKeyClass = jobContext.getMapOutputKeyClass();
+			mapOutputValueClass = jobContext.getMapOutputValueClass();
+			sortBufferSize = conf.getInt(CONF_SORT_BUFFER_SIZE, DEFAULT_SORT_BUFFER_SIZE);
+			memorySize = conf.getLong(CONF_MEMORY_SIZE, DEFAULT_MEMORY_SIZE);
+			localDir = new File(conf.get(CONF_LOCAL_DIR, System.getProperty("java.io.tmpdir")), "pangool-"
+			    + jobId);
+			for(int i = 0; i < numReduces; i++) {
+				runs.add(new ArrayList<SortedRun>());
+			}
+		}
+
+		RawComparator newSortComparator(Configuration taskConf) {
+			return new JobContext(taskConf, jobId).getSortComparator();
+		}
+
+		File newSpillFile() throws IOException {
+			if(!localDir.exists() && !localDir.mkdirs() && !localDir.exists()) {
+				throw new IOException("Can't create local folder " + localDir);
+			}
+			return new File(localDir, "spill-" + spills.incrementAndGet());
+		}
+
+		/**
+		 * Returns true if the given amount of memory can be used for keeping map
+		 * output in memory.
+		 */
+		boolean reserveMemory(long bytes) {
+			if(memoryUsed.addAndGet(bytes) > memorySize) {
+				memoryUsed.addAndGet(-bytes);
+				return false;
+			}
+			return true;
+		}
+
+		void addRun(int partition, SortedRun run) {
+			List<SortedRun> partitionRuns = runs.get(partition);
+			synchronized(partitionRuns) {
+				partitionRuns.add(run);
+			}
+		}
+
+		Counters run(ExecutorService executor) throws IOException, InterruptedException {
+			long start = System.currentTimeMillis();
+			InputFormat inputFormat = ReflectionUtils.newInstance(inputFormatClass, conf);
+			final List<InputSplit> splits = inputFormat.getSplits(jobContext);
+			OutputFormat outputFormat = ReflectionUtils.newInstance(outputFormatClass, conf);
+			outputFormat.checkOutputSpecs(jobContext);
+			TaskAttemptContext setupContext = new TaskAttemptContext(conf, new TaskAttemptID(new TaskID(jobId,
+			    true, 0), 0));
+			OutputCommitter jobCommitter = outputFormat.getOutputCommitter(setupContext);
+			jobCommitter.setupJob(jobContext);
+			LOG.info("Running " + jobId + " with " + splits.size() + " map tasks and " + numReduces
+			    + " reduce tasks");
+
+			try {
+				List<Callable<Counters>> mapTasks = new ArrayList<Callable<Counters>>();
+				for(int i = 0; i < splits.size(); i++) {
+					final int task = i;
+					mapTasks.add(new Callable<Counters>() {
+						@Override
+						public Counters call() throws Exception {
+							return runMapTask(task, splits.get(task));
+						}
+					});
+				}
+				runTasks(executor, mapTasks);
+
+				List<Callable<Counters>> reduceTasks = new ArrayList<Callable<Counters>>();
+				for(int i = 0; i < numReduces; i++) {
+					final int task = i;
+					reduceTasks.add(new Callable<Counters>() {
+						@Override
+						public Counters call() throws Exception {
+							return runReduceTask(task);
+						}
+					});
+				}
+				runTasks(executor, reduceTasks);
+				commitJob(jobCommitter);
+			} catch(IOException e) {
+				jobCommitter.cleanupJob(jobContext);
+				throw e;
+			} catch(InterruptedException e) {
+				jobCommitter.cleanupJob(jobContext);
+				throw e;
+			} catch(RuntimeException e) {
+				jobCommitter.cleanupJob(jobContext);
+				throw e;
+			}
+			LOG.info("Job " + jobId + " finished in " + (System.currentTimeMillis() - start) + " ms");
+			return counters;
+		}
+
+		private void runTasks(ExecutorService executor, List<Callable<Counters>> tasks) throws IOException,
+		    InterruptedException {
+			List<Future<Counters>> futures = new ArrayList<Future<Counters>>();
+			for(Callable<Counters> task : tasks) {
+				futures.add(executor.submit(task));
+			}
+			try {
+				for(Future<Counters> future : futures) {
+					counters.incrAllCounters(future.get());
+				}
+			} catch(ExecutionException e) {
+				for(Future<Counters> future : futures) {
+					future.cancel(true);
+				}
+				Throwable cause = e.getCause();
+				if(cause instanceof IOException) {
+					throw (IOException) cause;
+				} else if(cause instanceof InterruptedException) {
+					throw (InterruptedException) cause;
+				} else if(cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new IOException(cause);
+			}
+		}
+
+		/**
+		 * Commits the job as Hadoop 1 does with commitJob(), or with cleanupJob()
+		 * in older versions.
+		 */
+		private void commitJob(OutputCommitter committer) throws IOException {
+			Method commitJob;
+			try {
+				commitJob = OutputCommitter.class.getMethod("commitJob", JobContext.class);
+			} catch(NoSuchMethodException e) {
+				committer.cleanupJob(jobContext);
+				return;
+			}
+			try {
+				commitJob.invoke(committer, jobContext);
+			} catch(InvocationTargetException e) {
+				if(e.getCause() instanceof IOException) {
+					throw (IOException) e.getCause();
+				}
+				throw new IOException(e.getCause());
+			} catch(IllegalAccessException e) {
+				throw new IOException(e);
+			}
+		}
+
+		/**
+		 * The configuration of a task, with the properties that Hadoop sets for
+		 * each task.
+		 */
+		private Configuration taskConf(TaskAttemptID attemptId) {
+			Configuration taskConf = new Configuration(conf);
+			taskConf.set("mapred.tip.id", attemptId.getTaskID().toString());
+			taskConf.set("mapred.task.id", attemptId.toString());
+			taskConf.setBoolean("mapred.task.is.map", attemptId.isMap());
+			taskConf.setInt("mapred.task.partition", attemptId.getTaskID().getId());
+			return taskConf;
+		}
+
+		@SuppressWarnings("unchecked")
+		private Counters runMapTask(int task, InputSplit split) throws IOException, InterruptedException {
+			TaskAttemptID attemptId = new TaskAttemptID(new TaskID(jobId, true, task), 0);
+			Configuration taskConf = taskConf(attemptId);
+			TaskReporter reporter = new TaskReporter();
+			TaskAttemptContext taskContext = new TaskAttemptContext(taskConf, attemptId);
+			OutputFormat outputFormat = ReflectionUtils.newInstance(outputFormatClass, taskConf);
+			OutputCommitter committer = outputFormat.getOutputCommitter(taskContext);
+			committer.setupTask(taskContext);
+			try {
+				InputFormat inputFormat = ReflectionUtils.newInstance(inputFormatClass, taskConf);
+				RecordReader reader = new CountingRecordReader(inputFormat.createRecordReader(split, taskContext),
+				    reporter.getCounter(TASK_COUNTERS, "MAP_INPUT_RECORDS"));
+				RecordWriter writer = (numReduces == 0) ? new CountingRecordWriter(
+				    outputFormat.getRecordWriter(taskContext), reporter.getCounter(TASK_COUNTERS,
+				        "MAP_OUTPUT_RECORDS")) : new MapOutputBuffer(taskConf, attemptId, reporter, committer, this);
+				Mapper mapper = ReflectionUtils.newInstance(mapperClass, taskConf);
+				Mapper.Context context = mapper.new Context(taskConf, attemptId, reader, writer, committer,
+				    reporter, split);
+				reader.initialize(split, context);
+				mapper.run(context);
+				reader.close();
+				writer.close(context);
+				if(committer.needsTaskCommit(taskContext)) {
+					committer.commitTask(taskContext);
+				}
+			} catch(IOException e) {
+				abortTask(committer, taskContext, e);
+				throw e;
+			} catch(InterruptedException e) {
+				abortTask(committer, taskContext, e);
+				throw e;
+			} catch(RuntimeException e) {
+				abortTask(committer, taskContext, e);
+				throw e;
+			}
+			return reporter.counters;
+		}
+
+		@SuppressWarnings("unchecked")
+		private Counters runReduceTask(int task) throws IOException, InterruptedException {
+			TaskAttemptID attemptId = new TaskAttemptID(new TaskID(jobId, false, task), 0);
+			Configuration taskConf = taskConf(attemptId);
+			TaskReporter reporter = new TaskReporter();
+			TaskAttemptContext taskContext = new TaskAttemptContext(taskConf, attemptId);
+			OutputFormat outputFormat = ReflectionUtils.newInstance(outputFormatClass, taskConf);
+			OutputCommitter committer = outputFormat.getOutputCommitter(taskContext);
+			committer.setupTask(taskContext);
+			JobContext taskJobContext = new JobContext(taskConf, jobId);
+			MergedRunsIterator input = new MergedRunsIterator(runs.get(task), taskJobContext.getSortComparator());
+			try {
+				RecordWriter writer = new CountingRecordWriter(outputFormat.getRecordWriter(taskContext),
+				    reporter.getCounter(TASK_COUNTERS, "REDUCE_OUTPUT_RECORDS"));
+				Reducer reducer = ReflectionUtils.newInstance(reducerClass, taskConf);
+				Reducer.Context context = reducer.new Context(taskConf, attemptId, input, reporter.getCounter(
+				    TASK_COUNTERS, "REDUCE_INPUT_GROUPS"), reporter.getCounter(TASK_COUNTERS,
+				    "REDUCE_INPUT_RECORDS"), writer, committer, reporter, taskJobContext.getGroupingComparator(),
+				    mapOutputKeyClass, mapOutputValueClass);
+				reducer.run(context);
+				writer.close(context);
+				if(committer.needsTaskCommit(taskContext)) {
+					committer.commitTask(taskContext);
+				}
+			} catch(IOException e) {
+				abortTask(committer, taskContext, e);
+				throw e;
+			} catch(InterruptedException e) {
+				abortTask(committer, taskContext, e);
+				throw e;
+			} catch(RuntimeException e) {
+				abortTask(committer, taskContext, e);
+				throw e;
+			} finally {
+				input.close();
+			}
+			return reporter.counters;
+		}
+
+		private void abortTask(OutputCommitter committer, TaskAttemptContext taskContext, Exception cause) {
+			LOG.error("Task " + taskContext.getTaskAttemptID() + " failed", cause);
+			try {
+				committer.abortTask(taskContext);
+			} catch(Exception e) {
+				LOG.error("Error aborting task " + taskContext.getTaskAttemptID(), e);
+			}
+		}
+	}
+
+	/**
+	 * Keeps the counters of one task.
+	 */
+	static class TaskReporter extends StatusReporter {
+
+		final Counters counters = new Counters();
+
+		@Override
+		public synchronized Counter getCounter(Enum<?> name) {
+			return counters.findCounter(name);
+		}
+
+		@Override
+		public synchronized Counter getCounter(String group, String name) {
+			return counters.findCounter(group, name);
+		}
+
+		@Override
+		public void progress() {
+		}
+
+		@Override
+		public void setStatus(String status) {
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	static class CountingRecordReader extends RecordReader {
+
+		private final RecordReader reader;
+		private final Counter counter;
+
+		CountingRecordReader(RecordReader reader, Counter counter) {
+			this.reader = reader;
+			this.counter = counter;
+		}
+
+		@Override
+		public void initialize(InputSplit split, TaskAttemptContext context) throws IOException,
+		    InterruptedException {
+			reader.initialize(split, context);
+		}
+
+		@Override
+		public boolean nextKeyValue() throws IOException, InterruptedException {
+			boolean next = reader.nextKeyValue();
+			if(next) {
+				counter.increment(1);
+			}
+			return next;
+		}
+
+		@Override
+		public Object getCurrentKey() throws IOException, InterruptedException {
+			return reader.getCurrentKey();
+		}
+
+		@Override
+		public Object getCurrentValue() throws IOException, InterruptedException {
+			return reader.getCurrentValue();
+		}
+
+		@Override
+		public float getProgress() throws IOException, InterruptedException {
+			return reader.getProgress();
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	static class CountingRecordWriter extends RecordWriter {
+
+		private final RecordWriter writer;
+		private final Counter counter;
+
+		CountingRecordWriter(RecordWriter writer, Counter counter) {
+			this.writer = writer;
+			this.counter = counter;
+		}
+
+		@Override
+		public void write(Object key, Object value) throws IOException, InterruptedException {
+			writer.write(key, value);
+			counter.increment(1);
+		}
+
+		@Override
+		public void close(TaskAttemptContext context) throws IOException, InterruptedException {
+			writer.close(context);
+		}
+	}
+}
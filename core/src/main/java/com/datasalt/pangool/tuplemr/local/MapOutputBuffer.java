@@ -0,0 +1,279 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.local;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.OutputCommitter;
+import org.apache.hadoop.mapreduce.Partitioner;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.util.Progress;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Collects the output of a map task: serializes and partitions it, and when
+ * the buffer is full sorts it with the sort comparator, runs the combiner and
+ * spills it to a local file, one {@link SortedRun} per partition. The last
+ * buffer is kept in memory if the memory of the job allows it.
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+class MapOutputBuffer extends RecordWriter<Object, Object> {
+
+	private final Configuration conf;
+	private final TaskAttemptID attemptId;
+	private final StatusReporter reporter;
+	private final OutputCommitter committer;
+	private final LocalTupleMREngine.JobRun job;
+	private final int numPartitions;
+	private final Partitioner partitioner;
+	private final RawComparator sortComparator;
+	private final SerializationFactory serializationFactory;
+	private final Serializer keySerializer;
+	private final Serializer valueSerializer;
+	private final Counter outputRecords;
+	private final Counter outputBytes;
+	private final Counter spilledRecords;
+
+	private final DataOutputBuffer data = new DataOutputBuffer();
+	// For each record: partition, key start and value start
+	private int[] partitions = new int[1024];
+	private int[] keyStarts = new int[1024];
+	private int[] valueStarts = new int[1024];
+	private int records = 0;
+
+	MapOutputBuffer(Configuration conf, TaskAttemptID attemptId, StatusReporter reporter,
+	    OutputCommitter committer, LocalTupleMREngine.JobRun job) throws IOException {
+		this.conf = conf;
+		this.attemptId = attemptId;
+		this.reporter = reporter;
+		this.committer = committer;
+		this.job = job;
+		this.numPartitions = job.numReduces;
+		this.partitioner = ReflectionUtils.newInstance(job.partitionerClass, conf);
+		this.sortComparator = job.newSortComparator(conf);
+		this.serializationFactory = new SerializationFactory(conf);
+		this.keySerializer = serializationFactory.getSerializer(job.mapOutputKeyClass);
+		this.valueSerializer = serializationFactory.getSerializer(job.mapOutputValueClass);
+		keySerializer.open(data);
+		valueSerializer.open(data);
+		this.outputRecords = reporter.getCounter(LocalTupleMREngine.TASK_COUNTERS, "MAP_OUTPUT_RECORDS");
+		this.outputBytes = reporter.getCounter(LocalTupleMREngine.TASK_COUNTERS, "MAP_OUTPUT_BYTES");
+		this.spilledRecords = reporter.getCounter(LocalTupleMREngine.TASK_COUNTERS, "SPILLED_RECORDS");
+	}
+
+	@Override
+	public void write(Object key, Object value) throws IOException, InterruptedException {
+		int partition = partitioner.getPartition(key, value, numPartitions);
+		if(partition < 0 || partition >= numPartitions) {
+			throw new IOException("Illegal partition for " + key + " (" + partition + ")");
+		}
+		if(records == partitions.length) {
+			int size = records * 2;
+			partitions = Arrays.copyOf(partitions, size);
+			keyStarts = Arrays.copyOf(keyStarts, size);
+			valueStarts = Arrays.copyOf(valueStarts, size);
+		}
+		int start = data.getLength();
+		partitions[records] = partition;
+		keyStarts[records] = start;
+		keySerializer.serialize(key);
+		valueStarts[records] = data.getLength();
+		valueSerializer.serialize(value);
+		records++;
+		outputRecords.increment(1);
+		outputBytes.increment(data.getLength() - start);
+		if(data.getLength() + records * 12 >= job.sortBufferSize) {
+			spill(false);
+		}
+	}
+
+	private int valueEnd(int record) {
+		return record + 1 < records ? keyStarts[record + 1] : data.getLength();
+	}
+
+	private void spill(boolean last) throws IOException, InterruptedException {
+		if(records == 0) {
+			return;
+		}
+		Integer[] order = new Integer[records];
+		for(int i = 0; i < records; i++) {
+			order[i] = i;
+		}
+		final byte[] bytes = data.getData();
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer r1, Integer r2) {
+				if(partitions[r1] != partitions[r2]) {
+					return partitions[r1] < partitions[r2] ? -1 : 1;
+				}
+				return sortComparator.compare(bytes, keyStarts[r1], valueStarts[r1] - keyStarts[r1], bytes,
+				    keyStarts[r2], valueStarts[r2] - keyStarts[r2]);
+			}
+		});
+
+		// The last spill is written to memory and only to disk if the memory of the
+		// job is exhausted
+		File file = null;
+		DataOutputStream out;
+		if(last) {
+			out = new DataOutputBuffer();
+		} else {
+			file = job.newSpillFile();
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+		}
+		long[] starts = new long[numPartitions + 1];
+		int from = 0;
+		for(int partition = 0; partition < numPartitions; partition++) {
+			starts[partition] = out.size();
+			int to = from;
+			while(to < records && partitions[order[to]] == partition) {
+				to++;
+			}
+			if(job.combinerClass != null && to > from) {
+				combine(order, from, to, out);
+			} else {
+				for(int i = from; i < to; i++) {
+					int record = order[i];
+					SortedRun.writeRecord(out, bytes, keyStarts[record], valueStarts[record] - keyStarts[record],
+					    bytes, valueStarts[record], valueEnd(record) - valueStarts[record]);
+				}
+			}
+			from = to;
+		}
+		starts[numPartitions] = out.size();
+		out.close();
+		spilledRecords.increment(records);
+
+		if(last && !job.reserveMemory(out.size())) {
+			file = job.newSpillFile();
+			DataOutputStream fileOut = new DataOutputStream(new FileOutputStream(file));
+			fileOut.write(((DataOutputBuffer) out).getData(), 0, out.size());
+			fileOut.close();
+		}
+		for(int partition = 0; partition < numPartitions; partition++) {
+			long length = starts[partition + 1] - starts[partition];
+			if(length > 0) {
+				job.addRun(partition, file == null ? SortedRun.inMemory(((DataOutputBuffer) out).getData(),
+				    (int) starts[partition], (int) length) : SortedRun.inFile(file, starts[partition], length));
+			}
+		}
+		data.reset();
+		records = 0;
+	}
+
+	/**
+	 * Runs the combiner over the sorted records [from, to) of one partition, as
+	 * Hadoop does: grouping them with the sort comparator.
+	 */
+	private void combine(final Integer[] order, final int from, final int to, final DataOutputStream out)
+	    throws IOException, InterruptedException {
+		RawKeyValueIterator input = new RawKeyValueIterator() {
+
+			DataInputBuffer key = new DataInputBuffer();
+			DataInputBuffer value = new DataInputBuffer();
+			int current = from - 1;
+
+			@Override
+			public boolean next() throws IOException {
+				current++;
+				if(current >= to) {
+					return false;
+				}
+				int record = order[current];
+				key.reset(data.getData(), keyStarts[record], valueStarts[record] - keyStarts[record]);
+				value.reset(data.getData(), valueStarts[record], valueEnd(record) - valueStarts[record]);
+				return true;
+			}
+
+			@Override
+			public DataInputBuffer getKey() throws IOException {
+				return key;
+			}
+
+			@Override
+			public DataInputBuffer getValue() throws IOException {
+				return value;
+			}
+
+			@Override
+			public Progress getProgress() {
+				return null;
+			}
+
+			@Override
+			public void close() throws IOException {
+			}
+		};
+
+		final DataOutputBuffer keyBuffer = new DataOutputBuffer();
+		final DataOutputBuffer valueBuffer = new DataOutputBuffer();
+		final Serializer combinerKeySerializer = serializationFactory.getSerializer(job.mapOutputKeyClass);
+		final Serializer combinerValueSerializer = serializationFactory.getSerializer(job.mapOutputValueClass);
+		combinerKeySerializer.open(keyBuffer);
+		combinerValueSerializer.open(valueBuffer);
+		final Counter combineOutputRecords = reporter.getCounter(LocalTupleMREngine.TASK_COUNTERS,
+		    "COMBINE_OUTPUT_RECORDS");
+		RecordWriter writer = new RecordWriter() {
+			@Override
+			public void write(Object key, Object value) throws IOException {
+				keyBuffer.reset();
+				valueBuffer.reset();
+				combinerKeySerializer.serialize(key);
+				combinerValueSerializer.serialize(value);
+				SortedRun.writeRecord(out, keyBuffer.getData(), 0, keyBuffer.getLength(), valueBuffer.getData(), 0,
+				    valueBuffer.getLength());
+				combineOutputRecords.increment(1);
+			}
+
+			@Override
+			public void close(TaskAttemptContext context) throws IOException {
+			}
+		};
+
+		Reducer combiner = ReflectionUtils.newInstance(job.combinerClass, conf);
+		Reducer.Context context = combiner.new Context(conf, attemptId, input, new Counters().findCounter(
+		    LocalTupleMREngine.TASK_COUNTERS, "COMBINE_INPUT_GROUPS"), reporter.getCounter(
+		    LocalTupleMREngine.TASK_COUNTERS, "COMBINE_INPUT_RECORDS"), writer, committer, reporter, sortComparator,
+		    job.mapOutputKeyClass, job.mapOutputValueClass);
+		combiner.run(context);
+	}
+
+	@Override
+	public void close(TaskAttemptContext context) throws IOException, InterruptedException {
+		spill(true);
+		keySerializer.close();
+		valueSerializer.close();
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.local;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.mapred.RawKeyValueIterator;
+import org.apache.hadoop.util.Progress;
+
+/**
+ * Merges the {@link SortedRun}s of one partition in the order given by the
+ * sort comparator, as the input of a reducer. Records with equal keys are
+ * returned in the order of their runs.
+ */
+class MergedRunsIterator implements RawKeyValueIterator {
+
+	private final List<SortedRun.Reader> readers = new ArrayList<SortedRun.Reader>();
+	private final PriorityQueue<SortedRun.Reader> queue;
+	private final DataInputBuffer key = new DataInputBuffer();
+	private final DataInputBuffer value = new DataInputBuffer();
+	private final Progress progress = new Progress();
+	private SortedRun.Reader current;
+
+	MergedRunsIterator(List<SortedRun> runs, final RawComparator<?> comparator) throws IOException {
+		for(SortedRun run : runs) {
+			SortedRun.Reader reader = run.open();
+			reader.order = readers.size();
+			readers.add(reader);
+		}
+		queue = new PriorityQueue<SortedRun.Reader>(Math.max(1, runs.size()), new Comparator<SortedRun.Reader>() {
+			@Override
+			public int compare(SortedRun.Reader r1, SortedRun.Reader r2) {
+				int cmp = comparator.compare(r1.keyData, r1.keyStart, r1.keyLength, r2.keyData, r2.keyStart,
+				    r2.keyLength);
+				return cmp != 0 ? cmp : r1.order - r2.order;
+			}
+		});
+		for(SortedRun.Reader reader : readers) {
+			if(reader.next()) {
+				queue.add(reader);
+			}
+		}
+	}
+
+	@Override
+	public DataInputBuffer getKey() throws IOException {
+		return key;
+	}
+
+	@Override
+	public DataInputBuffer getValue() throws IOException {
+		return value;
+	}
+
+	@Override
+	public boolean next() throws IOException {
+		if(current != null && current.next()) {
+			queue.add(current);
+		}
+		current = queue.poll();
+		if(current == null) {
+			return false;
+		}
+		key.reset(current.keyData, current.keyStart, current.keyLength);
+		value.reset(current.valueData, current.valueStart, current.valueLength);
+		return true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		for(SortedRun.Reader reader : readers) {
+			reader.close();
+		}
+	}
+
+	@Override
+	public Progress getProgress() {
+		return progress;
+	}
+}
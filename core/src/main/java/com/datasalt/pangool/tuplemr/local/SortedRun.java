@@ -0,0 +1,143 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.local;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.WritableUtils;
+
+/**
+ * The map output records of one partition, sorted, either in memory or in a
+ * range of a local spill file. Each record is written as [vint key
+ * length][vint value length][key][value].
+ */
+class SortedRun {
+
+	private final byte[] data;
+	private final File file;
+	private final long start;
+	private final long length;
+
+	private SortedRun(byte[] data, File file, long start, long length) {
+		this.data = data;
+		this.file = file;
+		this.start = start;
+		this.length = length;
+	}
+
+	static SortedRun inMemory(byte[] data, int start, int length) {
+		return new SortedRun(data, null, start, length);
+	}
+
+	static SortedRun inFile(File file, long start, long length) {
+		return new SortedRun(null, file, start, length);
+	}
+
+	long getLength() {
+		return length;
+	}
+
+	static void writeRecord(DataOutput out, byte[] key, int keyStart, int keyLength, byte[] value,
+	    int valueStart, int valueLength) throws IOException {
+		WritableUtils.writeVInt(out, keyLength);
+		WritableUtils.writeVInt(out, valueLength);
+		out.write(key, keyStart, keyLength);
+		out.write(value, valueStart, valueLength);
+	}
+
+	Reader open() throws IOException {
+		return new Reader();
+	}
+
+	/**
+	 * Reads the records of the run. The current key and value are valid until
+	 * the next call to {@link #next()}.
+	 */
+	class Reader {
+
+		private final DataInput in;
+		private final InputStream stream;
+		private long remaining = length;
+		// Position of the run among the ones being merged
+		int order;
+
+		byte[] keyData;
+		int keyStart;
+		int keyLength;
+		byte[] valueData;
+		int valueStart;
+		int valueLength;
+
+		private Reader() throws IOException {
+			if(data != null) {
+				DataInputBuffer buffer = new DataInputBuffer();
+				buffer.reset(data, (int) start, (int) length);
+				in = buffer;
+				stream = null;
+				keyData = data;
+				valueData = data;
+			} else {
+				FileInputStream fileIn = new FileInputStream(file);
+				IOUtils.skipFully(fileIn, start);
+				stream = new BufferedInputStream(fileIn, 64 * 1024);
+				in = new DataInputStream(stream);
+				keyData = new byte[64];
+				valueData = new byte[64];
+			}
+		}
+
+		boolean next() throws IOException {
+			if(remaining <= 0) {
+				return false;
+			}
+			keyLength = WritableUtils.readVInt(in);
+			valueLength = WritableUtils.readVInt(in);
+			remaining -= WritableUtils.getVIntSize(keyLength) + WritableUtils.getVIntSize(valueLength) + keyLength
+			    + valueLength;
+			if(data != null) {
+				DataInputBuffer buffer = (DataInputBuffer) in;
+				keyStart = buffer.getPosition();
+				valueStart = keyStart + keyLength;
+				buffer.skip(keyLength + valueLength);
+			} else {
+				if(keyData.length < keyLength) {
+					keyData = new byte[Math.max(keyLength, keyData.length * 2)];
+				}
+				if(valueData.length < valueLength) {
+					valueData = new byte[Math.max(valueLength, valueData.length * 2)];
+				}
+				in.readFully(keyData, 0, keyLength);
+				in.readFully(valueData, 0, valueLength);
+			}
+			return true;
+		}
+
+		void close() throws IOException {
+			if(stream != null) {
+				stream.close();
+			}
+		}
+	}
+}
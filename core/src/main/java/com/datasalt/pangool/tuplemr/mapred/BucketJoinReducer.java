@@ -0,0 +1,260 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.mapred;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.ReduceContext;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import com.datasalt.pangool.io.DatumWrapper;
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Tuple;
+import com.datasalt.pangool.io.TupleFile;
+import com.datasalt.pangool.io.ViewTuple;
+import com.datasalt.pangool.tuplemr.IterativeTupleMRDriver;
+import com.datasalt.pangool.tuplemr.SerializationInfo;
+import com.datasalt.pangool.tuplemr.TupleMRConfig;
+import com.datasalt.pangool.tuplemr.TupleMRException;
+import com.datasalt.pangool.tuplemr.TupleReducer;
+import com.datasalt.pangool.tuplemr.TupleReducer.TupleMRContext;
+import com.datasalt.pangool.utils.InstancesDistributor;
+
+/**
+ * The {@link Reducer} of the iterations of an {@link IterativeTupleMRDriver}.
+ * Each reduce task reads the bucket of the static tuples with its same
+ * partition number, a {@link TupleFile} sorted by the group-by fields, and
+ * merge-joins it with the groups it receives: the {@link TupleReducer} gets the
+ * static tuples of the group first and then the shuffled ones. Static groups
+ * without shuffled tuples are reduced too, with their static tuples only. A
+ * missing or empty bucket means that the partition has no static tuples.
+ * <p>
+ * The static tuples of a group are kept in memory while it is reduced.
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class BucketJoinReducer<OUTPUT_KEY, OUTPUT_VALUE> extends
+    Reducer<DatumWrapper<ITuple>, NullWritable, OUTPUT_KEY, OUTPUT_VALUE> {
+
+	/**
+	 * The folder with the buckets, one per reduce task.
+	 */
+	public final static String CONF_BUCKETS = BucketJoinReducer.class.getName() + ".buckets";
+
+	private TupleReducer<OUTPUT_KEY, OUTPUT_VALUE>.Collector collector;
+	private TupleIterator<OUTPUT_KEY, OUTPUT_VALUE> tupleIterator;
+	private ViewTuple groupTuple; // Tuple view over the group
+	private TupleMRContext context;
+	private TupleReducer<OUTPUT_KEY, OUTPUT_VALUE> handler;
+
+	private TupleFile.Reader bucket;
+	private Schema staticSchema;
+	private int[] staticGroupIndexes;
+	private ViewTuple staticGroupTuple;
+	// The static tuples of the current group, followed by the first tuple of the
+	// next group if there is one
+	private final List<ITuple> staticTuples = new ArrayList<ITuple>();
+	private int numStaticTuples;
+	private boolean hasNextStaticGroup;
+	private final JoinedTuples joinedTuples = new JoinedTuples();
+
+	/**
+	 * The static tuples of a group followed by the shuffled ones.
+	 */
+	private class JoinedTuples implements Iterator<ITuple>, Iterable<ITuple> {
+
+		private int position;
+		private int size;
+		private Iterator<ITuple> rest;
+
+		void reset(int size, Iterator<ITuple> rest) {
+			this.position = 0;
+			this.size = size;
+			this.rest = rest;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return position < size || rest.hasNext();
+		}
+
+		@Override
+		public ITuple next() {
+			return (position < size) ? staticTuples.get(position++) : rest.next();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Iterator<ITuple> iterator() {
+			return this;
+		}
+	}
+
+	public void setup(Context context) throws IOException, InterruptedException {
+		super.setup(context);
+		try {
+			TupleMRConfig tupleMRConfig = TupleMRConfig.get(context.getConfiguration());
+			SerializationInfo serInfo = tupleMRConfig.getSerializationInfo();
+			this.groupTuple = new ViewTuple(serInfo.getGroupSchema(), serInfo.getGroupSchemaIndexTranslation(0));
+			this.tupleIterator = new TupleIterator<OUTPUT_KEY, OUTPUT_VALUE>(context);
+
+			// The bucket has the name of the output file of the same partition
+			Path bucketPath = new Path(context.getConfiguration().get(CONF_BUCKETS),
+			    FileOutputFormat.getUniqueFile(context, "part", ""));
+			FileSystem fs = bucketPath.getFileSystem(context.getConfiguration());
+			// A partition without static tuples has no bucket, or an empty one
+			if(fs.exists(bucketPath) && fs.getFileStatus(bucketPath).getLen() > 0) {
+				bucket = new TupleFile.Reader(fs, context.getConfiguration(), bucketPath);
+				staticSchema = bucket.getSchema();
+				List<String> groupFields = tupleMRConfig.getGroupByFields();
+				staticGroupIndexes = new int[groupFields.size()];
+				for(int i = 0; i < staticGroupIndexes.length; i++) {
+					staticGroupIndexes[i] = staticSchema.getFieldPos(groupFields.get(i));
+				}
+				staticGroupTuple = new ViewTuple(serInfo.getGroupSchema(), staticGroupIndexes);
+				staticTuples.add(new Tuple(staticSchema));
+				if(bucket.next(staticTuples.get(0))) {
+					readStaticGroup();
+				}
+			}
+
+			String fileName = context.getConfiguration().get(SimpleReducer.CONF_REDUCER_HANDLER);
+			handler = InstancesDistributor.loadInstance(context.getConfiguration(), TupleReducer.class, fileName,
+			    true);
+			this.collector = handler.new Collector(
+			    (ReduceContext<DatumWrapper<ITuple>, NullWritable, Object, Object>) context);
+			this.context = new TupleMRContext(
+			    (ReduceContext<DatumWrapper<ITuple>, NullWritable, Object, Object>) context, tupleMRConfig);
+			handler.setup(this.context, collector);
+		} catch(TupleMRException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void cleanup(Context context) throws IOException, InterruptedException {
+		try {
+			// The static groups after the last shuffled group
+			while(numStaticTuples > 0) {
+				reduceStaticGroup();
+			}
+			if(bucket != null) {
+				bucket.close();
+			}
+			handler.cleanup(this.context, collector);
+			collector.close();
+			super.cleanup(context);
+		} catch(TupleMRException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public final void reduce(DatumWrapper<ITuple> key, Iterable<NullWritable> values, Context context)
+	    throws IOException, InterruptedException {
+		try {
+			tupleIterator.setIterator(values.iterator());
+			groupTuple.setContained(key.datum());
+			int comparison = -1;
+			while(numStaticTuples > 0 && (comparison = compareToGroup(staticTuples.get(0))) < 0) {
+				reduceStaticGroup();
+			}
+			if(numStaticTuples > 0 && comparison == 0) {
+				joinedTuples.reset(numStaticTuples, tupleIterator);
+				handler.reduce(groupTuple, joinedTuples, this.context, collector);
+				nextStaticGroup();
+			} else {
+				handler.reduce(groupTuple, tupleIterator, this.context, collector);
+			}
+		} catch(TupleMRException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private void reduceStaticGroup() throws IOException, InterruptedException, TupleMRException {
+		staticGroupTuple.setContained(staticTuples.get(0), staticGroupIndexes);
+		joinedTuples.reset(numStaticTuples, Collections.<ITuple> emptyList().iterator());
+		handler.reduce(staticGroupTuple, joinedTuples, this.context, collector);
+		nextStaticGroup();
+	}
+
+	/**
+	 * Moves the first tuple of the next group to the start, and reads the rest
+	 * of the group.
+	 */
+	private void nextStaticGroup() throws IOException {
+		if(!hasNextStaticGroup) {
+			numStaticTuples = 0;
+			return;
+		}
+		Collections.swap(staticTuples, 0, numStaticTuples);
+		readStaticGroup();
+	}
+
+	/**
+	 * Reads the tuples of the bucket with the same group fields as the first one.
+	 */
+	private void readStaticGroup() throws IOException {
+		int n = 1;
+		hasNextStaticGroup = false;
+		while(true) {
+			if(staticTuples.size() == n) {
+				staticTuples.add(new Tuple(staticSchema));
+			}
+			if(!bucket.next(staticTuples.get(n))) {
+				break;
+			}
+			if(compareStatic(staticTuples.get(0), staticTuples.get(n)) != 0) {
+				hasNextStaticGroup = true;
+				break;
+			}
+			n++;
+		}
+		numStaticTuples = n;
+	}
+
+	private int compareStatic(ITuple tuple1, ITuple tuple2) {
+		for(int index : staticGroupIndexes) {
+			int comparison = SortComparator.compareObjects(tuple1.get(index), tuple2.get(index));
+			if(comparison != 0) {
+				return comparison;
+			}
+		}
+		return 0;
+	}
+
+	private int compareToGroup(ITuple staticTuple) {
+		for(int i = 0; i < staticGroupIndexes.length; i++) {
+			int comparison = SortComparator.compareObjects(staticTuple.get(staticGroupIndexes[i]), groupTuple.get(i));
+			if(comparison != 0) {
+				return comparison;
+			}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.mapred;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.MapContext;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
+
+/**
+ * Runs a chain of {@link MapOnlyMapper}s inside another task, passing the records from one to the next in memory:
+ * what each mapper writes to its context is given to the map() of the next one, and what the last one writes goes to
+ * the given output. This fuses map-only stages with the reducer before them or with the mapper after them, without
+ * writing intermediate files.
+ * <p>
+ * The mappers share the configuration, counters and output committer of the task.
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class ChainedMappers {
+
+	private final List<MapOnlyMapper> mappers;
+	private final Mapper.Context[] contexts;
+
+	/**
+	 * @param mappers
+	 *          the chain of mappers, in order
+	 * @param task
+	 *          the context of the task where the chain runs
+	 * @param output
+	 *          where the records written by the last mapper go
+	 */
+	public ChainedMappers(List<MapOnlyMapper> mappers, final TaskInputOutputContext task, RecordWriter output)
+	    throws IOException, InterruptedException {
+		this.mappers = mappers;
+		this.contexts = new Mapper.Context[mappers.size()];
+		InputSplit split = (task instanceof MapContext) ? ((MapContext) task).getInputSplit() : null;
+		StatusReporter reporter = new StatusReporter() {
+			@Override
+			public Counter getCounter(Enum<?> name) {
+				return task.getCounter(name);
+			}
+
+			@Override
+			public Counter getCounter(String group, String name) {
+				return task.getCounter(group, name);
+			}
+
+			@Override
+			public void progress() {
+				task.progress();
+			}
+
+			@Override
+			public void setStatus(String status) {
+				task.setStatus(status);
+			}
+		};
+		for(int i = mappers.size() - 1; i >= 0; i--) {
+			RecordWriter writer = (i == mappers.size() - 1) ? output : new ChainWriter(i + 1);
+			contexts[i] = mappers.get(i).new Context(task.getConfiguration(), task.getTaskAttemptID(), null, writer,
+			    task.getOutputCommitter(), reporter, split);
+		}
+	}
+
+	/**
+	 * Calls setup() of the mappers, from the last to the first, so each one can write to the next in its setup().
+	 */
+	public void setup() throws IOException, InterruptedException {
+		for(int i = mappers.size() - 1; i >= 0; i--) {
+			mappers.get(i).setup(contexts[i]);
+		}
+	}
+
+	/**
+	 * Passes a record to the first mapper.
+	 */
+	public void write(Object key, Object value) throws IOException, InterruptedException {
+		mappers.get(0).map(key, value, contexts[0]);
+	}
+
+	/**
+	 * Calls cleanup() of the mappers, in order, so what a mapper writes in its cleanup() still goes through the next
+	 * ones.
+	 */
+	public void cleanup() throws IOException, InterruptedException {
+		for(int i = 0; i < mappers.size(); i++) {
+			mappers.get(i).cleanup(contexts[i]);
+		}
+	}
+
+	private class ChainWriter extends RecordWriter {
+
+		private final int next;
+
+		ChainWriter(int next) {
+			this.next = next;
+		}
+
+		@Override
+		public void write(Object key, Object value) throws IOException, InterruptedException {
+			mappers.get(next).map(key, value, contexts[next]);
+		}
+
+		@Override
+		public void close(TaskAttemptContext context) {
+		}
+	}
+}
@@ -0,0 +1,31 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.mapred;
+
+import com.datasalt.pangool.tuplemr.SharedScanBuilder;
+
+/**
+ * Group comparator of the jobs built with {@link SharedScanBuilder}: tuples of
+ * different logical jobs are never in the same group, and tuples of the same
+ * one are grouped with the {@link GroupComparator} of their logical job.
+ */
+public class SharedScanGroupComparator extends SharedScanSortComparator {
+
+	@Override
+	protected SortComparator newQueryComparator() {
+		return new GroupComparator();
+	}
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.mapred;
+
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+import com.datasalt.pangool.io.DatumWrapper;
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.tuplemr.SharedScanBuilder;
+import com.datasalt.pangool.tuplemr.TupleMRConfig;
+import com.datasalt.pangool.tuplemr.TupleMRException;
+
+/**
+ * Partitioner of the jobs built with {@link SharedScanBuilder}. Each tuple is
+ * partitioned with the {@link TupleHashPartitioner} of its logical job, shifted
+ * by the index of the logical job so that the groups of logical jobs with few
+ * groups don't all go to the same reducers.
+ */
+public class SharedScanPartitioner extends Partitioner<DatumWrapper<ITuple>, NullWritable>
+    implements Configurable {
+
+	private Configuration conf;
+	private TupleHashPartitioner[] partitioners;
+	private Map<String, Integer> queriesBySchema;
+
+	@Override
+	public int getPartition(DatumWrapper<ITuple> key, NullWritable value, int numPartitions) {
+		if(numPartitions == 1) {
+			return 0;
+		}
+		String schemaName = key.datum().getSchema().getName();
+		Integer query = queriesBySchema.get(schemaName);
+		if(query == null) {
+			throw new RuntimeException("Schema name '" + schemaName
+			    + "' is unknown. Known schemas are : " + queriesBySchema.keySet());
+		}
+		return (partitioners[query].getPartition(key, value, numPartitions) + query) % numPartitions;
+	}
+
+	@Override
+	public Configuration getConf() {
+		return conf;
+	}
+
+	@Override
+	public void setConf(Configuration conf) {
+		if(conf != null) {
+			this.conf = conf;
+			try {
+				List<TupleMRConfig> queries = TupleMRConfig.getQueries(conf);
+				partitioners = new TupleHashPartitioner[queries.size()];
+				for(int i = 0; i < partitioners.length; i++) {
+					partitioners[i] = new TupleHashPartitioner();
+					partitioners[i].setConf(TupleMRConfig.getQueryConf(conf, i));
+				}
+				queriesBySchema = TupleMRConfig.getQueriesBySchemaName(queries);
+			} catch(TupleMRException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.mapred;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.ReduceContext;
+import org.apache.hadoop.mapreduce.Reducer;
+
+import com.datasalt.pangool.io.DatumWrapper;
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.ViewTuple;
+import com.datasalt.pangool.tuplemr.SerializationInfo;
+import com.datasalt.pangool.tuplemr.SharedScanBuilder;
+import com.datasalt.pangool.tuplemr.TupleMRConfig;
+import com.datasalt.pangool.tuplemr.TupleMRException;
+import com.datasalt.pangool.tuplemr.TupleReducer;
+import com.datasalt.pangool.tuplemr.TupleReducer.TupleMRContext;
+import com.datasalt.pangool.utils.InstancesDistributor;
+
+/**
+ * The {@link Reducer} of the jobs built with {@link SharedScanBuilder}. Groups
+ * arrive sorted by logical job, and each one is given to the
+ * {@link TupleReducer} of its logical job, as {@link SimpleReducer} does in a
+ * regular job. Every {@link TupleReducer} is set up and cleaned up once per
+ * task, even if it receives no groups. The named outputs are shared by all of
+ * them, so the same named output can be written by several logical jobs.
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class SharedScanReducer extends Reducer<DatumWrapper<ITuple>, NullWritable, Object, Object> {
+
+	public final static String CONF_REDUCER_HANDLERS = SharedScanReducer.class.getName()
+	    + ".reducer.handlers";
+
+	private static class Query {
+
+		TupleMRConfig tupleMRConfig;
+		SerializationInfo serInfo;
+		boolean isMultipleSources;
+		ViewTuple groupTuple;
+		TupleReducer handler;
+		TupleReducer.Collector collector;
+		TupleMRContext context;
+	}
+
+	private final List<Query> queries = new ArrayList<Query>();
+	private Map<String, Integer> queriesBySchema;
+	private TupleIterator<Object, Object> tupleIterator;
+
+	@Override
+	public void setup(Context context) throws IOException, InterruptedException {
+		super.setup(context);
+		try {
+			List<TupleMRConfig> configs = TupleMRConfig.getQueries(context.getConfiguration());
+			String[] handlerFiles = context.getConfiguration().getStrings(CONF_REDUCER_HANDLERS);
+			queriesBySchema = TupleMRConfig.getQueriesBySchemaName(configs);
+			tupleIterator = new TupleIterator<Object, Object>(context);
+			ReduceContext<DatumWrapper<ITuple>, NullWritable, Object, Object> reduceContext = context;
+
+			for(int i = 0; i < configs.size(); i++) {
+				Query query = new Query();
+				query.tupleMRConfig = configs.get(i);
+				query.serInfo = query.tupleMRConfig.getSerializationInfo();
+				query.isMultipleSources = query.tupleMRConfig.getNumIntermediateSchemas() >= 2;
+				if(!query.isMultipleSources) {
+					query.groupTuple = new ViewTuple(query.serInfo.getGroupSchema(),
+					    query.serInfo.getGroupSchemaIndexTranslation(0));
+				} else {
+					query.groupTuple = new ViewTuple(query.serInfo.getGroupSchema());
+				}
+				query.handler = InstancesDistributor.loadInstance(context.getConfiguration(), TupleReducer.class,
+				    handlerFiles[i], true);
+				// Only the first collector opens the named outputs, that the others write to
+				query.collector = queries.isEmpty() ? query.handler.new Collector(reduceContext)
+				    : query.handler.new Collector(reduceContext, queries.get(0).collector);
+				query.context = new TupleMRContext(reduceContext, query.tupleMRConfig);
+				queries.add(query);
+			}
+			for(Query query : queries) {
+				query.handler.setup(query.context, query.collector);
+			}
+		} catch(TupleMRException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public void cleanup(Context context) throws IOException, InterruptedException {
+		try {
+			for(Query query : queries) {
+				query.handler.cleanup(query.context, query.collector);
+			}
+			// After every cleanup(), as the named outputs are shared
+			for(Query query : queries) {
+				query.collector.close();
+			}
+			super.cleanup(context);
+		} catch(TupleMRException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	public final void reduce(DatumWrapper<ITuple> key, Iterable<NullWritable> values, Context context)
+	    throws IOException, InterruptedException {
+		try {
+			tupleIterator.setIterator(values.iterator());
+			ITuple firstTupleGroup = key.datum();
+			String schemaName = firstTupleGroup.getSchema().getName();
+			Query query = queries.get(queriesBySchema.get(schemaName));
+
+			// A view is created over the first tuple to give the user the group
+			// fields
+			if(query.isMultipleSources) {
+				int schemaId = query.tupleMRConfig.getSchemaIdByName(schemaName);
+				int[] indexTranslation = query.serInfo.getGroupSchemaIndexTranslation(schemaId);
+				query.groupTuple.setContained(firstTupleGroup, indexTranslation);
+			} else {
+				query.groupTuple.setContained(firstTupleGroup);
+			}
+			query.handler.reduce(query.groupTuple, tupleIterator, query.context, query.collector);
+		} catch(TupleMRException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
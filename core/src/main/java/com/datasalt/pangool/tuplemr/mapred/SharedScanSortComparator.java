@@ -0,0 +1,100 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.mapred;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.tuplemr.SharedScanBuilder;
+import com.datasalt.pangool.tuplemr.TupleMRConfig;
+
+/**
+ * Sort comparator of the jobs built with {@link SharedScanBuilder}. Tuples are
+ * sorted by logical job first, as serialized by
+ * {@link com.datasalt.pangool.tuplemr.serialization.SharedScanSerializer},
+ * and then with the {@link SortComparator} of their logical job.
+ */
+public class SharedScanSortComparator implements RawComparator<ITuple>, Configurable {
+
+	protected Configuration conf;
+	protected SortComparator[] comparators;
+	protected Map<String, Integer> queriesBySchema;
+
+	/**
+	 * The comparator used inside each logical job.
+	 */
+	protected SortComparator newQueryComparator() {
+		return new SortComparator();
+	}
+
+	@Override
+	public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+		try {
+			int query1 = WritableComparator.readVInt(b1, s1);
+			int query2 = WritableComparator.readVInt(b2, s2);
+			if(query1 != query2) {
+				return (query1 < query2) ? -1 : 1;
+			}
+			int size1 = WritableUtils.decodeVIntSize(b1[s1]);
+			int size2 = WritableUtils.decodeVIntSize(b2[s2]);
+			return comparators[query1].compare(b1, s1 + size1, l1 - size1, b2, s2 + size2, l2 - size2);
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Never called in MapRed jobs. Just for completion and test purposes
+	 */
+	@Override
+	public int compare(ITuple w1, ITuple w2) {
+		int query1 = queriesBySchema.get(w1.getSchema().getName());
+		int query2 = queriesBySchema.get(w2.getSchema().getName());
+		if(query1 != query2) {
+			return (query1 < query2) ? -1 : 1;
+		}
+		return comparators[query1].compare(w1, w2);
+	}
+
+	@Override
+	public Configuration getConf() {
+		return conf;
+	}
+
+	@Override
+	public void setConf(Configuration conf) {
+		if(conf != null) {
+			this.conf = conf;
+			List<TupleMRConfig> queries = new ArrayList<TupleMRConfig>();
+			comparators = new SortComparator[TupleMRConfig.getNumQueries(conf)];
+			for(int i = 0; i < comparators.length; i++) {
+				comparators[i] = newQueryComparator();
+				comparators[i].setConf(TupleMRConfig.getQueryConf(conf, i));
+				queries.add(comparators[i].getConfig());
+			}
+			queriesBySchema = TupleMRConfig.getQueriesBySchemaName(queries);
+		}
+	}
+}
@@ -19,6 +19,11 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import com.datasalt.pangool.utils.InstancesDistributor;
 import org.apache.hadoop.conf.Configuration;
@@ -35,6 +40,9 @@ import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
  * An {@link InputFormat} that delegates behavior of paths to multiple other
  * InputFormats.
  * <p>
+ * The splits of the different inputs are computed concurrently, by up to
+ * {@link #CONF_SPLIT_THREADS} threads, so that the time spent listing the
+ * files of many inputs depends on the slowest input rather than on their sum.
  * 
  * @see PangoolMultipleInputs#addInputPath(Job, Path, InputFormat,
  *      org.apache.hadoop.mapreduce.Mapper)
@@ -42,31 +50,88 @@ import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 @SuppressWarnings("rawtypes")
 public class DelegatingInputFormat<K, V> extends InputFormat<K, V> {
 
-	@SuppressWarnings("unchecked")
+	public final static String CONF_SPLIT_THREADS = "pangool.input.split.threads";
+	public final static int DEFAULT_SPLIT_THREADS = 16;
+
+	/**
+	 * Sets the maximum number of inputs whose splits are computed concurrently.
+	 * 1 computes them sequentially.
+	 */
+	public static void setSplitThreads(Job job, int threads) {
+		job.getConfiguration().setInt(CONF_SPLIT_THREADS, threads);
+	}
+
 	public List<InputSplit> getSplits(JobContext job) throws IOException,
 	    InterruptedException {
-		Configuration conf = job.getConfiguration();
-		Job jobCopy = new Job(conf);
+		final Configuration conf = job.getConfiguration();
 		List<InputSplit> splits = new ArrayList<InputSplit>();
 
 		Map<Path, String> formatMap = PangoolMultipleInputs.getInputFormatMap(job);
 		Map<Path, String> mapperMap = PangoolMultipleInputs.getInputProcessorFileMap(job);
 
-		for(Map.Entry<Path, String> entry : formatMap.entrySet()) {
-			FileInputFormat.setInputPaths(jobCopy, entry.getKey());
-			InputFormat inputFormat = InstancesDistributor.loadInstance(conf, InputFormat.class,
-          entry.getValue(), true);
-			PangoolMultipleInputs.setSpecificInputContext(jobCopy.getConfiguration(), entry.getValue());
-			List<InputSplit> pathSplits = inputFormat.getSplits(jobCopy);
-			for(InputSplit pathSplit : pathSplits) {
-				splits.add(new TaggedInputSplit(pathSplit, conf, entry.getValue(), mapperMap
-				    .get(entry.getKey())));
+		List<Map.Entry<Path, String>> inputs = new ArrayList<Map.Entry<Path, String>>(formatMap.entrySet());
+		List<List<InputSplit>> inputSplits = new ArrayList<List<InputSplit>>();
+		int threads = Math.min(inputs.size(), conf.getInt(CONF_SPLIT_THREADS, DEFAULT_SPLIT_THREADS));
+		if(threads <= 1) {
+			for(Map.Entry<Path, String> input : inputs) {
+				inputSplits.add(getSplits(conf, input.getKey(), input.getValue()));
+			}
+		} else {
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			try {
+				List<Future<List<InputSplit>>> futures = new ArrayList<Future<List<InputSplit>>>();
+				for(final Map.Entry<Path, String> input : inputs) {
+					futures.add(executor.submit(new Callable<List<InputSplit>>() {
+						@Override
+						public List<InputSplit> call() throws Exception {
+							return getSplits(conf, input.getKey(), input.getValue());
+						}
+					}));
+				}
+				for(Future<List<InputSplit>> future : futures) {
+					inputSplits.add(future.get());
+				}
+			} catch(ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof IOException) {
+					throw (IOException) cause;
+				} else if(cause instanceof InterruptedException) {
+					throw (InterruptedException) cause;
+				} else if(cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				}
+				throw new IOException(cause);
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+
+		for(int i = 0; i < inputs.size(); i++) {
+			Map.Entry<Path, String> input = inputs.get(i);
+			for(InputSplit pathSplit : inputSplits.get(i)) {
+				splits.add(new TaggedInputSplit(pathSplit, conf, input.getValue(), mapperMap
+				    .get(input.getKey())));
 			}
 		}
 
 		return splits;
 	}
 
+	/**
+	 * Computes the splits of one input. Each input uses its own copy of the
+	 * Configuration, with its input path and specific context.
+	 */
+	@SuppressWarnings("unchecked")
+	private List<InputSplit> getSplits(Configuration conf, Path path, String inputFormatFile)
+	    throws IOException, InterruptedException {
+		Job jobCopy = new Job(conf);
+		FileInputFormat.setInputPaths(jobCopy, path);
+		InputFormat inputFormat = InstancesDistributor.loadInstance(jobCopy.getConfiguration(),
+		    InputFormat.class, inputFormatFile, true);
+		PangoolMultipleInputs.setSpecificInputContext(jobCopy.getConfiguration(), inputFormatFile);
+		return inputFormat.getSplits(jobCopy);
+	}
+
 	@Override
 	public RecordReader<K, V> createRecordReader(InputSplit split,
 	    TaskAttemptContext context) throws IOException, InterruptedException {
@@ -16,6 +16,8 @@
 package com.datasalt.pangool.tuplemr.mapred.lib.input;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.datasalt.pangool.utils.InstancesDistributor;
 import org.apache.hadoop.fs.Path;
@@ -40,8 +42,20 @@ public class DelegatingMapper extends Mapper {
 	@Override
 	public void run(Context context) throws IOException, InterruptedException {
 		// Find the InputProcessor from the TaggedInputSplit.
+		TaggedInputSplit inputSplit = (TaggedInputSplit) context.getInputSplit();
+		int threads = MultithreadedMapRunner.getThreads(context.getConfiguration());
+		if(threads > 1) {
+			// One instance of the mapper per thread
+			List<Mapper> mappers = new ArrayList<Mapper>();
+			for(int i = 0; i < threads; i++) {
+				mappers.add(InstancesDistributor.loadInstance(context.getConfiguration(), Mapper.class,
+				    inputSplit.getInputProcessorFile(), true));
+			}
+			log.info("Running " + threads + " mapper threads.");
+			new MultithreadedMapRunner(context).run(mappers);
+			return;
+		}
 		if(delegate == null) {
-			TaggedInputSplit inputSplit = (TaggedInputSplit) context.getInputSplit();
 			log.info("[profile] Got input split. Going to look at DC.");
 			delegate = InstancesDistributor.loadInstance(context.getConfiguration(),
           Mapper.class, inputSplit.getInputProcessorFile(), true);
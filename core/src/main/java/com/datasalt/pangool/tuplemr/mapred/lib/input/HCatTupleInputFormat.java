@@ -29,10 +29,13 @@ import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hcatalog.common.HCatConstants;
+import org.apache.hcatalog.common.HCatUtil;
 import org.apache.hcatalog.data.HCatRecord;
 import org.apache.hcatalog.data.schema.HCatFieldSchema;
 import org.apache.hcatalog.data.schema.HCatSchema;
 import org.apache.hcatalog.mapreduce.HCatInputFormat;
+import org.apache.hcatalog.mapreduce.InputJobInfo;
 
 import com.datasalt.pangool.io.ITuple;
 import com.datasalt.pangool.io.Schema;
@@ -54,6 +57,11 @@ import com.datasalt.pangool.io.Tuple;
  *   <li>BOOLEAN: BOOLEAN</li>
  *   <li>TINYINT: INT</li>
  * </ul>
+ * <p>
+ * A partition filter and a list of projected columns can be provided. The filter is pushed down to HCatalog so
+ * non-matching partitions are never read, and the projection is set as HCatalog's output schema so only the needed
+ * columns are deserialized. The Pangool schema is then derived from the projected columns.
+ * <p>
  * See: http://incubator.apache.org/hcatalog/docs/r0.4.0/inputoutput.html
  */
 @SuppressWarnings("serial")
@@ -63,44 +71,86 @@ public class HCatTupleInputFormat extends InputFormat<ITuple, NullWritable> impl
 	private Schema pangoolSchema;
 
 	public HCatTupleInputFormat(String dbName, String tableName, Configuration conf) throws IOException {
-		HCatInputFormat.setInput(conf, dbName, tableName);
+		this(dbName, tableName, null, null, conf);
+	}
+
+	/**
+	 * Reads only the partitions of the table that match the given filter and only the given columns of it.
+	 * 
+	 * @param partitionFilter
+	 *          HCatalog partition filter expression (i.e. "dt >= \"2012-01-01\""). Partitions not matching it are
+	 *          pruned before computing the splits. Can be null, meaning all partitions.
+	 * @param projectedColumns
+	 *          The columns to read, in the order they will have in the resultant Pangool schema. Columns not listed
+	 *          here are not deserialized by HCatalog. Can be null, meaning all columns.
+	 */
+	public HCatTupleInputFormat(String dbName, String tableName, String partitionFilter,
+	    List<String> projectedColumns, Configuration conf) throws IOException {
+		HCatInputFormat.setInput(conf, InputJobInfo.create(dbName, tableName, partitionFilter));
 		schema = HCatInputFormat.getTableSchema(conf);
+		if(projectedColumns != null) {
+			schema = project(schema, projectedColumns, dbName + "." + tableName);
+			// Same than HCatInputFormat.setOutputSchema(), which needs a Job instead of a Configuration
+			conf.set(HCatConstants.HCAT_KEY_OUTPUT_SCHEMA, HCatUtil.serialize(schema));
+		}
+		this.pangoolSchema = toPangoolSchema(tableName, schema);
+	}
+
+	/**
+	 * The schema with only the given columns of the table, in the given order.
+	 */
+	static HCatSchema project(HCatSchema tableSchema, List<String> projectedColumns, String tableName)
+	    throws IOException {
+		List<HCatFieldSchema> projectedFields = new ArrayList<HCatFieldSchema>();
+		for(String column : projectedColumns) {
+			// HCatSchema.get() fails with a NullPointerException on unknown columns
+			if(tableSchema.getPosition(column) == null) {
+				throw new IllegalArgumentException("Column '" + column + "' not present in table " + tableName
+				    + " with schema " + tableSchema.getFieldNames());
+			}
+			projectedFields.add(tableSchema.get(column));
+		}
+		return new HCatSchema(projectedFields);
+	}
+
+	/**
+	 * A Pangool schema with the same name than the HCatalog table name and the fields of the given HCatalog schema.
+	 */
+	static Schema toPangoolSchema(String tableName, HCatSchema schema) {
 		List<Field> pangoolSchemaFields = new ArrayList<Field>();
 		for(HCatFieldSchema fieldSchema : schema.getFields()) {
-			switch(fieldSchema.getType()) {
-			case BIGINT:
-				pangoolSchemaFields.add(Field.create(fieldSchema.getName(), Schema.Field.Type.LONG));
-				break;
-			case BOOLEAN:
-				pangoolSchemaFields.add(Field.create(fieldSchema.getName(), Schema.Field.Type.BOOLEAN));
-				break;
-			case DOUBLE:
-				pangoolSchemaFields.add(Field.create(fieldSchema.getName(), Schema.Field.Type.DOUBLE));
-				break;
-			case FLOAT:
-				pangoolSchemaFields.add(Field.create(fieldSchema.getName(), Schema.Field.Type.FLOAT));
-				break;
-			case INT:
-				pangoolSchemaFields.add(Field.create(fieldSchema.getName(), Schema.Field.Type.INT));
-				break;
-			case SMALLINT:
-				pangoolSchemaFields.add(Field.create(fieldSchema.getName(), Schema.Field.Type.INT));
-				break;
-			case STRING:
-				pangoolSchemaFields.add(Field.create(fieldSchema.getName(), Schema.Field.Type.STRING));
-				break;
-			case TINYINT:
-				pangoolSchemaFields.add(Field.create(fieldSchema.getName(), Schema.Field.Type.INT));
-				break;
-			default:
-				throw new IllegalArgumentException("Field type not supported (" + fieldSchema.getType()
-				    + ") only primitive types can be bridged between HCatalog and Pangool.");
-			}
+			pangoolSchemaFields.add(toPangoolField(fieldSchema));
 		}
-		// Instantiate a Pangool schema with the same name than the HCatalog table name
-		this.pangoolSchema = new Schema(tableName, pangoolSchemaFields);
+		return new Schema(tableName, pangoolSchemaFields);
 	}
 
+	private static Field toPangoolField(HCatFieldSchema fieldSchema) {
+		switch(fieldSchema.getType()) {
+		case BIGINT:
+			return Field.create(fieldSchema.getName(), Schema.Field.Type.LONG);
+		case BOOLEAN:
+			return Field.create(fieldSchema.getName(), Schema.Field.Type.BOOLEAN);
+		case DOUBLE:
+			return Field.create(fieldSchema.getName(), Schema.Field.Type.DOUBLE);
+		case FLOAT:
+			return Field.create(fieldSchema.getName(), Schema.Field.Type.FLOAT);
+		case INT:
+			return Field.create(fieldSchema.getName(), Schema.Field.Type.INT);
+		case SMALLINT:
+			return Field.create(fieldSchema.getName(), Schema.Field.Type.INT);
+		case STRING:
+			return Field.create(fieldSchema.getName(), Schema.Field.Type.STRING);
+		case TINYINT:
+			return Field.create(fieldSchema.getName(), Schema.Field.Type.INT);
+		default:
+			throw new IllegalArgumentException("Field type not supported (" + fieldSchema.getType()
+			    + ") only primitive types can be bridged between HCatalog and Pangool.");
+		}
+	}
+
+	/**
+	 * The HCatalog schema of the records read. If a projection was given, only the projected columns are in it.
+	 */
 	public HCatSchema getSchema() {
 		return schema;
 	}
@@ -119,46 +169,59 @@ public class HCatTupleInputFormat extends InputFormat<ITuple, NullWritable> impl
 		final RecordReader<WritableComparable, HCatRecord> hCatRecordReader = iF.createRecordReader(split,
 		    taskContext);
 
-		return new RecordReader<ITuple, NullWritable>() {
+		return new TupleRecordReader(hCatRecordReader, pangoolSchema);
+	}
+
+	/**
+	 * Maps the records of an HCatalog reader to tuples of the given schema, which has the same fields as the records:
+	 * the projected ones only, if there is a projection.
+	 */
+	static class TupleRecordReader extends RecordReader<ITuple, NullWritable> {
 
-			ITuple tuple = new Tuple(pangoolSchema);
+		@SuppressWarnings("rawtypes")
+		final RecordReader<WritableComparable, HCatRecord> hCatRecordReader;
+		final ITuple tuple;
 
-			@Override
-			public void close() throws IOException {
-				hCatRecordReader.close();
-			}
+		@SuppressWarnings("rawtypes")
+		TupleRecordReader(RecordReader<WritableComparable, HCatRecord> hCatRecordReader, Schema pangoolSchema) {
+			this.hCatRecordReader = hCatRecordReader;
+			this.tuple = new Tuple(pangoolSchema);
+		}
 
-			@Override
-			public ITuple getCurrentKey() throws IOException, InterruptedException {
-				HCatRecord record = hCatRecordReader.getCurrentValue();
-				// Perform conversion between HCatRecord and Tuple
-				for(int pos = 0; pos < schema.size(); pos++) {
-					tuple.set(pos, record.get(pos));
-				}
-				return tuple;
-			}
+		@Override
+		public void close() throws IOException {
+			hCatRecordReader.close();
+		}
 
-			@Override
-			public NullWritable getCurrentValue() throws IOException, InterruptedException {
-				return NullWritable.get();
+		@Override
+		public ITuple getCurrentKey() throws IOException, InterruptedException {
+			HCatRecord record = hCatRecordReader.getCurrentValue();
+			// Perform conversion between HCatRecord and Tuple
+			for(int pos = 0; pos < tuple.getSchema().getFields().size(); pos++) {
+				tuple.set(pos, record.get(pos));
 			}
+			return tuple;
+		}
 
-			@Override
-			public float getProgress() throws IOException, InterruptedException {
-				return hCatRecordReader.getProgress();
-			}
+		@Override
+		public NullWritable getCurrentValue() throws IOException, InterruptedException {
+			return NullWritable.get();
+		}
 
-			@Override
-			public void initialize(InputSplit iS, TaskAttemptContext context) throws IOException,
-			    InterruptedException {
-				hCatRecordReader.initialize(iS, context);
-			}
+		@Override
+		public float getProgress() throws IOException, InterruptedException {
+			return hCatRecordReader.getProgress();
+		}
 
-			@Override
-			public boolean nextKeyValue() throws IOException, InterruptedException {
-				return hCatRecordReader.nextKeyValue();
-			}
-		};
+		@Override
+		public void initialize(InputSplit iS, TaskAttemptContext context) throws IOException, InterruptedException {
+			hCatRecordReader.initialize(iS, context);
+		}
+
+		@Override
+		public boolean nextKeyValue() throws IOException, InterruptedException {
+			return hCatRecordReader.nextKeyValue();
+		}
 	}
 
 	@Override
@@ -0,0 +1,231 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.mapred.lib.input;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Tuple;
+import com.datasalt.pangool.tuplemr.mapred.lib.output.PangoolMultipleOutputs;
+
+/**
+ * Runs several instances of a mapper in parallel threads inside one map task, for CPU-bound mappers. Like Hadoop's
+ * MultithreadedMapper, but for mapper instances instead of classes, so it works with {@link DelegatingMapper}. It is
+ * enabled with {@link #setThreads(Job, int)}.
+ * <p>
+ * The threads take the records from the task's reader one at a time, so each mapper sees a copy of the key and value.
+ * Input {@link ITuple}s are copied with {@link Tuple#deepCopy(ITuple, Tuple, java.util.Map)}, other objects with the
+ * serializations of the configuration, into the same objects for each record. Writes to the task's output and to the named outputs are synchronized, and all the threads share the
+ * same {@link PangoolMultipleOutputs}. Mappers must not share mutable state other than that.
+ */
+@SuppressWarnings({ "rawtypes", "unchecked" })
+public class MultithreadedMapRunner {
+
+	public final static String CONF_MAPPER_THREADS = "pangool.mapper.threads";
+
+	/**
+	 * Sets the number of threads that run the mappers of each map task. One, the default, runs the mapper in the
+	 * thread of the task.
+	 */
+	public static void setThreads(Job job, int threads) {
+		if(threads < 1) {
+			throw new IllegalArgumentException("At least one mapper thread is needed: " + threads);
+		}
+		job.getConfiguration().setInt(CONF_MAPPER_THREADS, threads);
+	}
+
+	public static int getThreads(Configuration conf) {
+		return conf.getInt(CONF_MAPPER_THREADS, 1);
+	}
+
+	/**
+	 * The context of each mapper thread. Gives access to the {@link PangoolMultipleOutputs} shared by all the threads.
+	 */
+	public static class SubMapContext extends Mapper.Context {
+
+		private final PangoolMultipleOutputs multipleOutputs;
+
+		SubMapContext(Mapper mapper, Mapper.Context outer, RecordReader reader, RecordWriter writer,
+		    StatusReporter reporter, PangoolMultipleOutputs multipleOutputs) throws IOException, InterruptedException {
+			mapper.super(outer.getConfiguration(), outer.getTaskAttemptID(), reader, writer, outer.getOutputCommitter(),
+			    reporter, outer.getInputSplit());
+			this.multipleOutputs = multipleOutputs;
+		}
+
+		public PangoolMultipleOutputs getMultipleOutputs() {
+			return multipleOutputs;
+		}
+	}
+
+	private final Mapper.Context outer;
+
+	public MultithreadedMapRunner(Mapper.Context outer) {
+		this.outer = outer;
+	}
+
+	/**
+	 * Runs each of the given mappers in its own thread until the input of the task is consumed.
+	 */
+	public void run(List<Mapper> mappers) throws IOException, InterruptedException {
+		PangoolMultipleOutputs multipleOutputs = new PangoolMultipleOutputs(outer);
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for(final Mapper mapper : mappers) {
+			final SubMapContext context = new SubMapContext(mapper, outer, new SubMapRecordReader(),
+			    new SubMapRecordWriter(), new SubMapStatusReporter(), multipleOutputs);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					mapper.run(context);
+					return null;
+				}
+			});
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(mappers.size());
+		try {
+			// Failures are seen as soon as they happen, not after the other threads finish
+			CompletionService<Void> completion = new ExecutorCompletionService<Void>(executor);
+			for(Callable<Void> task : tasks) {
+				completion.submit(task);
+			}
+			for(int i = 0; i < tasks.size(); i++) {
+				completion.take().get();
+			}
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if(cause instanceof InterruptedException) {
+				throw (InterruptedException) cause;
+			} else if(cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		} finally {
+			executor.shutdownNow();
+		}
+		multipleOutputs.close();
+	}
+
+	private class SubMapRecordReader extends RecordReader {
+
+		private Object key;
+		private Object value;
+
+		@Override
+		public void initialize(InputSplit split, TaskAttemptContext context) {
+		}
+
+		@Override
+		public boolean nextKeyValue() throws IOException, InterruptedException {
+			synchronized(outer) {
+				if(!outer.nextKeyValue()) {
+					return false;
+				}
+				key = copy(outer.getCurrentKey(), key);
+				value = copy(outer.getCurrentValue(), value);
+				return true;
+			}
+		}
+
+		private Object copy(Object src, Object dst) throws IOException {
+			if(src == null || src instanceof NullWritable) {
+				return src;
+			} else if(src instanceof ITuple) {
+				return Tuple.deepCopy((ITuple) src, (dst instanceof Tuple) ? (Tuple) dst : null, null);
+			}
+			if(dst == null || dst.getClass() != src.getClass()) {
+				dst = ReflectionUtils.newInstance(src.getClass(), outer.getConfiguration());
+			}
+			return ReflectionUtils.copy(outer.getConfiguration(), src, dst);
+		}
+
+		@Override
+		public Object getCurrentKey() {
+			return key;
+		}
+
+		@Override
+		public Object getCurrentValue() {
+			return value;
+		}
+
+		@Override
+		public float getProgress() {
+			return 0;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private class SubMapRecordWriter extends RecordWriter {
+
+		@Override
+		public void write(Object key, Object value) throws IOException, InterruptedException {
+			synchronized(outer) {
+				outer.write(key, value);
+			}
+		}
+
+		@Override
+		public void close(TaskAttemptContext context) {
+		}
+	}
+
+	private class SubMapStatusReporter extends StatusReporter {
+
+		@Override
+		public Counter getCounter(Enum<?> name) {
+			return outer.getCounter(name);
+		}
+
+		@Override
+		public Counter getCounter(String group, String name) {
+			return outer.getCounter(group, name);
+		}
+
+		@Override
+		public void progress() {
+			outer.progress();
+		}
+
+		@Override
+		public void setStatus(String status) {
+			outer.setStatus(status);
+		}
+	}
+}
@@ -41,6 +41,21 @@ public class TupleFileRecordReader extends RecordReader<ITuple, NullWritable> {
   private ITuple tuple = null;
   private NullWritable value = NullWritable.get();
   protected Configuration conf;
+  private String[] projection;
+
+  /**
+   * Restricts the fields deserialized to the given ones. The values of non projected fields are
+   * left untouched in the returned tuple, which is reused between records. It can be called before
+   * or after {@link #initialize(InputSplit, TaskAttemptContext)}.
+   *
+   * @see TupleFile.Reader#setProjection(String...)
+   */
+  public void setProjection(String... fieldNames) {
+    this.projection = fieldNames;
+    if (in != null) {
+      in.setProjection(fieldNames);
+    }
+  }
 
   @Override
   public void initialize(InputSplit split,
@@ -52,6 +67,9 @@ public class TupleFileRecordReader extends RecordReader<ITuple, NullWritable> {
     Path path = fileSplit.getPath();
     FileSystem fs = path.getFileSystem(conf);
     this.in = new TupleFile.Reader(fs, conf, path);
+    if (projection != null) {
+      in.setProjection(projection);
+    }
     this.end = fileSplit.getStart() + fileSplit.getLength();
 
     if (fileSplit.getStart() > in.getPosition()) {
@@ -0,0 +1,238 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.mapred.lib.output;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.mapreduce.Job;
+
+/**
+ * Buffers the bytes serialized by the task thread and hands full buffers to a background thread that writes them to a
+ * {@link Sink}, so that compression and writes to the FileSystem overlap with the computation of the task.
+ * <p>
+ * The memory used is bounded by the number of buffers: when all of them are full the task thread waits until the
+ * background thread has written one. An error in the background thread is thrown on the next call to
+ * {@link #getBuffer()}, {@link #flushIfFull()} or {@link #close()}.
+ * <p>
+ * Used by {@link TupleOutputFormat} and {@link TupleTextOutputFormat} when enabled with
+ * {@link #setAsyncOutput(Job, int, int)}. As it is configured through the job configuration, it can be enabled for a
+ * single named output with {@link PangoolMultipleOutputs#addNamedOutputContext(Job, String, String, String)}.
+ */
+public class AsyncWriteBuffer {
+
+	private static final Log LOG = LogFactory.getLog(AsyncWriteBuffer.class);
+
+	public final static String CONF_BUFFERS = "pangool.output.async.buffers";
+	public final static String CONF_BUFFER_SIZE = "pangool.output.async.buffer.size";
+
+	public final static int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+	/**
+	 * Writes the buffers in the background thread.
+	 */
+	public static interface Sink {
+
+		public void write(byte[] data, int length) throws IOException;
+
+		/**
+		 * Called from {@link AsyncWriteBuffer#close()} once all the buffers have been written.
+		 */
+		public void close() throws IOException;
+	}
+
+	/**
+	 * Enables asynchronous writing for the outputs that support it. Each task uses up to numBuffers buffers of
+	 * bufferSize bytes: 2 for double buffering, 3 for triple buffering. Less than 2 disables it, which is the default.
+	 */
+	public static void setAsyncOutput(Job job, int numBuffers, int bufferSize) {
+		job.getConfiguration().setInt(CONF_BUFFERS, numBuffers);
+		job.getConfiguration().setInt(CONF_BUFFER_SIZE, bufferSize);
+	}
+
+	public static boolean isAsyncOutput(Configuration conf) {
+		return conf.getInt(CONF_BUFFERS, 0) >= 2;
+	}
+
+	/**
+	 * Returns a new AsyncWriteBuffer for the given sink configured as in the given configuration, or null if
+	 * asynchronous writing is not enabled.
+	 */
+	public static AsyncWriteBuffer get(Configuration conf, Sink sink, String name) {
+		if(!isAsyncOutput(conf)) {
+			return null;
+		}
+		return new AsyncWriteBuffer(sink, conf.getInt(CONF_BUFFERS, 0), conf.getInt(CONF_BUFFER_SIZE,
+		    DEFAULT_BUFFER_SIZE), name);
+	}
+
+	// Marks the end of the buffers to write
+	private static final DataOutputBuffer END = new DataOutputBuffer();
+
+	private final Sink sink;
+	private final int bufferSize;
+	private final String name;
+	private final BlockingQueue<DataOutputBuffer> free = new LinkedBlockingQueue<DataOutputBuffer>();
+	private final BlockingQueue<DataOutputBuffer> full = new LinkedBlockingQueue<DataOutputBuffer>();
+	private final Thread writerThread;
+
+	private volatile Throwable error;
+	private DataOutputBuffer current;
+	private boolean closed = false;
+	// Time the task thread has waited for a free buffer
+	private long waitNanos = 0;
+
+	public AsyncWriteBuffer(Sink sink, int numBuffers, int bufferSize, String name) {
+		if(numBuffers < 2) {
+			throw new IllegalArgumentException("At least two buffers are needed: " + numBuffers);
+		}
+		this.sink = sink;
+		this.bufferSize = bufferSize;
+		this.name = name;
+		current = new DataOutputBuffer(bufferSize);
+		for(int i = 1; i < numBuffers; i++) {
+			free.add(new DataOutputBuffer(bufferSize));
+		}
+		writerThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeBuffers();
+			}
+		}, "AsyncWriteBuffer " + name);
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	private void writeBuffers() {
+		try {
+			DataOutputBuffer buffer;
+			while((buffer = full.take()) != END) {
+				// After an error, buffers are only recycled so that the task thread doesn't block
+				if(error == null) {
+					try {
+						sink.write(buffer.getData(), buffer.getLength());
+					} catch(Throwable t) {
+						LOG.error("Error writing " + name, t);
+						error = t;
+					}
+				}
+				buffer.reset();
+				free.put(buffer);
+			}
+		} catch(InterruptedException e) {
+			error = e;
+		}
+	}
+
+	private void checkError() throws IOException {
+		if(error != null) {
+			if(error instanceof IOException) {
+				throw new IOException("Error writing " + name + ": " + error.getMessage(), error);
+			}
+			throw new IOException("Error writing " + name, error);
+		}
+	}
+
+	/**
+	 * Returns the buffer to serialize to. {@link #flushIfFull()} must be called after each record.
+	 */
+	public DataOutputBuffer getBuffer() throws IOException {
+		checkError();
+		return current;
+	}
+
+	/**
+	 * Hands the current buffer to the background thread if it is full, waiting for a free one if needed.
+	 */
+	public void flushIfFull() throws IOException {
+		if(current.getLength() >= bufferSize) {
+			checkError();
+			try {
+				full.put(current);
+				long start = System.nanoTime();
+				current = free.take();
+				waitNanos += System.nanoTime() - start;
+			} catch(InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while writing " + name);
+			}
+		}
+	}
+
+	/**
+	 * Returns an OutputStream that writes to this buffer. Closing it closes this buffer.
+	 */
+	public OutputStream asOutputStream() {
+		return new OutputStream() {
+
+			@Override
+			public void write(int b) throws IOException {
+				getBuffer().write(b);
+				flushIfFull();
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				getBuffer().write(b, off, len);
+				flushIfFull();
+			}
+
+			@Override
+			public void close() throws IOException {
+				AsyncWriteBuffer.this.close();
+			}
+		};
+	}
+
+	/**
+	 * Writes the pending buffers, waits for the background thread to finish and closes the sink.
+	 */
+	public void close() throws IOException {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		try {
+			if(current.getLength() > 0) {
+				full.put(current);
+			}
+			full.put(END);
+			writerThread.join();
+		} catch(InterruptedException e) {
+			writerThread.interrupt();
+			throw new InterruptedIOException("Interrupted while closing " + name);
+		}
+		current = null;
+		free.clear();
+		LOG.info(name + ": waited " + TimeUnit.NANOSECONDS.toMillis(waitNanos) + " ms for free buffers");
+		if(error != null) {
+			try {
+				sink.close();
+			} catch(IOException e) {
+				LOG.warn("Error closing " + name + " after a write error", e);
+			}
+			checkError();
+		}
+		sink.close();
+	}
+}
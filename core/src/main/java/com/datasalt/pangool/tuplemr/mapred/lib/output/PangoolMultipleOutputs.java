@@ -23,13 +23,21 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.UUID;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.JobID;
@@ -48,10 +56,17 @@ import com.datasalt.pangool.utils.TaskAttemptContextFactory;
 /**
  * This class is inspired by the MultipleOutputs class of Hadoop. The difference is that it allows an arbitrary
  * OutputFormat to be written in sub-folders of the output path.
+ * <p>
+ * The number of simultaneously open RecordWriters can be bounded with {@link #setMaxOpenWriters(Job, int)}. When the
+ * limit is reached the least recently used writer is closed and its output committed. A later write to the same
+ * output opens a new file with a "-1", "-2" ... suffix after the file name (for example part-r-00000-1), so nothing
+ * already written is overwritten.
  **/
 @SuppressWarnings("rawtypes")
 public class PangoolMultipleOutputs<KEYOUT, VALUEOUT> {
 
+	private static final Log LOG = LogFactory.getLog(PangoolMultipleOutputs.class);
+
 	private static final String MULTIPLE_OUTPUTS = "pangool.multipleoutputs";
 
 	private static final String MO_PREFIX = "pangool.multipleoutputs.namedOutput.";
@@ -63,6 +78,17 @@ public class PangoolMultipleOutputs<KEYOUT, VALUEOUT> {
 
 	private static final String COUNTERS_ENABLED = "pangool.multipleoutputs.counters";
 
+	private static final String MAX_OPEN_WRITERS = "pangool.multipleoutputs.max.open.writers";
+
+	/**
+	 * Counters about the cache of open RecordWriters. Hits and misses count calls to
+	 * {@link #getRecordWriter(String)}, evictions the writers closed because of the
+	 * {@link #setMaxOpenWriters(Job, int)} limit. They are only updated when that limit is set.
+	 */
+	public static enum WritersCounter {
+		CACHE_HITS, CACHE_MISSES, EVICTIONS
+	}
+
 	/**
 	 * Counters group used by the counters of MultipleOutputs.
 	 */
@@ -249,6 +275,27 @@ public class PangoolMultipleOutputs<KEYOUT, VALUEOUT> {
 		return job.getConfiguration().getBoolean(COUNTERS_ENABLED, false);
 	}
 
+	/**
+	 * Sets the maximum number of RecordWriters that each task keeps open at the same time. When the limit is reached
+	 * the least recently used writer is closed and committed. Writing again to that output creates a new file. Zero or
+	 * less means no limit, which is the default.
+	 * 
+	 * @param job
+	 *          the job
+	 * @param maxOpenWriters
+	 *          maximum number of open writers per task
+	 */
+	public static void setMaxOpenWriters(Job job, int maxOpenWriters) {
+		job.getConfiguration().setInt(MAX_OPEN_WRITERS, maxOpenWriters);
+	}
+
+	/**
+	 * Returns the maximum number of RecordWriters that each task keeps open. Zero or less means no limit.
+	 */
+	public static int getMaxOpenWriters(JobContext job) {
+		return job.getConfiguration().getInt(MAX_OPEN_WRITERS, 0);
+	}
+
 	/**
 	 * Wraps RecordWriter to increment counters.
 	 */
@@ -279,14 +326,30 @@ public class PangoolMultipleOutputs<KEYOUT, VALUEOUT> {
 
 	private TaskInputOutputContext<?, ?, KEYOUT, VALUEOUT> context;
 	private Set<String> namedOutputs;
-	private Map<String, OutputContext> outputContexts;
+	// Open outputs in access order, the least recently used first
+	private LinkedHashMap<String, OutputContext> outputContexts;
+	// Times that each output has been evicted
+	private Map<String, Integer> evictions;
 	private boolean countersEnabled;
+	private int maxOpenWriters;
+	// Only when maxOpenWriters is set
+	private Counter cacheHits;
+	private Counter cacheMisses;
+	private Counter cacheEvictions;
 
-	private static class OutputContext {
+	/**
+	 * An output opened inside the work path of the task. Also used by {@link PartitionedOutputFormat}.
+	 */
+	static class OutputContext {
 		RecordWriter recordWriter;
 		TaskAttemptContext taskAttemptContext;
 		JobContext jobContext;
 		OutputCommitter outputCommitter;
+		// For reopened outputs: the folder the output is written to and the folder and suffix its files are moved to
+		// once committed
+		Path reopenedDir;
+		Path outputDir;
+		int suffix;
 	}
 
 	/**
@@ -299,8 +362,15 @@ public class PangoolMultipleOutputs<KEYOUT, VALUEOUT> {
 		this.context = context;
 		namedOutputs = Collections.unmodifiableSet(new HashSet<String>(PangoolMultipleOutputs
 		    .getNamedOutputsList(context)));
-		outputContexts = new HashMap<String, OutputContext>();
+		outputContexts = new LinkedHashMap<String, OutputContext>(16, 0.75f, true);
+		evictions = new HashMap<String, Integer>();
 		countersEnabled = getCountersEnabled(context);
+		maxOpenWriters = getMaxOpenWriters(context);
+		if(maxOpenWriters > 0) {
+			cacheHits = context.getCounter(WritersCounter.CACHE_HITS);
+			cacheMisses = context.getCounter(WritersCounter.CACHE_MISSES);
+			cacheEvictions = context.getCounter(WritersCounter.EVICTIONS);
+		}
 	}
 
 	/**
@@ -333,28 +403,46 @@ public class PangoolMultipleOutputs<KEYOUT, VALUEOUT> {
 	 *          baseOutputPath
 	 */
 	@SuppressWarnings("unchecked")
-	public <K, V> void write(String namedOutput, K key, V value, String baseOutputPath)
+	public synchronized <K, V> void write(String namedOutput, K key, V value, String baseOutputPath)
 	    throws IOException, InterruptedException {
 		checkNamedOutputName(context, namedOutput, false);
 		checkBaseOutputPath(baseOutputPath);
 		if(!namedOutputs.contains(namedOutput)) {
 			throw new IllegalArgumentException("Undefined named output '" + namedOutput + "'");
 		}
-		getRecordWriter(baseOutputPath).write(key, value);
+		getRecordWriter(namedOutput, baseOutputPath).write(key, value);
+	}
+
+	/**
+	 * Returns the RecordWriter of the given named output, which is written to the folder with the same name. If
+	 * {@link #setMaxOpenWriters(Job, int)} is set the writer is closed when the output is evicted, so it must not be
+	 * kept: use {@link #write(String, Object, Object)} instead.
+	 */
+	public RecordWriter getRecordWriter(String namedOutput) throws IOException, InterruptedException {
+		return getRecordWriter(namedOutput, namedOutput);
 	}
 
 	// by being synchronized MultipleOutputTask can be use with a
-	// MultithreadedMapper.
-	public synchronized RecordWriter getRecordWriter(String baseFileName) throws IOException,
-	    InterruptedException {
+	// MultithreadedMapper. Note that the returned writer can be closed by
+	// another thread if it gets evicted because of maxOpenWriters.
+	private synchronized RecordWriter getRecordWriter(String namedOutput, String baseFileName)
+	    throws IOException, InterruptedException {
 
 		// Look for record-writer in the cache
 		OutputContext context = outputContexts.get(baseFileName);
 
-		// If not in cache, create a new one
-		if(context == null) {
-
-			context = new OutputContext();
+		if(context != null) {
+			if(maxOpenWriters > 0) {
+				cacheHits.increment(1);
+			}
+		} else {
+			// If not in cache, create a new one
+			if(maxOpenWriters > 0) {
+				cacheMisses.increment(1);
+				if(outputContexts.size() >= maxOpenWriters) {
+					evictEldest();
+				}
+			}
 
 			OutputFormat mainOutputFormat;
 
@@ -370,10 +458,10 @@ public class PangoolMultipleOutputs<KEYOUT, VALUEOUT> {
 
 			// The trick is to create a new Job for each output
 			Job job = new Job(this.context.getConfiguration());
-			job.setOutputKeyClass(getNamedOutputKeyClass(this.context, baseFileName));
-			job.setOutputValueClass(getNamedOutputValueClass(this.context, baseFileName));
+			job.setOutputKeyClass(getNamedOutputKeyClass(this.context, namedOutput));
+			job.setOutputValueClass(getNamedOutputValueClass(this.context, namedOutput));
 			// Check possible specific context for the output
-			setSpecificNamedOutputContext(this.context.getConfiguration(), job, baseFileName);
+			setSpecificNamedOutputContext(this.context.getConfiguration(), job, namedOutput);
 			TaskAttemptContext taskContext;
 			try {
 				taskContext = TaskAttemptContextFactory.get(job.getConfiguration(),
@@ -382,42 +470,16 @@ public class PangoolMultipleOutputs<KEYOUT, VALUEOUT> {
 				throw new IOException(e);
 			}
 
-			// First we change the output dir for the new OutputFormat that we will
-			// create
-			// We put it inside the main output work path -> in case the Job fails,
-			// everything will be discarded
-			taskContext.getConfiguration().set("mapred.output.dir",
-			    baseOutputCommitter.getBaseDir() + "/" + baseFileName);
-			// This is for Hadoop 2.0 :
-			taskContext.getConfiguration().set("mapreduce.output.fileoutputformat.outputdir",
-			    baseOutputCommitter.getBaseDir() + "/" + baseFileName);
-			context.taskAttemptContext = taskContext;
-
 			// Load the OutputFormat instance
-			OutputFormat outputFormat = InstancesDistributor.loadInstance(
-			    context.taskAttemptContext.getConfiguration(), OutputFormat.class,
-			    getNamedOutputFormatInstanceFile(this.context, baseFileName), true);
-			// We have to create a JobContext for meeting the contract of the
-			// OutputFormat
-			JobContext jobContext;
-			try {
-				jobContext = JobContextFactory.get(taskContext.getConfiguration(), taskContext.getJobID());
-			} catch(Exception e) {
-				throw new IOException(e);
-			}
-
-			context.jobContext = jobContext;
-			// The contract of the OutputFormat is to check the output specs
-			outputFormat.checkOutputSpecs(jobContext);
-			// We get the output committer so we can call it later
-			context.outputCommitter = outputFormat.getOutputCommitter(taskContext);
-			// Save the RecordWriter to cache it
-			context.recordWriter = outputFormat.getRecordWriter(taskContext);
+			OutputFormat outputFormat = InstancesDistributor.loadInstance(taskContext.getConfiguration(),
+			    OutputFormat.class, getNamedOutputFormatInstanceFile(this.context, namedOutput), true);
+			context = openOutput(outputFormat, taskContext, baseOutputCommitter.getBaseDir() + "/" + baseFileName,
+			    evictions.get(baseFileName));
 
 			// if counters are enabled, wrap the writer with context
 			// to increment counters
 			if(countersEnabled) {
-				context.recordWriter = new RecordWriterWithCounter(context.recordWriter, baseFileName,
+				context.recordWriter = new RecordWriterWithCounter(context.recordWriter, namedOutput,
 				    this.context);
 			}
 
@@ -426,6 +488,129 @@ public class PangoolMultipleOutputs<KEYOUT, VALUEOUT> {
 		return context.recordWriter;
 	}
 
+	/**
+	 * Opens an output of the given OutputFormat in outputDir. The output dir is changed in the configuration of the
+	 * given context, which must not be shared. If the output has been closed before (timesEvicted not null) it is
+	 * opened in a hidden sub-folder whose files are moved to outputDir with a suffix when closed.
+	 */
+	static OutputContext openOutput(OutputFormat outputFormat, TaskAttemptContext taskContext, String outputDir,
+	    Integer timesEvicted) throws IOException, InterruptedException {
+		OutputContext context = new OutputContext();
+		// First we change the output dir for the new OutputFormat that we will
+		// create
+		// We put it inside the main output work path -> in case the Job fails,
+		// everything will be discarded
+		if(timesEvicted != null) {
+			// Reopened output: it is written to a hidden sub-folder and its files are moved with
+			// a suffix on commit, so that the previously committed ones are not overwritten
+			context.outputDir = new Path(outputDir);
+			context.suffix = timesEvicted;
+			context.reopenedDir = new Path(context.outputDir, "_reopened-" + timesEvicted);
+			outputDir = context.reopenedDir.toString();
+		}
+		taskContext.getConfiguration().set("mapred.output.dir", outputDir);
+		// This is for Hadoop 2.0 :
+		taskContext.getConfiguration().set("mapreduce.output.fileoutputformat.outputdir", outputDir);
+		context.taskAttemptContext = taskContext;
+
+		// We have to create a JobContext for meeting the contract of the
+		// OutputFormat
+		JobContext jobContext;
+		try {
+			jobContext = JobContextFactory.get(taskContext.getConfiguration(), taskContext.getJobID());
+		} catch(Exception e) {
+			throw new IOException(e);
+		}
+
+		context.jobContext = jobContext;
+		// The contract of the OutputFormat is to check the output specs
+		outputFormat.checkOutputSpecs(jobContext);
+		// We get the output committer so we can call it later
+		context.outputCommitter = outputFormat.getOutputCommitter(taskContext);
+		// Save the RecordWriter to cache it
+		context.recordWriter = outputFormat.getRecordWriter(taskContext);
+		return context;
+	}
+
+	/**
+	 * Closes and commits the least recently used output.
+	 */
+	private void evictEldest() throws IOException, InterruptedException {
+		Iterator<Map.Entry<String, OutputContext>> it = outputContexts.entrySet().iterator();
+		Map.Entry<String, OutputContext> eldest = it.next();
+		it.remove();
+		String baseFileName = eldest.getKey();
+		Integer timesEvicted = evictions.get(baseFileName);
+		evictions.put(baseFileName, timesEvicted == null ? 1 : timesEvicted + 1);
+		LOG.info("Closing output [" + baseFileName + "] as the maximum of " + maxOpenWriters
+		    + " open writers has been reached");
+		closeOutput(eldest.getValue());
+		cacheEvictions.increment(1);
+	}
+
+	/**
+	 * Closes and commits an output opened with {@link #openOutput(OutputFormat, TaskAttemptContext, String, Integer)}.
+	 */
+	static void closeOutput(OutputContext outputContext) throws IOException, InterruptedException {
+		outputContext.recordWriter.close(outputContext.taskAttemptContext);
+		outputContext.outputCommitter.commitTask(outputContext.taskAttemptContext);
+		// This is a trick for Hadoop 2.0 where there is extra business logic in commitJob()
+		JobContext jContext;
+		try {
+			jContext = JobContextFactory.get(outputContext.taskAttemptContext.getConfiguration(), new JobID());
+		} catch(Exception e) {
+			throw new IOException(e);
+		}
+		try {
+			Class cl = Class.forName(OutputCommitter.class.getName());
+			Method method = cl.getMethod("commitJob", Class.forName(JobContext.class.getName()));
+			if(method != null) {
+				method.invoke(outputContext.outputCommitter, jContext);
+			}
+		} catch(Exception e) {
+			// Hadoop 2.0 : do nothing
+			// we need to call commitJob as a trick, but the trick itself may throw an IOException.
+			// it doesn't mean that something went wrong.
+			// If there was something really wrong it would have failed before.
+		}
+		outputContext.outputCommitter.cleanupJob(outputContext.jobContext);
+		if(outputContext.reopenedDir != null) {
+			moveReopenedOutput(outputContext);
+		}
+	}
+
+	/**
+	 * Moves the committed files of a reopened output to the output folder, adding the suffix to their names.
+	 */
+	private static void moveReopenedOutput(OutputContext outputContext) throws IOException {
+		FileSystem fs = outputContext.reopenedDir.getFileSystem(outputContext.taskAttemptContext.getConfiguration());
+		FileStatus[] files = fs.listStatus(outputContext.reopenedDir);
+		if(files != null) {
+			for(FileStatus file : files) {
+				String name = file.getPath().getName();
+				if(name.startsWith("_") || name.startsWith(".")) {
+					continue;
+				}
+				Path dest = new Path(outputContext.outputDir, suffixedName(name, outputContext.suffix));
+				if(!fs.rename(file.getPath(), dest)) {
+					throw new IOException("Failed to move " + file.getPath() + " to " + dest);
+				}
+			}
+		}
+		fs.delete(outputContext.reopenedDir, true);
+	}
+
+	/**
+	 * Adds the suffix before the extension, if any: part-r-00000.avro -> part-r-00000-1.avro
+	 */
+	static String suffixedName(String name, int suffix) {
+		int dot = name.indexOf('.');
+		if(dot < 0) {
+			return name + "-" + suffix;
+		}
+		return name.substring(0, dot) + "-" + suffix + name.substring(dot);
+	}
+
 	/**
 	 * Closes all the opened outputs.
 	 * 
@@ -433,30 +618,9 @@ public class PangoolMultipleOutputs<KEYOUT, VALUEOUT> {
 	 * <code>super.close()</code> at the end of their <code>close()</code>
 	 * 
 	 */
-	public void close() throws IOException, InterruptedException {
+	public synchronized void close() throws IOException, InterruptedException {
 		for(OutputContext outputContext : this.outputContexts.values()) {
-			outputContext.recordWriter.close(outputContext.taskAttemptContext);
-			outputContext.outputCommitter.commitTask(outputContext.taskAttemptContext);
-			// This is a trick for Hadoop 2.0 where there is extra business logic in commitJob()
-      JobContext jContext;
-      try {
-	      jContext = JobContextFactory.get(outputContext.taskAttemptContext.getConfiguration(), new JobID());
-      } catch(Exception e) {
-      	throw new IOException(e);
-      }
-      try {
-      	Class cl = Class.forName(OutputCommitter.class.getName());
-      	Method method = cl.getMethod("commitJob", Class.forName(JobContext.class.getName()));
-      	if(method != null) {
-      		method.invoke(outputContext.outputCommitter, jContext);
-      	}
-      } catch(Exception e) {
-      	// Hadoop 2.0 : do nothing
-      	// we need to call commitJob as a trick, but the trick itself may throw an IOException.
-      	// it doesn't mean that something went wrong.
-      	// If there was something really wrong it would have failed before.
-      }
-			outputContext.outputCommitter.cleanupJob(outputContext.jobContext);
+			closeOutput(outputContext);
 		}
 	}
 }
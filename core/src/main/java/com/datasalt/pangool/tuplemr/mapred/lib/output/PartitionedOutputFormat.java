@@ -0,0 +1,343 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.mapred.lib.output;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Schema.Field;
+import com.datasalt.pangool.io.Utf8;
+import com.datasalt.pangool.tuplemr.mapred.lib.output.PangoolMultipleOutputs.OutputContext;
+import com.datasalt.pangool.utils.TaskAttemptContextFactory;
+
+/**
+ * An OutputFormat that writes each {@link ITuple} to a sub-folder of the output path derived from the values of
+ * some of its fields, like Hive partitions: "country=ES/date=20121010/part-r-00000". Any OutputFormat whose keys are
+ * ITuples can be wrapped, for example {@link TupleOutputFormat} or {@link TupleTextOutputFormat}.
+ * <p>
+ * Each task keeps at most maxOpenWriters writers open. When the limit is reached the least recently used one is
+ * closed and committed, and a new file with a "-1", "-2" ... suffix is created if that partition is written again.
+ * When the tuples arrive sorted by the partition fields (see
+ * {@link com.datasalt.pangool.tuplemr.TupleMRBuilder#setPartitionedOutput(Path, OutputFormat, Class, boolean, String...)})
+ * one open writer is enough.
+ * <p>
+ * The folder name of a partition is only built the first time the partition is seen by the task. Consecutive tuples
+ * of the same partition are detected by comparing the field values with the previous ones. Partition fields must be
+ * of a primitive, string or enum type. Null and empty values go to the {@link #NULL_PARTITION} folder. Characters not
+ * allowed in paths are escaped as %XX.
+ */
+@SuppressWarnings({ "serial", "rawtypes" })
+public class PartitionedOutputFormat extends FileOutputFormat<ITuple, Object> implements Serializable {
+
+	private static final Log LOG = LogFactory.getLog(PartitionedOutputFormat.class);
+
+	public final static String NULL_PARTITION = "__null__";
+	public final static int DEFAULT_MAX_OPEN_WRITERS = 100;
+
+	private OutputFormat outputFormat;
+	private String[] partitionFields;
+	private int maxOpenWriters;
+
+	/**
+	 * @param outputFormat
+	 *          The OutputFormat used to write each partition. Must be Serializable and accept ITuples as keys.
+	 * @param maxOpenWriters
+	 *          Maximum number of writers open at the same time by each task. Zero or less means no limit.
+	 * @param partitionFields
+	 *          The fields whose values determine the folder each tuple is written to, in the folder nesting order.
+	 */
+	public PartitionedOutputFormat(OutputFormat outputFormat, int maxOpenWriters, String... partitionFields) {
+		if(!(outputFormat instanceof Serializable)) {
+			throw new IllegalArgumentException("OutputFormat " + outputFormat.getClass().getName()
+			    + " must be Serializable");
+		}
+		if(partitionFields == null || partitionFields.length == 0) {
+			throw new IllegalArgumentException("Need to specify at least one partition field");
+		}
+		this.outputFormat = outputFormat;
+		this.maxOpenWriters = maxOpenWriters;
+		this.partitionFields = partitionFields;
+	}
+
+	public PartitionedOutputFormat(OutputFormat outputFormat, String... partitionFields) {
+		this(outputFormat, DEFAULT_MAX_OPEN_WRITERS, partitionFields);
+	}
+
+	public String[] getPartitionFields() {
+		return partitionFields;
+	}
+
+	public int getMaxOpenWriters() {
+		return maxOpenWriters;
+	}
+
+	@Override
+	public RecordWriter<ITuple, Object> getRecordWriter(TaskAttemptContext context) throws IOException,
+	    InterruptedException {
+		// Partitions are written inside the work path of the task, so they are committed or discarded with it
+		Path workPath = ((FileOutputCommitter) getOutputCommitter(context)).getWorkPath();
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(outputFormat);
+		out.close();
+		return new PartitionedRecordWriter(context, workPath, bytes.toByteArray());
+	}
+
+	/**
+	 * The values of the partition fields of a tuple. Strings are kept as {@link Utf8} so that Strings and Texts with
+	 * the same content are equal.
+	 */
+	static class PartitionKey {
+
+		final Object[] values;
+		int hashCode;
+
+		PartitionKey(int size) {
+			values = new Object[size];
+		}
+
+		void computeHashCode() {
+			hashCode = Arrays.hashCode(values);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof PartitionKey && Arrays.equals(values, ((PartitionKey) obj).values);
+		}
+	}
+
+	class PartitionedRecordWriter extends RecordWriter<ITuple, Object> {
+
+		final TaskAttemptContext context;
+		final Path workPath;
+		final byte[] serializedOutputFormat;
+
+		// Open partitions in access order, the least recently used first
+		final LinkedHashMap<PartitionKey, OutputContext> outputContexts = new LinkedHashMap<PartitionKey, OutputContext>(
+		    16, 0.75f, true);
+		// Times that each partition has been evicted
+		final Map<String, Integer> evictions = new HashMap<String, Integer>();
+		// Folder of each open partition
+		final Map<OutputContext, String> folders = new HashMap<OutputContext, String>();
+
+		// Reused key for looking up the partition of each tuple
+		final PartitionKey probe = new PartitionKey(partitionFields.length);
+		final Utf8[] probeStrings = new Utf8[partitionFields.length];
+		// The last written partition
+		PartitionKey lastKey;
+		OutputContext lastOutput;
+
+		Schema lastSchema;
+		int[] fieldPositions = new int[partitionFields.length];
+
+		PartitionedRecordWriter(TaskAttemptContext context, Path workPath, byte[] serializedOutputFormat) {
+			this.context = context;
+			this.workPath = workPath;
+			this.serializedOutputFormat = serializedOutputFormat;
+			for(int i = 0; i < probeStrings.length; i++) {
+				probeStrings[i] = new Utf8();
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public void write(ITuple tuple, Object value) throws IOException, InterruptedException {
+			if(tuple.getSchema() != lastSchema) {
+				resolveFields(tuple.getSchema());
+			}
+			fillProbe(tuple);
+			OutputContext output;
+			if(lastKey != null && Arrays.equals(probe.values, lastKey.values)) {
+				// Same partition than the previous tuple
+				output = lastOutput;
+			} else {
+				probe.computeHashCode();
+				output = outputContexts.get(probe);
+				if(output == null) {
+					lastKey = copyProbe();
+					output = openPartition(lastKey);
+				} else {
+					lastKey = copyProbe();
+				}
+				lastOutput = output;
+			}
+			output.recordWriter.write(tuple, value);
+		}
+
+		private void resolveFields(Schema schema) throws IOException {
+			for(int i = 0; i < partitionFields.length; i++) {
+				Integer pos = schema.getFieldPos(partitionFields[i]);
+				if(pos == null) {
+					throw new IOException("Partition field '" + partitionFields[i] + "' not present in schema " + schema);
+				}
+				Field field = schema.getField(pos);
+				switch(field.getType()) {
+				case BYTES:
+				case OBJECT:
+					throw new IOException("Partition field '" + partitionFields[i] + "' can't be of type " + field.getType());
+				default:
+					break;
+				}
+				fieldPositions[i] = pos;
+			}
+			lastSchema = schema;
+		}
+
+		private void fillProbe(ITuple tuple) {
+			for(int i = 0; i < fieldPositions.length; i++) {
+				Object value = tuple.get(fieldPositions[i]);
+				if(value instanceof String) {
+					probeStrings[i].set((String) value);
+					value = probeStrings[i];
+				}
+				probe.values[i] = value;
+			}
+		}
+
+		private PartitionKey copyProbe() {
+			PartitionKey key = new PartitionKey(probe.values.length);
+			for(int i = 0; i < probe.values.length; i++) {
+				Object value = probe.values[i];
+				key.values[i] = (value instanceof Text) ? new Utf8((Text) value) : value;
+			}
+			key.hashCode = Arrays.hashCode(key.values);
+			return key;
+		}
+
+		private OutputContext openPartition(PartitionKey key) throws IOException, InterruptedException {
+			if(maxOpenWriters > 0 && outputContexts.size() >= maxOpenWriters) {
+				evictEldest();
+			}
+			String folder = getFolder(key);
+			TaskAttemptContext taskContext;
+			try {
+				taskContext = TaskAttemptContextFactory.get(context.getConfiguration(), context.getTaskAttemptID());
+			} catch(Exception e) {
+				throw new IOException(e);
+			}
+			OutputContext output = PangoolMultipleOutputs.openOutput(newOutputFormat(taskContext.getConfiguration()),
+			    taskContext, new Path(workPath, folder).toString(), evictions.get(folder));
+			outputContexts.put(key, output);
+			folders.put(output, folder);
+			return output;
+		}
+
+		private void evictEldest() throws IOException, InterruptedException {
+			Iterator<Map.Entry<PartitionKey, OutputContext>> it = outputContexts.entrySet().iterator();
+			OutputContext eldest = it.next().getValue();
+			it.remove();
+			String folder = folders.remove(eldest);
+			Integer timesEvicted = evictions.get(folder);
+			evictions.put(folder, timesEvicted == null ? 1 : timesEvicted + 1);
+			LOG.info("Closing partition [" + folder + "] as the maximum of " + maxOpenWriters
+			    + " open writers has been reached");
+			PangoolMultipleOutputs.closeOutput(eldest);
+		}
+
+		private OutputFormat newOutputFormat(Configuration conf) throws IOException {
+			// A new instance for each partition, as FileOutputFormats keep the OutputCommitter of the first call
+			OutputFormat instance;
+			try {
+				ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serializedOutputFormat));
+				instance = (OutputFormat) in.readObject();
+				in.close();
+			} catch(ClassNotFoundException e) {
+				throw new IOException(e);
+			}
+			if(instance instanceof Configurable) {
+				((Configurable) instance).setConf(conf);
+			}
+			return instance;
+		}
+
+		@Override
+		public void close(TaskAttemptContext context) throws IOException, InterruptedException {
+			for(OutputContext output : outputContexts.values()) {
+				PangoolMultipleOutputs.closeOutput(output);
+			}
+			outputContexts.clear();
+			folders.clear();
+		}
+	}
+
+	/**
+	 * Returns the relative folder of a partition: "field1=value1/field2=value2"
+	 */
+	String getFolder(PartitionKey key) {
+		StringBuilder folder = new StringBuilder();
+		for(int i = 0; i < partitionFields.length; i++) {
+			if(i > 0) {
+				folder.append('/');
+			}
+			folder.append(partitionFields[i]).append('=');
+			Object value = key.values[i];
+			if(value == null) {
+				folder.append(NULL_PARTITION);
+			} else {
+				escape(value.toString(), folder);
+			}
+		}
+		return folder.toString();
+	}
+
+	/**
+	 * Appends the value escaping the characters that are not valid, or have special meaning, in paths.
+	 */
+	static void escape(String value, StringBuilder builder) {
+		if(value.length() == 0) {
+			builder.append(NULL_PARTITION);
+			return;
+		}
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c < ' ' || c == 0x7F || "\"#%'*/:=?\\{}[]^".indexOf(c) >= 0 || (i == 0 && c == '.')) {
+				builder.append('%');
+				builder.append(Character.toUpperCase(Character.forDigit((c >> 4) & 0xF, 16)));
+				builder.append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+			} else {
+				builder.append(c);
+			}
+		}
+	}
+}
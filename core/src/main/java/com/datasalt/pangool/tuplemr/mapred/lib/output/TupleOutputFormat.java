@@ -22,8 +22,11 @@ import java.io.Serializable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.DefaultCodec;
 import org.apache.hadoop.mapreduce.RecordWriter;
@@ -35,8 +38,15 @@ import org.apache.hadoop.util.ReflectionUtils;
 import com.datasalt.pangool.io.ITuple;
 import com.datasalt.pangool.io.Schema;
 import com.datasalt.pangool.io.TupleFile;
+import com.datasalt.pangool.serialization.HadoopSerialization;
+import com.datasalt.pangool.tuplemr.serialization.SimpleTupleSerializer;
 
-/** An {@link org.apache.hadoop.mapreduce.OutputFormat} that writes {@link com.datasalt.pangool.io.ITuple}s. */
+/**
+ * An {@link org.apache.hadoop.mapreduce.OutputFormat} that writes {@link com.datasalt.pangool.io.ITuple}s.
+ * <p>
+ * If enabled with {@link AsyncWriteBuffer#setAsyncOutput(org.apache.hadoop.mapreduce.Job, int, int)}, tuples are
+ * serialized in the task thread and compressed and written to the file in a background thread.
+ */
 @SuppressWarnings("serial")
 public class TupleOutputFormat extends FileOutputFormat<ITuple, NullWritable> implements Serializable {
 
@@ -85,6 +95,15 @@ public class TupleOutputFormat extends FileOutputFormat<ITuple, NullWritable> im
 		final Path file = getDefaultWorkFile(context, "");
 		final FileSystem fs = file.getFileSystem(conf);
 
+		if(AsyncWriteBuffer.isAsyncOutput(conf)) {
+			return new AsyncTupleRecordWriter(conf) {
+				@Override
+				TupleFile.Writer createWriter(Schema schema) throws IOException {
+					return new TupleFile.Writer(fs, conf, file, schema, compressionType, codec, context);
+				}
+			};
+		}
+
 		return new RecordWriter<ITuple, NullWritable>() {
 
 			TupleFile.Writer out;
@@ -100,8 +119,70 @@ public class TupleOutputFormat extends FileOutputFormat<ITuple, NullWritable> im
 			}
 
 			public void close(TaskAttemptContext context) throws IOException {
-				out.close();
+				// No file if no tuples were written
+				if(out != null) {
+					out.close();
+				}
 			}
 		};
 	}
+
+	/**
+	 * Serializes the tuples into an {@link AsyncWriteBuffer}, each one preceded by its length, and appends them to the
+	 * file in the background thread.
+	 */
+	abstract class AsyncTupleRecordWriter extends RecordWriter<ITuple, NullWritable> implements AsyncWriteBuffer.Sink {
+
+		final Configuration conf;
+		TupleFile.Writer out;
+		AsyncWriteBuffer buffer;
+		SimpleTupleSerializer ser;
+		DataOutputBuffer tupleBuffer = new DataOutputBuffer();
+		// Only used from the background thread
+		DataInputBuffer in = new DataInputBuffer();
+
+		AsyncTupleRecordWriter(Configuration conf) {
+			this.conf = conf;
+		}
+
+		abstract TupleFile.Writer createWriter(Schema schema) throws IOException;
+
+		public void write(ITuple key, NullWritable value) throws IOException {
+			if(out == null) {
+				if(outputSchema == null) {
+					outputSchema = key.getSchema();
+				}
+				out = createWriter(outputSchema);
+				ser = new SimpleTupleSerializer(outputSchema, new HadoopSerialization(conf), conf);
+				ser.open(tupleBuffer);
+				buffer = AsyncWriteBuffer.get(conf, this, "TupleOutputFormat");
+			}
+			tupleBuffer.reset();
+			ser.serialize(key);
+			DataOutputBuffer data = buffer.getBuffer();
+			WritableUtils.writeVInt(data, tupleBuffer.getLength());
+			data.write(tupleBuffer.getData(), 0, tupleBuffer.getLength());
+			buffer.flushIfFull();
+		}
+
+		public void write(byte[] data, int length) throws IOException {
+			in.reset(data, length);
+			while(in.getPosition() < length) {
+				int tupleLength = WritableUtils.readVInt(in);
+				out.appendRaw(data, in.getPosition(), tupleLength);
+				in.skip(tupleLength);
+			}
+		}
+
+		public void close() throws IOException {
+			ser.close();
+			out.close();
+		}
+
+		public void close(TaskAttemptContext context) throws IOException {
+			if(buffer != null) {
+				buffer.close();
+			}
+		}
+	}
 }
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Serializable;
 
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.mapreduce.RecordWriter;
@@ -67,8 +68,18 @@ public class TupleTextOutputFormat extends FileOutputFormat<ITuple, NullWritable
 	    InterruptedException {
 
 		Path file = getDefaultWorkFile(context, "");
-		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(file.getFileSystem(context.getConfiguration())
-		    .create(file)));
+		final FSDataOutputStream out = file.getFileSystem(context.getConfiguration()).create(file);
+		// If enabled, writes to the file happen in a background thread
+		AsyncWriteBuffer async = AsyncWriteBuffer.get(context.getConfiguration(), new AsyncWriteBuffer.Sink() {
+			public void write(byte[] data, int length) throws IOException {
+				out.write(data, 0, length);
+			}
+
+			public void close() throws IOException {
+				out.close();
+			}
+		}, "TupleTextOutputFormat");
+		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(async == null ? out : async.asOutputStream()));
 		CSVWriter csvWriter = new CSVWriter(writer, separatorCharacter, quoteCharacter, escapeCharacter);
 		if(addHeader) {
 			String[] header = new String[schema.getFields().size()];
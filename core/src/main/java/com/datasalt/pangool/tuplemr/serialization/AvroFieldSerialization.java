@@ -64,8 +64,13 @@ public class AvroFieldSerialization<T> implements Serialization<T>, FieldConfigu
 		isReflect = (r != null) && Boolean.parseBoolean(r);
 	}
 
+	/**
+	 * Serializer that writes directly to the given stream, with no intermediate buffering. Therefore, no flush is
+	 * needed after each object. The encoder instance is reused between calls to {@link #open(OutputStream)}.
+	 */
 	public static class AvroFieldSerializer<T> implements Serializer<T> {
 
+		private static final EncoderFactory FACTORY = EncoderFactory.get();
 		private DatumWriter<T> writer;
 		private OutputStream out;
 		private BinaryEncoder encoder;
@@ -77,17 +82,12 @@ public class AvroFieldSerialization<T> implements Serialization<T>, FieldConfigu
 		@Override
 		public void open(OutputStream out) throws IOException {
 			this.out = out;
-			this.encoder = new EncoderFactory().configureBlockSize(512).binaryEncoder(out, null);
+			this.encoder = FACTORY.directBinaryEncoder(out, encoder);
 		}
 
 		@Override
 		public void serialize(T obj) throws IOException {
 			writer.write(obj, encoder);
-			// would be a lot faster if the Serializer interface had a flush()
-			// method and the Hadoop framework called it when needed rather
-			// than for every record.
-			encoder.flush();
-
 		}
 
 		@Override
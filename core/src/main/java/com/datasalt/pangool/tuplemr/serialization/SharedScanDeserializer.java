@@ -0,0 +1,77 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.serialization;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.serializer.Deserializer;
+
+import com.datasalt.pangool.io.DatumWrapper;
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.serialization.HadoopSerialization;
+import com.datasalt.pangool.tuplemr.TupleMRConfig;
+
+/**
+ * Deserializes the intermediate tuples written by {@link SharedScanSerializer}.
+ * Each logical job has its own {@link TupleDeserializer} and its own tuple
+ * instances, which are reused as in a regular job.
+ */
+public class SharedScanDeserializer implements Deserializer<DatumWrapper<ITuple>> {
+
+	private final TupleDeserializer[] deserializers;
+	private final List<DatumWrapper<ITuple>> wrappers = new ArrayList<DatumWrapper<ITuple>>();
+	private DataInputStream in;
+
+	public SharedScanDeserializer(HadoopSerialization ser, List<TupleMRConfig> queries, Configuration conf) {
+		deserializers = new TupleDeserializer[queries.size()];
+		for(int i = 0; i < deserializers.length; i++) {
+			deserializers[i] = new TupleDeserializer(ser, queries.get(i), conf);
+			wrappers.add(new DatumWrapper<ITuple>());
+		}
+	}
+
+	@Override
+	public void open(InputStream in) throws IOException {
+		this.in = (in instanceof DataInputStream) ? (DataInputStream) in : new DataInputStream(in);
+		for(TupleDeserializer deserializer : deserializers) {
+			deserializer.open(this.in);
+		}
+	}
+
+	@Override
+	public DatumWrapper<ITuple> deserialize(DatumWrapper<ITuple> t) throws IOException {
+		if(t == null) {
+			t = new DatumWrapper<ITuple>();
+		}
+		int query = WritableUtils.readVInt(in);
+		DatumWrapper<ITuple> wrapper = wrappers.get(query);
+		deserializers[query].deserialize(wrapper);
+		t.datum(wrapper.datum());
+		return t;
+	}
+
+	@Override
+	public void close() throws IOException {
+		// All the deserializers read from the same stream
+		in.close();
+	}
+}
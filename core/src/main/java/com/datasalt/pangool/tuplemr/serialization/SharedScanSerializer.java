@@ -0,0 +1,78 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.serialization;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.serializer.Serializer;
+
+import com.datasalt.pangool.io.DatumWrapper;
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.serialization.HadoopSerialization;
+import com.datasalt.pangool.tuplemr.TupleMRConfig;
+
+/**
+ * Serializes the intermediate tuples of a job built with
+ * {@link com.datasalt.pangool.tuplemr.SharedScanBuilder}: the index of the
+ * logical job the schema of the tuple belongs to, as a VInt, followed by the
+ * tuple as serialized by the {@link TupleSerializer} of that logical job.
+ */
+public class SharedScanSerializer implements Serializer<DatumWrapper<ITuple>> {
+
+	private final TupleSerializer[] serializers;
+	private final Map<String, Integer> queriesBySchema;
+	private DataOutputStream out;
+
+	public SharedScanSerializer(HadoopSerialization ser, List<TupleMRConfig> queries,
+	    boolean inputSchemaValidation) {
+		serializers = new TupleSerializer[queries.size()];
+		for(int i = 0; i < serializers.length; i++) {
+			serializers[i] = new TupleSerializer(ser, queries.get(i), inputSchemaValidation);
+		}
+		queriesBySchema = TupleMRConfig.getQueriesBySchemaName(queries);
+	}
+
+	@Override
+	public void open(OutputStream out) {
+		this.out = (out instanceof DataOutputStream) ? (DataOutputStream) out : new DataOutputStream(out);
+		for(TupleSerializer serializer : serializers) {
+			serializer.open(this.out);
+		}
+	}
+
+	@Override
+	public void serialize(DatumWrapper<ITuple> wrapper) throws IOException {
+		String schemaName = wrapper.datum().getSchema().getName();
+		Integer query = queriesBySchema.get(schemaName);
+		if(query == null) {
+			throw new IOException("Schema '" + wrapper.datum().getSchema()
+			    + "' is not a valid intermediate schema");
+		}
+		WritableUtils.writeVInt(out, query);
+		serializers[query].serialize(wrapper);
+	}
+
+	@Override
+	public void close() throws IOException {
+		// All the serializers write to the same stream
+		out.close();
+	}
+}
@@ -53,6 +53,8 @@ public class SimpleTupleDeserializer implements Deserializer<ITuple> {
 
 	private Deserializer[] deserializers; 
 	private Schema schemaToDeserialize;
+	// fields of schemaToDeserialize that are skipped by deserialize(). Null means no projection.
+	private boolean[] skippedFields;
 	
 	public SimpleTupleDeserializer(HadoopSerialization ser, Configuration conf) {
 		this.ser = ser;
@@ -69,6 +71,31 @@ public class SimpleTupleDeserializer implements Deserializer<ITuple> {
 		deserializers = SerializationInfo.getDeserializers(schemaToDeserialize, conf);
 	}
 	
+	/**
+	 * Restricts {@link #deserialize(ITuple)} to the given fields of the schema provided in the constructor. The rest
+	 * of fields are skipped over in the input, without being deserialized, and its value in the tuple is left untouched.
+	 * A null argument removes the projection.
+	 */
+	public void setProjection(String... fieldNames) {
+		if(fieldNames == null) {
+			skippedFields = null;
+			return;
+		}
+		if(schemaToDeserialize == null) {
+			throw new IllegalStateException("Projections need a deserializer created with the schema to deserialize");
+		}
+		boolean[] skipped = new boolean[schemaToDeserialize.getFields().size()];
+		Arrays.fill(skipped, true);
+		for(String fieldName : fieldNames) {
+			Integer pos = schemaToDeserialize.getFieldPos(fieldName);
+			if(pos == null) {
+				throw new IllegalArgumentException("Field '" + fieldName + "' not present in schema " + schemaToDeserialize);
+			}
+			skipped[pos] = false;
+		}
+		skippedFields = skipped;
+	}
+
 	@Override
 	public void close() throws IOException {
 		input.close();
@@ -79,7 +106,7 @@ public class SimpleTupleDeserializer implements Deserializer<ITuple> {
 		if(tuple == null) {
 			tuple = new Tuple(schemaToDeserialize);
 		}
-		readFields(tuple, deserializers);
+		readFields(tuple, deserializers, skippedFields);
 		return tuple;
 	}
 
@@ -93,6 +120,11 @@ public class SimpleTupleDeserializer implements Deserializer<ITuple> {
 	}
 
 	public void readFields(ITuple tuple, Deserializer[] customDeserializers) throws IOException {
+		readFields(tuple, customDeserializers, null);
+	}
+
+	private void readFields(ITuple tuple, Deserializer[] customDeserializers, boolean[] skipped)
+	    throws IOException {
 		Schema schema = tuple.getSchema();
     // If there are fields with nulls, read the bit field and set the values that are null
     if (schema.containsNullableFields()) {
@@ -120,6 +152,11 @@ public class SimpleTupleDeserializer implements Deserializer<ITuple> {
         continue;
       }
 
+      if (skipped != null && skipped[index]) {
+        skipField(input, field);
+        continue;
+      }
+
 			switch(field.getType()) {
 			case INT:
 				tuple.set(index, WritableUtils.readVInt(input));
@@ -155,6 +192,53 @@ public class SimpleTupleDeserializer implements Deserializer<ITuple> {
 		}
 	}
 
+	/**
+	 * Advances the input past the serialized value of the given field, without deserializing it.
+	 */
+	protected void skipField(DataInputStream input, Field field) throws IOException {
+		switch(field.getType()) {
+		case INT:
+		case ENUM:
+			WritableUtils.readVInt(input);
+			break;
+		case LONG:
+			WritableUtils.readVLong(input);
+			break;
+		case DOUBLE:
+			skipFully(input, 8);
+			break;
+		case FLOAT:
+			skipFully(input, 4);
+			break;
+		case BOOLEAN:
+			skipFully(input, 1);
+			break;
+		case STRING:
+		case BYTES:
+		case OBJECT:
+			// All of them are prefixed by its length in bytes
+			skipFully(input, WritableUtils.readVInt(input));
+			break;
+		default:
+			throw new IOException("Not supported type:" + field.getType());
+		}
+	}
+
+	private static void skipFully(DataInputStream input, int length) throws IOException {
+		if(length < 0) {
+			throw new IOException("Error skipping field, negative length : " + length);
+		}
+		while(length > 0) {
+			int skipped = input.skipBytes(length);
+			if(skipped <= 0) {
+				// skipBytes() never throws EOF
+				input.readByte();
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+
 	protected void readUtf8(DataInputStream input, ITuple tuple, int index) throws IOException {
     Object t = tuple.get(index);
     if(t == null || !(t instanceof Utf8)) {
@@ -17,6 +17,7 @@ package com.datasalt.pangool.tuplemr.serialization;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.List;
 import java.util.regex.Pattern;
 
 import org.apache.hadoop.conf.Configurable;
@@ -42,6 +43,8 @@ public class TupleSerialization implements Serialization<DatumWrapper<ITuple>>,
 	private Configuration conf;
 	private com.datasalt.pangool.serialization.HadoopSerialization ser;
 	private TupleMRConfig tupleMRConfig;
+	// The logical jobs of a job built with SharedScanBuilder, if any
+	private List<TupleMRConfig> sharedScanQueries;
 	
 	/**
 	 * Configuration parameter to enable the Schema strict validation.<br>
@@ -112,6 +115,9 @@ public class TupleSerialization implements Serialization<DatumWrapper<ITuple>>,
 				disableSerialization(this.conf);
 
 				this.tupleMRConfig = TupleMRConfig.get(conf);
+				if(TupleMRConfig.getNumQueries(conf) > 0) {
+					this.sharedScanQueries = TupleMRConfig.getQueries(conf);
+				}
 				this.ser = new com.datasalt.pangool.serialization.HadoopSerialization(this.conf);
 			}
 		} catch(TupleMRException e) {
@@ -124,11 +130,17 @@ public class TupleSerialization implements Serialization<DatumWrapper<ITuple>>,
 	@Override
 	public Serializer<DatumWrapper<ITuple>> getSerializer(Class<DatumWrapper<ITuple>> c) {
 		boolean inputSchemaValidation = (conf == null ) ? true : getSchemaValidation(conf);
+		if(sharedScanQueries != null) {
+			return new SharedScanSerializer(this.ser, sharedScanQueries, inputSchemaValidation);
+		}
 		return new TupleSerializer(this.ser, this.tupleMRConfig,inputSchemaValidation);
 	}
 
 	@Override
 	public Deserializer<DatumWrapper<ITuple>> getDeserializer(Class<DatumWrapper<ITuple>> c) {
+		if(sharedScanQueries != null) {
+			return new SharedScanDeserializer(this.ser, sharedScanQueries, this.conf);
+		}
 		return new TupleDeserializer(this.ser, this.tupleMRConfig, this.conf);
 	}
 
@@ -4,11 +4,18 @@ import java.io.Serializable;
 
 import org.apache.avro.Schema;
 import org.apache.avro.io.BinaryData;
-import org.apache.commons.lang.NotImplementedException;
+import org.apache.avro.reflect.ReflectData;
 import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.RawComparator;
 
+import com.datasalt.pangool.tuplemr.serialization.AvroFieldSerialization;
+
+/**
+ * Custom comparator for OBJECT fields serialized with {@link AvroFieldSerialization}. Binary comparison is performed
+ * directly over the Avro binary encoding, so objects are sorted without being deserialized. The order is the one
+ * defined by the Avro specification for the given schema.
+ */
 @SuppressWarnings({ "serial", "rawtypes" })
 public class AvroBinaryComparator implements RawComparator, Serializable,Configurable{
 	
@@ -30,14 +37,25 @@ public class AvroBinaryComparator implements RawComparator, Serializable,Configu
 		return null;
 	}
 	
+	@SuppressWarnings("deprecation")
+	private Schema getSchema() {
+		if(schema == null) {
+			schema = Schema.parse(schemaStr);
+		}
+		return schema;
+	}
+
+	/**
+	 * Compares two instances of the schema. Generic, specific and reflect instances are supported.
+	 */
 	@Override
   public int compare(Object object1, Object object2) {
-	  throw new NotImplementedException();
+		return ReflectData.get().compare(object1, object2, getSchema());
   }
 
 	@Override
   public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
-		return BinaryData.compare(b1, s1, l1, b2, s2, l2, schema);
+		return BinaryData.compare(b1, s1, l1, b2, s2, l2, getSchema());
   }
 
 }
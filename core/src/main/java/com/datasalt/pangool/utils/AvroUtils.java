@@ -101,6 +101,30 @@ public class AvroUtils {
 
 	
 	
+	/**
+	 * Creates a projection of an Avro record schema containing only the given fields, in the given order.
+	 * Used as reader schema it makes Avro skip the non projected fields when decoding.
+	 */
+	public static org.apache.avro.Schema projectAvroSchema(org.apache.avro.Schema avroSchema, String... fieldNames) {
+		List<org.apache.avro.Schema.Field> projectedFields = new ArrayList<org.apache.avro.Schema.Field>();
+		for(String fieldName : fieldNames) {
+			org.apache.avro.Schema.Field field = avroSchema.getField(fieldName);
+			if(field == null) {
+				throw new PangoolRuntimeException("Field '" + fieldName + "' not present in Avro schema " + avroSchema);
+			}
+			org.apache.avro.Schema.Field projectedField = new org.apache.avro.Schema.Field(field.name(), field.schema(),
+			    field.doc(), field.defaultValue(), field.order());
+			for(Map.Entry<String, String> entry : field.props().entrySet()) {
+				projectedField.addProp(entry.getKey(), entry.getValue());
+			}
+			projectedFields.add(projectedField);
+		}
+		org.apache.avro.Schema projection = org.apache.avro.Schema.createRecord(avroSchema.getName(),
+		    avroSchema.getDoc(), avroSchema.getNamespace(), avroSchema.isError());
+		projection.setFields(projectedFields);
+		return projection;
+	}
+
 	/**
 	 * Converts from one Pangool schema to one Avro schema for serializing it
 	 */
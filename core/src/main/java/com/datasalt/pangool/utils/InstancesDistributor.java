@@ -15,19 +15,36 @@
  */
 package com.datasalt.pangool.utils;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInput;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutput;
 import java.io.ObjectOutputStream;
+import java.net.URI;
 import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
 
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
 
 /**
  * This class contains useful methods for serializing/deserializing
@@ -37,22 +54,68 @@ import org.apache.hadoop.fs.Path;
  * You can do things like saving a Java Serializable instance and recovering it afterwards. Check methods
  * {@link InstancesDistributor#distribute(Object, String, Configuration)} and
  * {@link InstancesDistributor#loadInstance(Configuration, Class, String, boolean)} for this purpose.
- * 
+ * <p>
+ * Small instances (see {@link #MAX_EMBEDDED_SIZE_CONF}) are embedded in the Configuration. Bigger ones are written
+ * to a file in {@link #HDFS_TMP_FOLDER_CONF} named after the hash of its content, so that identical instances are
+ * uploaded only once and reused by later jobs, and localized to the tasks through the {@link DistributedCache}.
+ * <p>
+ * Each JVM using one of these files creates a marker file next to it, so that it is deleted only once no JVM uses
+ * it anymore. Access times are not used for this, as they may be disabled in the FileSystem.
  */
 public class InstancesDistributor {
 
+	private static final Log LOG = LogFactory.getLog(InstancesDistributor.class);
+
 	public final static String HDFS_TMP_FOLDER_CONF = InstancesDistributor.class.getName() + ".hdfs.pangool.tmp.folder";
 	public final static String DEFAULT_HDFS_TMP_FOLDER_CONF_VALUE = "./pangool-instances";
-	
+
+	/**
+	 * Instances up to this size in bytes, once serialized, are embedded in the Configuration.
+	 */
+	public final static String MAX_EMBEDDED_SIZE_CONF = InstancesDistributor.class.getName() + ".max.embedded.size";
+	public final static int DEFAULT_MAX_EMBEDDED_SIZE = 8 * 1024;
+
+	// Where each instance is: "embedded:<base64>" or "file:<content-addressed file name>"
+	private final static String INSTANCE_CONF_PREFIX = InstancesDistributor.class.getName() + ".instance.";
+	private final static String EMBEDDED = "embedded:";
+	private final static String FILE = "file:";
+	private final static String INSTANCE_FILE_SUFFIX = ".instance";
+	private final static String MARKER_FILE_SUFFIX = ".use";
+
+	// Content of the instance files already read by this JVM, so that the same instance loaded many times (e.g. the
+	// InputFormat of many inputs) is read only once. Files are content-addressed, so they never change.
+	private final static int MAX_CACHED_FILES = 32;
+	private final static int MAX_CACHED_FILE_SIZE = 1024 * 1024;
+	@SuppressWarnings("serial")
+	private final static Map<String, byte[]> CACHED_FILES = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+			return size() > MAX_CACHED_FILES;
+		}
+	};
+
+	// The file of each instance distributed by this JVM, by instance name, or null if it is embedded. The instances
+	// of a file are counted, so that its marker is deleted only when the last of the jobs sharing it removes its
+	// instances.
+	private final static Map<String, Path> INSTANCE_FILES = new HashMap<String, Path>();
+	private final static Map<Path, FileUse> FILE_USES = new HashMap<Path, FileUse>();
+
+	private static final class FileUse {
+
+		int references;
+		// Tells other JVMs that this one uses the file
+		Path marker;
+	}
+
 	/**
 	 * Utility method for serializing an object and saving it in a way that later can be recovered
-   * anywhere in the cluster.
+	 * anywhere in the cluster.
 	 * <p>
 	 * The file where it has been serialized will be saved into a Hadoop Configuration property so that you can call
 	 * {@link InstancesDistributor#loadInstance(Configuration, Class, String, boolean)} to re-instantiate the serialized instance.
 	 * 
 	 * @param obj The obj instance to serialize using Java serialization.
-	 * @param fileName The file name where the instance will be serialized.
+	 * @param fileName The name used to locate the instance afterwards.
 	 * @param conf The Hadoop Configuration.
 	 * @throws FileNotFoundException
 	 * @throws IOException
@@ -61,21 +124,181 @@ public class InstancesDistributor {
 	public static void distribute(Object obj, String fileName, Configuration conf)
 	    throws FileNotFoundException, IOException, URISyntaxException {
 
-    FileSystem fS = FileSystem.get(conf);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutput out = new ObjectOutputStream(bytes);
+		out.writeObject(obj);
+		out.close();
+		byte[] serialized = bytes.toByteArray();
+
+		if(serialized.length <= conf.getInt(MAX_EMBEDDED_SIZE_CONF, DEFAULT_MAX_EMBEDDED_SIZE)) {
+			conf.set(INSTANCE_CONF_PREFIX + fileName, EMBEDDED + new String(Base64.encodeBase64(serialized), "UTF-8"));
+			synchronized(FILE_USES) {
+				register(fileName, null, null);
+			}
+			return;
+		}
+
+		FileSystem fS = FileSystem.get(conf);
 		// set the temporary folder for Pangool instances to the temporary of the user that is running the Job
 		// This folder will be used across the cluster for location the instances.
-    // The default value can be changed by a user-provided one.
-		String tmpHdfsFolder = conf.get(HDFS_TMP_FOLDER_CONF, DEFAULT_HDFS_TMP_FOLDER_CONF_VALUE);
-		Path toHdfs = new Path(tmpHdfsFolder, fileName);
-		if(fS.exists(toHdfs)) { // Optionally, copy to DFS if
-			fS.delete(toHdfs, false);
+		// The default value can be changed by a user-provided one.
+		Path toHdfs = fS.makeQualified(locateFileInCache(conf, hash(serialized) + INSTANCE_FILE_SUFFIX));
+		// Synchronized with removeFromCache(), so that a file is not deleted between being found and registered
+		synchronized(FILE_USES) {
+			FileUse use = FILE_USES.get(toHdfs);
+			// The marker is created before looking for the file, so that another JVM deleting it sees the marker
+			Path marker = (use == null) ? createMarker(fS, toHdfs) : use.marker;
+			try {
+				writeOrReuse(fS, toHdfs, serialized, fileName);
+			} catch(IOException e) {
+				if(use == null) {
+					fS.delete(marker, false);
+				}
+				throw e;
+			}
+			register(fileName, toHdfs, marker);
+		}
+		conf.set(INSTANCE_CONF_PREFIX + fileName, FILE + toHdfs.getName());
+
+		URI uri = toHdfs.toUri();
+		URI[] cacheFiles = DistributedCache.getCacheFiles(conf);
+		if(cacheFiles != null) {
+			for(URI cacheFile : cacheFiles) {
+				if(cacheFile.equals(uri)) {
+					return;
+				}
+			}
+		}
+		DistributedCache.addCacheFile(uri, conf);
+	}
+
+	private static void writeOrReuse(FileSystem fS, Path toHdfs, byte[] serialized, String fileName) throws IOException {
+		if(!fS.exists(toHdfs)) {
+			// Written to a temporary file first, as other jobs may be distributing the same instance. The file is
+			// never modified afterwards, so that its timestamp in the DistributedCache of running jobs stays valid.
+			Path tmp = toHdfs.suffix("." + UUID.randomUUID() + ".tmp");
+			FSDataOutputStream fileOut = fS.create(tmp);
+			fileOut.write(serialized);
+			fileOut.close();
+			if(!fS.rename(tmp, toHdfs)) {
+				fS.delete(tmp, false);
+				if(!fS.exists(toHdfs)) {
+					throw new IOException("Unable to write instance file " + toHdfs);
+				}
+			}
+		} else {
+			LOG.info("Reusing instance file " + toHdfs + " for " + fileName);
+			// Marks the file as used, so that removeInstanceFiles() keeps it. Only the access time is set, as the
+			// DistributedCache fails the running jobs that use a file whose modification time has changed. The
+			// FileSystem may not support access times, but the marker keeps the file anyway.
+			try {
+				fS.setTimes(toHdfs, -1, System.currentTimeMillis());
+			} catch(IOException e) {
+				LOG.warn("Unable to set the access time of " + toHdfs, e);
+			}
 		}
+	}
 
-    ObjectOutput out = new ObjectOutputStream(fS.create(toHdfs));
-    out.writeObject(obj);
-    out.close();
+	private static Path createMarker(FileSystem fS, Path file) throws IOException {
+		Path marker = file.suffix("." + UUID.randomUUID() + MARKER_FILE_SUFFIX);
+		fS.create(marker).close();
+		return marker;
+	}
 
-		DistributedCache.addCacheFile(toHdfs.toUri(), conf);
+	/**
+	 * Returns whether some JVM marked the file as used since the given time.
+	 */
+	private static boolean isUsed(FileSystem fS, Path file, long since) throws IOException {
+		FileStatus[] markers = fS.globStatus(file.suffix(".*" + MARKER_FILE_SUFFIX));
+		if(markers != null) {
+			for(FileStatus marker : markers) {
+				if(marker.getModificationTime() >= since) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Deletes the file if no JVM marked it as used. It is moved aside before looking for markers, so that a JVM that
+	 * creates its marker afterwards doesn't find it and writes it again.
+	 */
+	private static void deleteIfUnused(FileSystem fS, Path file) throws IOException {
+		Path removed = file.suffix("." + UUID.randomUUID() + ".removed");
+		if(!fS.rename(file, removed)) {
+			return;
+		}
+		if(isUsed(fS, file, 0) && !fS.exists(file) && fS.rename(removed, file)) {
+			return;
+		}
+		fS.delete(removed, false);
+	}
+
+	private static void register(String fileName, Path file, Path marker) {
+		unregister(fileName);
+		INSTANCE_FILES.put(fileName, file);
+		if(file != null) {
+			FileUse use = FILE_USES.get(file);
+			if(use == null) {
+				use = new FileUse();
+				use.marker = marker;
+				FILE_USES.put(file, use);
+			}
+			use.references++;
+		}
+	}
+
+	/**
+	 * Forgets the instance, returning the use of its file if no other instance uses it.
+	 */
+	private static FileUse unregister(String fileName) {
+		Path file = INSTANCE_FILES.remove(fileName);
+		if(file == null) {
+			return null;
+		}
+		FileUse use = FILE_USES.get(file);
+		if(--use.references > 0) {
+			return null;
+		}
+		FILE_USES.remove(file);
+		return use;
+	}
+
+	private static long lastUse(FileStatus status) {
+		return Math.max(status.getModificationTime(), status.getAccessTime());
+	}
+
+	private static String hash(byte[] data) throws IOException {
+		try {
+			return new String(Hex.encodeHex(MessageDigest.getInstance("MD5").digest(data)));
+		} catch(NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Returns the MD5 of the serialized content of each instance distributed in the Configuration, by the name it was
+	 * distributed with. Instances with the same content have the same MD5 whatever their name, so it identifies them
+	 * across jobs.
+	 */
+	public static Map<String, String> getInstanceHashes(Configuration conf) throws IOException {
+		Map<String, String> hashes = new HashMap<String, String>();
+		for(Map.Entry<String, String> entry : conf) {
+			if(!entry.getKey().startsWith(INSTANCE_CONF_PREFIX)) {
+				continue;
+			}
+			String location = entry.getValue();
+			String hash;
+			if(location.startsWith(EMBEDDED)) {
+				hash = hash(Base64.decodeBase64(location.substring(EMBEDDED.length()).getBytes("UTF-8")));
+			} else {
+				// Files are named after the MD5 of their content
+				hash = location.substring(FILE.length(), location.length() - INSTANCE_FILE_SUFFIX.length());
+			}
+			hashes.put(entry.getKey().substring(INSTANCE_CONF_PREFIX.length()), hash);
+		}
+		return hashes;
 	}
 
 	/**
@@ -90,28 +313,75 @@ public class InstancesDistributor {
 	 * @throws IOException
 	 */
 	public static <T> T loadInstance(Configuration conf, Class<T> objClass, String fileName,
-                                   boolean callSetConf) throws IOException {
+	    boolean callSetConf) throws IOException {
 
-		Path path = InstancesDistributor.locateFileInCache(conf, fileName);
 		T obj;
-		ObjectInput in;
-		if (path == null){
-			throw new IOException("Path is null");
-		}
-		in = new ObjectInputStream(FileSystem.get(conf).open(path));
-
+		ObjectInput in = new ObjectInputStream(openInstance(conf, fileName));
 		try {
 			obj = objClass.cast(in.readObject());
 		} catch(ClassNotFoundException e) {
 			throw new RuntimeException(e);
+		} finally {
+			in.close();
 		}
-		in.close();
 		if(obj instanceof Configurable && callSetConf) {
 			((Configurable) obj).setConf(conf);
 		}
 		return obj;
 	}
 
+	/**
+	 * Opens the serialized instance: from the Configuration if embedded, from the local copy of the
+	 * {@link DistributedCache} if the file has been localized or from the file in the FileSystem otherwise. The content
+	 * of the files is cached in memory.
+	 */
+	private static InputStream openInstance(Configuration conf, String fileName) throws IOException {
+		String location = conf.get(INSTANCE_CONF_PREFIX + fileName);
+		if(location == null) {
+			return openFile(conf, fileName);
+		}
+		if(location.startsWith(EMBEDDED)) {
+			return new ByteArrayInputStream(Base64.decodeBase64(location.substring(EMBEDDED.length()).getBytes("UTF-8")));
+		}
+		String file = location.substring(FILE.length());
+		byte[] data;
+		synchronized(CACHED_FILES) {
+			data = CACHED_FILES.get(file);
+		}
+		if(data == null) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			InputStream in = openFile(conf, file);
+			try {
+				IOUtils.copyBytes(in, bytes, 4096, false);
+			} finally {
+				in.close();
+			}
+			data = bytes.toByteArray();
+			if(data.length <= MAX_CACHED_FILE_SIZE) {
+				synchronized(CACHED_FILES) {
+					CACHED_FILES.put(file, data);
+				}
+			}
+		}
+		return new ByteArrayInputStream(data);
+	}
+
+	private static InputStream openFile(Configuration conf, String file) throws IOException {
+		Path[] localFiles = DistributedCache.getLocalCacheFiles(conf);
+		if(localFiles != null) {
+			for(Path localFile : localFiles) {
+				if(localFile.getName().equals(file)) {
+					return FileSystem.getLocal(conf).open(localFile);
+				}
+			}
+		}
+		Path path = InstancesDistributor.locateFileInCache(conf, file);
+		if (path == null){
+			throw new IOException("Path is null");
+		}
+		return FileSystem.get(conf).open(path);
+	}
+
 	/**
 	 * Locates a file in the temporal folder
 	 * 
@@ -122,15 +392,77 @@ public class InstancesDistributor {
 	 * @throws IOException
 	 */
 	private static Path locateFileInCache(Configuration conf, String filename) throws IOException {
-      return new Path(conf.get(HDFS_TMP_FOLDER_CONF, DEFAULT_HDFS_TMP_FOLDER_CONF_VALUE),
-          filename);
+		return new Path(conf.get(HDFS_TMP_FOLDER_CONF, DEFAULT_HDFS_TMP_FOLDER_CONF_VALUE), filename);
 	}
 
 	/**
 	 * Delete a file that has been distributed using {@link #distribute(Object, String, Configuration)}.
+	 * <p>
+	 * Embedded instances don't need to be deleted. Content-addressed files are shared among the instances with the
+	 * same content: when the last of the instances distributed by this JVM that use a file is removed, its marker is
+	 * deleted, and so is the file if no other JVM has marked it as used.
 	 */
 	public static void removeFromCache(Configuration conf, String filename) throws IOException {
-    FileSystem fS = FileSystem.get(conf); 
-		fS.delete(locateFileInCache(conf, filename), true);
+		synchronized(FILE_USES) {
+			if(INSTANCE_FILES.containsKey(filename)) {
+				Path file = INSTANCE_FILES.get(filename);
+				FileUse use = unregister(filename);
+				if(use != null) {
+					FileSystem fS = file.getFileSystem(conf);
+					fS.delete(use.marker, false);
+					deleteIfUnused(fS, file);
+				}
+				return;
+			}
+		}
+		// Distributed by another JVM, or by an older version with a file per instance name
+		FileSystem fS = FileSystem.get(conf);
+		Path path = locateFileInCache(conf, filename);
+		if(fS.exists(path)) {
+			fS.delete(path, true);
+		}
+	}
+
+	/**
+	 * Deletes the content-addressed instance files neither created nor marked as used in the last maxAgeMillis, except
+	 * the ones used by instances of this JVM not removed yet. Older markers, left by JVMs that died before removing
+	 * their instances, are deleted too. Jobs of other JVMs running at that moment could be using the files, so
+	 * maxAgeMillis should be longer than the longest job. Returns the number of instance files deleted.
+	 */
+	public static int removeInstanceFiles(Configuration conf, long maxAgeMillis) throws IOException {
+		FileSystem fS = FileSystem.get(conf);
+		Path folder = new Path(conf.get(HDFS_TMP_FOLDER_CONF, DEFAULT_HDFS_TMP_FOLDER_CONF_VALUE));
+		if(!fS.exists(folder)) {
+			return 0;
+		}
+		long limit = System.currentTimeMillis() - maxAgeMillis;
+		int deleted = 0;
+		synchronized(FILE_USES) {
+			for(FileStatus status : fS.listStatus(folder)) {
+				Path file = fS.makeQualified(status.getPath());
+				if(file.getName().endsWith(INSTANCE_FILE_SUFFIX) && lastUse(status) < limit
+				    && !FILE_USES.containsKey(file) && !isUsed(fS, file, limit)) {
+					fS.delete(file, false);
+					deleted++;
+				}
+			}
+			for(FileStatus status : fS.listStatus(folder)) {
+				Path file = fS.makeQualified(status.getPath());
+				if(file.getName().endsWith(MARKER_FILE_SUFFIX) && status.getModificationTime() < limit
+				    && !isMarkerOfThisJVM(file)) {
+					fS.delete(file, false);
+				}
+			}
+		}
+		return deleted;
+	}
+
+	private static boolean isMarkerOfThisJVM(Path marker) {
+		for(FileUse use : FILE_USES.values()) {
+			if(use.marker.equals(marker)) {
+				return true;
+			}
+		}
+		return false;
 	}
 }
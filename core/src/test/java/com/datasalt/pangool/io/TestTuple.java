@@ -138,4 +138,32 @@ public class TestTuple extends BaseTest {
     }
   }
 
+  @Test
+  public void testDeepCopyInto() throws Exception {
+    Schema schema = new Schema("schema", Fields.parse("s:string, b:bytes, i:int?"));
+    Tuple t = new Tuple(schema);
+    t.set("s", new Utf8("first"));
+    t.set("b", new byte[] { 1, 2 });
+    t.set("i", 1);
+    Tuple copy = Tuple.deepCopy(t, null, null);
+    Object s = copy.get("s");
+    Object b = copy.get("b");
+
+    t.set("s", new Utf8("second"));
+    t.set("b", new byte[] { 3, 4 });
+    t.set("i", null);
+    assertSame(copy, Tuple.deepCopy(t, copy, null));
+    assertEquals(new Utf8("second"), copy.get("s"));
+    assertArrayEquals(new byte[] { 3, 4 }, (byte[]) copy.get("b"));
+    assertNull(copy.get("i"));
+    // The objects of the copy are reused
+    assertSame(s, copy.get("s"));
+    assertSame(b, copy.get("b"));
+    assertNotSame(t.get("s"), copy.get("s"));
+    assertNotSame(t.get("b"), copy.get("b"));
+
+    // Not into a tuple of another schema
+    Tuple other = new Tuple(new Schema("other", Fields.parse("s:string")));
+    assertNotSame(other, Tuple.deepCopy(t, other, null));
+  }
 }
@@ -8,6 +8,7 @@ import org.junit.Test;
 import java.io.IOException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 
 
 public class TestTupleFile extends BaseTest {
@@ -40,4 +41,43 @@ public class TestTupleFile extends BaseTest {
     
     fs.delete(new Path(OUT), true);
   }
+
+  @Test
+  public void testReadProjection() throws IOException {
+    int numTuples = 10;
+    ITuple tuples [] = new ITuple[numTuples];
+    for(int i=0; i<numTuples; i++) {
+      tuples[i] = fillTuple(true, new Tuple(SCHEMA));
+    }
+
+    FileSystem fs = FileSystem.get(getConf());
+    TupleFile.Writer writer = new TupleFile.Writer(fs, getConf(), new Path(OUT), SCHEMA);
+    for(ITuple tuple: tuples) {
+      writer.append(tuple);
+    }
+    writer.close();
+
+    String[] projected = new String[] { "string_field", "double_field", "enum_field" };
+    TupleFile.Reader reader = new TupleFile.Reader(fs, getConf(), new Path(OUT));
+    reader.setProjection(projected);
+    Tuple inTuple = new Tuple(reader.getSchema());
+    int count = 0;
+    while(reader.next(inTuple)) {
+      for(Schema.Field field: SCHEMA.getFields()) {
+        String name = field.getName();
+        if(name.equals("string_field")) {
+          assertEquals(tuples[count].get(name).toString(), inTuple.get(name).toString());
+        } else if(name.equals("double_field") || name.equals("enum_field")) {
+          assertEquals(tuples[count].get(name), inTuple.get(name));
+        } else {
+          assertNull(inTuple.get(name));
+        }
+      }
+      count++;
+    }
+    reader.close();
+    assertEquals(numTuples, count);
+
+    fs.delete(new Path(OUT), true);
+  }
 }
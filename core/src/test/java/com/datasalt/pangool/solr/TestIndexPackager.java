@@ -0,0 +1,188 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestIndexPackager {
+
+	public final static String INDEX = "test-" + TestIndexPackager.class.getName() + "-index";
+	public final static String OUT = "test-" + TestIndexPackager.class.getName() + "-out";
+
+	@Before
+	@After
+	public void cleanUp() throws IOException {
+		for(String dir : new String[] { INDEX, OUT }) {
+			if(new File(dir).exists()) {
+				FileUtils.deleteDirectory(new File(dir));
+			}
+		}
+	}
+
+	private void createIndex() throws IOException {
+		Random random = new Random(17);
+		File dataDir = new File(INDEX, "data/index");
+		dataDir.mkdirs();
+		new File(INDEX, "data/empty").mkdirs();
+		for(int i = 0; i < 10; i++) {
+			byte[] content = new byte[random.nextInt(200000)];
+			// Half random, half compressible
+			for(int j = 0; j < content.length / 2; j++) {
+				content[j] = (byte) random.nextInt();
+			}
+			writeFile(new File(dataDir, "_" + i + ".fdt"), content);
+		}
+		writeFile(new File(dataDir, "segments_1"), new byte[0]);
+		writeFile(new File(INDEX, "conf.xml"), "<config/>".getBytes("UTF-8"));
+	}
+
+	private static void writeFile(File file, byte[] content) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(content);
+		out.close();
+	}
+
+	@Test
+	public void testZip() throws IOException {
+		createIndex();
+		Configuration conf = new Configuration();
+		Path local = new Path(new File(INDEX).getAbsolutePath());
+		new File(OUT).mkdirs();
+		assertTrue(IndexPackager.canZip(conf, local));
+
+		File sequentialZip = new File(OUT, "sequential.zip");
+		ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(sequentialZip));
+		int sequentialCount = SolrRecordWriter.zipDirectory(conf, zos, "part-00000", local.toUri().getPath(), local);
+		zos.close();
+
+		File parallelZip = new File(OUT, "parallel.zip");
+		FileOutputStream out = new FileOutputStream(parallelZip);
+		int parallelCount = IndexPackager.zip(conf, local, "part-00000", out, 3);
+		out.close();
+
+		assertEquals(sequentialCount, parallelCount);
+		ZipFile expected = new ZipFile(sequentialZip);
+		ZipFile actual = new ZipFile(parallelZip);
+		List<String> expectedNames = names(expected);
+		assertEquals(expectedNames, names(actual));
+		for(String name : expectedNames) {
+			ZipEntry expectedEntry = expected.getEntry(name);
+			ZipEntry actualEntry = actual.getEntry(name);
+			assertEquals(expectedEntry.isDirectory(), actualEntry.isDirectory());
+			assertEquals(expectedEntry.getSize(), actualEntry.getSize());
+			assertEquals(expectedEntry.getCrc(), actualEntry.getCrc());
+			assertTrue(IOUtils.contentEquals(expected.getInputStream(expectedEntry), actual.getInputStream(actualEntry)));
+		}
+		expected.close();
+		actual.close();
+	}
+
+	@Test
+	public void testFailedZipIsDeleted() throws IOException {
+		createIndex();
+		Configuration conf = new Configuration();
+		Path local = new Path(new File(INDEX).getAbsolutePath());
+		Path perm = new Path(new File(OUT, "part-00000.zip").getAbsolutePath());
+		final boolean[] closed = new boolean[1];
+		// A file system where writing the zip fails, as when the disk is full
+		FileSystem fs = new FilterFileSystem(FileSystem.getLocal(conf)) {
+			@Override
+			public FSDataOutputStream create(Path f, boolean overwrite) throws IOException {
+				final FSDataOutputStream out = super.create(f, overwrite);
+				return new FSDataOutputStream(new OutputStream() {
+					@Override
+					public void write(int b) throws IOException {
+						throw new IOException("No space left");
+					}
+
+					@Override
+					public void close() throws IOException {
+						closed[0] = true;
+						out.close();
+					}
+				}, null);
+			}
+		};
+		// Sequential and parallel zip
+		for(int threads : new int[] { 1, 3 }) {
+			closed[0] = false;
+			try {
+				SolrRecordWriter.packageIndex(new TaskAttemptContext(conf, new TaskAttemptID()), conf, fs, local, perm, true,
+				    threads);
+				fail();
+			} catch(IOException e) {
+				// Expected
+			}
+			assertTrue(closed[0]);
+			assertFalse(new File(perm.toUri().getPath()).exists());
+		}
+	}
+
+	@Test
+	public void testCopy() throws IOException {
+		createIndex();
+		Configuration conf = new Configuration();
+		FileSystem fs = FileSystem.getLocal(conf);
+		Path local = new Path(new File(INDEX).getAbsolutePath());
+		Path dest = new Path(new File(OUT).getAbsolutePath(), "part-00000");
+
+		IndexPackager.copy(conf, local, fs, dest, 3);
+
+		for(Object obj : FileUtils.listFiles(new File(INDEX), null, true)) {
+			File file = (File) obj;
+			String relative = file.getAbsolutePath().substring(new File(INDEX).getAbsolutePath().length());
+			assertTrue(FileUtils.contentEquals(file, new File(dest.toUri().getPath() + relative)));
+		}
+		assertTrue(new File(dest.toUri().getPath(), "data/empty").isDirectory());
+	}
+
+	private static List<String> names(ZipFile zip) {
+		List<String> names = new ArrayList<String>();
+		Enumeration<? extends ZipEntry> entries = zip.entries();
+		while(entries.hasMoreElements()) {
+			names.add(entries.nextElement().getName());
+		}
+		return names;
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.FSDirectory;
+import org.junit.Test;
+
+import com.datasalt.pangool.io.Fields;
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Tuple;
+import com.datasalt.pangool.tuplemr.IdentityTupleReducer;
+import com.datasalt.pangool.tuplemr.TupleMRBuilder;
+import com.datasalt.pangool.tuplemr.TupleMapper;
+import com.datasalt.pangool.tuplemr.mapred.lib.input.HadoopInputFormat;
+import com.datasalt.pangool.utils.test.AbstractHadoopTestLibrary;
+
+public class TestLuceneOutputFormat extends AbstractHadoopTestLibrary {
+
+	public final static String INPUT = "src/test/resources/user-messages.txt";
+	public final static String OUTPUT = "out-" + TestLuceneOutputFormat.class.getName();
+	public final static Schema SCHEMA = new Schema("iSchema", Fields.parse("user_id:string, message:string"));
+
+	@SuppressWarnings("serial")
+	public static class MessageMapper extends TupleMapper<LongWritable, Text> {
+
+		Tuple tuple = new Tuple(SCHEMA);
+
+		@Override
+		public void map(LongWritable key, Text value, TupleMRContext context, Collector collector)
+		    throws IOException, InterruptedException {
+			String[] fields = value.toString().split("\t");
+			tuple.set("user_id", fields[0]);
+			tuple.set("message", fields[2]);
+			collector.write(tuple);
+		}
+	}
+
+	@Test
+	public void test() throws Exception {
+		trash(OUTPUT);
+
+		TupleMRBuilder builder = new TupleMRBuilder(getConf());
+		builder.addIntermediateSchema(SCHEMA);
+		builder.setGroupByFields("user_id");
+		builder.addInput(new Path(INPUT), new HadoopInputFormat(TextInputFormat.class), new MessageMapper());
+		builder.setTupleReducer(new IdentityTupleReducer());
+		builder.setOutput(new Path(OUTPUT), new TupleLuceneOutputFormat(new File("src/test/resources/solr-en"),
+		    getConf(), new DefaultTupleDocumentConverter(), false, 1, 2, 1, true, 16, 10), ITuple.class,
+		    NullWritable.class);
+		Job job = builder.createJob();
+		try {
+			assertTrue(job.waitForCompletion(true));
+		} finally {
+			builder.cleanUpInstanceFiles();
+		}
+
+		assertTrue(new File(OUTPUT + "/part-00000/conf/schema.xml").exists());
+		IndexReader r = DirectoryReader.open(FSDirectory.open(new File(OUTPUT + "/part-00000/data/index")));
+		assertEquals(4, r.maxDoc());
+		// Fields are indexed as the Solr schema says
+		TopDocs docs = new IndexSearcher(r).search(new TermQuery(new Term("user_id", "user3")), 10);
+		assertEquals(1, docs.totalHits);
+		assertEquals("Oh la lá!", r.document(docs.scoreDocs[0].doc).get("message"));
+		r.close();
+
+		trash(OUTPUT);
+	}
+}
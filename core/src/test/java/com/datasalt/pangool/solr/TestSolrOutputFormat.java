@@ -16,22 +16,62 @@
 package com.datasalt.pangool.solr;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.HashSet;
 import java.util.Set;
 
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.store.FSDirectory;
 import org.junit.Test;
 
+import com.datasalt.pangool.io.Fields;
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Tuple;
+import com.datasalt.pangool.tuplemr.IdentityTupleReducer;
+import com.datasalt.pangool.tuplemr.TupleMRBuilder;
+import com.datasalt.pangool.tuplemr.TupleMapper;
+import com.datasalt.pangool.tuplemr.mapred.lib.input.HadoopInputFormat;
+import com.datasalt.pangool.utils.CommonUtils;
 import com.datasalt.pangool.utils.test.AbstractHadoopTestLibrary;
 
 public class TestSolrOutputFormat extends AbstractHadoopTestLibrary {
 
 	public final static String INPUT = "src/test/resources/user-messages.txt";
 	public final static String OUTPUT = "out-" + TestSolrOutputFormat.class.getName();
+	public final static String SHARDS_INPUT = "in-" + TestSolrOutputFormat.class.getName() + "-shards";
+
+	final static Schema SCHEMA = new Schema("iSchema", Fields.parse("user_id:string, message:string"));
+	final static int NUM_SHARDS = 3;
+	final static int NUM_USERS = 50;
+
+	@SuppressWarnings("serial")
+	public static class ParseMessage extends TupleMapper<LongWritable, Text> {
+
+		private transient Tuple tuple;
+
+		@Override
+		public void map(LongWritable key, Text value, TupleMRContext context, Collector collector)
+		    throws IOException, InterruptedException {
+			if(tuple == null) {
+				tuple = new Tuple(SCHEMA);
+			}
+			String[] fields = value.toString().split("\t");
+			tuple.set("user_id", fields[0]);
+			tuple.set("message", fields[1]);
+			collector.write(tuple);
+		}
+	}
 
 	@Test
 	public void test() throws Exception {
@@ -85,4 +125,57 @@ public class TestSolrOutputFormat extends AbstractHadoopTestLibrary {
 
 		trash(OUTPUT);
 	}
+
+	/**
+	 * Indexes one message per user into several shards and checks that the
+	 * merged index of the task has every message exactly once.
+	 */
+	private void assertIndexedInShards(String routingField) throws Exception {
+		trash(SHARDS_INPUT, OUTPUT);
+		StringBuilder input = new StringBuilder();
+		for(int i = 0; i < NUM_USERS; i++) {
+			input.append(String.format("user%02d\tMessage %d\n", i, i));
+		}
+		CommonUtils.writeTXT(input.toString(), new File(SHARDS_INPUT));
+
+		TupleMRBuilder builder = new TupleMRBuilder(getConf());
+		builder.addIntermediateSchema(SCHEMA);
+		builder.setGroupByFields("user_id");
+		builder.addInput(new Path(SHARDS_INPUT), new HadoopInputFormat(TextInputFormat.class), new ParseMessage());
+		builder.setTupleReducer(new IdentityTupleReducer());
+		// Small batches, so that every shard gets several of them
+		builder.setOutput(new Path(OUTPUT), new TupleSolrOutputFormat(new File("src/test/resources/solr-en"), getConf(),
+		    new DefaultTupleDocumentConverter(), false, 4, 2, 10, false, NUM_SHARDS, routingField), ITuple.class,
+		    NullWritable.class);
+		try {
+			assertRun(builder.createJob());
+		} finally {
+			builder.cleanUpInstanceFiles();
+		}
+
+		// The shards are merged into the index of the task and not kept
+		assertFalse(new File(OUTPUT + "/part-00000/" + SolrRecordWriter.SHARDS_DIR).exists());
+		IndexReader r = IndexReader.open(FSDirectory.open(new File(OUTPUT + "/part-00000/data/index")));
+		Set<String> userIds = new HashSet<String>();
+		for(int i = 0; i < r.maxDoc(); i++) {
+			Document document = r.document(i);
+			userIds.add(document.get("user_id"));
+			assertEquals("Message " + Integer.parseInt(document.get("user_id").substring(4)), document.get("message"));
+		}
+		assertEquals(NUM_USERS, r.maxDoc());
+		assertEquals(NUM_USERS, r.numDocs());
+		r.close();
+		assertEquals(NUM_USERS, userIds.size());
+		trash(SHARDS_INPUT, OUTPUT);
+	}
+
+	@Test
+	public void testRoundRobinShards() throws Exception {
+		assertIndexedInShards(null);
+	}
+
+	@Test
+	public void testHashRoutedShards() throws Exception {
+		assertIndexedInShards("user_id");
+	}
 }
@@ -0,0 +1,261 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.solr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.solr.common.SolrInputDocument;
+import org.junit.Test;
+
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Tuple;
+import com.datasalt.pangool.tuplemr.IdentityTupleReducer;
+import com.datasalt.pangool.tuplemr.TupleMRBuilder;
+import com.datasalt.pangool.tuplemr.TupleMRException;
+import com.datasalt.pangool.tuplemr.mapred.lib.input.HadoopInputFormat;
+import com.datasalt.pangool.utils.CommonUtils;
+import com.datasalt.pangool.utils.test.AbstractHadoopTestLibrary;
+
+public class TestSolrRecordWriter extends AbstractHadoopTestLibrary {
+
+	public final static String INPUT = "in-" + TestSolrRecordWriter.class.getName();
+	public final static String OUTPUT = "out-" + TestSolrRecordWriter.class.getName();
+	public final static String SOLR_HOME = "src/test/resources/solr-en";
+
+	/**
+	 * Converts the tuples once it is released.
+	 */
+	@SuppressWarnings("serial")
+	static class BlockingConverter extends DefaultTupleDocumentConverter {
+
+		final CountDownLatch released = new CountDownLatch(1);
+
+		@Override
+		public SolrInputDocument convert(ITuple key, NullWritable value) throws IOException {
+			try {
+				released.await();
+			} catch(InterruptedException e) {
+				throw new IOException(e);
+			}
+			return super.convert(key, value);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	static class FailingConverter extends DefaultTupleDocumentConverter {
+
+		@Override
+		public SolrInputDocument convert(ITuple key, NullWritable value) throws IOException {
+			throw new IOException("Conversion failed");
+		}
+	}
+
+	/**
+	 * Adds a field that is not in the Solr schema, so indexing fails.
+	 */
+	@SuppressWarnings("serial")
+	static class UnknownFieldConverter extends DefaultTupleDocumentConverter {
+
+		@Override
+		public SolrInputDocument convert(ITuple key, NullWritable value) throws IOException {
+			SolrInputDocument document = super.convert(key, value);
+			document.addField("no_such_field", "value");
+			return document;
+		}
+	}
+
+	@SuppressWarnings("serial")
+	public static class SlowConverter extends DefaultTupleDocumentConverter {
+
+		@Override
+		public SolrInputDocument convert(ITuple key, NullWritable value) throws IOException {
+			try {
+				Thread.sleep(5);
+			} catch(InterruptedException e) {
+				throw new IOException(e);
+			}
+			return super.convert(key, value);
+		}
+	}
+
+	/**
+	 * Lets the record writer update the counters of the task.
+	 */
+	@SuppressWarnings("serial")
+	public static class CountingReducer extends IdentityTupleReducer {
+
+		@SuppressWarnings("rawtypes")
+		@Override
+		public void setup(TupleMRContext context, Collector collector) throws IOException, InterruptedException,
+		    TupleMRException {
+			SolrRecordWriter.addReducerContext((Reducer.Context) context.getHadoopContext());
+		}
+	}
+
+	private TaskAttemptContext createContext() throws IOException {
+		Configuration conf = new Configuration(getConf());
+		TaskAttemptID attemptId = new TaskAttemptID("test", 1, false, 0, 0);
+		conf.set("mapred.output.dir", new File(OUTPUT).getAbsolutePath());
+		conf.set("mapred.task.id", attemptId.toString());
+		return new TaskAttemptContext(conf, attemptId);
+	}
+
+	private static ITuple message(int i) {
+		Tuple tuple = new Tuple(TestSolrOutputFormat.SCHEMA);
+		tuple.set("user_id", "user" + i);
+		tuple.set("message", "Message " + i);
+		return tuple;
+	}
+
+	@Test
+	public void testWriteBlocksWhenQueueIsFull() throws Exception {
+		trash(OUTPUT);
+		final TaskAttemptContext context = createContext();
+		BlockingConverter converter = new BlockingConverter();
+		// One thread and one queued batch of one document: the third write waits
+		final SolrRecordWriter writer = new SolrRecordWriter(1, false, 1, 1, true, new File(SOLR_HOME)
+		    .getAbsolutePath(), null, converter, context);
+		final AtomicInteger written = new AtomicInteger();
+		final Exception[] error = new Exception[1];
+		Thread writing = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for(int i = 0; i < 3; i++) {
+						writer.write(message(i), NullWritable.get());
+						written.incrementAndGet();
+					}
+				} catch(Exception e) {
+					error[0] = e;
+				}
+			}
+		};
+		writing.start();
+		writing.join(500);
+		assertTrue(writing.isAlive());
+		assertEquals(2, written.get());
+
+		converter.released.countDown();
+		writing.join(TimeUnit.SECONDS.toMillis(30));
+		assertEquals(3, written.get());
+		assertEquals(null, error[0]);
+		writer.close(context);
+		trash(OUTPUT);
+	}
+
+	/**
+	 * Writes with the given converter and returns the exception thrown by
+	 * write() or close().
+	 */
+	private IOException writeAndClose(TupleDocumentConverter converter, boolean parallelConversion)
+	    throws IOException, InterruptedException {
+		trash(OUTPUT);
+		TaskAttemptContext context = createContext();
+		IOException error = null;
+		SolrRecordWriter writer = new SolrRecordWriter(2, false, 2, 2, parallelConversion, new File(SOLR_HOME)
+		    .getAbsolutePath(), null, converter, context);
+		try {
+			for(int i = 0; i < 20; i++) {
+				writer.write(message(i), NullWritable.get());
+			}
+		} catch(IOException e) {
+			error = e;
+		}
+		try {
+			writer.close(context);
+		} catch(IOException e) {
+			if(error == null) {
+				error = e;
+			}
+		}
+		trash(OUTPUT);
+		return error;
+	}
+
+	@Test
+	public void testConversionErrorIsThrown() throws Exception {
+		IOException error = writeAndClose(new FailingConverter(), true);
+		assertNotNull(error);
+		assertEquals("Conversion failed", error.getMessage());
+	}
+
+	@Test
+	public void testIndexingErrorIsThrown() throws Exception {
+		IOException error = writeAndClose(new UnknownFieldConverter(), false);
+		assertNotNull(error);
+		assertTrue(error.getCause().getMessage().contains("no_such_field"));
+	}
+
+	@Test
+	public void testCounters() throws Exception {
+		trash(INPUT, OUTPUT);
+		StringBuilder input = new StringBuilder();
+		for(int i = 0; i < 20; i++) {
+			input.append("user" + i + "\tMessage " + i + "\n");
+		}
+		CommonUtils.writeTXT(input.toString(), new File(INPUT));
+
+		TupleMRBuilder builder = new TupleMRBuilder(getConf());
+		builder.addIntermediateSchema(TestSolrOutputFormat.SCHEMA);
+		builder.setGroupByFields("user_id");
+		builder.addInput(new Path(INPUT), new HadoopInputFormat(TextInputFormat.class),
+		    new TestSolrOutputFormat.ParseMessage());
+		builder.setTupleReducer(new CountingReducer());
+		// Slow conversion in one thread, so that writes wait for free batches
+		builder.setOutput(new Path(OUTPUT), new TupleSolrOutputFormat(new File(SOLR_HOME), getConf(),
+		    new SlowConverter(), false, 1, 1, 1, true), ITuple.class, NullWritable.class);
+		Job job = builder.createJob();
+		try {
+			assertRun(job);
+		} finally {
+			builder.cleanUpInstanceFiles();
+		}
+
+		Set<String> counters = new HashSet<String>();
+		long conversionTime = 0;
+		for(Counter counter : job.getCounters().getGroup("SolrRecordWriter")) {
+			counters.add(counter.getName());
+			if(counter.getName().equals("ConversionTime")) {
+				conversionTime = counter.getValue();
+			}
+		}
+		assertTrue(counters.toString(), counters.contains("QueueWaitTime"));
+		assertTrue(counters.toString(), counters.contains("IndexingTime"));
+		assertTrue(counters.toString(), counters.contains("ConversionTime"));
+		assertTrue(conversionTime >= 20 * 5);
+		assertEquals(20, job.getCounters().getGroup("SolrRecordWriter").findCounter("DocumentsWritten").getValue());
+		trash(INPUT, OUTPUT);
+	}
+}
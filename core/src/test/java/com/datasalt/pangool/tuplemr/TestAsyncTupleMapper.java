@@ -0,0 +1,254 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.datasalt.pangool.io.Fields;
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Tuple;
+import com.datasalt.pangool.io.Utf8;
+import com.datasalt.pangool.tuplemr.mapred.lib.input.HadoopInputFormat;
+import com.datasalt.pangool.tuplemr.mapred.lib.output.HadoopOutputFormat;
+import com.datasalt.pangool.utils.CommonUtils;
+import com.datasalt.pangool.utils.test.AbstractHadoopTestLibrary;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class TestAsyncTupleMapper extends AbstractHadoopTestLibrary {
+
+	public final static String INPUT = TestAsyncTupleMapper.class.getName() + "-input";
+	public final static String OUTPUT = TestAsyncTupleMapper.class.getName() + "-output";
+	public final static int RECORDS = 200;
+
+	static AtomicInteger lastEmitted = new AtomicInteger(-1);
+	static AtomicBoolean outOfOrder = new AtomicBoolean(false);
+	static AtomicInteger maxConcurrent = new AtomicInteger(0);
+
+	private HttpServer server;
+
+	/**
+	 * Answers /N with "resolved-N" after a random delay. The first request for each multiple of 10 fails.
+	 */
+	@Before
+	public void startServer() throws IOException {
+		final Set<String> failed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		final AtomicInteger concurrent = new AtomicInteger(0);
+		final Random random = new Random();
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				int now = concurrent.incrementAndGet();
+				synchronized(maxConcurrent) {
+					maxConcurrent.set(Math.max(maxConcurrent.get(), now));
+				}
+				try {
+					Thread.sleep(random.nextInt(20));
+				} catch(InterruptedException e) {
+					throw new IOException(e);
+				}
+				String path = exchange.getRequestURI().getPath().substring(1);
+				byte[] body = ("resolved-" + path).getBytes("UTF-8");
+				int status = 200;
+				if(Integer.parseInt(path) % 10 == 0 && failed.add(path)) {
+					status = 500;
+					body = "error".getBytes("UTF-8");
+				}
+				concurrent.decrementAndGet();
+				exchange.sendResponseHeaders(status, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		server.setExecutor(Executors.newFixedThreadPool(16));
+		server.start();
+	}
+
+	@After
+	public void stopServer() {
+		server.stop(0);
+	}
+
+	@SuppressWarnings("serial")
+	public static class Resolver extends AsyncTupleMapper<LongWritable, Text, String[]> {
+
+		private final String serverUrl;
+		private transient Tuple tuple;
+
+		public Resolver(String serverUrl, int maxInFlight, boolean ordered) {
+			super(maxInFlight, ordered);
+			this.serverUrl = serverUrl;
+		}
+
+		@Override
+		public void setup(TupleMRContext context, Collector collector) throws IOException, InterruptedException {
+			tuple = new Tuple(context.getTupleMRConfig().getIntermediateSchema(0));
+		}
+
+		@Override
+		public Callable<String[]> asyncMap(LongWritable key, Text value, TupleMRContext context) {
+			final String id = value.toString();
+			return new Callable<String[]>() {
+				@Override
+				public String[] call() throws Exception {
+					HttpURLConnection connection = (HttpURLConnection) new URL(serverUrl + "/" + id).openConnection();
+					if(connection.getResponseCode() != 200) {
+						throw new IOException("Error " + connection.getResponseCode() + " resolving " + id);
+					}
+					InputStream in = connection.getInputStream();
+					try {
+						return new String[] { id, IOUtils.toString(in, "UTF-8") };
+					} finally {
+						in.close();
+					}
+				}
+			};
+		}
+
+		@Override
+		public void emit(String[] result, TupleMRContext context, Collector collector) throws IOException,
+		    InterruptedException {
+			int id = Integer.parseInt(result[0]);
+			if(id < lastEmitted.getAndSet(id)) {
+				outOfOrder.set(true);
+			}
+			tuple.set("id", id);
+			tuple.set("resolved", result[1]);
+			collector.write(tuple);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	public static class Output extends TupleReducer<Utf8, NullWritable> {
+
+		@Override
+		public void reduce(ITuple group, Iterable<ITuple> tuples, TupleMRContext context, Collector collector)
+		    throws IOException, InterruptedException, TupleMRException {
+			for(ITuple tuple : tuples) {
+				collector.write((Utf8) tuple.get("resolved"), NullWritable.get());
+			}
+		}
+	}
+
+	private Job createJob(Resolver resolver) throws Exception {
+		trash(INPUT, OUTPUT);
+		StringBuilder data = new StringBuilder();
+		for(int i = 0; i < RECORDS; i++) {
+			data.append(i).append("\n");
+		}
+		CommonUtils.writeTXT(data.toString(), new File(INPUT));
+		lastEmitted.set(-1);
+		outOfOrder.set(false);
+		maxConcurrent.set(0);
+
+		TupleMRBuilder builder = new TupleMRBuilder(getConf());
+		builder.addIntermediateSchema(new Schema("schema", Fields.parse("id:int, resolved:string")));
+		builder.setGroupByFields("id");
+		builder.addInput(new Path(INPUT), new HadoopInputFormat(TextInputFormat.class), resolver);
+		builder.setTupleReducer(new Output());
+		builder.setOutput(new Path(OUTPUT), new HadoopOutputFormat(TextOutputFormat.class), Utf8.class,
+		    NullWritable.class);
+		return builder.createJob();
+	}
+
+	private String serverUrl() {
+		return "http://localhost:" + server.getAddress().getPort();
+	}
+
+	private void checkOutput() throws IOException {
+		List<String> expected = new ArrayList<String>();
+		for(int i = 0; i < RECORDS; i++) {
+			expected.add("resolved-" + i);
+		}
+		List<String> lines = new ArrayList<String>(FileUtils.readLines(new File(OUTPUT, "part-r-00000")));
+		Collections.sort(expected);
+		Collections.sort(lines);
+		assertEquals(expected, lines);
+	}
+
+	@Test
+	public void testOrdered() throws Exception {
+		Resolver resolver = new Resolver(serverUrl(), 8, true);
+		resolver.setRetries(2, 10);
+		Job job = createJob(resolver);
+		assertRun(job);
+
+		checkOutput();
+		assertFalse(outOfOrder.get());
+		assertEquals(RECORDS, job.getCounters().findCounter(AsyncTupleMapper.AsyncCounter.CALLS).getValue());
+		assertEquals(RECORDS / 10, job.getCounters().findCounter(AsyncTupleMapper.AsyncCounter.RETRIES).getValue());
+		trash(INPUT, OUTPUT);
+	}
+
+	@Test
+	public void testUnordered() throws Exception {
+		Resolver resolver = new Resolver(serverUrl(), 8, false);
+		resolver.setRetries(2, 10);
+		Job job = createJob(resolver);
+		assertRun(job);
+
+		checkOutput();
+		// Calls are made concurrently but never more than the maximum in flight
+		assertTrue(maxConcurrent.get() > 1 && maxConcurrent.get() <= 8);
+		trash(INPUT, OUTPUT);
+	}
+
+	@Test
+	public void testFailsWithoutRetries() throws Exception {
+		Resolver resolver = new Resolver(serverUrl(), 4, true);
+		resolver.setRetries(0, 10);
+		Job job = createJob(resolver);
+		assertFalse(job.waitForCompletion(false));
+		trash(INPUT, OUTPUT);
+	}
+}
@@ -0,0 +1,182 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.junit.Test;
+
+import com.datasalt.pangool.io.Fields;
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Tuple;
+import com.datasalt.pangool.tuplemr.mapred.MapOnlyMapper;
+import com.datasalt.pangool.tuplemr.mapred.lib.input.HadoopInputFormat;
+import com.datasalt.pangool.tuplemr.mapred.lib.output.HadoopOutputFormat;
+import com.datasalt.pangool.utils.CommonUtils;
+import com.datasalt.pangool.utils.test.AbstractHadoopTestLibrary;
+
+public class TestChainedMappers extends AbstractHadoopTestLibrary {
+
+	public final static String INPUT = TestChainedMappers.class.getName() + "-input";
+	public final static String OUTPUT = TestChainedMappers.class.getName() + "-output";
+
+	final static Schema SCHEMA = new Schema("schema", Fields.parse("word:string, count:int"));
+
+	@SuppressWarnings("serial")
+	public static class Split extends TupleMapper<Text, NullWritable> {
+
+		private Tuple tuple;
+
+		public void setup(TupleMRContext context, Collector collector) throws IOException,
+		    InterruptedException {
+			tuple = new Tuple(SCHEMA);
+			tuple.set("count", 1);
+		}
+
+		@Override
+		public void map(Text key, NullWritable value, TupleMRContext context, Collector collector)
+		    throws IOException, InterruptedException {
+			StringTokenizer itr = new StringTokenizer(key.toString());
+			while(itr.hasMoreTokens()) {
+				tuple.set("word", itr.nextToken());
+				collector.write(tuple);
+			}
+		}
+	}
+
+	@SuppressWarnings("serial")
+	public static class Count extends TupleReducer<ITuple, NullWritable> {
+
+		private Tuple tuple;
+
+		public void setup(TupleMRContext context, Collector collector) throws IOException,
+		    InterruptedException, TupleMRException {
+			tuple = new Tuple(SCHEMA);
+		}
+
+		@Override
+		public void reduce(ITuple group, Iterable<ITuple> tuples, TupleMRContext context, Collector collector)
+		    throws IOException, InterruptedException, TupleMRException {
+			int count = 0;
+			for(ITuple tuple : tuples) {
+				count += (Integer) tuple.get("count");
+			}
+			tuple.set("word", group.get("word"));
+			tuple.set("count", count);
+			collector.write(tuple, NullWritable.get());
+		}
+	}
+
+	/**
+	 * Pre-map stage: lower-cases the lines.
+	 */
+	@SuppressWarnings("serial")
+	public static class LowerCase extends MapOnlyMapper<LongWritable, Text, Text, NullWritable> {
+
+		@Override
+		protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+			context.write(new Text(value.toString().toLowerCase()), NullWritable.get());
+		}
+	}
+
+	/**
+	 * Post-reduce stage: keeps the words that appear more than once.
+	 */
+	@SuppressWarnings("serial")
+	public static class Repeated extends MapOnlyMapper<ITuple, NullWritable, ITuple, NullWritable> {
+
+		@Override
+		protected void map(ITuple key, NullWritable value, Context context) throws IOException,
+		    InterruptedException {
+			if((Integer) key.get("count") > 1) {
+				context.write(key, value);
+			}
+		}
+	}
+
+	/**
+	 * Post-reduce stage: formats the tuples as text and writes the number of lines in cleanup().
+	 */
+	@SuppressWarnings("serial")
+	public static class Format extends MapOnlyMapper<ITuple, NullWritable, Text, NullWritable> {
+
+		private int lines = 0;
+
+		@Override
+		protected void map(ITuple key, NullWritable value, Context context) throws IOException,
+		    InterruptedException {
+			lines++;
+			context.write(new Text(key.get("word") + ":" + key.get("count")), NullWritable.get());
+		}
+
+		@Override
+		protected void cleanup(Context context) throws IOException, InterruptedException {
+			context.write(new Text("lines:" + lines), NullWritable.get());
+			super.cleanup(context);
+		}
+	}
+
+	@Test
+	public void testFusedStages() throws Exception {
+		trash(INPUT, OUTPUT);
+		CommonUtils.writeTXT("Hola don Pepito\nhola don Jose\nPepito hola", new File(INPUT));
+
+		TupleMRBuilder builder = new TupleMRBuilder(getConf());
+		builder.addIntermediateSchema(SCHEMA);
+		builder.setGroupByFields("word");
+		List<MapOnlyMapper> preMap = new ArrayList<MapOnlyMapper>();
+		preMap.add(new LowerCase());
+		builder.addInput(new Path(INPUT), new HadoopInputFormat(TextInputFormat.class), preMap, new Split());
+		builder.setTupleReducer(new Count());
+		builder.addReduceChainedMapper(new Repeated());
+		builder.addReduceChainedMapper(new Format());
+		builder.setOutput(new Path(OUTPUT), new HadoopOutputFormat(TextOutputFormat.class), Text.class,
+		    NullWritable.class);
+		Job job = builder.createJob();
+		try {
+			assertRun(job);
+		} finally {
+			builder.cleanUpInstanceFiles();
+		}
+
+		assertEquals(Arrays.asList("don:2", "hola:3", "pepito:2", "lines:3"),
+		    FileUtils.readLines(new File(OUTPUT, "part-r-00000")));
+		trash(INPUT, OUTPUT);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmptyChain() throws Exception {
+		TupleMRBuilder builder = new TupleMRBuilder(getConf());
+		builder.addInput(new Path(INPUT), new HadoopInputFormat(TextInputFormat.class), new ArrayList<MapOnlyMapper>(),
+		    new Split());
+	}
+}
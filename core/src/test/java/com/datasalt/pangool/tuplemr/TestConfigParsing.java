@@ -177,5 +177,67 @@ public class TestConfigParsing {
     Assert.assertEquals(conf, deserConf2);
   }
 
+  @Test
+  public void testSharedConfig() throws TupleMRException, IOException {
+    TupleMRConfigBuilder b = new TupleMRConfigBuilder();
+    b.addIntermediateSchema(schema1);
+    b.addIntermediateSchema(schema2);
+    b.setGroupByFields("int_field");
+    Configuration hconf = new Configuration();
+    TupleMRConfig.set(b.buildConf(), hconf);
+
+    // All the components of a task share the same parsed instance
+    TupleMRConfig deserConf = TupleMRConfig.get(hconf);
+    Assert.assertSame(deserConf, TupleMRConfig.get(new Configuration(hconf)));
+    Assert.assertSame(deserConf.getSerializationInfo(), TupleMRConfig.get(hconf).getSerializationInfo());
+  }
+
+  @Test
+  public void testNotSharedWithCustomComparators() throws TupleMRException, IOException {
+    TupleMRConfigBuilder b = new TupleMRConfigBuilder();
+    b.addIntermediateSchema(schema3);
+    b.setGroupByFields("int_field");
+    b.setOrderBy(new OrderBy().add("int_field", Order.ASC).add("thrift_field", Order.ASC,
+        Criteria.NullOrder.NULL_SMALLEST, new DummyComparator()));
+    Configuration hconf = new Configuration();
+    Set<String> instanceFiles = TupleMRConfig.set(b.buildConf(), hconf);
+
+    // Comparators are stateful, each caller gets its own
+    TupleMRConfig deserConf = TupleMRConfig.get(hconf);
+    TupleMRConfig deserConf2 = TupleMRConfig.get(hconf);
+    Assert.assertNotSame(deserConf, deserConf2);
+    Assert.assertNotSame(deserConf.getCommonCriteria().getElements().get(1).getCustomComparator(), deserConf2
+        .getCommonCriteria().getElements().get(1).getCustomComparator());
+
+    for(String instanceFile : instanceFiles) {
+      InstancesDistributor.removeFromCache(hconf, instanceFile);
+    }
+  }
+
+  @Test
+  public void testSharedConfigIsPerSerializedConfig() throws TupleMRException, IOException {
+    TupleMRConfigBuilder b = new TupleMRConfigBuilder();
+    b.addIntermediateSchema(schema1);
+    b.addIntermediateSchema(schema2);
+    b.setGroupByFields("int_field");
+    b.setOrderBy(new OrderBy().add("int_field", Order.DESC).addSchemaOrder(Order.DESC));
+    Configuration hconf = new Configuration();
+    TupleMRConfig.set(b.buildConf(), hconf);
 
+    // Repeated calls in the setup of a task parse the config only once
+    TupleMRConfig deserConf = TupleMRConfig.get(hconf);
+    for(int i = 0; i < 10; i++) {
+      Assert.assertSame(deserConf, TupleMRConfig.get(hconf));
+    }
+
+    // A changed config is a different instance
+    b.setOrderBy(new OrderBy().add("int_field", Order.ASC).addSchemaOrder(Order.DESC));
+    Configuration hconf2 = new Configuration();
+    TupleMRConfig.set(b.buildConf(), hconf2);
+    TupleMRConfig deserConf2 = TupleMRConfig.get(hconf2);
+    Assert.assertNotSame(deserConf, deserConf2);
+    Assert.assertEquals(Order.ASC, deserConf2.getCommonCriteria().getElements().get(0).getOrder());
+    Assert.assertEquals(Order.DESC, deserConf.getCommonCriteria().getElements().get(0).getOrder());
+    Assert.assertSame(deserConf, TupleMRConfig.get(hconf));
+  }
 }
@@ -0,0 +1,197 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.junit.Test;
+
+import com.datasalt.pangool.io.Fields;
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Tuple;
+import com.datasalt.pangool.tuplemr.mapred.lib.input.HadoopInputFormat;
+import com.datasalt.pangool.utils.CommonUtils;
+import com.datasalt.pangool.utils.test.AbstractHadoopTestLibrary;
+
+public class TestIncrementalTupleMRBuilder extends AbstractHadoopTestLibrary {
+
+	public final static String INPUT = TestIncrementalTupleMRBuilder.class.getName() + "-input";
+	public final static String OUTPUT = TestIncrementalTupleMRBuilder.class.getName() + "-output";
+
+	final static Schema COUNT = new Schema("count", Fields.parse("word:string, count:int"));
+
+	@SuppressWarnings("serial")
+	public static class Split extends TupleMapper<LongWritable, Text> {
+
+		private transient Tuple tuple;
+
+		@Override
+		public void map(LongWritable key, Text value, TupleMRContext context, Collector collector)
+		    throws IOException, InterruptedException {
+			if(tuple == null) {
+				tuple = new Tuple(COUNT);
+				tuple.set("count", 1);
+			}
+			for(String word : value.toString().split(" ")) {
+				tuple.set("word", word);
+				collector.write(tuple);
+			}
+		}
+	}
+
+	/**
+	 * Sums the counts. Its output has the intermediate schema, so it can merge
+	 * previous counts with new ones.
+	 */
+	@SuppressWarnings("serial")
+	public static class Sum extends TupleReducer<ITuple, NullWritable> {
+
+		private transient Tuple result;
+
+		@Override
+		public void reduce(ITuple group, Iterable<ITuple> tuples, TupleMRContext context, Collector collector)
+		    throws IOException, InterruptedException, TupleMRException {
+			if(result == null) {
+				result = new Tuple(COUNT);
+			}
+			int count = 0;
+			for(ITuple tuple : tuples) {
+				count += (Integer) tuple.get("count");
+			}
+			result.set("word", group.get("word"));
+			result.set("count", count);
+			collector.write(result, NullWritable.get());
+		}
+	}
+
+	private IncrementalTupleMRBuilder createBuilder() throws TupleMRException, IOException {
+		IncrementalTupleMRBuilder builder = new IncrementalTupleMRBuilder(getConf());
+		builder.addIntermediateSchema(COUNT);
+		builder.setGroupByFields("word");
+		builder.setTupleReducer(new Sum());
+		builder.addIncrementalInput(new Path(INPUT), new HadoopInputFormat(TextInputFormat.class), new Split());
+		builder.setIncrementalOutput(new Path(OUTPUT), COUNT);
+		return builder;
+	}
+
+	private void writeInput(String text, String fileName) throws IOException {
+		new File(INPUT).mkdirs();
+		CommonUtils.writeTXT(text, new File(INPUT, fileName));
+	}
+
+	private List<String> readOutput() throws IOException, InterruptedException {
+		final List<String> counts = new ArrayList<String>();
+		for(File file : new File(OUTPUT).listFiles()) {
+			if(file.getName().startsWith("part-")) {
+				readTuples(new Path(file.getPath()), getConf(), new TupleVisitor() {
+
+					@Override
+					public void onTuple(ITuple tuple) {
+						counts.add(tuple.get("word") + ":" + tuple.get("count"));
+					}
+				});
+			}
+		}
+		Collections.sort(counts);
+		return counts;
+	}
+
+	private List<String> readManifest() throws IOException {
+		List<String> files = new ArrayList<String>();
+		for(Object line : FileUtils.readLines(new File(OUTPUT, IncrementalTupleMRBuilder.MANIFEST))) {
+			files.add(new Path((String) line).getName());
+		}
+		Collections.sort(files);
+		return files;
+	}
+
+	@Test
+	public void testIncrementalRuns() throws Exception {
+		trash(INPUT, OUTPUT);
+		writeInput("a b a", "1.txt");
+
+		IncrementalTupleMRBuilder builder = createBuilder();
+		assertEquals(1, builder.getNewInputFiles().size());
+		assertTrue(builder.run());
+		assertEquals(Arrays.asList("a:2", "b:1"), readOutput());
+		assertEquals(Arrays.asList("1.txt"), readManifest());
+
+		// Only the new file is processed, and merged with the previous counts
+		writeInput("b c", "2.txt");
+		builder = createBuilder();
+		assertEquals(Arrays.asList("2.txt"), Arrays.asList(builder.getNewInputFiles().get(0).getName()));
+		assertEquals(1, builder.getNewInputFiles().size());
+		assertTrue(builder.run());
+		assertEquals(Arrays.asList("a:2", "b:2", "c:1"), readOutput());
+		assertEquals(Arrays.asList("1.txt", "2.txt"), readManifest());
+
+		// Nothing new: no job is run and the output stays the same
+		builder = createBuilder();
+		assertTrue(builder.getNewInputFiles().isEmpty());
+		assertTrue(builder.run());
+		assertEquals(Arrays.asList("a:2", "b:2", "c:1"), readOutput());
+		trash(INPUT, OUTPUT);
+	}
+
+	@Test
+	public void testInterruptedCommitIsRestored() throws Exception {
+		trash(INPUT, OUTPUT);
+		writeInput("a b a", "1.txt");
+		assertTrue(createBuilder().run());
+
+		// As if a commit had stopped after moving the output away
+		File previous = new File(new File(OUTPUT).getAbsoluteFile().getParentFile(), "." + new File(OUTPUT).getName()
+		    + ".previous");
+		assertTrue(new File(OUTPUT).renameTo(previous));
+		IncrementalTupleMRBuilder builder = createBuilder();
+		assertTrue(builder.getNewInputFiles().isEmpty());
+		assertEquals(Arrays.asList("a:2", "b:1"), readOutput());
+		trash(INPUT, OUTPUT);
+	}
+
+	@Test
+	public void testOutputSchemaMustBeIntermediate() throws Exception {
+		trash(INPUT, OUTPUT);
+		writeInput("a", "1.txt");
+		IncrementalTupleMRBuilder builder = createBuilder();
+		builder.setIncrementalOutput(new Path(OUTPUT), new Schema("other", Fields.parse("word:string")));
+		try {
+			builder.createJob();
+			fail();
+		} catch(TupleMRException e) {
+			assertTrue(e.getMessage().contains("must be an intermediate schema"));
+		} finally {
+			builder.cleanUpInstanceFiles();
+		}
+		trash(INPUT, OUTPUT);
+	}
+}
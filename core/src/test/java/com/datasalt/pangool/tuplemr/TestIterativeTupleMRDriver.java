@@ -0,0 +1,262 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.junit.Test;
+
+import com.datasalt.pangool.io.Fields;
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Tuple;
+import com.datasalt.pangool.tuplemr.local.LocalTupleMREngine;
+import com.datasalt.pangool.tuplemr.mapred.lib.input.HadoopInputFormat;
+import com.datasalt.pangool.utils.CommonUtils;
+import com.datasalt.pangool.utils.test.AbstractHadoopTestLibrary;
+
+public class TestIterativeTupleMRDriver extends AbstractHadoopTestLibrary {
+
+	public final static String EDGES = TestIterativeTupleMRDriver.class.getName() + "-edges";
+	public final static String NODES = TestIterativeTupleMRDriver.class.getName() + "-nodes";
+	public final static String WORK = TestIterativeTupleMRDriver.class.getName() + "-work";
+
+	final static Schema EDGE = new Schema("edge", Fields.parse("node:int, neighbor:int"));
+	// A label sent to a node, or its own label
+	final static Schema LABEL = new Schema("label", Fields.parse("node:int, label:int, own:boolean"));
+
+	@SuppressWarnings("serial")
+	public static class ParseEdge extends TupleMapper<LongWritable, Text> {
+
+		private transient Tuple tuple;
+
+		@Override
+		public void map(LongWritable key, Text value, TupleMRContext context, Collector collector)
+		    throws IOException, InterruptedException {
+			if(tuple == null) {
+				tuple = new Tuple(EDGE);
+			}
+			String[] nodes = value.toString().split(" ");
+			// Undirected edges
+			for(int i = 0; i < 2; i++) {
+				tuple.set("node", Integer.parseInt(nodes[i]));
+				tuple.set("neighbor", Integer.parseInt(nodes[1 - i]));
+				collector.write(tuple);
+			}
+		}
+	}
+
+	@SuppressWarnings("serial")
+	public static class ParseNode extends TupleMapper<LongWritable, Text> {
+
+		private transient Tuple tuple;
+
+		@Override
+		public void map(LongWritable key, Text value, TupleMRContext context, Collector collector)
+		    throws IOException, InterruptedException {
+			if(tuple == null) {
+				tuple = new Tuple(LABEL);
+				// The first label of a node, not yet sent to its neighbors
+				tuple.set("own", false);
+			}
+			int node = Integer.parseInt(value.toString());
+			tuple.set("node", node);
+			tuple.set("label", node);
+			collector.write(tuple);
+		}
+	}
+
+	/**
+	 * Labels each node with the minimum label it has received and sends it to
+	 * its neighbors, counting the nodes whose label changed.
+	 */
+	@SuppressWarnings("serial")
+	public static class PropagateMin extends TupleReducer<ITuple, NullWritable> {
+
+		private transient Tuple label;
+		private transient List<Integer> neighbors;
+
+		@Override
+		public void reduce(ITuple group, Iterable<ITuple> tuples, TupleMRContext context, Collector collector)
+		    throws IOException, InterruptedException, TupleMRException {
+			if(label == null) {
+				label = new Tuple(LABEL);
+				neighbors = new ArrayList<Integer>();
+			}
+			neighbors.clear();
+			Integer own = null;
+			Integer min = null;
+			for(ITuple tuple : tuples) {
+				if(tuple.getSchema().getName().equals("edge")) {
+					// Static tuples come first
+					assertTrue(min == null);
+					neighbors.add((Integer) tuple.get("neighbor"));
+				} else {
+					int received = (Integer) tuple.get("label");
+					min = (min == null) ? received : Math.min(min, received);
+					if((Boolean) tuple.get("own")) {
+						own = received;
+					}
+				}
+			}
+			if(min == null) {
+				// A node without a label yet
+				return;
+			}
+			if(own == null || min < own) {
+				context.getHadoopContext().getCounter("labels", "changed").increment(1);
+			}
+			label.set("label", min);
+			label.set("node", group.get("node"));
+			label.set("own", true);
+			collector.write(label, NullWritable.get());
+			label.set("own", false);
+			for(int neighbor : neighbors) {
+				label.set("node", neighbor);
+				collector.write(label, NullWritable.get());
+			}
+		}
+	}
+
+	private IterativeTupleMRDriver createDriver() throws IOException {
+		return createDriver(3);
+	}
+
+	private IterativeTupleMRDriver createDriver(int numBuckets) throws IOException {
+		IterativeTupleMRDriver driver = new IterativeTupleMRDriver(getConf(), "components");
+		driver.addStaticInput(new Path(EDGES), new HadoopInputFormat(TextInputFormat.class), new ParseEdge());
+		driver.setStaticSchema(EDGE);
+		driver.addStateInput(new Path(NODES), new HadoopInputFormat(TextInputFormat.class), new ParseNode());
+		driver.setStateSchema(LABEL);
+		driver.setGroupByFields("node");
+		driver.setTupleReducer(new PropagateMin());
+		driver.setWorkingFolder(new Path(WORK));
+		driver.setNumBuckets(numBuckets);
+		driver.setConvergenceCondition(IterativeTupleMRDriver.counterIsZero("labels", "changed"));
+		driver.setJobRunner(new IterativeTupleMRDriver.JobRunner() {
+			@Override
+			public Counters run(Job job) throws Exception {
+				return new LocalTupleMREngine(2).run(job);
+			}
+		});
+		return driver;
+	}
+
+	private List<String> readLabels(Path output) throws IOException, InterruptedException {
+		final List<String> labels = new ArrayList<String>();
+		for(File file : new File(output.toString()).listFiles()) {
+			if(file.getName().startsWith("part-")) {
+				readTuples(new Path(file.getPath()), getConf(), new TupleVisitor() {
+
+					@Override
+					public void onTuple(ITuple tuple) {
+						if((Boolean) tuple.get("own")) {
+							labels.add(tuple.get("node") + ":" + tuple.get("label"));
+						}
+					}
+				});
+			}
+		}
+		Collections.sort(labels);
+		return labels;
+	}
+
+	@Test
+	public void testConnectedComponents() throws Exception {
+		trash(EDGES, NODES, WORK);
+		// Node 9 is not in the initial state and node 7 has no edges
+		CommonUtils.writeTXT("3 2\n2 1\n5 6\n8 9", new File(EDGES));
+		CommonUtils.writeTXT("1\n2\n3\n5\n6\n7\n8", new File(NODES));
+
+		IterativeTupleMRDriver driver = createDriver();
+		assertTrue(driver.run());
+		List<String> expected = Arrays.asList("1:1", "2:1", "3:1", "5:5", "6:5", "7:7", "8:8", "9:8");
+		assertEquals(expected, readLabels(driver.getOutput()));
+		// One to send the initial labels, two to get label 1 to node 3 and one
+		// without changes
+		assertEquals(4, driver.getIterations());
+		// Only the output of the last iteration is kept
+		assertFalse(new File(WORK, "iteration-2").exists());
+
+		// The buckets are reused
+		long bucketsTime = new File(WORK, "buckets/part-r-00000").lastModified();
+		driver = createDriver();
+		assertTrue(driver.run());
+		assertEquals(expected, readLabels(driver.getOutput()));
+		assertEquals(bucketsTime, new File(WORK, "buckets/part-r-00000").lastModified());
+
+		// The buckets are rebuilt when the static input changes
+		CommonUtils.writeTXT("3 2\n2 1\n5 6\n8 9\n7 8", new File(EDGES));
+		driver = createDriver();
+		assertTrue(driver.run());
+		assertEquals(Arrays.asList("1:1", "2:1", "3:1", "5:5", "6:5", "7:7", "8:7", "9:7"),
+		    readLabels(driver.getOutput()));
+
+		// Or the number of buckets
+		driver = createDriver(2);
+		assertTrue(driver.run());
+		assertEquals(2, new File(WORK, "buckets").listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith("part-");
+			}
+		}).length);
+
+		// Not enough iterations
+		driver = createDriver();
+		driver.setMaxIterations(1);
+		assertFalse(driver.run());
+		assertEquals(1, driver.getIterations());
+		trash(EDGES, NODES, WORK);
+	}
+
+	@Test
+	public void testMoreBucketsThanKeys() throws Exception {
+		trash(EDGES, NODES, WORK);
+		CommonUtils.writeTXT("2 1", new File(EDGES));
+		CommonUtils.writeTXT("1\n2\n3", new File(NODES));
+
+		// Most partitions have neither static nor state tuples
+		IterativeTupleMRDriver driver = createDriver(8);
+		assertTrue(driver.run());
+		assertEquals(Arrays.asList("1:1", "2:1", "3:3"), readLabels(driver.getOutput()));
+		int buckets = 0;
+		for(File file : new File(WORK, "buckets").listFiles()) {
+			if(file.getName().startsWith("part-")) {
+				buckets++;
+			}
+		}
+		assertTrue(buckets < 8);
+		trash(EDGES, NODES, WORK);
+	}
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.junit.Test;
+
+import com.datasalt.pangool.tuplemr.JobGraph.JobNode;
+import com.datasalt.pangool.tuplemr.JobGraph.JobState;
+import com.datasalt.pangool.tuplemr.local.LocalTupleMREngine;
+import com.datasalt.pangool.tuplemr.mapred.MapOnlyMapper;
+import com.datasalt.pangool.tuplemr.mapred.lib.input.HadoopInputFormat;
+import com.datasalt.pangool.tuplemr.mapred.lib.output.HadoopOutputFormat;
+import com.datasalt.pangool.utils.CommonUtils;
+import com.datasalt.pangool.utils.InstancesDistributor;
+import com.datasalt.pangool.utils.test.AbstractHadoopTestLibrary;
+
+public class TestJobGraph extends AbstractHadoopTestLibrary {
+
+	public final static String INPUT = TestJobGraph.class.getName() + "-input";
+	public final static String UPPER = TestJobGraph.class.getName() + "-upper";
+	public final static String LOWER = TestJobGraph.class.getName() + "-lower";
+	public final static String OUTPUT = TestJobGraph.class.getName() + "-output";
+	public final static String INSTANCES = TestJobGraph.class.getName() + "-instances";
+
+	@SuppressWarnings("serial")
+	public static class Prefix extends MapOnlyMapper<LongWritable, Text, Text, NullWritable> {
+
+		private final String prefix;
+
+		public Prefix(String prefix) {
+			this.prefix = prefix;
+		}
+
+		@Override
+		protected void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+			context.write(new Text(prefix + value), NullWritable.get());
+		}
+	}
+
+	/**
+	 * Runs the jobs in-process, failing the ones named "fail" and making the ones named "slow" take longer.
+	 */
+	static class TestRunner implements JobGraph.JobRunner {
+
+		@Override
+		public boolean run(Job job) throws Exception {
+			if(job.getJobName().equals("fail")) {
+				throw new IOException("Failed");
+			}
+			if(job.getJobName().equals("slow")) {
+				Thread.sleep(500);
+			}
+			new LocalTupleMREngine(1).run(job);
+			return true;
+		}
+	}
+
+	private MapOnlyJobBuilder job(String name, String prefix, String output, String... inputs) throws IOException {
+		return job(getConf(), name, prefix, output, inputs);
+	}
+
+	private MapOnlyJobBuilder job(Configuration conf, String name, String prefix, String output, String... inputs) {
+		MapOnlyJobBuilder builder = new MapOnlyJobBuilder(conf, name);
+		for(String input : inputs) {
+			builder.addInput(new Path(input), new HadoopInputFormat(TextInputFormat.class), new Prefix(prefix));
+		}
+		builder.setOutput(new Path(output), new HadoopOutputFormat(TextOutputFormat.class), Text.class,
+		    NullWritable.class);
+		return builder;
+	}
+
+	private List<String> read(String folder) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		for(File file : new File(folder).listFiles()) {
+			if(file.getName().startsWith("part-")) {
+				lines.addAll(FileUtils.readLines(file));
+			}
+		}
+		Collections.sort(lines);
+		return lines;
+	}
+
+	@Test
+	public void testGraph() throws Exception {
+		trash(INPUT, UPPER, LOWER, OUTPUT);
+		CommonUtils.writeTXT("a\nb", new File(INPUT));
+
+		JobGraph graph = new JobGraph(getConf());
+		graph.setParallelism(2);
+		graph.setJobRunner(new TestRunner());
+		// The last job is added first: the order comes from the dependencies
+		JobNode merge = graph.add("merge", job("merge", "merged-", OUTPUT, UPPER, LOWER));
+		JobNode upper = graph.add("slow", job("slow", "upper-", UPPER, INPUT)).setIntermediate(true);
+		JobNode lower = graph.add("lower", job("lower", "lower-", LOWER, INPUT)).setIntermediate(true);
+		assertTrue(graph.run());
+
+		assertEquals(Arrays.asList("merged-lower-a", "merged-lower-b", "merged-upper-a", "merged-upper-b"),
+		    read(OUTPUT));
+		// Intermediate outputs are deleted when they are no longer needed
+		assertFalse(new File(UPPER).exists());
+		assertFalse(new File(LOWER).exists());
+		// Independent jobs run concurrently, dependent ones after their dependencies
+		assertTrue(lower.getStartTime() < upper.getEndTime());
+		assertTrue(merge.getStartTime() >= upper.getEndTime());
+		assertTrue(merge.getStartTime() >= lower.getEndTime());
+		assertEquals(Arrays.asList(upper, merge), graph.getCriticalPath());
+		trash(INPUT, UPPER, LOWER, OUTPUT);
+	}
+
+	@Test
+	public void testFailure() throws Exception {
+		trash(INPUT, UPPER, LOWER, OUTPUT);
+		CommonUtils.writeTXT("a\nb", new File(INPUT));
+
+		JobGraph graph = new JobGraph(getConf());
+		graph.setParallelism(2);
+		graph.setJobRunner(new TestRunner());
+		JobNode upper = graph.add("fail", job("fail", "upper-", UPPER, INPUT)).setIntermediate(true);
+		JobNode lower = graph.add("lower", job("lower", "lower-", LOWER, INPUT)).setIntermediate(true);
+		JobNode merge = graph.add("merge", job("merge", "merged-", OUTPUT, UPPER, LOWER));
+		assertFalse(graph.run());
+
+		assertEquals(JobState.FAILED, upper.getState());
+		assertEquals("Failed", upper.getError().getMessage());
+		assertEquals(JobState.SUCCEEDED, lower.getState());
+		assertEquals(JobState.SKIPPED, merge.getState());
+		// The output is kept as the job that needs it didn't run
+		assertEquals(Arrays.asList("lower-a", "lower-b"), read(LOWER));
+		assertFalse(new File(OUTPUT).exists());
+		trash(INPUT, UPPER, LOWER, OUTPUT);
+	}
+
+	@Test
+	public void testInstanceFilesCleanUp() throws Exception {
+		trash(INPUT, UPPER, OUTPUT, INSTANCES);
+		CommonUtils.writeTXT("a\nb", new File(INPUT));
+		Configuration conf = new Configuration(getConf());
+		// All instances in files, most of them the same in both jobs
+		conf.setInt(InstancesDistributor.MAX_EMBEDDED_SIZE_CONF, 0);
+		conf.set(InstancesDistributor.HDFS_TMP_FOLDER_CONF, INSTANCES);
+
+		JobGraph graph = new JobGraph(conf);
+		graph.setJobRunner(new TestRunner() {
+			@Override
+			public boolean run(Job job) throws Exception {
+				// The files shared with the first job are still there for the second one
+				for(URI file : DistributedCache.getCacheFiles(job.getConfiguration())) {
+					assertTrue(new File(file.getPath()).exists());
+				}
+				return super.run(job);
+			}
+		});
+		graph.add("first", job(conf, "first", "p-", UPPER, INPUT)).setIntermediate(true);
+		graph.add("second", job(conf, "second", "p-", OUTPUT, UPPER));
+		assertTrue(graph.run());
+
+		assertEquals(Arrays.asList("p-p-a", "p-p-b"), read(OUTPUT));
+		assertEquals(0, new File(INSTANCES).listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".instance");
+			}
+		}).length);
+		trash(INPUT, UPPER, OUTPUT, INSTANCES);
+	}
+
+	@Test
+	public void testCycle() throws Exception {
+		JobGraph graph = new JobGraph(getConf());
+		graph.add("first", job("first", "", UPPER, INPUT)).dependsOn("second");
+		graph.add("second", job("second", "", LOWER, UPPER));
+		try {
+			graph.run();
+			fail();
+		} catch(TupleMRException e) {
+			assertTrue(e.getMessage().startsWith("There is a dependency cycle"));
+		}
+	}
+}
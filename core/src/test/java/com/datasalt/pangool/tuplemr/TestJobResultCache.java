@@ -0,0 +1,203 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.junit.Test;
+
+import com.datasalt.pangool.io.Fields;
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Tuple;
+import com.datasalt.pangool.tuplemr.mapred.lib.input.HadoopInputFormat;
+import com.datasalt.pangool.tuplemr.mapred.lib.output.HadoopOutputFormat;
+import com.datasalt.pangool.utils.CommonUtils;
+import com.datasalt.pangool.utils.test.AbstractHadoopTestLibrary;
+
+public class TestJobResultCache extends AbstractHadoopTestLibrary {
+
+	public final static String INPUT = TestJobResultCache.class.getName() + "-input";
+	public final static String OUTPUT = TestJobResultCache.class.getName() + "-output";
+	public final static String CACHE = TestJobResultCache.class.getName() + "-cache";
+
+	final static Schema WORD = new Schema("word", Fields.parse("word:string"));
+
+	@SuppressWarnings("serial")
+	public static class Split extends TupleMapper<LongWritable, Text> {
+
+		private transient Tuple tuple;
+
+		@Override
+		public void map(LongWritable key, Text value, TupleMRContext context, Collector collector)
+		    throws IOException, InterruptedException {
+			if(tuple == null) {
+				tuple = new Tuple(WORD);
+			}
+			for(String word : value.toString().split(" ")) {
+				tuple.set("word", word);
+				collector.write(tuple);
+			}
+		}
+	}
+
+	/**
+	 * Writes the words that appear at least a minimum number of times.
+	 */
+	@SuppressWarnings("serial")
+	public static class Frequent extends TupleReducer<Text, NullWritable> {
+
+		private final int minCount;
+
+		public Frequent(int minCount) {
+			this.minCount = minCount;
+		}
+
+		@Override
+		public void reduce(ITuple group, Iterable<ITuple> tuples, TupleMRContext context, Collector collector)
+		    throws IOException, InterruptedException, TupleMRException {
+			int count = 0;
+			for(@SuppressWarnings("unused") ITuple tuple : tuples) {
+				count++;
+			}
+			if(count >= minCount) {
+				collector.write(new Text(group.get("word").toString()), NullWritable.get());
+			}
+		}
+	}
+
+	private int jobsRun;
+
+	private JobResultCache createCache() throws IOException {
+		JobResultCache cache = new JobResultCache(getConf(), new Path(CACHE));
+		cache.setJobRunner(new JobGraph.JobRunner() {
+			@Override
+			public boolean run(Job job) throws Exception {
+				jobsRun++;
+				return job.waitForCompletion(true);
+			}
+		});
+		return cache;
+	}
+
+	private TupleMRBuilder createBuilder(int minCount) throws TupleMRException, IOException {
+		TupleMRBuilder builder = new TupleMRBuilder(getConf(), "frequent words");
+		builder.addIntermediateSchema(WORD);
+		builder.setGroupByFields("word");
+		builder.addInput(new Path(INPUT), new HadoopInputFormat(TextInputFormat.class), new Split());
+		builder.setTupleReducer(new Frequent(minCount));
+		builder.setOutput(new Path(OUTPUT), new HadoopOutputFormat(TextOutputFormat.class), Text.class,
+		    NullWritable.class);
+		return builder;
+	}
+
+	private List<String> readOutput() throws IOException {
+		List<String> lines = new ArrayList<String>();
+		for(File file : new File(OUTPUT).listFiles()) {
+			if(file.getName().startsWith("part-")) {
+				for(Object line : FileUtils.readLines(file)) {
+					lines.add((String) line);
+				}
+			}
+		}
+		Collections.sort(lines);
+		return lines;
+	}
+
+	private int numEntries() {
+		int entries = 0;
+		for(File file : new File(CACHE).listFiles()) {
+			if(!file.getName().startsWith(".")) {
+				entries++;
+			}
+		}
+		return entries;
+	}
+
+	@Test
+	public void testCache() throws Exception {
+		trash(INPUT, OUTPUT, CACHE);
+		CommonUtils.writeTXT("a b a c b a", new File(INPUT));
+		JobResultCache cache = createCache();
+
+		assertTrue(cache.run(createBuilder(2)));
+		assertEquals(Arrays.asList("a", "b"), readOutput());
+		assertEquals(1, jobsRun);
+
+		// Same input and configuration: the output is copied from the cache
+		trash(OUTPUT);
+		assertTrue(cache.run(createBuilder(2)));
+		assertEquals(Arrays.asList("a", "b"), readOutput());
+		assertEquals(1, jobsRun);
+		assertEquals(1, cache.getHits());
+
+		// A reducer with a different state is a different job
+		trash(OUTPUT);
+		assertTrue(cache.run(createBuilder(3)));
+		assertEquals(Arrays.asList("a"), readOutput());
+		assertEquals(2, jobsRun);
+		assertEquals(2, numEntries());
+
+		// So is a job over changed input
+		trash(OUTPUT);
+		CommonUtils.writeTXT("a b a c b a c c", new File(INPUT));
+		assertTrue(cache.run(createBuilder(3)));
+		assertEquals(Arrays.asList("a", "c"), readOutput());
+		assertEquals(3, jobsRun);
+		assertEquals(3, cache.getMisses());
+		trash(INPUT, OUTPUT, CACHE);
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		trash(INPUT, OUTPUT, CACHE);
+		CommonUtils.writeTXT("a b a c b a", new File(INPUT));
+		JobResultCache cache = createCache();
+		cache.setMaxEntries(1);
+
+		assertTrue(cache.run(createBuilder(2)));
+		trash(OUTPUT);
+		assertTrue(cache.run(createBuilder(3)));
+		// The first entry is evicted when the second one is added
+		assertEquals(1, numEntries());
+		trash(OUTPUT);
+		assertTrue(cache.run(createBuilder(2)));
+		assertEquals(3, jobsRun);
+		assertEquals(Arrays.asList("a", "b"), readOutput());
+
+		cache.setMaxAge(0);
+		Thread.sleep(10);
+		assertEquals(1, cache.evict());
+		assertEquals(0, numEntries());
+		trash(INPUT, OUTPUT, CACHE);
+	}
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.datasalt.pangool.io.Fields;
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Tuple;
+import com.datasalt.pangool.io.Utf8;
+import com.datasalt.pangool.tuplemr.LookupCache.LookupCounter;
+
+public class TestLookupCache {
+
+	/**
+	 * Resolves "k" to "value-k", except keys starting with "missing". Keys starting with "fail" fail.
+	 */
+	static class CountingLoader implements LookupCache.Loader<String, String> {
+
+		AtomicInteger loads = new AtomicInteger(0);
+
+		@Override
+		public String load(String key) throws Exception {
+			loads.incrementAndGet();
+			if(key.startsWith("fail")) {
+				throw new IOException("Can't load " + key);
+			}
+			return key.startsWith("missing") ? null : "value-" + key;
+		}
+	}
+
+	@Test
+	public void testHitsAndNegativeHits() throws Exception {
+		CountingLoader loader = new CountingLoader();
+		LookupCache<String, String> cache = new LookupCache<String, String>(100, loader);
+		for(int i = 0; i < 10; i++) {
+			assertEquals("value-a", cache.get("a"));
+			assertNull(cache.get("missing"));
+		}
+		assertEquals(2, loader.loads.get());
+		assertEquals(2, cache.getCount(LookupCounter.MISSES));
+		assertEquals(9, cache.getCount(LookupCounter.HITS));
+		assertEquals(9, cache.getCount(LookupCounter.NEGATIVE_HITS));
+
+		cache = new LookupCache<String, String>(100, loader).setNegativeCaching(false, 0);
+		loader.loads.set(0);
+		assertNull(cache.get("missing"));
+		assertNull(cache.get("missing"));
+		assertEquals(2, loader.loads.get());
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testLRU() throws Exception {
+		CountingLoader loader = new CountingLoader();
+		LookupCache<String, String> cache = new LookupCache<String, String>(2, loader);
+		cache.get("a");
+		cache.get("b");
+		cache.get("a");
+		// b is the least recently used
+		cache.get("c");
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getCount(LookupCounter.EVICTIONS));
+		cache.get("a");
+		assertEquals(3, loader.loads.get());
+		cache.get("b");
+		assertEquals(4, loader.loads.get());
+	}
+
+	@Test
+	public void testTtl() throws Exception {
+		CountingLoader loader = new CountingLoader();
+		LookupCache<String, String> cache = new LookupCache<String, String>(100, loader).setTtl(50)
+		    .setNegativeCaching(true, 50);
+		cache.get("a");
+		cache.get("missing");
+		cache.get("a");
+		cache.get("missing");
+		assertEquals(2, loader.loads.get());
+		Thread.sleep(100);
+		cache.get("a");
+		cache.get("missing");
+		assertEquals(4, loader.loads.get());
+	}
+
+	@Test
+	public void testFailuresNotCached() throws Exception {
+		CountingLoader loader = new CountingLoader();
+		LookupCache<String, String> cache = new LookupCache<String, String>(100, loader);
+		for(int i = 0; i < 2; i++) {
+			try {
+				cache.get("fail");
+				fail();
+			} catch(IOException e) {
+				assertEquals("Can't load fail", e.getMessage());
+			}
+		}
+		assertEquals(2, loader.loads.get());
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void testCoalescing() throws Exception {
+		final CountDownLatch loading = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger loads = new AtomicInteger(0);
+		final LookupCache<String, String> cache = new LookupCache<String, String>(100,
+		    new LookupCache.Loader<String, String>() {
+			    @Override
+			    public String load(String key) throws Exception {
+				    loads.incrementAndGet();
+				    loading.countDown();
+				    release.await();
+				    return "value-" + key;
+			    }
+		    });
+
+		final List<String> results = new ArrayList<String>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < 8; i++) {
+			Thread thread = new Thread() {
+				public void run() {
+					try {
+						String value = cache.get("a");
+						synchronized(results) {
+							results.add(value);
+						}
+					} catch(Exception e) {
+						throw new RuntimeException(e);
+					}
+				}
+			};
+			threads.add(thread);
+			thread.start();
+			if(i == 0) {
+				loading.await();
+			}
+		}
+		// Wait for all the threads to be waiting for the load
+		while(cache.getCount(LookupCounter.COALESCED) < 7) {
+			Thread.sleep(5);
+		}
+		release.countDown();
+		for(Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(1, loads.get());
+		assertEquals(8, results.size());
+		for(String result : results) {
+			assertEquals("value-a", result);
+		}
+	}
+
+	@Test
+	public void testKeyOf() throws Exception {
+		Schema schema = new Schema("schema", Fields.parse("ip:string, port:int"));
+		Tuple tuple = new Tuple(schema);
+		tuple.set("ip", new Utf8("10.0.0.1"));
+		tuple.set("port", 80);
+		List<Object> key = LookupCache.keyOf(tuple, "ip", "port");
+		((Utf8) tuple.get("ip")).set("10.0.0.2");
+
+		Tuple other = new Tuple(schema);
+		other.set("ip", "10.0.0.1");
+		other.set("port", 80);
+		assertEquals(key, LookupCache.keyOf(other, "ip", "port"));
+	}
+}
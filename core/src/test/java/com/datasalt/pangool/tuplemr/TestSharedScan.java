@@ -0,0 +1,248 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.junit.Test;
+
+import com.datasalt.pangool.io.Fields;
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Tuple;
+import com.datasalt.pangool.tuplemr.Criteria.Order;
+import com.datasalt.pangool.tuplemr.local.LocalTupleMREngine;
+import com.datasalt.pangool.tuplemr.mapred.lib.input.HadoopInputFormat;
+import com.datasalt.pangool.tuplemr.mapred.lib.output.HadoopOutputFormat;
+import com.datasalt.pangool.utils.CommonUtils;
+import com.datasalt.pangool.utils.test.AbstractHadoopTestLibrary;
+
+public class TestSharedScan extends AbstractHadoopTestLibrary {
+
+	public final static String INPUT = TestSharedScan.class.getName() + "-input";
+	public final static String OUTPUT = TestSharedScan.class.getName() + "-output";
+
+	final static Schema COUNTRY = new Schema("country", Fields.parse("country:string, count:int"));
+	final static Schema PURCHASE = new Schema("purchase", Fields.parse("user:string, amount:int"));
+	final static Schema BIG = new Schema("big", Fields.parse("user:string, amount:int"));
+	final static Schema SMALL = new Schema("small", Fields.parse("user:string, amount:int"));
+
+	/**
+	 * Parses each line "user country amount" once and feeds the three queries.
+	 */
+	@SuppressWarnings("serial")
+	public static class Parse extends TupleMapper<LongWritable, Text> {
+
+		private transient Tuple country, purchase, big, small;
+
+		@Override
+		public void setup(TupleMRContext context, Collector collector) throws IOException, InterruptedException {
+			country = new Tuple(COUNTRY);
+			country.set("count", 1);
+			purchase = new Tuple(PURCHASE);
+			big = new Tuple(BIG);
+			small = new Tuple(SMALL);
+		}
+
+		@Override
+		public void map(LongWritable key, Text value, TupleMRContext context, Collector collector)
+		    throws IOException, InterruptedException {
+			String[] fields = value.toString().split(" ");
+			int amount = Integer.parseInt(fields[2]);
+			country.set("country", fields[1]);
+			collector.write(country);
+			purchase.set("user", fields[0]);
+			purchase.set("amount", amount);
+			collector.write(purchase);
+			Tuple size = (amount >= 10) ? big : small;
+			size.set("user", fields[0]);
+			size.set("amount", amount);
+			collector.write(size);
+		}
+	}
+
+	/**
+	 * Writes a line per group to the named output of the query with the
+	 * group fields and the values of the given field of the tuples, in order.
+	 */
+	@SuppressWarnings("serial")
+	public static class ListValues extends TupleReducer<Text, NullWritable> {
+
+		private final String namedOutput;
+		private final String field;
+
+		public ListValues(String namedOutput, String field) {
+			this.namedOutput = namedOutput;
+			this.field = field;
+		}
+
+		@Override
+		public void reduce(ITuple group, Iterable<ITuple> tuples, TupleMRContext context, Collector collector)
+		    throws IOException, InterruptedException, TupleMRException {
+			StringBuilder line = new StringBuilder(group.get(0).toString());
+			for(ITuple tuple : tuples) {
+				line.append(" ").append(tuple.getSchema().getName()).append(":").append(tuple.get(field));
+			}
+			collector.getNamedOutput(namedOutput).write(new Text(line.toString()), NullWritable.get());
+		}
+	}
+
+	private SharedScanBuilder createBuilder() throws TupleMRException, IOException {
+		return createBuilder("countries", "purchases", "sizes");
+	}
+
+	/**
+	 * Three queries, writing to the given named outputs.
+	 */
+	private SharedScanBuilder createBuilder(String countriesOutput, String purchasesOutput, String sizesOutput)
+	    throws TupleMRException, IOException {
+		SharedScanBuilder builder = new SharedScanBuilder(getConf());
+		builder.addInput(new Path(INPUT), new HadoopInputFormat(TextInputFormat.class), new Parse());
+
+		TupleMRConfigBuilder countries = new TupleMRConfigBuilder();
+		countries.addIntermediateSchema(COUNTRY);
+		countries.setGroupByFields("country");
+		builder.addQuery(countries, new ListValues(countriesOutput, "count"));
+
+		TupleMRConfigBuilder purchases = new TupleMRConfigBuilder();
+		purchases.addIntermediateSchema(PURCHASE);
+		purchases.setGroupByFields("user");
+		purchases.setOrderBy(new OrderBy().add("user", Order.ASC).add("amount", Order.DESC));
+		builder.addQuery(purchases, new ListValues(purchasesOutput, "amount"));
+
+		TupleMRConfigBuilder sizes = new TupleMRConfigBuilder();
+		sizes.addIntermediateSchema(BIG);
+		sizes.addIntermediateSchema(SMALL);
+		sizes.setGroupByFields("user");
+		sizes.setOrderBy(new OrderBy().add("user", Order.ASC).addSchemaOrder(Order.DESC));
+		sizes.setSpecificOrderBy("big", new OrderBy().add("amount", Order.ASC));
+		sizes.setSpecificOrderBy("small", new OrderBy().add("amount", Order.ASC));
+		builder.addQuery(sizes, new ListValues(sizesOutput, "amount"));
+
+		for(String namedOutput : new HashSet<String>(Arrays.asList(countriesOutput, purchasesOutput, sizesOutput))) {
+			builder.addNamedOutput(namedOutput, new HadoopOutputFormat(TextOutputFormat.class), Text.class,
+			    NullWritable.class);
+		}
+		builder.setOutput(new Path(OUTPUT), new HadoopOutputFormat(TextOutputFormat.class), Text.class,
+		    NullWritable.class);
+		return builder;
+	}
+
+	private List<String> read(String namedOutput) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		for(File file : new File(OUTPUT, namedOutput).listFiles()) {
+			if(file.getName().startsWith("part-")) {
+				lines.addAll(FileUtils.readLines(file));
+			}
+		}
+		Collections.sort(lines);
+		return lines;
+	}
+
+	private void checkOutput() throws IOException {
+		assertEquals(Arrays.asList("es country:1 country:1 country:1 country:1", "fr country:1"), read("countries"));
+		assertEquals(Arrays.asList("ana purchase:20 purchase:5", "bob purchase:30 purchase:12 purchase:1"),
+		    read("purchases"));
+		// Small before big, as the schema order is descending
+		assertEquals(Arrays.asList("ana small:5 big:20", "bob small:1 big:12 big:30"), read("sizes"));
+	}
+
+	private void writeInput() throws IOException {
+		CommonUtils.writeTXT("ana es 20\nbob es 12\nbob fr 1\nana es 5\nbob es 30", new File(INPUT));
+	}
+
+	@Test
+	public void testSharedScan() throws Exception {
+		trash(INPUT, OUTPUT);
+		writeInput();
+		SharedScanBuilder builder = createBuilder();
+		Job job = builder.createJob();
+		try {
+			assertRun(job);
+		} finally {
+			builder.cleanUpInstanceFiles();
+		}
+		checkOutput();
+		trash(INPUT, OUTPUT);
+	}
+
+	@Test
+	public void testSeveralReducers() throws Exception {
+		trash(INPUT, OUTPUT);
+		writeInput();
+		SharedScanBuilder builder = createBuilder();
+		Job job = builder.createJob();
+		job.setNumReduceTasks(3);
+		try {
+			new LocalTupleMREngine(2).run(job);
+		} finally {
+			builder.cleanUpInstanceFiles();
+		}
+		checkOutput();
+		trash(INPUT, OUTPUT);
+	}
+
+	@Test
+	public void testSameNamedOutput() throws Exception {
+		trash(INPUT, OUTPUT);
+		writeInput();
+		SharedScanBuilder builder = createBuilder("all", "all", "all");
+		Job job = builder.createJob();
+		try {
+			assertRun(job);
+		} finally {
+			builder.cleanUpInstanceFiles();
+		}
+		// The three queries write to the same files
+		assertEquals(Arrays.asList("ana purchase:20 purchase:5", "ana small:5 big:20",
+		    "bob purchase:30 purchase:12 purchase:1", "bob small:1 big:12 big:30",
+		    "es country:1 country:1 country:1 country:1", "fr country:1"), read("all"));
+		trash(INPUT, OUTPUT);
+	}
+
+	@Test
+	public void testSchemaNamesMustBeUnique() throws Exception {
+		SharedScanBuilder builder = createBuilder();
+		TupleMRConfigBuilder other = new TupleMRConfigBuilder();
+		other.addIntermediateSchema(COUNTRY);
+		other.setGroupByFields("country");
+		builder.addQuery(other, new ListValues("countries", "count"));
+		try {
+			builder.createJob();
+			fail();
+		} catch(TupleMRException e) {
+			assertTrue(e.getMessage().contains("'country' is used by more than one query"));
+		}
+	}
+}
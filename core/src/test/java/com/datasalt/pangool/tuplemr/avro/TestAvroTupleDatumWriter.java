@@ -0,0 +1,82 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.avro;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData.Record;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+import com.datasalt.pangool.BaseTest;
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Tuple;
+import com.datasalt.pangool.utils.AvroRecordToTupleConverter;
+
+public class TestAvroTupleDatumWriter extends BaseTest {
+
+	public static String OUT = TestAvroTupleDatumWriter.class.getName() + "-out" + AvroOutputFormat.EXT;
+
+	@Test
+	public void testWrittenFilesAreStandardAvro() throws Exception {
+		Configuration conf = getConf();
+		File file = new File(OUT);
+
+		AvroTupleDatumWriter datumWriter = new AvroTupleDatumWriter(SCHEMA, conf);
+		DataFileWriter<ITuple> writer = new DataFileWriter<ITuple>(datumWriter);
+		writer.create(datumWriter.getAvroSchema(), file);
+		List<ITuple> written = new ArrayList<ITuple>();
+		for(int i = 0; i < 1000; i++) {
+			ITuple tuple = fillTuple(true, new Tuple(SCHEMA));
+			writer.append(tuple);
+			written.add(tuple);
+		}
+		writer.close();
+
+		// Read it back with the generic Avro API
+		DataFileReader<Record> recordReader = new DataFileReader<Record>(file, new GenericDatumReader<Record>());
+		AvroRecordToTupleConverter converter = new AvroRecordToTupleConverter(recordReader.getSchema(), conf);
+		int count = 0;
+		for(Record record : recordReader) {
+			assertEquals(written.get(count), converter.toTuple(record, null));
+			count++;
+		}
+		recordReader.close();
+		assertEquals(written.size(), count);
+
+		// And with the tuple reader
+		DataFileReader<ITuple> tupleReader = new DataFileReader<ITuple>(file, new AvroTupleDatumReader(
+		    datumWriter.getAvroSchema(), conf));
+		count = 0;
+		ITuple tuple = null;
+		while(tupleReader.hasNext()) {
+			tuple = tupleReader.next(tuple);
+			assertEquals(written.get(count), tuple);
+			count++;
+		}
+		tupleReader.close();
+		assertEquals(written.size(), count);
+
+		file.delete();
+	}
+}
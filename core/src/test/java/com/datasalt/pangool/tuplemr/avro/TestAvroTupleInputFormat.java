@@ -0,0 +1,126 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.avro;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData.Record;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskID;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.junit.Test;
+
+import com.datasalt.pangool.BaseTest;
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Tuple;
+import com.datasalt.pangool.utils.AvroUtils;
+import com.datasalt.pangool.utils.HadoopUtils;
+import com.datasalt.pangool.utils.TaskAttemptContextFactory;
+import com.datasalt.pangool.utils.TupleToAvroRecordConverter;
+
+public class TestAvroTupleInputFormat extends BaseTest {
+
+	public static String IN = TestAvroTupleInputFormat.class.getName() + "-in";
+
+	private List<ITuple> writeAvroFile(Path path, int numRecords) throws Exception {
+		Configuration conf = getConf();
+		org.apache.avro.Schema avroSchema = AvroUtils.toAvroSchema(SCHEMA);
+		TupleToAvroRecordConverter converter = new TupleToAvroRecordConverter(SCHEMA, conf);
+		DataFileWriter<Record> writer = new DataFileWriter<Record>(new GenericDatumWriter<Record>());
+		writer.setSyncInterval(64);
+		writer.create(avroSchema, path.getFileSystem(conf).create(path));
+		List<ITuple> written = new ArrayList<ITuple>();
+		Record record = null;
+		for(int i = 0; i < numRecords; i++) {
+			ITuple tuple = fillTuple(true, new Tuple(SCHEMA));
+			record = converter.toRecord(tuple, record);
+			writer.append(record);
+			written.add(tuple);
+		}
+		writer.close();
+		return written;
+	}
+
+	private void assertRead(AvroTupleInputFormat format, Path path, long maxSplitSize, List<ITuple> expected)
+	    throws Exception {
+		Job job = new Job(getConf());
+		FileInputFormat.setInputPaths(job, path);
+		FileInputFormat.setMaxInputSplitSize(job, maxSplitSize);
+		int count = 0;
+		for(InputSplit split : format.getSplits(job)) {
+			TaskAttemptContext context = TaskAttemptContextFactory.get(getConf(), new TaskAttemptID(new TaskID(), 1));
+			RecordReader<ITuple, NullWritable> reader = format.createRecordReader(split, context);
+			reader.initialize(split, context);
+			while(reader.nextKeyValue()) {
+				assertEquals(expected.get(count), reader.getCurrentKey());
+				count++;
+			}
+			reader.close();
+		}
+		assertEquals(expected.size(), count);
+	}
+
+	@Test
+	public void testReadAllFields() throws Exception {
+		Path path = new Path(IN + "/part-0" + AvroOutputFormat.EXT);
+		List<ITuple> written = writeAvroFile(path, 500);
+
+		AvroTupleInputFormat format = new AvroTupleInputFormat(AvroUtils.toAvroSchema(SCHEMA));
+		assertEquals(SCHEMA, format.getPangoolSchema());
+		assertRead(format, path, Long.MAX_VALUE, written);
+		// Many splits must give the same records
+		assertRead(format, path, 500, written);
+
+		HadoopUtils.deleteIfExists(fS, new Path(IN));
+	}
+
+	@Test
+	public void testReadProjection() throws Exception {
+		Path path = new Path(IN + "/part-0" + AvroOutputFormat.EXT);
+		List<ITuple> written = writeAvroFile(path, 100);
+
+		AvroTupleInputFormat format = new AvroTupleInputFormat(AvroUtils.toAvroSchema(SCHEMA), "enum_field",
+		    "string_field", "thrift_field");
+		Schema projected = format.getPangoolSchema();
+		assertEquals(3, projected.getFields().size());
+		assertEquals("string_field", projected.getField(1).getName());
+
+		List<ITuple> expected = new ArrayList<ITuple>();
+		for(ITuple tuple : written) {
+			ITuple projectedTuple = new Tuple(projected);
+			for(Schema.Field field : projected.getFields()) {
+				projectedTuple.set(field.getName(), tuple.get(field.getName()));
+			}
+			expected.add(projectedTuple);
+		}
+		assertRead(format, path, Long.MAX_VALUE, expected);
+
+		HadoopUtils.deleteIfExists(fS, new Path(IN));
+	}
+}
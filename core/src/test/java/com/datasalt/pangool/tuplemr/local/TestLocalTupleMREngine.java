@@ -0,0 +1,260 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.local;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.StringTokenizer;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.junit.Test;
+
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Schema.Field;
+import com.datasalt.pangool.io.Schema.Field.Type;
+import com.datasalt.pangool.io.Tuple;
+import com.datasalt.pangool.io.Utf8;
+import com.datasalt.pangool.tuplemr.MapOnlyJobBuilder;
+import com.datasalt.pangool.tuplemr.TupleMRBuilder;
+import com.datasalt.pangool.tuplemr.TupleMRException;
+import com.datasalt.pangool.tuplemr.TupleMapper;
+import com.datasalt.pangool.tuplemr.TupleReducer;
+import com.datasalt.pangool.tuplemr.mapred.MapOnlyMapper;
+import com.datasalt.pangool.tuplemr.mapred.lib.input.HadoopInputFormat;
+import com.datasalt.pangool.tuplemr.mapred.lib.output.HadoopOutputFormat;
+import com.datasalt.pangool.utils.CommonUtils;
+import com.datasalt.pangool.utils.test.AbstractHadoopTestLibrary;
+
+public class TestLocalTupleMREngine extends AbstractHadoopTestLibrary {
+
+	public final static String INPUT = TestLocalTupleMREngine.class.getName() + "-input";
+	public final static String OUTPUT = TestLocalTupleMREngine.class.getName() + "-output";
+	public final static String OUTPUT_LOCAL = TestLocalTupleMREngine.class.getName() + "-output-local";
+
+	@SuppressWarnings("serial")
+	public static class Split extends TupleMapper<LongWritable, Text> {
+
+		private Tuple tuple;
+
+		public void setup(TupleMRContext context, Collector collector) throws IOException,
+		    InterruptedException {
+			tuple = new Tuple(context.getTupleMRConfig().getIntermediateSchema(0));
+			tuple.set("count", 1);
+		}
+
+		@Override
+		public void map(LongWritable key, Text value, TupleMRContext context, Collector collector)
+		    throws IOException, InterruptedException {
+			StringTokenizer itr = new StringTokenizer(value.toString());
+			while(itr.hasMoreTokens()) {
+				tuple.set("word", itr.nextToken());
+				collector.write(tuple);
+			}
+		}
+	}
+
+	@SuppressWarnings("serial")
+	public static class CountCombiner extends TupleReducer<ITuple, NullWritable> {
+
+		private Tuple tuple;
+
+		public void setup(TupleMRContext context, Collector collector) throws IOException,
+		    InterruptedException {
+			tuple = new Tuple(context.getTupleMRConfig().getIntermediateSchema(0));
+		}
+
+		@Override
+		public void reduce(ITuple group, Iterable<ITuple> tuples, TupleMRContext context, Collector collector)
+		    throws IOException, InterruptedException, TupleMRException {
+			int count = 0;
+			for(ITuple tuple : tuples) {
+				count += (Integer) tuple.get("count");
+			}
+			tuple.set("word", group.get("word"));
+			tuple.set("count", count);
+			collector.write(tuple, NullWritable.get());
+		}
+	}
+
+	@SuppressWarnings("serial")
+	public static class Count extends TupleReducer<Utf8, IntWritable> {
+
+		@Override
+		public void reduce(ITuple group, Iterable<ITuple> tuples, TupleMRContext context, Collector collector)
+		    throws IOException, InterruptedException, TupleMRException {
+			int count = 0;
+			for(ITuple tuple : tuples) {
+				count += (Integer) tuple.get("count");
+			}
+			collector.write((Utf8) group.get("word"), new IntWritable(count));
+		}
+	}
+
+	@SuppressWarnings("serial")
+	public static class Upper extends MapOnlyMapper<LongWritable, Text, Text, NullWritable> {
+
+		@Override
+		protected void map(LongWritable key, Text value, Context context) throws IOException,
+		    InterruptedException {
+			context.write(new Text(value.toString().toUpperCase()), NullWritable.get());
+		}
+	}
+
+	private Job wordCount(Configuration conf, String output) throws Exception {
+		List<Field> fields = new ArrayList<Field>();
+		fields.add(Field.create("word", Type.STRING));
+		fields.add(Field.create("count", Type.INT));
+
+		TupleMRBuilder builder = new TupleMRBuilder(conf);
+		builder.addIntermediateSchema(new Schema("schema", fields));
+		builder.addInput(new Path(INPUT), new HadoopInputFormat(TextInputFormat.class), new Split());
+		builder.setOutput(new Path(output), new HadoopOutputFormat(TextOutputFormat.class), Utf8.class,
+		    IntWritable.class);
+		builder.setGroupByFields("word");
+		builder.setTupleCombiner(new CountCombiner());
+		builder.setTupleReducer(new Count());
+		return builder.createJob();
+	}
+
+	private void writeInput(int files, int lines) throws IOException {
+		Random random = new Random(7);
+		new File(INPUT).mkdirs();
+		for(int f = 0; f < files; f++) {
+			StringBuilder data = new StringBuilder();
+			for(int i = 0; i < lines; i++) {
+				for(int w = 0; w < 8; w++) {
+					data.append("word").append(random.nextInt(500)).append(" ");
+				}
+				data.append("\n");
+			}
+			CommonUtils.writeTXT(data.toString(), new File(INPUT + "/part-" + f + ".txt"));
+		}
+	}
+
+	/**
+	 * The lines of all the files of an output, in the order of the files.
+	 */
+	private List<String> readOutput(String output) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		File[] files = new File(output).listFiles();
+		List<String> names = new ArrayList<String>();
+		for(File file : files) {
+			if(file.getName().startsWith("part-")) {
+				names.add(file.getName());
+			}
+		}
+		Collections.sort(names);
+		for(String name : names) {
+			lines.addAll(FileUtils.readLines(new File(output, name)));
+		}
+		return lines;
+	}
+
+	@Test
+	public void testSameResultAsHadoop() throws Exception {
+		trash(INPUT, OUTPUT, OUTPUT_LOCAL);
+		writeInput(4, 2000);
+
+		Job job = wordCount(getConf(), OUTPUT);
+		job.setNumReduceTasks(1);
+		assertRun(job);
+
+		Job localJob = wordCount(getConf(), OUTPUT_LOCAL);
+		localJob.setNumReduceTasks(1);
+		Counters counters = new LocalTupleMREngine(4).run(localJob);
+
+		List<String> expected = readOutput(OUTPUT);
+		assertEquals(500, expected.size());
+		assertEquals(expected, readOutput(OUTPUT_LOCAL));
+		assertEquals(8000, counters.findCounter(LocalTupleMREngine.TASK_COUNTERS, "MAP_INPUT_RECORDS")
+		    .getValue());
+		assertEquals(64000, counters.findCounter(LocalTupleMREngine.TASK_COUNTERS, "MAP_OUTPUT_RECORDS")
+		    .getValue());
+		assertEquals(500, counters.findCounter(LocalTupleMREngine.TASK_COUNTERS, "REDUCE_INPUT_GROUPS")
+		    .getValue());
+		assertEquals(500, counters.findCounter(LocalTupleMREngine.TASK_COUNTERS, "REDUCE_OUTPUT_RECORDS")
+		    .getValue());
+
+		trash(INPUT, OUTPUT, OUTPUT_LOCAL);
+	}
+
+	@Test
+	public void testSpillsAndSeveralReducers() throws Exception {
+		trash(INPUT, OUTPUT, OUTPUT_LOCAL);
+		writeInput(3, 3000);
+
+		Job job = wordCount(getConf(), OUTPUT);
+		job.setNumReduceTasks(1);
+		assertRun(job);
+
+		Configuration conf = getConf();
+		conf.setInt(LocalTupleMREngine.CONF_SORT_BUFFER_SIZE, 16 * 1024);
+		conf.setLong(LocalTupleMREngine.CONF_MEMORY_SIZE, 16 * 1024);
+		Job localJob = wordCount(conf, OUTPUT_LOCAL);
+		localJob.setNumReduceTasks(3);
+		Counters counters = new LocalTupleMREngine(3).run(localJob);
+
+		List<String> expected = readOutput(OUTPUT);
+		List<String> actual = readOutput(OUTPUT_LOCAL);
+		Collections.sort(expected);
+		Collections.sort(actual);
+		assertEquals(expected, actual);
+		assertTrue(new File(OUTPUT_LOCAL, "part-r-00002").exists());
+		// The combiner has run over several spills of each map
+		assertTrue(counters.findCounter(LocalTupleMREngine.TASK_COUNTERS, "REDUCE_INPUT_RECORDS").getValue() > 3 * 500);
+
+		trash(INPUT, OUTPUT, OUTPUT_LOCAL);
+	}
+
+	@Test
+	public void testMapOnly() throws Exception {
+		trash(INPUT, OUTPUT_LOCAL);
+		new File(INPUT).mkdirs();
+		CommonUtils.writeTXT("hola\ndon\npepito\n", new File(INPUT + "/data.txt"));
+
+		MapOnlyJobBuilder builder = new MapOnlyJobBuilder(getConf());
+		builder.addInput(new Path(INPUT), new HadoopInputFormat(TextInputFormat.class), new Upper());
+		builder.setOutput(new Path(OUTPUT_LOCAL), new HadoopOutputFormat(TextOutputFormat.class), Text.class,
+		    NullWritable.class);
+		builder.setMapper(new Upper());
+		new LocalTupleMREngine().run(builder.createJob());
+
+		List<String> lines = readOutput(OUTPUT_LOCAL);
+		assertEquals(3, lines.size());
+		assertEquals("HOLA", lines.get(0));
+		assertEquals("PEPITO", lines.get(2));
+
+		trash(INPUT, OUTPUT_LOCAL);
+	}
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.mapred.lib.input;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.junit.Test;
+
+import com.datasalt.pangool.tuplemr.IdentityTupleMapper;
+import com.datasalt.pangool.utils.CommonUtils;
+import com.datasalt.pangool.utils.test.AbstractHadoopTestLibrary;
+
+public class TestDelegatingInputFormat extends AbstractHadoopTestLibrary {
+
+	public final static String INPUT = TestDelegatingInputFormat.class.getName() + "-input";
+	public final static int INPUTS = 20;
+
+	/**
+	 * Fails if it sees the specific context of another input.
+	 */
+	@SuppressWarnings("serial")
+	public static class ContextCheckingInputFormat extends TextInputFormat implements Serializable {
+
+		@Override
+		public List<InputSplit> getSplits(JobContext job) throws IOException {
+			String path = job.getConfiguration().get("mapred.input.dir");
+			if(job.getConfiguration().get("first.input") != null && !path.endsWith("input-0")) {
+				throw new IOException("Context of the first input seen in " + path);
+			}
+			return super.getSplits(job);
+		}
+	}
+
+	private List<InputSplit> getSplits(int threads) throws Exception {
+		Job job = new Job(getConf());
+		Map<String, String> firstContext = new HashMap<String, String>();
+		firstContext.put("first.input", "true");
+		for(int i = 0; i < INPUTS; i++) {
+			PangoolMultipleInputs.addInputPath(job, new Path(INPUT + "/input-" + i), new ContextCheckingInputFormat(),
+			    new IdentityTupleMapper(), i == 0 ? firstContext : new HashMap<String, String>());
+		}
+		DelegatingInputFormat.setSplitThreads(job, threads);
+		Configuration conf = job.getConfiguration();
+		return new DelegatingInputFormat<Object, Object>().getSplits(new JobContext(conf, new JobID()));
+	}
+
+	@Test
+	public void testParallelSplits() throws Exception {
+		trash(INPUT);
+		for(int i = 0; i < INPUTS; i++) {
+			new File(INPUT + "/input-" + i).mkdirs();
+			CommonUtils.writeTXT("line" + i + "\n", new File(INPUT + "/input-" + i + "/data.txt"));
+		}
+
+		List<InputSplit> sequential = getSplits(1);
+		List<InputSplit> parallel = getSplits(8);
+
+		assertEquals(INPUTS, sequential.size());
+		assertEquals(sequential.size(), parallel.size());
+		for(int i = 0; i < sequential.size(); i++) {
+			FileSplit seqSplit = (FileSplit) ((TaggedInputSplit) sequential.get(i)).getInputSplit();
+			FileSplit parSplit = (FileSplit) ((TaggedInputSplit) parallel.get(i)).getInputSplit();
+			assertEquals(seqSplit.getPath(), parSplit.getPath());
+			assertEquals(seqSplit.getLength(), parSplit.getLength());
+		}
+
+		trash(INPUT);
+	}
+}
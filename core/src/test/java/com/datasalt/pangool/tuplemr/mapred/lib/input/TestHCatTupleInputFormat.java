@@ -0,0 +1,154 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.mapred.lib.input;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hcatalog.data.DefaultHCatRecord;
+import org.apache.hcatalog.data.HCatRecord;
+import org.apache.hcatalog.data.schema.HCatFieldSchema;
+import org.apache.hcatalog.data.schema.HCatSchema;
+import org.junit.Test;
+
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Schema.Field.Type;
+
+public class TestHCatTupleInputFormat {
+
+	private static HCatSchema tableSchema() throws IOException {
+		return new HCatSchema(Arrays.asList(
+		    new HCatFieldSchema("id", HCatFieldSchema.Type.BIGINT, null),
+		    new HCatFieldSchema("name", HCatFieldSchema.Type.STRING, null),
+		    new HCatFieldSchema("age", HCatFieldSchema.Type.SMALLINT, null),
+		    new HCatFieldSchema("score", HCatFieldSchema.Type.DOUBLE, null)));
+	}
+
+	/**
+	 * An HCatalog reader over the given records.
+	 */
+	@SuppressWarnings("rawtypes")
+	private static RecordReader<WritableComparable, HCatRecord> reader(final HCatRecord... records) {
+		return new RecordReader<WritableComparable, HCatRecord>() {
+
+			Iterator<HCatRecord> iterator = Arrays.asList(records).iterator();
+			HCatRecord current;
+
+			@Override
+			public void initialize(InputSplit split, TaskAttemptContext context) {
+			}
+
+			@Override
+			public boolean nextKeyValue() {
+				current = iterator.hasNext() ? iterator.next() : null;
+				return current != null;
+			}
+
+			@Override
+			public WritableComparable getCurrentKey() {
+				return null;
+			}
+
+			@Override
+			public HCatRecord getCurrentValue() {
+				return current;
+			}
+
+			@Override
+			public float getProgress() {
+				return 0;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	private static HCatRecord record(Object... values) {
+		return new DefaultHCatRecord(new ArrayList<Object>(Arrays.asList(values)));
+	}
+
+	@Test
+	public void testSchema() throws IOException {
+		Schema schema = HCatTupleInputFormat.toPangoolSchema("users", tableSchema());
+		assertEquals("users", schema.getName());
+		assertEquals(4, schema.getFields().size());
+		assertEquals(Type.LONG, schema.getField("id").getType());
+		assertEquals(Type.STRING, schema.getField("name").getType());
+		assertEquals(Type.INT, schema.getField("age").getType());
+		assertEquals(Type.DOUBLE, schema.getField("score").getType());
+	}
+
+	@Test
+	public void testProjectedSchema() throws IOException {
+		HCatSchema projected = HCatTupleInputFormat.project(tableSchema(), Arrays.asList("score", "id"), "db.users");
+		assertEquals(Arrays.asList("score", "id"), projected.getFieldNames());
+
+		// Only the projected columns, in their order
+		Schema schema = HCatTupleInputFormat.toPangoolSchema("users", projected);
+		assertEquals(2, schema.getFields().size());
+		assertEquals("score", schema.getField(0).getName());
+		assertEquals(Type.DOUBLE, schema.getField(0).getType());
+		assertEquals("id", schema.getField(1).getName());
+		assertEquals(Type.LONG, schema.getField(1).getType());
+		assertFalse(schema.containsField("name"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownProjectedColumn() throws IOException {
+		HCatTupleInputFormat.project(tableSchema(), Arrays.asList("id", "email"), "db.users");
+	}
+
+	@Test
+	public void testProjectedRecords() throws IOException, InterruptedException {
+		HCatSchema projected = HCatTupleInputFormat.project(tableSchema(), Arrays.asList("score", "id"), "db.users");
+		Schema schema = HCatTupleInputFormat.toPangoolSchema("users", projected);
+		// HCatalog deserializes only the projected columns, in the projection order
+		HCatTupleInputFormat.TupleRecordReader reader = new HCatTupleInputFormat.TupleRecordReader(reader(
+		    record(2.5d, 7L), record(1.0d, 8L)), schema);
+
+		List<String> read = new ArrayList<String>();
+		ITuple first = null;
+		while(reader.nextKeyValue()) {
+			ITuple tuple = reader.getCurrentKey();
+			if(first == null) {
+				first = tuple;
+			}
+			// The tuple is reused
+			assertSame(first, tuple);
+			assertSame(schema, tuple.getSchema());
+			assertTrue(tuple.get("score") instanceof Double);
+			assertTrue(tuple.get("id") instanceof Long);
+			read.add(tuple.get("id") + ":" + tuple.get("score"));
+		}
+		reader.close();
+		assertEquals(Arrays.asList("7:2.5", "8:1.0"), read);
+	}
+}
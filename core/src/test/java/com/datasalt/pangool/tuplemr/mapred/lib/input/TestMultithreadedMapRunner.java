@@ -0,0 +1,188 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.mapred.lib.input;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.junit.Test;
+
+import com.datasalt.pangool.io.Fields;
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Tuple;
+import com.datasalt.pangool.io.Utf8;
+import com.datasalt.pangool.tuplemr.MapOnlyJobBuilder;
+import com.datasalt.pangool.tuplemr.MultipleOutputsCollector;
+import com.datasalt.pangool.tuplemr.TupleMRBuilder;
+import com.datasalt.pangool.tuplemr.TupleMRException;
+import com.datasalt.pangool.tuplemr.TupleMapper;
+import com.datasalt.pangool.tuplemr.TupleReducer;
+import com.datasalt.pangool.tuplemr.mapred.MapOnlyMapper;
+import com.datasalt.pangool.tuplemr.mapred.lib.output.HadoopOutputFormat;
+import com.datasalt.pangool.utils.CommonUtils;
+import com.datasalt.pangool.utils.test.AbstractHadoopTestLibrary;
+
+public class TestMultithreadedMapRunner extends AbstractHadoopTestLibrary {
+
+	public final static String INPUT = TestMultithreadedMapRunner.class.getName() + "-input";
+	public final static String OUTPUT = TestMultithreadedMapRunner.class.getName() + "-output";
+	public final static int LINES = 10000;
+
+	static AtomicInteger setups = new AtomicInteger(0);
+
+	@SuppressWarnings("serial")
+	public static class Modulo extends TupleMapper<LongWritable, Text> {
+
+		private Tuple tuple;
+
+		public void setup(TupleMRContext context, Collector collector) throws IOException,
+		    InterruptedException {
+			setups.incrementAndGet();
+			tuple = new Tuple(context.getTupleMRConfig().getIntermediateSchema(0));
+		}
+
+		@Override
+		public void map(LongWritable key, Text value, TupleMRContext context, Collector collector)
+		    throws IOException, InterruptedException {
+			int number = Integer.parseInt(value.toString());
+			tuple.set("mod", number % 10);
+			tuple.set("number", number);
+			collector.write(tuple);
+			if(number % 2 == 0) {
+				collector.getNamedOutput("even").write(new IntWritable(number), NullWritable.get());
+			}
+		}
+	}
+
+	@SuppressWarnings("serial")
+	public static class Sum extends TupleReducer<Utf8, NullWritable> {
+
+		@Override
+		public void reduce(ITuple group, Iterable<ITuple> tuples, TupleMRContext context, Collector collector)
+		    throws IOException, InterruptedException, TupleMRException {
+			long sum = 0;
+			for(ITuple tuple : tuples) {
+				sum += (Integer) tuple.get("number");
+			}
+			collector.write(new Utf8(group.get("mod") + "\t" + sum), NullWritable.get());
+		}
+	}
+
+	@SuppressWarnings("serial")
+	public static class Copy extends MapOnlyMapper<LongWritable, Text, Text, NullWritable> {
+
+		@Override
+		protected void map(LongWritable key, Text value, Context context, MultipleOutputsCollector collector)
+		    throws IOException, InterruptedException {
+			context.write(value, NullWritable.get());
+			collector.write("copy", value, NullWritable.get());
+		}
+	}
+
+	private void writeInput() throws IOException {
+		StringBuilder data = new StringBuilder();
+		for(int i = 0; i < LINES; i++) {
+			data.append(i).append("\n");
+		}
+		CommonUtils.writeTXT(data.toString(), new File(INPUT));
+	}
+
+	private List<String> sortedLines(String file) throws IOException {
+		List<String> lines = new ArrayList<String>(FileUtils.readLines(new File(file)));
+		Collections.sort(lines);
+		return lines;
+	}
+
+	@Test
+	public void testTupleMapper() throws Exception {
+		trash(INPUT, OUTPUT);
+		writeInput();
+		setups.set(0);
+
+		TupleMRBuilder builder = new TupleMRBuilder(getConf());
+		builder.addIntermediateSchema(new Schema("schema", Fields.parse("mod:int, number:int")));
+		builder.setGroupByFields("mod");
+		builder.addInput(new Path(INPUT), new HadoopInputFormat(TextInputFormat.class), new Modulo());
+		builder.setTupleReducer(new Sum());
+		builder.setOutput(new Path(OUTPUT), new HadoopOutputFormat(TextOutputFormat.class), Utf8.class,
+		    NullWritable.class);
+		builder.addNamedOutput("even", new HadoopOutputFormat(TextOutputFormat.class), IntWritable.class,
+		    NullWritable.class);
+		builder.setMapperThreads(4);
+		Job job = builder.createJob();
+		try {
+			assertRun(job);
+		} finally {
+			builder.cleanUpInstanceFiles();
+		}
+
+		assertEquals(4, setups.get());
+		List<String> expected = new ArrayList<String>();
+		for(int mod = 0; mod < 10; mod++) {
+			long sum = 0;
+			for(int i = mod; i < LINES; i += 10) {
+				sum += i;
+			}
+			expected.add(mod + "\t" + sum);
+		}
+		assertEquals(expected, sortedLines(OUTPUT + "/part-r-00000"));
+		assertEquals(LINES / 2, sortedLines(OUTPUT + "/even/part-m-00000").size());
+
+		trash(INPUT, OUTPUT);
+	}
+
+	@Test
+	public void testMapOnly() throws Exception {
+		trash(INPUT, OUTPUT);
+		writeInput();
+
+		MapOnlyJobBuilder builder = new MapOnlyJobBuilder(getConf());
+		builder.addInput(new Path(INPUT), new HadoopInputFormat(TextInputFormat.class), new Copy());
+		builder.setOutput(new Path(OUTPUT), new HadoopOutputFormat(TextOutputFormat.class), Text.class,
+		    NullWritable.class);
+		builder.addNamedOutput("copy", new HadoopOutputFormat(TextOutputFormat.class), Text.class,
+		    NullWritable.class);
+		builder.setMapperThreads(3);
+		Job job = builder.createJob();
+		try {
+			assertRun(job);
+		} finally {
+			builder.cleanUpInstanceFiles();
+		}
+
+		List<String> input = sortedLines(INPUT);
+		assertEquals(input, sortedLines(OUTPUT + "/part-m-00000"));
+		assertEquals(input, sortedLines(OUTPUT + "/copy/part-m-00000"));
+
+		trash(INPUT, OUTPUT);
+	}
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.mapred.lib.output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.junit.Test;
+
+import com.datasalt.pangool.io.Fields;
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Tuple;
+import com.datasalt.pangool.tuplemr.MapOnlyJobBuilder;
+import com.datasalt.pangool.tuplemr.MultipleOutputsCollector;
+import com.datasalt.pangool.tuplemr.mapred.MapOnlyMapper;
+import com.datasalt.pangool.tuplemr.mapred.lib.input.HadoopInputFormat;
+import com.datasalt.pangool.utils.CommonUtils;
+import com.datasalt.pangool.utils.test.AbstractHadoopTestLibrary;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class TestAsyncWriteBuffer extends AbstractHadoopTestLibrary {
+
+	public final static String INPUT = TestAsyncWriteBuffer.class.getName() + "-input";
+	public final static String OUTPUT = TestAsyncWriteBuffer.class.getName() + "-output";
+
+	public final static Schema SCHEMA = new Schema("schema", Fields.parse("id:int, name:string"));
+	public final static int ROWS = 1000;
+
+	@SuppressWarnings("serial")
+	public static class MyMapper extends MapOnlyMapper<LongWritable, Text, ITuple, NullWritable> {
+
+		private Tuple tuple = new Tuple(SCHEMA);
+
+		@Override
+		protected void map(LongWritable key, Text value, Context context, MultipleOutputsCollector collector)
+		    throws IOException, InterruptedException {
+			String[] fields = value.toString().split("\t");
+			tuple.set("id", Integer.parseInt(fields[0]));
+			tuple.set("name", fields[1]);
+			context.write(tuple, NullWritable.get());
+		}
+	}
+
+	private void writeInput() throws IOException {
+		StringBuilder input = new StringBuilder();
+		for(int i = 0; i < ROWS; i++) {
+			input.append(i).append("\tname").append(i).append("\n");
+		}
+		CommonUtils.writeTXT(input.toString(), new File(INPUT));
+	}
+
+	@Test
+	public void testOrder() throws IOException {
+		final ByteArrayOutputStream written = new ByteArrayOutputStream();
+		final AtomicBoolean closed = new AtomicBoolean(false);
+		AsyncWriteBuffer buffer = new AsyncWriteBuffer(new AsyncWriteBuffer.Sink() {
+			public void write(byte[] data, int length) throws IOException {
+				written.write(data, 0, length);
+			}
+
+			public void close() throws IOException {
+				closed.set(true);
+			}
+		}, 3, 16, "test");
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		OutputStream out = buffer.asOutputStream();
+		for(int i = 0; i < 10000; i++) {
+			byte[] record = ("record" + i + "\n").getBytes(Charsets.UTF_8);
+			out.write(record);
+			expected.write(record);
+		}
+		out.close();
+
+		assertTrue(closed.get());
+		assertEquals(expected.toString("UTF-8"), written.toString("UTF-8"));
+	}
+
+	@Test
+	public void testSinkError() throws IOException {
+		final AtomicBoolean closed = new AtomicBoolean(false);
+		AsyncWriteBuffer buffer = new AsyncWriteBuffer(new AsyncWriteBuffer.Sink() {
+			public void write(byte[] data, int length) throws IOException {
+				throw new IOException("Disk full");
+			}
+
+			public void close() throws IOException {
+				closed.set(true);
+			}
+		}, 2, 16, "test");
+
+		OutputStream out = buffer.asOutputStream();
+		try {
+			// The error is thrown in a later write, once the background thread has failed
+			for(int i = 0; i < 10000; i++) {
+				out.write(new byte[32]);
+			}
+			out.close();
+			fail();
+		} catch(IOException e) {
+			assertTrue(e.getMessage().contains("Disk full"));
+		}
+		try {
+			out.close();
+		} catch(IOException e) {
+			// The error may be thrown again when closing
+		}
+		assertTrue(closed.get());
+	}
+
+	@Test
+	public void testTupleOutput() throws Exception {
+		initHadoop();
+		trash(INPUT, OUTPUT);
+		writeInput();
+
+		MapOnlyJobBuilder builder = new MapOnlyJobBuilder(getConf());
+		builder.addInput(new Path(INPUT), new HadoopInputFormat(TextInputFormat.class), new MyMapper());
+		builder.setTupleOutput(new Path(OUTPUT), SCHEMA);
+		Job job = builder.createJob();
+		AsyncWriteBuffer.setAsyncOutput(job, 2, 64);
+		FileOutputFormat.setCompressOutput(job, true);
+		try {
+			assertRun(job);
+		} finally {
+			builder.cleanUpInstanceFiles();
+		}
+
+		final AtomicInteger count = new AtomicInteger(0);
+		readTuples(new Path(OUTPUT + "/part-m-00000"), getConf(), new TupleVisitor() {
+			@Override
+			public void onTuple(ITuple tuple) {
+				assertEquals(count.get(), tuple.get("id"));
+				assertEquals("name" + count.get(), tuple.get("name").toString());
+				count.incrementAndGet();
+			}
+		});
+		assertEquals(ROWS, count.get());
+
+		trash(INPUT, OUTPUT);
+		cleanUp();
+	}
+
+	@Test
+	public void testTupleTextOutput() throws Exception {
+		initHadoop();
+		trash(INPUT, OUTPUT);
+		writeInput();
+
+		MapOnlyJobBuilder builder = new MapOnlyJobBuilder(getConf());
+		builder.addInput(new Path(INPUT), new HadoopInputFormat(TextInputFormat.class), new MyMapper());
+		builder.setOutput(new Path(OUTPUT), new TupleTextOutputFormat(SCHEMA, false, '\t', '"', '\\'), ITuple.class,
+		    NullWritable.class);
+		Job job = builder.createJob();
+		AsyncWriteBuffer.setAsyncOutput(job, 3, 64);
+		try {
+			assertRun(job);
+		} finally {
+			builder.cleanUpInstanceFiles();
+		}
+
+		StringBuilder expected = new StringBuilder();
+		for(int i = 0; i < ROWS; i++) {
+			expected.append("\"").append(i).append("\"\t\"name").append(i).append("\"\n");
+		}
+		assertEquals(expected.toString(), Files.toString(new File(OUTPUT + "/part-m-00000"), Charsets.UTF_8));
+
+		trash(INPUT, OUTPUT);
+		cleanUp();
+	}
+}
@@ -32,8 +32,10 @@ import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.DefaultCodec;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.RecordWriter;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.junit.Test;
 
 import com.datasalt.pangool.io.Fields;
@@ -42,14 +44,20 @@ import com.datasalt.pangool.io.Schema;
 import com.datasalt.pangool.io.Tuple;
 import com.datasalt.pangool.io.Utf8;
 import com.datasalt.pangool.tuplemr.Criteria.Order;
+import com.datasalt.pangool.tuplemr.MapOnlyJobBuilder;
+import com.datasalt.pangool.tuplemr.MultipleOutputsCollector;
 import com.datasalt.pangool.tuplemr.OrderBy;
 import com.datasalt.pangool.tuplemr.TupleMRBuilder;
 import com.datasalt.pangool.tuplemr.TupleMRException;
 import com.datasalt.pangool.tuplemr.TupleMapper;
 import com.datasalt.pangool.tuplemr.TupleReducer;
+import com.datasalt.pangool.tuplemr.mapred.MapOnlyMapper;
 import com.datasalt.pangool.tuplemr.mapred.lib.input.HadoopInputFormat;
+import com.datasalt.pangool.tuplemr.mapred.lib.output.PangoolMultipleOutputs.WritersCounter;
 import com.datasalt.pangool.utils.CommonUtils;
 import com.datasalt.pangool.utils.test.AbstractHadoopTestLibrary;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
 
 public class TestMultipleOutputs extends AbstractHadoopTestLibrary {
 
@@ -104,6 +112,36 @@ public class TestMultipleOutputs extends AbstractHadoopTestLibrary {
 		}
 	}
 
+	@SuppressWarnings("serial")
+	public static class MyBaseOutputPathMapper extends MapOnlyMapper<LongWritable, Text, NullWritable, NullWritable> {
+
+		@Override
+		protected void map(LongWritable key, Text value, Context context, MultipleOutputsCollector collector)
+		    throws IOException, InterruptedException {
+			// Each line is written to the folder with its name
+			collector.write(OUTPUT_1, value, NullWritable.get(), value.toString());
+		}
+	}
+
+	@SuppressWarnings({ "serial", "rawtypes", "unchecked" })
+	public static class MyNamedOutputWritersMapper extends
+	    MapOnlyMapper<LongWritable, Text, NullWritable, NullWritable> {
+
+		// Kept across calls, while the outputs get evicted
+		private transient RecordWriter out1, out2;
+
+		@Override
+		protected void map(LongWritable key, Text value, Context context, MultipleOutputsCollector collector)
+		    throws IOException, InterruptedException {
+			if(out1 == null) {
+				out1 = collector.getNamedOutput(OUTPUT_1);
+				out2 = collector.getNamedOutput(OUTPUT_2);
+			}
+			out1.write(value, NullWritable.get());
+			out2.write(value, NullWritable.get());
+		}
+	}
+
 	private void checkCompression(String path, Class<? extends CompressionCodec> codec) throws IOException {
 		SequenceFile.Reader reader = new SequenceFile.Reader(FileSystem.get(getConf()), new Path(path),
 		    getConf());
@@ -174,6 +212,84 @@ public class TestMultipleOutputs extends AbstractHadoopTestLibrary {
 		withTupleOutput(firstMapOutput(OUTPUT + "/" + TUPLEOUTPUT_1), tuple);
 		withTupleOutput(firstReducerOutput(OUTPUT + "/" + TUPLEOUTPUT_1), tuple);
 
+		// Without a limit of open writers the cache is not counted
+		Assert.assertEquals(0, job.getCounters().findCounter(WritersCounter.CACHE_HITS).getValue());
+		Assert.assertEquals(0, job.getCounters().findCounter(WritersCounter.CACHE_MISSES).getValue());
+
+		trash(INPUT, OUTPUT);
+		cleanUp();
+	}
+
+	@Test
+	public void testMaxOpenWriters() throws Exception {
+		initHadoop();
+		trash(INPUT, OUTPUT);
+
+		CommonUtils.writeTXT("a\nb\nc\na\nb\nc", new File(INPUT));
+
+		MapOnlyJobBuilder builder = new MapOnlyJobBuilder(getConf());
+		builder.addInput(new Path(INPUT), new HadoopInputFormat(TextInputFormat.class), new MyBaseOutputPathMapper());
+		builder.setOutput(new Path(OUTPUT), new HadoopOutputFormat(TextOutputFormat.class), NullWritable.class,
+		    NullWritable.class);
+		builder.addNamedOutput(OUTPUT_1, new HadoopOutputFormat(TextOutputFormat.class), Text.class, NullWritable.class);
+		Job job = builder.createJob();
+		// Cycling over three outputs with two writers open: each write evicts an output
+		PangoolMultipleOutputs.setMaxOpenWriters(job, 2);
+		try {
+			assertRun(job);
+		} finally {
+			builder.cleanUpInstanceFiles();
+		}
+
+		Assert.assertEquals(0, job.getCounters().findCounter(WritersCounter.CACHE_HITS).getValue());
+		Assert.assertEquals(6, job.getCounters().findCounter(WritersCounter.CACHE_MISSES).getValue());
+		Assert.assertEquals(4, job.getCounters().findCounter(WritersCounter.EVICTIONS).getValue());
+		for(String output : new String[] { "a", "b", "c" }) {
+			// The file written after the eviction does not overwrite the first one
+			Assert.assertEquals(output,
+			    Files.toString(new File(OUTPUT + "/" + output + "/part-m-00000"), Charsets.UTF_8).trim());
+			Assert.assertEquals(output,
+			    Files.toString(new File(OUTPUT + "/" + output + "/part-m-00000-1"), Charsets.UTF_8).trim());
+			Assert.assertFalse(new File(OUTPUT + "/" + output + "/_reopened-1").exists());
+		}
+
+		trash(INPUT, OUTPUT);
+		cleanUp();
+	}
+
+	@Test
+	public void testMaxOpenWritersNamedOutputWriters() throws Exception {
+		initHadoop();
+		trash(INPUT, OUTPUT);
+
+		CommonUtils.writeTXT("a\nb\nc", new File(INPUT));
+
+		MapOnlyJobBuilder builder = new MapOnlyJobBuilder(getConf());
+		builder.addInput(new Path(INPUT), new HadoopInputFormat(TextInputFormat.class),
+		    new MyNamedOutputWritersMapper());
+		builder.setOutput(new Path(OUTPUT), new HadoopOutputFormat(TextOutputFormat.class), NullWritable.class,
+		    NullWritable.class);
+		builder.addNamedOutput(OUTPUT_1, new HadoopOutputFormat(TextOutputFormat.class), Text.class, NullWritable.class);
+		builder.addNamedOutput(OUTPUT_2, new HadoopOutputFormat(TextOutputFormat.class), Text.class, NullWritable.class);
+		Job job = builder.createJob();
+		// The writers returned by getNamedOutput() keep working after their output is evicted
+		PangoolMultipleOutputs.setMaxOpenWriters(job, 1);
+		try {
+			assertRun(job);
+		} finally {
+			builder.cleanUpInstanceFiles();
+		}
+
+		Assert.assertEquals(5, job.getCounters().findCounter(WritersCounter.EVICTIONS).getValue());
+		for(String output : new String[] { OUTPUT_1, OUTPUT_2 }) {
+			String[] files = { "part-m-00000", "part-m-00000-1", "part-m-00000-2" };
+			String[] lines = { "a", "b", "c" };
+			for(int i = 0; i < files.length; i++) {
+				Assert.assertEquals(lines[i],
+				    Files.toString(new File(OUTPUT + "/" + output + "/" + files[i]), Charsets.UTF_8).trim());
+			}
+		}
+
 		trash(INPUT, OUTPUT);
 		cleanUp();
 	}
@@ -0,0 +1,218 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.tuplemr.mapred.lib.output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.junit.Test;
+
+import com.datasalt.pangool.io.Fields;
+import com.datasalt.pangool.io.ITuple;
+import com.datasalt.pangool.io.Schema;
+import com.datasalt.pangool.io.Tuple;
+import com.datasalt.pangool.tuplemr.IdentityTupleReducer;
+import com.datasalt.pangool.tuplemr.MapOnlyJobBuilder;
+import com.datasalt.pangool.tuplemr.MultipleOutputsCollector;
+import com.datasalt.pangool.tuplemr.TupleMRBuilder;
+import com.datasalt.pangool.tuplemr.TupleMRException;
+import com.datasalt.pangool.tuplemr.TupleMapper;
+import com.datasalt.pangool.tuplemr.mapred.MapOnlyMapper;
+import com.datasalt.pangool.tuplemr.mapred.lib.input.HadoopInputFormat;
+import com.datasalt.pangool.utils.CommonUtils;
+import com.datasalt.pangool.utils.test.AbstractHadoopTestLibrary;
+
+public class TestPartitionedOutputFormat extends AbstractHadoopTestLibrary {
+
+	public final static String INPUT = TestPartitionedOutputFormat.class.getName() + "-input";
+	public final static String OUTPUT = TestPartitionedOutputFormat.class.getName() + "-output";
+
+	public final static Schema SCHEMA = new Schema("schema", Fields.parse("country:string, year:int, name:string"));
+
+	private static void parse(Text line, ITuple tuple) {
+		String[] fields = line.toString().split("\t");
+		tuple.set("country", fields[0]);
+		tuple.set("year", Integer.parseInt(fields[1]));
+		tuple.set("name", fields[2]);
+	}
+
+	@SuppressWarnings("serial")
+	public static class MyMapper extends TupleMapper<LongWritable, Text> {
+
+		private Tuple tuple = new Tuple(SCHEMA);
+
+		@Override
+		public void map(LongWritable key, Text value, TupleMRContext context, Collector collector)
+		    throws IOException, InterruptedException {
+			parse(value, tuple);
+			collector.write(tuple);
+		}
+	}
+
+	@SuppressWarnings("serial")
+	public static class MyMapOnlyMapper extends MapOnlyMapper<LongWritable, Text, ITuple, NullWritable> {
+
+		private Tuple tuple = new Tuple(SCHEMA);
+
+		@Override
+		protected void map(LongWritable key, Text value, Context context, MultipleOutputsCollector collector)
+		    throws IOException, InterruptedException {
+			parse(value, tuple);
+			context.write(tuple, NullWritable.get());
+		}
+	}
+
+	private void writeInput() throws IOException {
+		CommonUtils.writeTXT("ES\t2012\tPere\n" + "FR\t2012\tJean\n" + "ES\t2011\tIvan\n" + "ES\t2012\tPedro\n"
+		    + "A/B\t2011\tSlash\n" + "FR\t2012\tPierre", new File(INPUT));
+	}
+
+	private int countTuples(String path) throws IOException, InterruptedException {
+		final AtomicInteger count = new AtomicInteger(0);
+		File file = new File(path);
+		File[] files = file.isDirectory() ? file.listFiles(new HiddenFilter()) : new File[] { file };
+		for(File tupleFile : files) {
+			readTuples(new Path(tupleFile.getPath()), getConf(), new TupleVisitor() {
+				@Override
+				public void onTuple(ITuple tuple) {
+					count.incrementAndGet();
+				}
+			});
+		}
+		return count.get();
+	}
+
+	@Test
+	public void testSortedPartitions() throws Exception {
+		initHadoop();
+		trash(INPUT, OUTPUT);
+		writeInput();
+
+		TupleMRBuilder builder = new TupleMRBuilder(getConf());
+		builder.addIntermediateSchema(SCHEMA);
+		builder.setGroupByFields("country", "year");
+		builder.addInput(new Path(INPUT), new HadoopInputFormat(TextInputFormat.class), new MyMapper());
+		builder.setTupleReducer(new IdentityTupleReducer());
+		builder.setPartitionedTupleOutput(new Path(OUTPUT), SCHEMA, true, "country", "year");
+		Job job = builder.createJob();
+		job.setNumReduceTasks(2);
+		try {
+			assertRun(job);
+		} finally {
+			builder.cleanUpInstanceFiles();
+		}
+
+		// Each partition is written by only one reducer, in only one file
+		assertEquals(2, countTuples(OUTPUT + "/country=ES/year=2012"));
+		assertEquals(1, countTuples(OUTPUT + "/country=ES/year=2011"));
+		assertEquals(2, countTuples(OUTPUT + "/country=FR/year=2012"));
+		assertEquals(1, countTuples(OUTPUT + "/country=A%2FB/year=2011"));
+		assertEquals(1, new File(OUTPUT + "/country=ES/year=2012").list(new HiddenFilter()).length);
+
+		Tuple tuple = new Tuple(SCHEMA);
+		tuple.set("country", "ES");
+		tuple.set("year", 2012);
+		tuple.set("name", "Pedro");
+		withTupleOutput(OUTPUT + "/country=ES/year=2012/" + new File(OUTPUT + "/country=ES/year=2012")
+		    .list(new HiddenFilter())[0], tuple);
+
+		trash(INPUT, OUTPUT);
+		cleanUp();
+	}
+
+	@Test(expected = TupleMRException.class)
+	public void testSortedPartitionsNeedOrder() throws Exception {
+		TupleMRBuilder builder = new TupleMRBuilder(getConf());
+		builder.addIntermediateSchema(SCHEMA);
+		builder.setGroupByFields("name");
+		builder.addInput(new Path(INPUT), new HadoopInputFormat(TextInputFormat.class), new MyMapper());
+		builder.setTupleReducer(new IdentityTupleReducer());
+		builder.setPartitionedTupleOutput(new Path(OUTPUT), SCHEMA, true, "country");
+		builder.createJob();
+	}
+
+	@Test(expected = TupleMRException.class)
+	public void testSortedPartitionsNeedSamePartitionFields() throws Exception {
+		TupleMRBuilder builder = new TupleMRBuilder(getConf());
+		builder.addIntermediateSchema(SCHEMA);
+		builder.setGroupByFields("country", "year");
+		builder.setCustomPartitionFields("year");
+		builder.addInput(new Path(INPUT), new HadoopInputFormat(TextInputFormat.class), new MyMapper());
+		builder.setTupleReducer(new IdentityTupleReducer());
+		builder.setPartitionedTupleOutput(new Path(OUTPUT), SCHEMA, true, "country", "year");
+		builder.createJob();
+	}
+
+	@Test
+	public void testMapOnlyReopenedPartitions() throws Exception {
+		initHadoop();
+		trash(INPUT, OUTPUT);
+		writeInput();
+
+		MapOnlyJobBuilder builder = new MapOnlyJobBuilder(getConf());
+		builder.addInput(new Path(INPUT), new HadoopInputFormat(TextInputFormat.class), new MyMapOnlyMapper());
+		// Only one writer open with unsorted input: partitions written again go to new files
+		builder.setOutput(new Path(OUTPUT), new PartitionedOutputFormat(new TupleOutputFormat(SCHEMA), 1, "country"),
+		    ITuple.class, NullWritable.class);
+		Job job = builder.createJob();
+		try {
+			assertRun(job);
+		} finally {
+			builder.cleanUpInstanceFiles();
+		}
+
+		assertEquals(1, countTuples(OUTPUT + "/country=ES/part-m-00000"));
+		assertEquals(2, countTuples(OUTPUT + "/country=ES/part-m-00000-1"));
+		assertEquals(1, countTuples(OUTPUT + "/country=FR/part-m-00000"));
+		assertEquals(1, countTuples(OUTPUT + "/country=FR/part-m-00000-1"));
+		assertEquals(1, countTuples(OUTPUT + "/country=A%2FB/part-m-00000"));
+		assertFalse(new File(OUTPUT + "/country=ES/_reopened-1").exists());
+
+		trash(INPUT, OUTPUT);
+		cleanUp();
+	}
+
+	@Test
+	public void testEscape() {
+		StringBuilder builder = new StringBuilder();
+		PartitionedOutputFormat.escape("a/b=c:d%", builder);
+		assertEquals("a%2Fb%3Dc%3Ad%25", builder.toString());
+		builder = new StringBuilder();
+		PartitionedOutputFormat.escape(".hidden", builder);
+		assertEquals("%2Ehidden", builder.toString());
+		builder = new StringBuilder();
+		PartitionedOutputFormat.escape("", builder);
+		assertEquals(PartitionedOutputFormat.NULL_PARTITION, builder.toString());
+	}
+
+	private static class HiddenFilter implements java.io.FilenameFilter {
+
+		@Override
+		public boolean accept(File dir, String name) {
+			return !name.startsWith("_") && !name.startsWith(".");
+		}
+	}
+}
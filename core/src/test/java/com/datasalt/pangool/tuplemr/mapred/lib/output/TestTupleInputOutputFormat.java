@@ -167,6 +167,26 @@ public class TestTupleInputOutputFormat extends BaseTest {
 		HadoopUtils.deleteIfExists(fS, outPathText);
 	}
 
+	@Test
+	public void testEmptyOutput() throws Exception {
+		FileSystem fS = FileSystem.get(getConf());
+		Path outPath = new Path(OUT);
+		HadoopUtils.deleteIfExists(fS, outPath);
+		Configuration conf = new Configuration(getConf());
+		TaskAttemptID attemptId = new TaskAttemptID("test", 1, true, 0, 0);
+		conf.set("mapred.output.dir", OUT);
+		conf.set("mapred.task.id", attemptId.toString());
+		TaskAttemptContext context = TaskAttemptContextFactory.get(conf, attemptId);
+
+		Schema schema = new Schema("schema", Fields.parse("i:int,s:string"));
+		TupleOutputFormat outputFormat = new TupleOutputFormat(schema);
+		// A task that writes no tuples writes no file
+		outputFormat.getRecordWriter(context).close(context);
+		assertEquals(false, new File(outputFormat.getDefaultWorkFile(context, "").toUri().getPath()).exists());
+
+		HadoopUtils.deleteIfExists(fS, outPath);
+	}
+
 	@Test
 	public void testSplits() throws IOException, InterruptedException, IllegalArgumentException, SecurityException, ClassNotFoundException, InstantiationException, IllegalAccessException, InvocationTargetException, NoSuchMethodException {
 		testSplits(Long.MAX_VALUE, 20);
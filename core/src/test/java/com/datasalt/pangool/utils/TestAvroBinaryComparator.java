@@ -0,0 +1,62 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.apache.avro.generic.GenericData.Record;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.junit.Test;
+
+import com.datasalt.pangool.BaseTest;
+import com.datasalt.pangool.tuplemr.serialization.AvroFieldSerialization.AvroFieldSerializer;
+
+public class TestAvroBinaryComparator extends BaseTest {
+
+	@Test
+	public void testBinaryAndObjectComparisonAgree() throws Exception {
+		AvroBinaryComparator comparator = new AvroBinaryComparator(AVRO_SCHEMA);
+		Serializer<Record> ser = new AvroFieldSerializer<Record>(AVRO_SCHEMA, false);
+		DataOutputBuffer buf1 = new DataOutputBuffer();
+		DataOutputBuffer buf2 = new DataOutputBuffer();
+		Random random = new Random(1);
+		for(int i = 0; i < 1000; i++) {
+			Record r1 = new Record(AVRO_SCHEMA);
+			r1.put("my_int", random.nextInt(5));
+			r1.put("my_string", random.nextInt(5) + "");
+			Record r2 = new Record(AVRO_SCHEMA);
+			r2.put("my_int", random.nextInt(5));
+			r2.put("my_string", random.nextInt(5) + "");
+
+			buf1.reset();
+			ser.open(buf1);
+			ser.serialize(r1);
+			ser.close();
+			buf2.reset();
+			ser.open(buf2);
+			ser.serialize(r2);
+			ser.close();
+
+			int objectComparison = comparator.compare(r1, r2);
+			int binaryComparison = comparator.compare(buf1.getData(), 0, buf1.getLength(), buf2.getData(), 0,
+			    buf2.getLength());
+			assertEquals(Integer.signum(objectComparison), Integer.signum(binaryComparison));
+		}
+	}
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright [2012] [Datasalt Systems S.L.]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.datasalt.pangool.utils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.URI;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestInstancesDistributor {
+
+	public final static String FOLDER = "test-" + TestInstancesDistributor.class.getName();
+
+	@SuppressWarnings("serial")
+	public static class Data implements Serializable {
+
+		byte[] data;
+
+		public Data(int size) {
+			data = new byte[size];
+			Arrays.fill(data, (byte) 7);
+		}
+	}
+
+	/**
+	 * A local FileSystem with access times disabled, as HDFS with dfs.access.time.precision=0.
+	 */
+	public static class NoAccessTimeFileSystem extends RawLocalFileSystem {
+
+		final static URI NAME = URI.create("noatime:///");
+
+		@Override
+		public URI getUri() {
+			return NAME;
+		}
+
+		@Override
+		public void setTimes(Path p, long mtime, long atime) throws IOException {
+			throw new IOException("Access time for hdfs is not configured.");
+		}
+	}
+
+	private Configuration conf;
+
+	@Before
+	public void init() throws Exception {
+		FileUtils.deleteDirectory(new File(FOLDER));
+		conf = new Configuration();
+		conf.set(InstancesDistributor.HDFS_TMP_FOLDER_CONF, FOLDER);
+	}
+
+	@After
+	public void cleanUp() throws Exception {
+		FileUtils.deleteDirectory(new File(FOLDER));
+	}
+
+	private File[] listInstanceFiles() {
+		return new File(FOLDER).listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".instance");
+			}
+		});
+	}
+
+	private int instanceFiles() {
+		return listInstanceFiles().length;
+	}
+
+	@Test
+	public void testEmbedded() throws Exception {
+		InstancesDistributor.distribute(new Data(100), "small.dat", conf);
+
+		assertFalse(new File(FOLDER).exists());
+		assertEquals(null, DistributedCache.getCacheFiles(conf));
+		assertArrayEquals(new Data(100).data, InstancesDistributor.loadInstance(conf, Data.class, "small.dat", false).data);
+	}
+
+	@Test
+	public void testContentAddressed() throws Exception {
+		int size = InstancesDistributor.DEFAULT_MAX_EMBEDDED_SIZE * 2;
+		InstancesDistributor.distribute(new Data(size), "big1.dat", conf);
+		InstancesDistributor.distribute(new Data(size), "big2.dat", conf);
+		// Other jobs reuse the file
+		Configuration otherConf = new Configuration(conf);
+		InstancesDistributor.distribute(new Data(size), "big3.dat", otherConf);
+
+		assertEquals(1, instanceFiles());
+		assertEquals(1, DistributedCache.getCacheFiles(conf).length);
+		assertArrayEquals(new Data(size).data, InstancesDistributor.loadInstance(conf, Data.class, "big1.dat", false).data);
+		assertArrayEquals(new Data(size).data, InstancesDistributor.loadInstance(conf, Data.class, "big2.dat", false).data);
+
+		// Files are shared, so they are deleted when the last instance using them is removed
+		InstancesDistributor.removeFromCache(conf, "big1.dat");
+		InstancesDistributor.removeFromCache(conf, "big2.dat");
+		assertEquals(1, instanceFiles());
+		// Not even when old, as big3.dat still uses it
+		assertEquals(0, InstancesDistributor.removeInstanceFiles(conf, -1));
+		InstancesDistributor.removeFromCache(otherConf, "big3.dat");
+		assertEquals(0, instanceFiles());
+	}
+
+	@Test
+	public void testReusedByOtherJVM() throws Exception {
+		int size = InstancesDistributor.DEFAULT_MAX_EMBEDDED_SIZE * 2;
+		InstancesDistributor.distribute(new Data(size), "big.dat", conf);
+		// As if another JVM had reused the file after this one
+		File file = listInstanceFiles()[0];
+		new File(FOLDER, file.getName() + ".other.use").createNewFile();
+
+		InstancesDistributor.removeFromCache(conf, "big.dat");
+		assertEquals(1, instanceFiles());
+		assertEquals(0, InstancesDistributor.removeInstanceFiles(conf, 60 * 60 * 1000));
+		// Until its marker is too old
+		assertEquals(1, InstancesDistributor.removeInstanceFiles(conf, -2 * 60 * 1000));
+		assertEquals(0, new File(FOLDER).list().length);
+	}
+
+	@Test
+	public void testNoAccessTime() throws Exception {
+		conf.set("fs.default.name", NoAccessTimeFileSystem.NAME.toString());
+		conf.setClass("fs.noatime.impl", NoAccessTimeFileSystem.class, RawLocalFileSystem.class);
+		int size = InstancesDistributor.DEFAULT_MAX_EMBEDDED_SIZE * 2;
+		InstancesDistributor.distribute(new Data(size), "big1.dat", conf);
+		// Reusing the file doesn't fail
+		Configuration otherConf = new Configuration(conf);
+		InstancesDistributor.distribute(new Data(size), "big2.dat", otherConf);
+		assertEquals(1, instanceFiles());
+		assertArrayEquals(new Data(size).data, InstancesDistributor.loadInstance(otherConf, Data.class, "big2.dat", false).data);
+
+		InstancesDistributor.removeFromCache(conf, "big1.dat");
+		assertEquals(1, instanceFiles());
+		InstancesDistributor.removeFromCache(otherConf, "big2.dat");
+		assertEquals(0, new File(FOLDER).list().length);
+	}
+
+	@Test
+	public void testEmbeddedRemoval() throws Exception {
+		InstancesDistributor.distribute(new Data(100), "small.dat", conf);
+		InstancesDistributor.removeFromCache(conf, "small.dat");
+		assertFalse(new File(FOLDER).exists());
+	}
+
+	@Test
+	public void testMaxEmbeddedSize() throws Exception {
+		conf.setInt(InstancesDistributor.MAX_EMBEDDED_SIZE_CONF, 0);
+		InstancesDistributor.distribute(new Data(10), "small.dat", conf);
+
+		assertEquals(1, instanceFiles());
+		assertArrayEquals(new Data(10).data, InstancesDistributor.loadInstance(conf, Data.class, "small.dat", false).data);
+	}
+}